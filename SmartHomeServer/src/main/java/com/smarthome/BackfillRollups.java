@@ -0,0 +1,65 @@
+package com.smarthome;
+
+import com.smarthome.database.MongoDBConnection;
+import com.smarthome.service.EnergyRollupBackfill;
+import com.smarthome.service.EnergyRollupService;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/**
+ * Script para reconstruir los rollups de energia desde energy_logs
+ *
+ * Uso: java com.smarthome.BackfillRollups desde hasta [cursores] [docsPorSegundo] [--reiniciar]
+ *   - desde, hasta: fechas locales yyyy-MM-dd (hasta exclusivo)
+ *   - cursores: lecturas en paralelo (default 4)
+ *   - docsPorSegundo: limite de lectura (default 20000, 0 = sin limite)
+ *   - --reiniciar: ignorar el avance de una corrida anterior del mismo rango
+ *
+ * Se puede interrumpir (Ctrl+C) y volver a correr con el mismo rango para
+ * continuar donde se quedo.
+ */
+public class BackfillRollups {
+
+    public static void main(String[] args) {
+        System.out.println("╔════════════════════════════════════════════╗");
+        System.out.println("║     BACKFILL DE ROLLUPS - SMART HOME       ║");
+        System.out.println("╚════════════════════════════════════════════╝\n");
+
+        if (args.length < 2) {
+            System.out.println("Uso: BackfillRollups desde hasta [cursores] [docsPorSegundo] [--reiniciar]");
+            System.out.println("     fechas en formato yyyy-MM-dd (hasta exclusivo)");
+            return;
+        }
+
+        ZoneId zona = ZoneId.systemDefault();
+        long desde = LocalDate.parse(args[0]).atStartOfDay(zona).toInstant().toEpochMilli();
+        long hasta = LocalDate.parse(args[1]).atStartOfDay(zona).toInstant().toEpochMilli();
+        int cursores = args.length > 2 && !args[2].startsWith("--") ? Integer.parseInt(args[2]) : 4;
+        long docsPorSegundo = args.length > 3 && !args[3].startsWith("--") ? Long.parseLong(args[3]) : 20_000;
+        boolean reiniciar = args[args.length - 1].equals("--reiniciar");
+
+        try {
+            MongoDBConnection.getInstance();
+            EnergyRollupService rollupService = new EnergyRollupService();
+            rollupService.ensureIndexes();
+
+            EnergyRollupBackfill backfill = new EnergyRollupBackfill(rollupService, cursores, 6, docsPorSegundo);
+            Thread principal = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                backfill.stop();
+                try {
+                    principal.join(30_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+
+            backfill.run(desde, hasta, reiniciar);
+        } catch (Exception e) {
+            System.err.println("[ERROR] " + e.getMessage());
+        } finally {
+            MongoDBConnection.getInstance().close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.smarthome;
+
+import com.smarthome.model.EnergyLog;
+import com.smarthome.service.TimeBuckets;
+import org.bson.Document;
+
+import java.text.SimpleDateFormat;
+import java.time.format.DateTimeFormatter;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmark del agrupado por dia de EnergyService (no necesita MongoDB)
+ *
+ * Compara el ciclo anterior (Calendar + SimpleDateFormat + LinkedHashMap
+ * con Double en caja) contra TimeBuckets + double[] sobre documentos
+ * sinteticos de 7 dias con muestras cada 5 segundos.
+ *
+ * Uso: java com.smarthome.EnergyBucketBenchmark [documentos] [rondas]
+ */
+public class EnergyBucketBenchmark {
+
+    private static final DateTimeFormatter DAY_LABEL = DateTimeFormatter.ofPattern("dd/MM");
+
+    public static void main(String[] args) {
+        int docs = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int rondas = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        long hasta = System.currentTimeMillis();
+        long desde = hasta - 7 * TimeBuckets.DAY_MS;
+        Document[] data = generar(docs, desde, hasta);
+
+        System.out.println("=== Benchmark agrupado por dia ===");
+        System.out.println("Documentos: " + docs + " | Rondas: " + rondas + "\n");
+
+        // Verificar que ambos ciclos den el mismo resultado
+        Map<String, Double> a = cicloAnterior(data);
+        Map<String, Double> b = cicloTimeBuckets(data, desde, hasta);
+        System.out.println("Resultados iguales: " + mismoResultado(a, b));
+
+        // Calentamiento del JIT
+        for (int i = 0; i < 5; i++) {
+            cicloAnterior(data);
+            cicloTimeBuckets(data, desde, hasta);
+        }
+
+        double sink = 0;
+        long tAnterior = 0;
+        long tNuevo = 0;
+        for (int i = 0; i < rondas; i++) {
+            long t0 = System.nanoTime();
+            sink += cicloAnterior(data).size();
+            long t1 = System.nanoTime();
+            sink += cicloTimeBuckets(data, desde, hasta).size();
+            long t2 = System.nanoTime();
+            tAnterior += t1 - t0;
+            tNuevo += t2 - t1;
+        }
+
+        double nsAnterior = (double) tAnterior / rondas / docs;
+        double nsNuevo = (double) tNuevo / rondas / docs;
+        System.out.printf("Calendar + SimpleDateFormat: %.1f ns/doc%n", nsAnterior);
+        System.out.printf("TimeBuckets + double[]:      %.1f ns/doc%n", nsNuevo);
+        System.out.printf("Mejora: %.1fx (sink=%.0f)%n", nsAnterior / nsNuevo, sink);
+    }
+
+    private static Document[] generar(int n, long desde, long hasta) {
+        Random random = new Random(42);
+        String[] tipos = {"light", "tv", "speaker", "ac", "camera", "washer"};
+        Document[] data = new Document[n];
+        long paso = Math.max(1, (hasta - desde) / n);
+        for (int i = 0; i < n; i++) {
+            String tipo = tipos[random.nextInt(tipos.length)];
+            data[i] = new Document("timestamp", desde + i * paso)
+                .append("wattsConsumed", EnergyLog.calculateWatts(tipo, "ON", random.nextInt(6000)))
+                .append("duration", 5000L)
+                .append("eventType", "SAMPLE")
+                .append("deviceType", tipo);
+        }
+        return data;
+    }
+
+    /**
+     * Ciclo original de getConsumptionByDay
+     */
+    private static Map<String, Double> cicloAnterior(Document[] data) {
+        Map<String, Double> consumoByDay = new LinkedHashMap<>();
+        Calendar cal = Calendar.getInstance();
+        SimpleDateFormat sdf = new SimpleDateFormat("dd/MM");
+        for (Document doc : data) {
+            EnergyLog log = EnergyLog.fromDocument(doc);
+            cal.setTimeInMillis(log.getTimestamp());
+            String dia = sdf.format(cal.getTime());
+            double current = consumoByDay.getOrDefault(dia, 0.0);
+            consumoByDay.put(dia, current + log.getKwhConsumed());
+        }
+        return consumoByDay;
+    }
+
+    /**
+     * Ciclo con TimeBuckets (mismo que usa EnergyService)
+     */
+    private static Map<String, Double> cicloTimeBuckets(Document[] data, long desde, long hasta) {
+        TimeBuckets buckets = TimeBuckets.of(desde, hasta);
+        double[] byDay = new double[buckets.dayCount()];
+        int[] muestras = new int[buckets.dayCount()];
+        for (Document doc : data) {
+            int dia = buckets.dayIndex(doc.getLong("timestamp"));
+            byDay[dia] += EnergyLog.kwhFromDocument(doc);
+            muestras[dia]++;
+        }
+        Map<String, Double> consumoByDay = new LinkedHashMap<>();
+        for (int d = 0; d < byDay.length; d++) {
+            if (muestras[d] > 0) {
+                consumoByDay.put(buckets.dayAt(d).format(DAY_LABEL), byDay[d]);
+            }
+        }
+        return consumoByDay;
+    }
+
+    private static boolean mismoResultado(Map<String, Double> a, Map<String, Double> b) {
+        if (!a.keySet().equals(b.keySet())) return false;
+        for (Map.Entry<String, Double> e : a.entrySet()) {
+            if (Math.abs(e.getValue() - b.get(e.getKey())) > 1e-9) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,58 @@
+package com.smarthome;
+
+import com.smarthome.database.MongoDBConnection;
+import com.smarthome.service.EnergySampleMigration;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Script para pasar las muestras de energia a una coleccion time-series
+ *
+ * Uso: java com.smarthome.MigrateEnergyTimeSeries [docsPorSegundo] [--activar] [--reiniciar] [--desactivar]
+ *   - docsPorSegundo: limite de lectura (default 20000, 0 = sin limite)
+ *   - --activar: al terminar la copia, el servidor usara energy_samples
+ *     desde su siguiente arranque (correr con el servidor detenido para no
+ *     perder las muestras de los ultimos segundos)
+ *   - --reiniciar: copiar desde el principio
+ *   - --desactivar: volver a energy_logs en el siguiente arranque
+ *
+ * Se puede interrumpir (Ctrl+C) y volver a correr para continuar donde se quedo.
+ */
+public class MigrateEnergyTimeSeries {
+
+    public static void main(String[] args) {
+        System.out.println("╔════════════════════════════════════════════╗");
+        System.out.println("║   MIGRACION A TIME-SERIES - SMART HOME     ║");
+        System.out.println("╚════════════════════════════════════════════╝\n");
+
+        List<String> opciones = Arrays.asList(args);
+        long docsPorSegundo = args.length > 0 && !args[0].startsWith("--") ? Long.parseLong(args[0]) : 20_000;
+
+        try {
+            MongoDBConnection.getInstance();
+            if (opciones.contains("--desactivar")) {
+                EnergySampleMigration.deactivate();
+                System.out.println("[OK] El servidor usara energy_logs en el siguiente arranque");
+                return;
+            }
+
+            EnergySampleMigration migracion = new EnergySampleMigration(docsPorSegundo);
+            Thread principal = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                migracion.stop();
+                try {
+                    principal.join(30_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+
+            migracion.run(opciones.contains("--reiniciar"), opciones.contains("--activar"));
+        } catch (Exception e) {
+            System.err.println("[ERROR] " + e.getMessage());
+        } finally {
+            MongoDBConnection.getInstance().close();
+        }
+    }
+}
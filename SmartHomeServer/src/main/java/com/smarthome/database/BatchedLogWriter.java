@@ -0,0 +1,390 @@
+package com.smarthome.database;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Escritor asincrono por lotes para colecciones de logs
+ *
+ * Quien registra un log solo encola el documento (no bloquea ni espera a
+ * MongoDB); un hilo de fondo lo escribe con insertMany cuando el lote llega
+ * a su tamaño o cuando pasa el tiempo maximo de espera, lo que ocurra primero.
+ *
+ * - La cola es una ConcurrentLinkedQueue (sin candados: encolar es un CAS)
+ *   acotada con un contador. Si MongoDB no responde y se llena, se aplica la
+ *   politica de desborde (la memoria no crece sin limite):
+ *     DROP_NEWEST  descarta el documento nuevo
+ *     DROP_OLDEST  descarta el mas viejo de la cola para hacerle lugar
+ *     CALLER_RUNS  lo escribe quien lo registra (no se pierde, pero esa
+ *                  llamada si espera a MongoDB)
+ *   Los descartados se cuentan.
+ * - El hilo de escritura duerme (park) mientras no hay nada; quien encola
+ *   lo despierta solo con el primer documento y cuando se junta un lote.
+ * - Los lotes que fallan se reintentan con espera exponencial. El _id se
+ *   asigna al encolar, asi que un reintento despues de una escritura parcial
+ *   no duplica documentos (los "duplicate key" se toman como escritos).
+ *   Si el error dice que documentos fallaron solo se reintentan esos; si no
+ *   se sabe (timeout, red) y la coleccion no rechaza _id repetidos, antes
+ *   de reintentar se buscan los ya escritos con setWrittenFilter.
+ * - stop() escribe lo pendiente antes de terminar.
+ */
+public class BatchedLogWriter {
+
+    /**
+     * Que hacer con un documento cuando la cola esta llena
+     */
+    public enum OverflowPolicy { DROP_NEWEST, DROP_OLDEST, CALLER_RUNS }
+
+    private static final int CODIGO_DUPLICADO = 11000;
+    private static final long ESPERA_REINTENTO_MS = 200;
+
+    private final String nombre;
+    private final MongoCollection<Document> collection;
+    private final Queue<Document> cola = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendientes = new AtomicInteger();
+    private final int capacidad;
+    private final OverflowPolicy politica;
+    private final int tamanoLote;
+    private final long esperaMaxMs;
+    private final int reintentos;
+
+    // Se llama con cada lote ya escrito (ej. invalidar caches)
+    private volatile Consumer<List<Document>> onFlush;
+    // Para reintentos sin duplicar donde el _id no es unico
+    private volatile Function<List<Document>, Bson> writtenFilter;
+
+    private final AtomicLong encolados = new AtomicLong();
+    private final AtomicLong escritos = new AtomicLong();
+    private final AtomicLong descartados = new AtomicLong();
+    private final AtomicLong reintentados = new AtomicLong();
+    private final AtomicLong lotesFallidos = new AtomicLong();
+    private final AtomicLong escritosPorLlamador = new AtomicLong();
+    private volatile long ultimoFlush;
+
+    private volatile Thread hilo;
+    private volatile boolean corriendo;
+
+    /**
+     * @param capacidad maximo de documentos en espera
+     * @param tamanoLote documentos por insertMany
+     * @param esperaMaxMs tiempo maximo que un documento espera en la cola
+     * @param reintentos intentos extra por lote antes de descartarlo
+     */
+    public BatchedLogWriter(String nombre, MongoCollection<Document> collection,
+                            int capacidad, int tamanoLote, long esperaMaxMs, int reintentos) {
+        this(nombre, collection, capacidad, tamanoLote, esperaMaxMs, reintentos, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * @param politica que hacer cuando la cola esta llena
+     */
+    public BatchedLogWriter(String nombre, MongoCollection<Document> collection, int capacidad,
+                            int tamanoLote, long esperaMaxMs, int reintentos, OverflowPolicy politica) {
+        this.nombre = nombre;
+        this.collection = collection;
+        this.capacidad = capacidad;
+        this.politica = politica;
+        this.tamanoLote = tamanoLote;
+        this.esperaMaxMs = esperaMaxMs;
+        this.reintentos = reintentos;
+    }
+
+    public void setOnFlush(Consumer<List<Document>> onFlush) {
+        this.onFlush = onFlush;
+    }
+
+    /**
+     * Filtro que encuentra los documentos de un lote ya escritos. Se usa
+     * antes de reintentar un lote con resultado desconocido en colecciones
+     * sin indice unico en _id
+     */
+    public void setWrittenFilter(Function<List<Document>, Bson> writtenFilter) {
+        this.writtenFilter = writtenFilter;
+    }
+
+    /**
+     * Iniciar el hilo de escritura
+     */
+    public synchronized void start() {
+        if (corriendo) return;
+        corriendo = true;
+        Thread t = new Thread(this::loop, "LogWriter-" + nombre);
+        t.setDaemon(true);
+        hilo = t;
+        t.start();
+    }
+
+    /**
+     * Detener: escribe lo pendiente y espera al hilo (maximo timeoutMs)
+     */
+    public void stop(long timeoutMs) {
+        Thread t;
+        synchronized (this) {
+            if (!corriendo) return;
+            corriendo = false;
+            t = hilo;
+        }
+        LockSupport.unpark(t);
+        try {
+            t.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (pendientes.get() > 0) {
+            System.err.println("[DB] " + nombre + ": " + pendientes.get() + " logs sin escribir al detener");
+        }
+    }
+
+    /**
+     * Encolar un documento sin bloquear (salvo CALLER_RUNS con la cola llena)
+     * @return false si la cola esta llena y el documento se descarto
+     */
+    public boolean submit(Document doc) {
+        if (!doc.containsKey("_id")) {
+            doc.put("_id", new ObjectId());
+        }
+        int n = pendientes.incrementAndGet();
+        if (n > capacidad) {
+            pendientes.decrementAndGet();
+            return overflow(doc);
+        }
+        cola.offer(doc);
+        encolados.incrementAndGet();
+        if (n == 1 || n == tamanoLote) {
+            // Primer documento (empieza la espera del lote) o lote completo
+            Thread t = hilo;
+            if (t != null) LockSupport.unpark(t);
+        }
+        return true;
+    }
+
+    public void submitAll(List<Document> docs) {
+        for (Document doc : docs) {
+            submit(doc);
+        }
+    }
+
+    /**
+     * Aplicar la politica de desborde
+     * @return true si el documento se encolo o se escribio
+     */
+    private boolean overflow(Document doc) {
+        switch (politica) {
+            case DROP_OLDEST:
+                if (cola.poll() != null) {
+                    // El lugar del viejo pasa directo al nuevo (el contador no cambia)
+                    cola.offer(doc);
+                    encolados.incrementAndGet();
+                    countDropped();
+                    return true;
+                }
+                // El hilo de escritura vacio la cola mientras tanto
+                return submit(doc);
+            case CALLER_RUNS:
+                List<Document> uno = new ArrayList<>(1);
+                uno.add(doc);
+                escritosPorLlamador.incrementAndGet();
+                return flush(uno);
+            default:
+                countDropped();
+                return false;
+        }
+    }
+
+    private void countDropped() {
+        long n = descartados.incrementAndGet();
+        if (n == 1 || n % 1000 == 0) {
+            System.err.println("[DB] " + nombre + ": cola llena, " + n + " logs descartados");
+        }
+    }
+
+    private void loop() {
+        List<Document> lote = new ArrayList<>(tamanoLote);
+        while (corriendo || pendientes.get() > 0) {
+            if (drain(lote) == 0) {
+                if (corriendo) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(esperaMaxMs));
+                continue;
+            }
+
+            // Completar el lote hasta su tamaño o hasta que venza la espera del primero
+            // (al detener se escribe sin esperar)
+            long vence = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(esperaMaxMs);
+            while (lote.size() < tamanoLote && corriendo) {
+                long resta = vence - System.nanoTime();
+                if (resta <= 0) break;
+                LockSupport.parkNanos(resta);
+                drain(lote);
+            }
+
+            flush(lote);
+            lote = new ArrayList<>(tamanoLote);
+        }
+    }
+
+    /**
+     * Pasar documentos de la cola al lote hasta completarlo
+     * @return documentos tomados
+     */
+    private int drain(List<Document> lote) {
+        int n = 0;
+        Document doc;
+        while (lote.size() < tamanoLote && (doc = cola.poll()) != null) {
+            lote.add(doc);
+            n++;
+        }
+        if (n > 0) pendientes.addAndGet(-n);
+        return n;
+    }
+
+    /**
+     * @return true si el lote quedo escrito
+     */
+    private boolean flush(List<Document> lote) {
+        List<Document> pendiente = lote;
+        for (int intento = 0; intento <= reintentos; intento++) {
+            // Resultado desconocido: el servidor pudo escribir parte del lote
+            boolean incierto = false;
+            try {
+                collection.insertMany(pendiente, new InsertManyOptions().ordered(false));
+                done(lote);
+                return true;
+            } catch (MongoBulkWriteException e) {
+                if (soloDuplicados(e)) {
+                    // Un intento anterior alcanzo a escribir parte del lote
+                    done(lote);
+                    return true;
+                }
+                System.err.println("[DB] " + nombre + ": error escribiendo lote: " + e.getMessage());
+                // Sin orden se intentan todos: los que no tienen error ya quedaron escritos
+                if (e.getWriteConcernError() == null) {
+                    pendiente = fallidos(pendiente, e);
+                } else {
+                    incierto = true;
+                }
+            } catch (Exception e) {
+                System.err.println("[DB] " + nombre + ": error escribiendo lote: " + e.getMessage());
+                incierto = true;
+            }
+
+            if (intento < reintentos) {
+                reintentados.incrementAndGet();
+                // Deteniendo: seguir con los reintentos restantes sin esperar
+                if (corriendo) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(ESPERA_REINTENTO_MS << intento));
+                if (incierto) pendiente = sinEscribir(pendiente);
+                if (pendiente.isEmpty()) {
+                    done(lote);
+                    return true;
+                }
+            }
+        }
+        lotesFallidos.incrementAndGet();
+        descartados.addAndGet(pendiente.size());
+        System.err.println("[DB] " + nombre + ": " + pendiente.size() + " de " + lote.size() +
+            " logs descartados tras " + (reintentos + 1) + " intentos");
+        if (pendiente.size() < lote.size()) {
+            done(escritosDe(lote, pendiente));
+        }
+        return false;
+    }
+
+    /**
+     * Documentos del lote que fallaron por algo distinto a "duplicate key"
+     */
+    private static List<Document> fallidos(List<Document> lote, MongoBulkWriteException e) {
+        List<Document> out = new ArrayList<>();
+        for (BulkWriteError error : e.getWriteErrors()) {
+            if (error.getCode() != CODIGO_DUPLICADO) out.add(lote.get(error.getIndex()));
+        }
+        return out;
+    }
+
+    /**
+     * Quitar del lote lo que ya esta en la coleccion. Solo hace falta si la
+     * coleccion no rechaza un _id repetido (time-series); si la busqueda
+     * falla se reintenta todo y puede quedar algun duplicado
+     */
+    private List<Document> sinEscribir(List<Document> lote) {
+        Function<List<Document>, Bson> filtro = writtenFilter;
+        Bson escritos = filtro != null ? filtro.apply(lote) : null;
+        if (escritos == null) return lote;
+        try {
+            Set<Object> ids = new HashSet<>();
+            for (Document doc : collection.find(escritos).projection(Projections.include("_id"))) {
+                ids.add(doc.get("_id"));
+            }
+            if (ids.isEmpty()) return lote;
+            List<Document> out = new ArrayList<>(lote.size());
+            for (Document doc : lote) {
+                if (!ids.contains(doc.get("_id"))) out.add(doc);
+            }
+            return out;
+        } catch (Exception e) {
+            System.err.println("[DB] " + nombre + ": no se pudo revisar el lote antes de reintentar: " + e.getMessage());
+            return lote;
+        }
+    }
+
+    private static List<Document> escritosDe(List<Document> lote, List<Document> pendiente) {
+        Set<Object> ids = new HashSet<>();
+        for (Document doc : pendiente) ids.add(doc.get("_id"));
+        List<Document> out = new ArrayList<>(lote.size() - pendiente.size());
+        for (Document doc : lote) {
+            if (!ids.contains(doc.get("_id"))) out.add(doc);
+        }
+        return out;
+    }
+
+    private static boolean soloDuplicados(MongoBulkWriteException e) {
+        for (BulkWriteError error : e.getWriteErrors()) {
+            if (error.getCode() != CODIGO_DUPLICADO) return false;
+        }
+        return e.getWriteConcernError() == null;
+    }
+
+    private void done(List<Document> lote) {
+        escritos.addAndGet(lote.size());
+        ultimoFlush = System.currentTimeMillis();
+        Consumer<List<Document>> listener = onFlush;
+        if (listener != null) {
+            try {
+                listener.accept(lote);
+            } catch (Exception e) {
+                System.err.println("[DB] " + nombre + ": error en onFlush: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Metricas del escritor en JSON
+     */
+    public String statsJson() {
+        return "{\"name\": \"" + nombre + "\", \"policy\": \"" + politica + "\", \"queued\": " + pendientes.get() +
+            ", \"capacity\": " + capacidad + ", \"enqueued\": " + encolados.get() +
+            ", \"written\": " + escritos.get() + ", \"callerWrites\": " + escritosPorLlamador.get() +
+            ", \"dropped\": " + descartados.get() + ", \"retries\": " + reintentados.get() +
+            ", \"failedBatches\": " + lotesFallidos.get() + ", \"lastFlush\": " + ultimoFlush + "}";
+    }
+
+    public int getPending() { return pendientes.get(); }
+    public long getWritten() { return escritos.get(); }
+    public long getDropped() { return descartados.get(); }
+}
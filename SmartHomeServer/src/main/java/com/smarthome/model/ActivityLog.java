@@ -1,13 +1,17 @@
 package com.smarthome.model;
 
+import com.smarthome.protocol.JsonStreamWriter;
+import com.smarthome.protocol.JsonWritable;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 
+import java.io.IOException;
+
 /**
  * Modelo para registrar actividad de usuarios
  * Guarda quién hizo qué y cuándo
  */
-public class ActivityLog {
+public class ActivityLog implements JsonWritable {
     
     private ObjectId id;
     private String username;        // Usuario que realizó la acción
@@ -19,6 +23,13 @@ public class ActivityLog {
     private String ipAddress;       // IP desde donde se realizó
     private long timestamp;         // Momento de la acción
     
+    // Ráfaga de cambios agrupada en una sola entrada (ej. arrastrar un slider)
+    private int count = 1;          // Cambios agrupados
+    private String firstValue;      // Valor del primer cambio
+    private String lastValue;       // Valor del último cambio
+    private long duration;          // ms entre el primer y el último cambio
+    private long startTime;         // Momento del primer cambio (timestamp es el del último)
+    
     // Tipos de acciones
     public static final String ACTION_LOGIN = "LOGIN";
     public static final String ACTION_LOGOUT = "LOGOUT";
@@ -61,6 +72,13 @@ public class ActivityLog {
            .append("details", details)
            .append("ipAddress", ipAddress)
            .append("timestamp", timestamp);
+        if (count > 1) {
+            doc.append("count", count)
+               .append("firstValue", firstValue)
+               .append("lastValue", lastValue)
+               .append("duration", duration)
+               .append("startTime", startTime);
+        }
         return doc;
     }
     
@@ -79,6 +97,14 @@ public class ActivityLog {
         log.ipAddress = doc.getString("ipAddress");
         Long ts = doc.getLong("timestamp");
         log.timestamp = ts != null ? ts : 0;
+        Integer count = doc.getInteger("count");
+        log.count = count != null ? count : 1;
+        log.firstValue = doc.getString("firstValue");
+        log.lastValue = doc.getString("lastValue");
+        Long duration = doc.getLong("duration");
+        log.duration = duration != null ? duration : 0;
+        Long startTime = doc.getLong("startTime");
+        log.startTime = startTime != null ? startTime : log.timestamp - log.duration;
         return log;
     }
     
@@ -87,7 +113,8 @@ public class ActivityLog {
         return String.format(java.util.Locale.US,
             "{\"id\": \"%s\", \"username\": \"%s\", \"action\": \"%s\", " +
             "\"deviceId\": %s, \"deviceName\": %s, \"deviceType\": %s, " +
-            "\"details\": %s, \"ipAddress\": %s, \"timestamp\": %d}",
+            "\"details\": %s, \"ipAddress\": %s, \"timestamp\": %d, " +
+            "\"count\": %d, \"firstValue\": %s, \"lastValue\": %s, \"duration\": %d, \"startTime\": %d}",
             id != null ? id.toHexString() : "",
             username != null ? username : "",
             action != null ? action : "",
@@ -96,10 +123,35 @@ public class ActivityLog {
             deviceType != null ? "\"" + deviceType + "\"" : "null",
             details != null ? "\"" + details + "\"" : "null",
             ipAddress != null ? "\"" + ipAddress + "\"" : "null",
-            timestamp
+            timestamp,
+            count,
+            firstValue != null ? "\"" + firstValue + "\"" : "null",
+            lastValue != null ? "\"" + lastValue + "\"" : "null",
+            duration,
+            getStartTime()
         );
     }
     
+    @Override
+    public void writeJson(JsonStreamWriter w) throws IOException {
+        w.beginObject()
+         .field("id", id != null ? id.toHexString() : "")
+         .field("username", username != null ? username : "")
+         .field("action", action != null ? action : "")
+         .field("deviceId", deviceId)
+         .field("deviceName", deviceName)
+         .field("deviceType", deviceType)
+         .field("details", details)
+         .field("ipAddress", ipAddress)
+         .field("timestamp", timestamp)
+         .field("count", count)
+         .field("firstValue", firstValue)
+         .field("lastValue", lastValue)
+         .field("duration", duration)
+         .field("startTime", getStartTime())
+         .endObject();
+    }
+    
     // Descripción legible de la acción
     public String getReadableDescription() {
         switch (action) {
@@ -114,6 +166,11 @@ public class ActivityLog {
             case ACTION_DEVICE_OFF:
                 return "apagó " + (deviceName != null ? deviceName : "dispositivo");
             case ACTION_DEVICE_CHANGE:
+                if (count > 1) {
+                    return "modificó " + (deviceName != null ? deviceName : "dispositivo") + 
+                           String.format(java.util.Locale.US, " (%s -> %s, %d cambios en %.1f s)",
+                               firstValue, lastValue, count, duration / 1000.0);
+                }
                 return "modificó " + (deviceName != null ? deviceName : "dispositivo") + 
                        (details != null ? " (" + details + ")" : "");
             case ACTION_ROUTINE_EXEC:
@@ -151,6 +208,21 @@ public class ActivityLog {
     public long getTimestamp() { return timestamp; }
     public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
     
+    public int getCount() { return count; }
+    public void setCount(int count) { this.count = count; }
+    
+    public String getFirstValue() { return firstValue; }
+    public void setFirstValue(String firstValue) { this.firstValue = firstValue; }
+    
+    public String getLastValue() { return lastValue; }
+    public void setLastValue(String lastValue) { this.lastValue = lastValue; }
+    
+    public long getDuration() { return duration; }
+    public void setDuration(long duration) { this.duration = duration; }
+    
+    public long getStartTime() { return count > 1 ? startTime : timestamp; }
+    public void setStartTime(long startTime) { this.startTime = startTime; }
+    
     @Override
     public String toString() {
         return String.format("[%s] %s %s", 
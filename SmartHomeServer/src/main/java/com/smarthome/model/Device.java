@@ -1,7 +1,11 @@
 package com.smarthome.model;
 
+import com.smarthome.protocol.JsonStreamWriter;
+import com.smarthome.protocol.JsonWritable;
 import org.bson.Document;
 import org.bson.types.ObjectId;
+
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -9,7 +13,7 @@ import java.util.List;
  * Modelo de Dispositivo del hogar inteligente
  * Tipos: light, thermostat, door, camera, sensor, speaker, etc.
  */
-public class Device {
+public class Device implements JsonWritable {
     
     private ObjectId id;
     private String name;           // "Luz Sala", "Termostato Principal"
@@ -101,6 +105,25 @@ public class Device {
         return sb.toString();
     }
     
+    @Override
+    public void writeJson(JsonStreamWriter w) throws IOException {
+        w.beginObject()
+         .field("id", id != null ? id.toString() : "")
+         .field("name", name != null ? name : "")
+         .field("type", type != null ? type : "")
+         .field("room", room != null ? room : "")
+         .field("status", status)
+         .field("value", value)
+         .field("color", color != null ? color : "")
+         .name("tracks").beginArray();
+        if (tracks != null) {
+            for (String track : tracks) {
+                w.value(track);
+            }
+        }
+        w.endArray().endObject();
+    }
+    
     // Getters y Setters
     public ObjectId getId() { return id; }
     public void setId(ObjectId id) { this.id = id; }
@@ -0,0 +1,147 @@
+package com.smarthome.model;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Costo de consumo calculado con la tarifa de una casa
+ * Desglosa kWh y costo por escalon y por franja horaria. Sirve tanto para
+ * un rango consultado como para la proyeccion del periodo de facturacion
+ * (en ese caso avance indica la fraccion del periodo ya transcurrida).
+ */
+public class EnergyCost {
+
+    private final String tarifa;
+    private final String moneda;
+    private final long desde;
+    private final long hasta;
+    private final String[] tierNames;
+    private final String[] bandNames;   // El ultimo es "sin franja"
+    private final double ivaTasa;
+
+    private final double[] tierKwh;
+    private final double[] tierCosto;
+    private final double[] bandKwh;
+    private final double[] bandCosto;
+    private final double[] porEscalon;  // Reparto de la hora en curso (se reutiliza)
+    private double kwh;
+    private double energia;
+    private double cargoFijo;
+    private double avance = -1;
+
+    public EnergyCost(Tariff tariff, long desde, long hasta) {
+        this.tarifa = tariff.getName();
+        this.moneda = tariff.getMoneda();
+        this.desde = desde;
+        this.hasta = hasta;
+        this.ivaTasa = tariff.getIva();
+
+        List<Tariff.Tier> tiers = tariff.getTiers();
+        this.tierNames = new String[tiers.size()];
+        for (int i = 0; i < tiers.size(); i++) tierNames[i] = tiers.get(i).name;
+        List<Tariff.Band> bands = tariff.getBands();
+        this.bandNames = new String[bands.size() + 1];
+        for (int i = 0; i < bands.size(); i++) bandNames[i] = bands.get(i).name;
+        bandNames[bands.size()] = "sin franja";
+
+        this.tierKwh = new double[tierNames.length];
+        this.tierCosto = new double[tierNames.length];
+        this.bandKwh = new double[bandNames.length];
+        this.bandCosto = new double[bandNames.length];
+        this.porEscalon = new double[tierNames.length];
+    }
+
+    /**
+     * Sumar kWh consumidos en una franja cuando el periodo llevaba acumulado kWh
+     */
+    public void add(Tariff tariff, double acumulado, int bandIndex, double kwhHora) {
+        if (kwhHora <= 0) return;
+        double factor = tariff.factorAt(bandIndex);
+        Arrays.fill(porEscalon, 0);
+        tariff.tieredCost(acumulado, kwhHora, porEscalon);
+
+        double costo = 0;
+        for (int i = 0; i < porEscalon.length; i++) {
+            if (porEscalon[i] == 0) continue;
+            double c = porEscalon[i] * tariff.getTiers().get(i).precio * factor;
+            tierKwh[i] += porEscalon[i];
+            tierCosto[i] += c;
+            costo += c;
+        }
+        int b = bandIndex >= 0 ? bandIndex : bandNames.length - 1;
+        bandKwh[b] += kwhHora;
+        bandCosto[b] += costo;
+        kwh += kwhHora;
+        energia += costo;
+    }
+
+    public double getKwh() { return kwh; }
+    public double getEnergia() { return energia; }
+    public double getCargoFijo() { return cargoFijo; }
+    public void setCargoFijo(double cargoFijo) { this.cargoFijo = cargoFijo; }
+    public double getAvance() { return avance; }
+    public void setAvance(double avance) { this.avance = avance; }
+    public double getBandKwh(int i) { return bandKwh[i]; }
+    public long getDesde() { return desde; }
+    public long getHasta() { return hasta; }
+
+    public double getIva() {
+        return (energia + cargoFijo) * ivaTasa;
+    }
+
+    public double getTotal() {
+        return energia + cargoFijo + getIva();
+    }
+
+    /**
+     * Precio promedio efectivo por kWh (con IVA, sin cargo fijo)
+     */
+    public double getPrecioPromedio() {
+        return kwh > 0 ? energia * (1 + ivaTasa) / kwh : 0;
+    }
+
+    /**
+     * Escalon en el que termina el consumo (el mas alto con kWh)
+     */
+    public String getEscalon() {
+        for (int i = tierKwh.length - 1; i >= 0; i--) {
+            if (tierKwh[i] > 0) return tierNames[i];
+        }
+        return tierNames.length > 0 ? tierNames[0] : null;
+    }
+
+    /**
+     * Convertir a JSON string para respuestas REST
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"tarifa\": \"").append(tarifa != null ? tarifa.replace("\"", "\\\"") : "").append("\"")
+            .append(", \"moneda\": \"").append(moneda).append("\"")
+            .append(", \"desde\": ").append(desde)
+            .append(", \"hasta\": ").append(hasta)
+            .append(String.format(Locale.US,
+                ", \"kwh\": %.4f, \"energia\": %.2f, \"cargoFijo\": %.2f, \"iva\": %.2f, \"total\": %.2f, \"precioPromedio\": %.4f",
+                kwh, energia, cargoFijo, getIva(), getTotal(), getPrecioPromedio()))
+            .append(", \"escalon\": ").append(getEscalon() != null ? "\"" + getEscalon() + "\"" : "null");
+        if (avance >= 0) {
+            json.append(String.format(Locale.US, ", \"avance\": %.4f", avance));
+        }
+        json.append(", \"porEscalon\": [");
+        for (int i = 0; i < tierNames.length; i++) {
+            if (i > 0) json.append(",");
+            json.append("{\"name\": \"").append(tierNames[i]).append("\"")
+                .append(String.format(Locale.US, ", \"kwh\": %.4f, \"costo\": %.2f}", tierKwh[i], tierCosto[i]));
+        }
+        json.append("], \"porFranja\": [");
+        int n = 0;
+        for (int i = 0; i < bandNames.length; i++) {
+            if (i == bandNames.length - 1 && bandKwh[i] == 0 && bandNames.length > 1) continue;
+            if (n++ > 0) json.append(",");
+            json.append("{\"name\": \"").append(bandNames[i]).append("\"")
+                .append(String.format(Locale.US, ", \"kwh\": %.4f, \"costo\": %.2f}", bandKwh[i], bandCosto[i]));
+        }
+        json.append("]}");
+        return json.toString();
+    }
+}
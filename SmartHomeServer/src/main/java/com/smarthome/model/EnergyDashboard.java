@@ -0,0 +1,131 @@
+package com.smarthome.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Vista combinada del tablero de energia
+ * Agrupa resumen, consumo por hora/tipo/dia, dispositivos activos y
+ * ultimos eventos para responder la pagina de energia en una sola peticion
+ */
+public class EnergyDashboard {
+
+    private long periodoDesde;
+    private long periodoHasta;
+    private double totalKwh;
+    private double currentWatts;
+    private double precioPorKwh;
+    private double costoEstimado;
+    private String moneda = "MXN";
+    private String tarifa;
+    private String proyeccionJson;     // EnergyCostService.Projection ya serializada
+    private double[] consumoByHour = new double[24];
+    private Map<String, Double> consumoByType = new HashMap<>();
+    private Map<String, Double> consumoByDay = new LinkedHashMap<>();
+    private Map<String, Double> dispositivosActivos = new HashMap<>();
+    private List<EnergyLog> logs = new ArrayList<>();
+
+    /**
+     * Convertir a JSON string para respuestas REST
+     * Las llaves coinciden con las de las consultas individuales de /api/energy
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"summary\": {")
+            .append("\"totalKwh\": ").append(String.format(Locale.US, "%.4f", totalKwh)).append(",")
+            .append("\"currentWatts\": ").append(String.format(Locale.US, "%.1f", currentWatts)).append(",")
+            .append("\"costoEstimado\": ").append(String.format(Locale.US, "%.2f", costoEstimado)).append(",")
+            .append("\"precioPorKwh\": ").append(String.format(Locale.US, "%.4f", precioPorKwh)).append(",")
+            .append("\"moneda\": \"").append(moneda).append("\",")
+            .append("\"periodoDesde\": ").append(periodoDesde).append(",")
+            .append("\"periodoHasta\": ").append(periodoHasta);
+        if (tarifa != null) {
+            json.append(",\"tarifa\": \"").append(tarifa.replace("\"", "\\\"")).append("\"");
+        }
+        if (proyeccionJson != null) {
+            json.append(",\"proyeccion\": ").append(proyeccionJson);
+        }
+        json.append("},");
+
+        json.append("\"consumoByHour\": {");
+        for (int h = 0; h < 24; h++) {
+            if (h > 0) json.append(",");
+            json.append("\"").append(h).append("\": ")
+                .append(String.format(Locale.US, "%.4f", consumoByHour[h]));
+        }
+        json.append("},");
+
+        appendMap(json, "consumoByType", consumoByType, "%.4f");
+        json.append(",");
+        appendMap(json, "consumoByDay", consumoByDay, "%.4f");
+        json.append(",");
+        appendMap(json, "dispositivosActivos", dispositivosActivos, "%.1f");
+        json.append(",\"totalWatts\": ").append(String.format(Locale.US, "%.1f", currentWatts)).append(",");
+
+        json.append("\"logs\": [");
+        for (int i = 0; i < logs.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append(logs.get(i).toJson());
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static void appendMap(StringBuilder json, String name, Map<String, Double> map, String format) {
+        json.append("\"").append(name).append("\": {");
+        int i = 0;
+        for (Map.Entry<String, Double> entry : map.entrySet()) {
+            if (i++ > 0) json.append(",");
+            json.append("\"").append(entry.getKey()).append("\": ")
+                .append(String.format(Locale.US, format, entry.getValue()));
+        }
+        json.append("}");
+    }
+
+    // Getters y Setters
+    public long getPeriodoDesde() { return periodoDesde; }
+    public void setPeriodoDesde(long periodoDesde) { this.periodoDesde = periodoDesde; }
+
+    public long getPeriodoHasta() { return periodoHasta; }
+    public void setPeriodoHasta(long periodoHasta) { this.periodoHasta = periodoHasta; }
+
+    public double getTotalKwh() { return totalKwh; }
+    public void setTotalKwh(double totalKwh) { this.totalKwh = totalKwh; }
+
+    public double getCurrentWatts() { return currentWatts; }
+    public void setCurrentWatts(double currentWatts) { this.currentWatts = currentWatts; }
+
+    public double getPrecioPorKwh() { return precioPorKwh; }
+    public void setPrecioPorKwh(double precioPorKwh) { this.precioPorKwh = precioPorKwh; }
+
+    public double getCostoEstimado() { return costoEstimado; }
+    public void setCostoEstimado(double costoEstimado) { this.costoEstimado = costoEstimado; }
+
+    public String getMoneda() { return moneda; }
+    public void setMoneda(String moneda) { this.moneda = moneda; }
+
+    public String getTarifa() { return tarifa; }
+    public void setTarifa(String tarifa) { this.tarifa = tarifa; }
+
+    public String getProyeccionJson() { return proyeccionJson; }
+    public void setProyeccionJson(String proyeccionJson) { this.proyeccionJson = proyeccionJson; }
+
+    public double[] getConsumoByHour() { return consumoByHour; }
+    public void setConsumoByHour(double[] consumoByHour) { this.consumoByHour = consumoByHour; }
+
+    public Map<String, Double> getConsumoByType() { return consumoByType; }
+    public void setConsumoByType(Map<String, Double> consumoByType) { this.consumoByType = consumoByType; }
+
+    public Map<String, Double> getConsumoByDay() { return consumoByDay; }
+    public void setConsumoByDay(Map<String, Double> consumoByDay) { this.consumoByDay = consumoByDay; }
+
+    public Map<String, Double> getDispositivosActivos() { return dispositivosActivos; }
+    public void setDispositivosActivos(Map<String, Double> dispositivosActivos) { this.dispositivosActivos = dispositivosActivos; }
+
+    public List<EnergyLog> getLogs() { return logs; }
+    public void setLogs(List<EnergyLog> logs) { this.logs = logs; }
+}
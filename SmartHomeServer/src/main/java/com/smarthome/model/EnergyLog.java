@@ -1,13 +1,17 @@
 package com.smarthome.model;
 
+import com.smarthome.protocol.JsonStreamWriter;
+import com.smarthome.protocol.JsonWritable;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 
+import java.io.IOException;
+
 /**
  * Modelo para registrar eventos de consumo electrico
  * Guarda cuando un dispositivo se enciende/apaga o realiza una accion
  */
-public class EnergyLog {
+public class EnergyLog implements JsonWritable {
     
     private ObjectId id;
     private String deviceId;       // ID del dispositivo
@@ -18,6 +22,7 @@ public class EnergyLog {
     private long timestamp;        // Cuando ocurrio
     private long duration;         // Duracion en milisegundos (para eventos continuos)
     private String houseId;        // Casa
+    private String room;           // Habitacion del dispositivo
     
     // Watts estimados por tipo de dispositivo
     public static final int WATTS_LIGHT = 15;           // LED promedio
@@ -94,6 +99,13 @@ public class EnergyLog {
      * Calcula kWh consumidos dado watts y duracion en milisegundos
      */
     public double getKwhConsumed() {
+        return calculateKwh(wattsConsumed, duration, eventType);
+    }
+    
+    /**
+     * kWh de un evento sin crear el objeto (para recorrer cursores grandes)
+     */
+    public static double calculateKwh(double wattsConsumed, long duration, String eventType) {
         if (duration <= 0) {
             // Para acciones instantaneas (porton), asumimos 5 segundos
             if ("ACTION".equals(eventType)) {
@@ -106,6 +118,15 @@ public class EnergyLog {
         return wattsConsumed * hours;
     }
     
+    /**
+     * kWh directamente desde un Document de MongoDB
+     */
+    public static double kwhFromDocument(Document doc) {
+        Double watts = doc.getDouble("wattsConsumed");
+        Long dur = doc.getLong("duration");
+        return calculateKwh(watts != null ? watts : 0, dur != null ? dur : 0, doc.getString("eventType"));
+    }
+    
     // Convertir a Document de MongoDB
     public Document toDocument() {
         Document doc = new Document();
@@ -119,7 +140,8 @@ public class EnergyLog {
            .append("wattsConsumed", wattsConsumed)
            .append("timestamp", timestamp)
            .append("duration", duration)
-           .append("houseId", houseId);
+           .append("houseId", houseId)
+           .append("room", room);
         return doc;
     }
     
@@ -140,6 +162,7 @@ public class EnergyLog {
         Long dur = doc.getLong("duration");
         log.duration = dur != null ? dur : 0;
         log.houseId = doc.getString("houseId");
+        log.room = doc.getString("room");
         return log;
     }
     
@@ -171,6 +194,9 @@ public class EnergyLog {
     public String getHouseId() { return houseId; }
     public void setHouseId(String houseId) { this.houseId = houseId; }
     
+    public String getRoom() { return room; }
+    public void setRoom(String room) { this.room = room; }
+    
     /**
      * Convertir a JSON string para respuestas REST
      */
@@ -184,6 +210,20 @@ public class EnergyLog {
         );
     }
     
+    @Override
+    public void writeJson(JsonStreamWriter w) throws IOException {
+        w.beginObject()
+         .field("deviceId", String.valueOf(deviceId))
+         .field("deviceName", String.valueOf(deviceName))
+         .field("deviceType", String.valueOf(deviceType))
+         .field("eventType", String.valueOf(eventType))
+         .field("wattsConsumed", wattsConsumed, 1)
+         .field("timestamp", timestamp)
+         .field("duration", duration)
+         .field("kwhConsumed", getKwhConsumed(), 6)
+         .endObject();
+    }
+    
     @Override
     public String toString() {
         return String.format("EnergyLog[%s %s: %.1fW @ %d]", 
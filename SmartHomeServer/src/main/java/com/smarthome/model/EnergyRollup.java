@@ -0,0 +1,178 @@
+package com.smarthome.model;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Consumo agregado de un dispositivo en una cubeta de tiempo
+ * Reemplaza a las muestras crudas de energy_logs cuando se compactan:
+ * HOUR = una hora (UTC alineada), DAY = un dia local
+ */
+public class EnergyRollup {
+
+    public static final String GRANULARITY_HOUR = "HOUR";
+    public static final String GRANULARITY_DAY = "DAY";
+
+    private ObjectId id;
+    private String granularity;    // HOUR | DAY
+    private long bucketStart;      // Inicio de la cubeta (epoch ms)
+    private String houseId;
+    private String room;
+    private String deviceId;
+    private String deviceName;
+    private String deviceType;
+    private double kwh;            // Energia total de la cubeta
+    private long samples;          // Muestras crudas agregadas
+    private long duration;         // Tiempo encendido acumulado (ms)
+    private double wattsMin;
+    private double wattsMax;
+
+    public EnergyRollup() {
+        this.wattsMin = Double.MAX_VALUE;
+        this.wattsMax = 0;
+    }
+
+    public EnergyRollup(String granularity, long bucketStart, String houseId,
+                        String deviceId, String deviceName, String deviceType) {
+        this();
+        this.granularity = granularity;
+        this.bucketStart = bucketStart;
+        this.houseId = houseId;
+        this.deviceId = deviceId;
+        this.deviceName = deviceName;
+        this.deviceType = deviceType;
+    }
+
+    /**
+     * Agregar una muestra cruda a la cubeta
+     */
+    public void addSample(double watts, long durationMs, double kwhMuestra) {
+        kwh += kwhMuestra;
+        samples++;
+        duration += durationMs;
+        wattsMin = Math.min(wattsMin, watts);
+        wattsMax = Math.max(wattsMax, watts);
+    }
+
+    /**
+     * Combinar otra cubeta (ej. horas -> dia)
+     */
+    public void merge(EnergyRollup other) {
+        kwh += other.kwh;
+        samples += other.samples;
+        duration += other.duration;
+        wattsMin = Math.min(wattsMin, other.wattsMin);
+        wattsMax = Math.max(wattsMax, other.wattsMax);
+    }
+
+    /**
+     * Potencia promedio de la cubeta considerando su duracion completa
+     */
+    public double getAverageWatts(long bucketMs) {
+        return bucketMs > 0 ? kwh * 3600000.0 * 1000 / bucketMs : 0;
+    }
+
+    // Convertir a Document de MongoDB
+    public Document toDocument() {
+        Document doc = new Document();
+        if (id != null) {
+            doc.append("_id", id);
+        }
+        doc.append("granularity", granularity)
+           .append("bucketStart", bucketStart)
+           .append("houseId", houseId)
+           .append("room", room)
+           .append("deviceId", deviceId)
+           .append("deviceName", deviceName)
+           .append("deviceType", deviceType)
+           .append("kwh", kwh)
+           .append("samples", samples)
+           .append("duration", duration)
+           .append("wattsMin", samples > 0 ? wattsMin : 0)
+           .append("wattsMax", wattsMax);
+        return doc;
+    }
+
+    // Crear desde Document de MongoDB
+    public static EnergyRollup fromDocument(Document doc) {
+        if (doc == null) return null;
+
+        EnergyRollup rollup = new EnergyRollup();
+        rollup.id = doc.getObjectId("_id");
+        rollup.granularity = doc.getString("granularity");
+        Long start = doc.getLong("bucketStart");
+        rollup.bucketStart = start != null ? start : 0;
+        rollup.houseId = doc.getString("houseId");
+        rollup.room = doc.getString("room");
+        rollup.deviceId = doc.getString("deviceId");
+        rollup.deviceName = doc.getString("deviceName");
+        rollup.deviceType = doc.getString("deviceType");
+        Double k = doc.getDouble("kwh");
+        rollup.kwh = k != null ? k : 0;
+        Long s = doc.getLong("samples");
+        rollup.samples = s != null ? s : 0;
+        Long dur = doc.getLong("duration");
+        rollup.duration = dur != null ? dur : 0;
+        Double min = doc.getDouble("wattsMin");
+        rollup.wattsMin = min != null ? min : 0;
+        Double max = doc.getDouble("wattsMax");
+        rollup.wattsMax = max != null ? max : 0;
+        return rollup;
+    }
+
+    /**
+     * Convertir a JSON string para respuestas REST
+     */
+    public String toJson() {
+        return String.format(java.util.Locale.US,
+            "{\"granularity\": \"%s\", \"bucketStart\": %d, \"houseId\": \"%s\", \"room\": \"%s\", " +
+            "\"deviceId\": \"%s\", \"deviceName\": \"%s\", \"deviceType\": \"%s\", " +
+            "\"kwh\": %.6f, \"samples\": %d, \"duration\": %d, \"wattsMin\": %.1f, \"wattsMax\": %.1f}",
+            granularity, bucketStart, houseId, room, deviceId, deviceName, deviceType,
+            kwh, samples, duration, samples > 0 ? wattsMin : 0, wattsMax
+        );
+    }
+
+    // Getters y Setters
+    public ObjectId getId() { return id; }
+    public void setId(ObjectId id) { this.id = id; }
+
+    public String getGranularity() { return granularity; }
+    public void setGranularity(String granularity) { this.granularity = granularity; }
+
+    public long getBucketStart() { return bucketStart; }
+    public void setBucketStart(long bucketStart) { this.bucketStart = bucketStart; }
+
+    public String getHouseId() { return houseId; }
+    public void setHouseId(String houseId) { this.houseId = houseId; }
+
+    public String getRoom() { return room; }
+    public void setRoom(String room) { this.room = room; }
+
+    public String getDeviceId() { return deviceId; }
+    public void setDeviceId(String deviceId) { this.deviceId = deviceId; }
+
+    public String getDeviceName() { return deviceName; }
+    public void setDeviceName(String deviceName) { this.deviceName = deviceName; }
+
+    public String getDeviceType() { return deviceType; }
+    public void setDeviceType(String deviceType) { this.deviceType = deviceType; }
+
+    public double getKwh() { return kwh; }
+    public void setKwh(double kwh) { this.kwh = kwh; }
+
+    public long getSamples() { return samples; }
+    public void setSamples(long samples) { this.samples = samples; }
+
+    public long getDuration() { return duration; }
+    public void setDuration(long duration) { this.duration = duration; }
+
+    public double getWattsMin() { return samples > 0 ? wattsMin : 0; }
+    public double getWattsMax() { return wattsMax; }
+
+    @Override
+    public String toString() {
+        return String.format("EnergyRollup[%s %s @ %d: %.4f kWh]",
+            granularity, deviceName, bucketStart, kwh);
+    }
+}
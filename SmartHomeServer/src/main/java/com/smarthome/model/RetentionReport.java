@@ -0,0 +1,97 @@
+package com.smarthome.model;
+
+import java.util.Locale;
+
+/**
+ * Resultado de una corrida del motor de retencion de energia/actividad
+ * Los bytes liberados son una estimacion: documentos borrados x tamaño
+ * promedio de documento de la coleccion (collStats.avgObjSize)
+ */
+public class RetentionReport {
+
+    private long startedAt;
+    private long finishedAt;
+    private boolean completed;          // false si se agoto el presupuesto de tiempo
+
+    private long hourlyRollupsWritten;  // Rollups HOUR escritos antes de borrar crudos
+    private long dailyRollupsWritten;   // Rollups DAY escritos antes de borrar horas
+    private long rawDeleted;
+    private long hourlyDeleted;
+    private long activityDeleted;
+    private long activityArchived;      // Actividades pasadas al archivo frio
+    private long batches;
+
+    private long rawBytesReclaimed;
+    private long hourlyBytesReclaimed;
+    private long activityBytesReclaimed;
+
+    public RetentionReport() {
+        this.startedAt = System.currentTimeMillis();
+    }
+
+    public long getTotalBytesReclaimed() {
+        return rawBytesReclaimed + hourlyBytesReclaimed + activityBytesReclaimed;
+    }
+
+    /**
+     * Convertir a JSON string para respuestas REST
+     */
+    public String toJson() {
+        return String.format(Locale.US,
+            "{\"startedAt\": %d, \"finishedAt\": %d, \"completed\": %b, \"batches\": %d, " +
+            "\"hourlyRollupsWritten\": %d, \"dailyRollupsWritten\": %d, " +
+            "\"rawDeleted\": %d, \"hourlyDeleted\": %d, \"activityDeleted\": %d, \"activityArchived\": %d, " +
+            "\"rawBytesReclaimed\": %d, \"hourlyBytesReclaimed\": %d, \"activityBytesReclaimed\": %d, " +
+            "\"totalBytesReclaimed\": %d}",
+            startedAt, finishedAt, completed, batches,
+            hourlyRollupsWritten, dailyRollupsWritten,
+            rawDeleted, hourlyDeleted, activityDeleted, activityArchived,
+            rawBytesReclaimed, hourlyBytesReclaimed, activityBytesReclaimed,
+            getTotalBytesReclaimed());
+    }
+
+    // Getters y Setters
+    public long getStartedAt() { return startedAt; }
+
+    public long getFinishedAt() { return finishedAt; }
+    public void setFinishedAt(long finishedAt) { this.finishedAt = finishedAt; }
+
+    public boolean isCompleted() { return completed; }
+    public void setCompleted(boolean completed) { this.completed = completed; }
+
+    public long getHourlyRollupsWritten() { return hourlyRollupsWritten; }
+    public void addHourlyRollupsWritten(long n) { this.hourlyRollupsWritten += n; }
+
+    public long getDailyRollupsWritten() { return dailyRollupsWritten; }
+    public void addDailyRollupsWritten(long n) { this.dailyRollupsWritten += n; }
+
+    public long getRawDeleted() { return rawDeleted; }
+    public void addRawDeleted(long n) { this.rawDeleted += n; }
+
+    public long getHourlyDeleted() { return hourlyDeleted; }
+    public void addHourlyDeleted(long n) { this.hourlyDeleted += n; }
+
+    public long getActivityDeleted() { return activityDeleted; }
+    public void addActivityDeleted(long n) { this.activityDeleted += n; }
+
+    public long getActivityArchived() { return activityArchived; }
+    public void addActivityArchived(long n) { this.activityArchived += n; }
+
+    public long getBatches() { return batches; }
+    public void addBatch() { this.batches++; }
+
+    public long getRawBytesReclaimed() { return rawBytesReclaimed; }
+    public void setRawBytesReclaimed(long bytes) { this.rawBytesReclaimed = bytes; }
+
+    public long getHourlyBytesReclaimed() { return hourlyBytesReclaimed; }
+    public void setHourlyBytesReclaimed(long bytes) { this.hourlyBytesReclaimed = bytes; }
+
+    public long getActivityBytesReclaimed() { return activityBytesReclaimed; }
+    public void setActivityBytesReclaimed(long bytes) { this.activityBytesReclaimed = bytes; }
+
+    @Override
+    public String toString() {
+        return String.format("RetentionReport[crudos=%d, horas=%d, actividad=%d, ~%d KB liberados]",
+            rawDeleted, hourlyDeleted, activityDeleted, getTotalBytesReclaimed() / 1024);
+    }
+}
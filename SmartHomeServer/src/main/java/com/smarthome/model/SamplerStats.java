@@ -0,0 +1,66 @@
+package com.smarthome.model;
+
+/**
+ * Metricas del muestreo de energia: duracion de cada tick y ticks que no
+ * alcanzaron a terminar dentro del intervalo de muestreo (overruns)
+ */
+public class SamplerStats {
+
+    private static final double ALFA = 0.2; // Peso de la media movil
+
+    private final long intervalMs;
+    private long ticks;
+    private long overruns;
+    private long errors;
+    private double lastTickMs;
+    private double maxTickMs;
+    private double avgTickMs;
+    private long lastTickAt;
+    private int lastActive;
+    private int lastShards;
+    private int devicesKnown;
+    private long lastResync;
+
+    public SamplerStats(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Registrar un tick terminado
+     */
+    public synchronized void record(long inicioMs, double duracionMs, int activos, int shards,
+                                    int conocidos, boolean error) {
+        ticks++;
+        if (error) errors++;
+        if (duracionMs > intervalMs) overruns++;
+        lastTickMs = duracionMs;
+        maxTickMs = Math.max(maxTickMs, duracionMs);
+        avgTickMs = ticks == 1 ? duracionMs : avgTickMs + ALFA * (duracionMs - avgTickMs);
+        lastTickAt = inicioMs;
+        lastActive = activos;
+        lastShards = shards;
+        devicesKnown = conocidos;
+    }
+
+    public synchronized void setLastResync(long lastResync) {
+        this.lastResync = lastResync;
+    }
+
+    /**
+     * Convertir a JSON string para respuestas REST
+     */
+    public synchronized String toJson() {
+        return String.format(java.util.Locale.US,
+            "{\"intervalMs\": %d, \"ticks\": %d, \"overruns\": %d, \"errors\": %d, " +
+            "\"lastTickMs\": %.2f, \"avgTickMs\": %.2f, \"maxTickMs\": %.2f, \"lastTickAt\": %d, " +
+            "\"activeDevices\": %d, \"shards\": %d, \"devicesKnown\": %d, \"lastResync\": %d}",
+            intervalMs, ticks, overruns, errors, lastTickMs, avgTickMs, maxTickMs, lastTickAt,
+            lastActive, lastShards, devicesKnown, lastResync
+        );
+    }
+
+    public synchronized long getTicks() { return ticks; }
+    public synchronized long getOverruns() { return overruns; }
+    public synchronized double getLastTickMs() { return lastTickMs; }
+    public synchronized double getMaxTickMs() { return maxTickMs; }
+}
@@ -0,0 +1,334 @@
+package com.smarthome.model;
+
+import org.bson.Document;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tarifa electrica de una casa
+ *
+ * - Escalones (tiers): el precio por kWh depende del consumo acumulado en
+ *   el periodo de facturacion (ej. CFE: basico, intermedio, excedente).
+ * - Franjas horarias (bands): multiplican el precio del escalon segun la
+ *   hora local (ej. punta / base). Las horas sin franja usan factor 1.
+ * - Periodo: empieza el dia de corte y dura mesesPeriodo meses (CFE
+ *   domestico factura bimestral).
+ *
+ * Se guarda en la coleccion tariffs, una por casa (houseId).
+ */
+public class Tariff {
+
+    private String houseId;
+    private String name;
+    private String moneda;
+    private int diaCorte;          // Dia del mes en que empieza el periodo (1-28)
+    private int mesesPeriodo;      // 1 = mensual, 2 = bimestral
+    private double cargoFijo;      // Cargo fijo por periodo (sin IVA)
+    private double iva;            // 0.16 = 16%
+    private List<Tier> tiers = new ArrayList<>();
+    private List<Band> bands = new ArrayList<>();
+    private long updatedAt;
+
+    /**
+     * Escalon de consumo: precio de los kWh acumulados hasta hastaKwh
+     * (el ultimo escalon no tiene limite)
+     */
+    public static class Tier {
+        public final String name;
+        public final double hastaKwh;  // Limite acumulado en el periodo (infinito = sin limite)
+        public final double precio;    // Precio por kWh sin IVA
+
+        public Tier(String name, double hastaKwh, double precio) {
+            this.name = name;
+            this.hastaKwh = hastaKwh;
+            this.precio = precio;
+        }
+    }
+
+    /**
+     * Franja horaria [desdeHora, hastaHora) en hora local; si desdeHora >
+     * hastaHora la franja cruza la medianoche
+     */
+    public static class Band {
+        public final String name;
+        public final int desdeHora;
+        public final int hastaHora;
+        public final double factor;
+
+        public Band(String name, int desdeHora, int hastaHora, double factor) {
+            this.name = name;
+            this.desdeHora = desdeHora;
+            this.hastaHora = hastaHora;
+            this.factor = factor;
+        }
+
+        public boolean contains(int hora) {
+            if (desdeHora <= hastaHora) {
+                return hora >= desdeHora && hora < hastaHora;
+            }
+            return hora >= desdeHora || hora < hastaHora;
+        }
+    }
+
+    public Tariff() {
+        this.moneda = "MXN";
+        this.diaCorte = 1;
+        this.mesesPeriodo = 1;
+        this.updatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Tarifa por defecto para casas sin tarifa configurada
+     * Aproxima la tarifa domestica 1 de CFE (bimestral, tres escalones)
+     */
+    public static Tariff defaultFor(String houseId) {
+        Tariff t = new Tariff();
+        t.houseId = houseId;
+        t.name = "CFE 1 (aprox.)";
+        t.mesesPeriodo = 2;
+        t.iva = 0.16;
+        t.tiers.add(new Tier("basico", 150, 1.08));
+        t.tiers.add(new Tier("intermedio", 280, 1.32));
+        t.tiers.add(new Tier("excedente", Double.POSITIVE_INFINITY, 3.85));
+        t.updatedAt = 0;
+        return t;
+    }
+
+    /**
+     * Validar escalones, franjas y periodo
+     * @throws IllegalArgumentException si la tarifa no es valida
+     */
+    public void validate() {
+        if (tiers.isEmpty()) {
+            throw new IllegalArgumentException("La tarifa necesita al menos un escalon");
+        }
+        double anterior = 0;
+        for (int i = 0; i < tiers.size(); i++) {
+            Tier tier = tiers.get(i);
+            if (tier.precio < 0) {
+                throw new IllegalArgumentException("Precio negativo en escalon " + tier.name);
+            }
+            if (tier.hastaKwh <= anterior) {
+                throw new IllegalArgumentException("Los limites de los escalones deben ser crecientes");
+            }
+            if (i == tiers.size() - 1 && !Double.isInfinite(tier.hastaKwh)) {
+                throw new IllegalArgumentException("El ultimo escalon no debe tener limite");
+            }
+            anterior = tier.hastaKwh;
+        }
+        for (Band band : bands) {
+            if (band.desdeHora < 0 || band.desdeHora > 23 || band.hastaHora < 0 || band.hastaHora > 24
+                    || band.desdeHora == band.hastaHora || band.factor < 0) {
+                throw new IllegalArgumentException("Franja horaria no valida: " + band.name);
+            }
+        }
+        if (diaCorte < 1 || diaCorte > 28) {
+            throw new IllegalArgumentException("diaCorte debe estar entre 1 y 28");
+        }
+        if (mesesPeriodo < 1 || mesesPeriodo > 12) {
+            throw new IllegalArgumentException("mesesPeriodo debe estar entre 1 y 12");
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // CALCULO
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Indice de la franja que aplica a una hora local (-1 = sin franja)
+     */
+    public int bandIndex(int hora) {
+        for (int i = 0; i < bands.size(); i++) {
+            if (bands.get(i).contains(hora)) return i;
+        }
+        return -1;
+    }
+
+    public double factorAt(int bandIndex) {
+        return bandIndex >= 0 ? bands.get(bandIndex).factor : 1.0;
+    }
+
+    /**
+     * Costo de energia (sin IVA ni cargo fijo) de kwh consumidos cuando el
+     * periodo ya llevaba acumulado kWh, repartido entre escalones
+     * @param porEscalon si no es null, suma los kWh de cada escalon
+     */
+    public double tieredCost(double acumulado, double kwh, double[] porEscalon) {
+        double costo = 0;
+        double inicio = acumulado;
+        double fin = acumulado + kwh;
+        double piso = 0;
+        for (int i = 0; i < tiers.size() && inicio < fin; i++) {
+            Tier tier = tiers.get(i);
+            if (inicio < tier.hastaKwh) {
+                double parte = Math.min(fin, tier.hastaKwh) - Math.max(inicio, piso);
+                if (parte > 0) {
+                    costo += parte * tier.precio;
+                    if (porEscalon != null) porEscalon[i] += parte;
+                    inicio += parte;
+                }
+            }
+            piso = tier.hastaKwh;
+        }
+        return costo;
+    }
+
+    /**
+     * Inicio (epoch ms) del periodo de facturacion que contiene un instante
+     */
+    public long periodStart(long timestamp, ZoneId zone) {
+        LocalDate fecha = java.time.Instant.ofEpochMilli(timestamp).atZone(zone).toLocalDate();
+        LocalDate inicio = fecha.withDayOfMonth(diaCorte);
+        if (fecha.getDayOfMonth() < diaCorte) {
+            inicio = inicio.minusMonths(1);
+        }
+        // Periodos de varios meses alineados al mes absoluto (ene-feb, mar-abr, ...)
+        int resto = (int) Math.floorMod(inicio.getYear() * 12L + inicio.getMonthValue() - 1, (long) mesesPeriodo);
+        inicio = inicio.minusMonths(resto);
+        return inicio.atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Fin (exclusivo) del periodo que empieza en periodStart
+     */
+    public long periodEnd(long periodStart, ZoneId zone) {
+        LocalDate inicio = java.time.Instant.ofEpochMilli(periodStart).atZone(zone).toLocalDate();
+        return inicio.plusMonths(mesesPeriodo).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // PERSISTENCIA
+    // ═══════════════════════════════════════════════════════════
+
+    // Convertir a Document de MongoDB
+    public Document toDocument() {
+        List<Document> tiersDoc = new ArrayList<>();
+        for (Tier tier : tiers) {
+            tiersDoc.add(new Document("name", tier.name)
+                .append("hastaKwh", Double.isInfinite(tier.hastaKwh) ? null : tier.hastaKwh)
+                .append("precio", tier.precio));
+        }
+        List<Document> bandsDoc = new ArrayList<>();
+        for (Band band : bands) {
+            bandsDoc.add(new Document("name", band.name)
+                .append("desdeHora", band.desdeHora)
+                .append("hastaHora", band.hastaHora)
+                .append("factor", band.factor));
+        }
+        return new Document("houseId", houseId)
+            .append("name", name)
+            .append("moneda", moneda)
+            .append("diaCorte", diaCorte)
+            .append("mesesPeriodo", mesesPeriodo)
+            .append("cargoFijo", cargoFijo)
+            .append("iva", iva)
+            .append("tiers", tiersDoc)
+            .append("bands", bandsDoc)
+            .append("updatedAt", updatedAt);
+    }
+
+    // Crear desde Document de MongoDB (o del JSON recibido por REST)
+    @SuppressWarnings("unchecked")
+    public static Tariff fromDocument(Document doc) {
+        if (doc == null) return null;
+
+        Tariff t = new Tariff();
+        t.houseId = doc.getString("houseId");
+        t.name = doc.getString("name");
+        if (doc.getString("moneda") != null) t.moneda = doc.getString("moneda");
+        t.diaCorte = intOf(doc.get("diaCorte"), 1);
+        t.mesesPeriodo = intOf(doc.get("mesesPeriodo"), 1);
+        t.cargoFijo = doubleOf(doc.get("cargoFijo"), 0);
+        t.iva = doubleOf(doc.get("iva"), 0);
+
+        List<Document> tiersDoc = (List<Document>) doc.get("tiers");
+        if (tiersDoc != null) {
+            for (Document d : tiersDoc) {
+                t.tiers.add(new Tier(d.getString("name"),
+                    doubleOf(d.get("hastaKwh"), Double.POSITIVE_INFINITY),
+                    doubleOf(d.get("precio"), 0)));
+            }
+        }
+        List<Document> bandsDoc = (List<Document>) doc.get("bands");
+        if (bandsDoc != null) {
+            for (Document d : bandsDoc) {
+                t.bands.add(new Band(d.getString("name"), intOf(d.get("desdeHora"), 0),
+                    intOf(d.get("hastaHora"), 0), doubleOf(d.get("factor"), 1)));
+            }
+        }
+        Object updated = doc.get("updatedAt");
+        t.updatedAt = updated instanceof Number ? ((Number) updated).longValue() : 0;
+        return t;
+    }
+
+    private static int intOf(Object value, int porDefecto) {
+        return value instanceof Number ? ((Number) value).intValue() : porDefecto;
+    }
+
+    private static double doubleOf(Object value, double porDefecto) {
+        return value instanceof Number ? ((Number) value).doubleValue() : porDefecto;
+    }
+
+    /**
+     * Convertir a JSON string para respuestas REST
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"houseId\": ").append(houseId != null ? "\"" + houseId + "\"" : "null")
+            .append(", \"name\": \"").append(name != null ? name.replace("\"", "\\\"") : "").append("\"")
+            .append(", \"moneda\": \"").append(moneda).append("\"")
+            .append(", \"diaCorte\": ").append(diaCorte)
+            .append(", \"mesesPeriodo\": ").append(mesesPeriodo)
+            .append(String.format(Locale.US, ", \"cargoFijo\": %.2f, \"iva\": %.4f", cargoFijo, iva))
+            .append(", \"tiers\": [");
+        for (int i = 0; i < tiers.size(); i++) {
+            Tier tier = tiers.get(i);
+            if (i > 0) json.append(",");
+            json.append("{\"name\": \"").append(tier.name).append("\", \"hastaKwh\": ")
+                .append(Double.isInfinite(tier.hastaKwh) ? "null" : String.format(Locale.US, "%.2f", tier.hastaKwh))
+                .append(String.format(Locale.US, ", \"precio\": %.4f}", tier.precio));
+        }
+        json.append("], \"bands\": [");
+        for (int i = 0; i < bands.size(); i++) {
+            Band band = bands.get(i);
+            if (i > 0) json.append(",");
+            json.append("{\"name\": \"").append(band.name).append("\", \"desdeHora\": ").append(band.desdeHora)
+                .append(", \"hastaHora\": ").append(band.hastaHora)
+                .append(String.format(Locale.US, ", \"factor\": %.4f}", band.factor));
+        }
+        json.append("], \"updatedAt\": ").append(updatedAt).append("}");
+        return json.toString();
+    }
+
+    // Getters y Setters
+    public String getHouseId() { return houseId; }
+    public void setHouseId(String houseId) { this.houseId = houseId; }
+
+    public String getName() { return name; }
+    public void setName(String name) { this.name = name; }
+
+    public String getMoneda() { return moneda; }
+    public void setMoneda(String moneda) { this.moneda = moneda; }
+
+    public int getDiaCorte() { return diaCorte; }
+    public void setDiaCorte(int diaCorte) { this.diaCorte = diaCorte; }
+
+    public int getMesesPeriodo() { return mesesPeriodo; }
+    public void setMesesPeriodo(int mesesPeriodo) { this.mesesPeriodo = mesesPeriodo; }
+
+    public double getCargoFijo() { return cargoFijo; }
+    public void setCargoFijo(double cargoFijo) { this.cargoFijo = cargoFijo; }
+
+    public double getIva() { return iva; }
+    public void setIva(double iva) { this.iva = iva; }
+
+    public List<Tier> getTiers() { return tiers; }
+    public List<Band> getBands() { return bands; }
+
+    public long getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(long updatedAt) { this.updatedAt = updatedAt; }
+}
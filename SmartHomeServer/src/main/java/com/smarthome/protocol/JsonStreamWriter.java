@@ -0,0 +1,321 @@
+package com.smarthome.protocol;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Escritor de JSON directo a un OutputStream (UTF-8)
+ *
+ * Los modelos se escriben campo por campo en un buffer de bytes que se
+ * vacia al stream cuando se llena: no se arma un StringBuilder, ni un
+ * String, ni un byte[] con toda la respuesta. El buffer es uno por hilo
+ * y se reutiliza entre respuestas (los hilos de los carriles REST son
+ * fijos), asi que escribir una lista grande no asigna memoria por elemento.
+ *
+ * Las comas entre elementos se ponen solas; los textos se escapan segun
+ * JSON. No es thread-safe, y como el buffer es del hilo, solo puede haber
+ * un escritor abierto a la vez en cada hilo.
+ *
+ * Uso:
+ *   w.beginObject().name("logs").beginArray();
+ *   for (...) log.writeJson(w);
+ *   w.endArray().field("count", n).endObject();
+ */
+public final class JsonStreamWriter implements Closeable, Flushable {
+
+    private static final int TAMANO_BUFFER = 16 * 1024;
+    private static final int PROFUNDIDAD_MAX = 64;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final long[] POTENCIAS = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000,
+        10_000_000, 100_000_000, 1_000_000_000};
+
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[TAMANO_BUFFER]);
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int pos;
+
+    // Por nivel: ya se escribio un elemento (va coma antes del siguiente)
+    private final boolean[] conElementos = new boolean[PROFUNDIDAD_MAX];
+    private int nivel;
+    private boolean despuesDeNombre;
+
+    public JsonStreamWriter(OutputStream out) {
+        this.out = out;
+        this.buffer = BUFFERS.get();
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // ESTRUCTURA
+    // ═══════════════════════════════════════════════════════════
+
+    public JsonStreamWriter beginObject() throws IOException {
+        return open((byte) '{');
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        return close((byte) '}');
+    }
+
+    public JsonStreamWriter beginArray() throws IOException {
+        return open((byte) '[');
+    }
+
+    public JsonStreamWriter endArray() throws IOException {
+        return close((byte) ']');
+    }
+
+    private JsonStreamWriter open(byte c) throws IOException {
+        beforeValue();
+        if (++nivel >= PROFUNDIDAD_MAX) {
+            throw new IllegalStateException("JSON demasiado anidado");
+        }
+        conElementos[nivel] = false;
+        put(c);
+        return this;
+    }
+
+    private JsonStreamWriter close(byte c) throws IOException {
+        nivel--;
+        put(c);
+        return this;
+    }
+
+    /**
+     * Nombre del siguiente campo del objeto
+     */
+    public JsonStreamWriter name(String nombre) throws IOException {
+        separator();
+        writeString(nombre);
+        put((byte) ':');
+        despuesDeNombre = true;
+        return this;
+    }
+
+    private void beforeValue() throws IOException {
+        if (despuesDeNombre) {
+            despuesDeNombre = false;
+        } else {
+            separator();
+        }
+    }
+
+    private void separator() throws IOException {
+        if (conElementos[nivel]) put((byte) ',');
+        conElementos[nivel] = true;
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // VALORES
+    // ═══════════════════════════════════════════════════════════
+
+    public JsonStreamWriter value(String valor) throws IOException {
+        beforeValue();
+        if (valor == null) {
+            writeAscii("null");
+        } else {
+            writeString(valor);
+        }
+        return this;
+    }
+
+    public JsonStreamWriter value(long valor) throws IOException {
+        beforeValue();
+        writeLong(valor);
+        return this;
+    }
+
+    public JsonStreamWriter value(boolean valor) throws IOException {
+        beforeValue();
+        writeAscii(valor ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Numero con decimales fijos (como "%.{decimales}f")
+     */
+    public JsonStreamWriter value(double valor, int decimales) throws IOException {
+        beforeValue();
+        if (Double.isNaN(valor) || Double.isInfinite(valor)) {
+            writeAscii("null");
+            return this;
+        }
+        long escala = POTENCIAS[Math.min(decimales, POTENCIAS.length - 1)];
+        if (Math.abs(valor) >= (double) Long.MAX_VALUE / escala) {
+            writeAscii(Double.toString(valor));
+            return this;
+        }
+        long redondeado = Math.round(valor * escala);
+        if (redondeado < 0) {
+            put((byte) '-');
+            redondeado = -redondeado;
+        }
+        writeLong(redondeado / escala);
+        if (decimales > 0) {
+            put((byte) '.');
+            long fraccion = redondeado % escala;
+            for (long p = escala / 10; p > 0; p /= 10) {
+                put((byte) ('0' + (fraccion / p) % 10));
+            }
+        }
+        return this;
+    }
+
+    public JsonStreamWriter nullValue() throws IOException {
+        beforeValue();
+        writeAscii("null");
+        return this;
+    }
+
+    /**
+     * JSON ya armado (ej. toJson() de un modelo que aun no tiene writeJson)
+     */
+    public JsonStreamWriter rawValue(String json) throws IOException {
+        beforeValue();
+        writeUtf8(json, false);
+        return this;
+    }
+
+    public JsonStreamWriter field(String nombre, String valor) throws IOException {
+        return name(nombre).value(valor);
+    }
+
+    public JsonStreamWriter field(String nombre, long valor) throws IOException {
+        return name(nombre).value(valor);
+    }
+
+    public JsonStreamWriter field(String nombre, boolean valor) throws IOException {
+        return name(nombre).value(valor);
+    }
+
+    public JsonStreamWriter field(String nombre, double valor, int decimales) throws IOException {
+        return name(nombre).value(valor, decimales);
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // CODIFICACION
+    // ═══════════════════════════════════════════════════════════
+
+    private void writeString(String s) throws IOException {
+        put((byte) '"');
+        writeUtf8(s, true);
+        put((byte) '"');
+    }
+
+    /**
+     * Codificar a UTF-8 en el buffer (escapando para JSON si se pide)
+     */
+    private void writeUtf8(String s, boolean escapar) throws IOException {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (escapar && (c < 0x20 || c == '"' || c == '\\')) {
+                    escape(c);
+                } else {
+                    put((byte) c);
+                }
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[pos++] = (byte) (0xC0 | (c >> 6));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensure(4);
+                buffer[pos++] = (byte) (0xF0 | (cp >> 18));
+                buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Surrogate suelto: igual que String.getBytes
+                put((byte) '?');
+            } else {
+                ensure(3);
+                buffer[pos++] = (byte) (0xE0 | (c >> 12));
+                buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void escape(char c) throws IOException {
+        ensure(6);
+        buffer[pos++] = '\\';
+        switch (c) {
+            case '"': buffer[pos++] = '"'; break;
+            case '\\': buffer[pos++] = '\\'; break;
+            case '\n': buffer[pos++] = 'n'; break;
+            case '\r': buffer[pos++] = 'r'; break;
+            case '\t': buffer[pos++] = 't'; break;
+            default:
+                buffer[pos++] = 'u';
+                buffer[pos++] = '0';
+                buffer[pos++] = '0';
+                buffer[pos++] = HEX[(c >> 4) & 0xF];
+                buffer[pos++] = HEX[c & 0xF];
+        }
+    }
+
+    private void writeLong(long v) throws IOException {
+        if (v == Long.MIN_VALUE) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        ensure(20);
+        if (v < 0) {
+            buffer[pos++] = '-';
+            v = -v;
+        }
+        // Digitos al reves al final del espacio reservado y luego en orden
+        int fin = pos + 19;
+        int i = fin;
+        do {
+            buffer[--i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v > 0);
+        int largo = fin - i;
+        System.arraycopy(buffer, i, buffer, pos, largo);
+        pos += largo;
+    }
+
+    private void writeAscii(String s) throws IOException {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[pos++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (pos == buffer.length) drain();
+        buffer[pos++] = b;
+    }
+
+    private void ensure(int n) throws IOException {
+        if (pos + n > buffer.length) drain();
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, pos);
+        pos = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Escribir lo pendiente y cerrar el stream (termina la respuesta chunked)
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.smarthome.protocol;
+
+import java.io.IOException;
+
+/**
+ * Modelo que sabe escribirse en un JsonStreamWriter
+ *
+ * writeJson produce el mismo JSON que el toJson() del modelo, pero escrito
+ * directo en la respuesta, sin armar el String.
+ */
+public interface JsonWritable {
+
+    void writeJson(JsonStreamWriter w) throws IOException;
+}
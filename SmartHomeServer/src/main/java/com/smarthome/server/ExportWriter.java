@@ -0,0 +1,154 @@
+package com.smarthome.server;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Escritor de filas para exportaciones (CSV o NDJSON)
+ *
+ * Escribe cada campo directo al Writer, sin String.format ni objetos
+ * intermedios por fila, para poder exportar millones de documentos desde
+ * un cursor con memoria constante. Uso:
+ *
+ *   writer.beginRow(); writer.field(ts); writer.field(nombre); ... writer.endRow();
+ *
+ * Las columnas se fijan al crear el escritor; en CSV se escriben como
+ * encabezado y en NDJSON como llaves de cada objeto.
+ */
+public class ExportWriter {
+
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_NDJSON = "ndjson";
+
+    private final Writer out;
+    private final boolean csv;
+    private final String[] columns;
+    private int col;
+    private long rows;
+
+    public ExportWriter(Writer out, String format, String... columns) {
+        this.out = out;
+        this.csv = !FORMAT_NDJSON.equals(format);
+        this.columns = columns;
+    }
+
+    /**
+     * Content-Type de un formato
+     */
+    public static String contentType(String format) {
+        return FORMAT_NDJSON.equals(format) ? "application/x-ndjson" : "text/csv";
+    }
+
+    /**
+     * Encabezado (solo CSV)
+     */
+    public void writeHeader() throws IOException {
+        if (!csv) return;
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) out.write(',');
+            out.write(columns[i]);
+        }
+        out.write('\n');
+    }
+
+    public void beginRow() throws IOException {
+        col = 0;
+        if (!csv) out.write('{');
+    }
+
+    public void endRow() throws IOException {
+        out.write(csv ? "\n" : "}\n");
+        rows++;
+    }
+
+    public void field(String value) throws IOException {
+        key();
+        if (value == null) {
+            if (!csv) out.write("null");
+            return;
+        }
+        if (csv) {
+            writeCsv(value);
+        } else {
+            writeJsonString(value);
+        }
+    }
+
+    public void field(long value) throws IOException {
+        key();
+        out.write(Long.toString(value));
+    }
+
+    public void field(double value) throws IOException {
+        key();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.write(csv ? "" : "null");
+        } else {
+            out.write(Double.toString(value));
+        }
+    }
+
+    /**
+     * Filas escritas hasta ahora
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    private void key() throws IOException {
+        if (csv) {
+            if (col > 0) out.write(',');
+        } else {
+            if (col > 0) out.write(',');
+            out.write('"');
+            out.write(columns[col]);
+            out.write("\":");
+        }
+        col++;
+    }
+
+    private void writeCsv(String value) throws IOException {
+        boolean comillas = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                comillas = true;
+                break;
+            }
+        }
+        if (!comillas) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') out.write('"');
+            out.write(c);
+        }
+        out.write('"');
+    }
+
+    private void writeJsonString(String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':  out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.write("\\u00");
+                        out.write(Character.forDigit(c >> 4, 16));
+                        out.write(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
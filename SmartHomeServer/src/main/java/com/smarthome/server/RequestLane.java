@@ -0,0 +1,123 @@
+package com.smarthome.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Carril de ejecucion para requests del RestServer
+ *
+ * Pool fijo de hilos con cola acotada. Los endpoints se reparten en
+ * carriles (ej. control de dispositivos vs consultas pesadas) para que una
+ * agregacion lenta o una pausa de MongoDB no frene el control: cada carril
+ * solo puede ocupar sus propios hilos. Con la cola llena el request se
+ * rechaza (RejectedExecutionException) en vez de esperar sin limite.
+ *
+ * Mide cuanto espera cada request en la cola antes de tomar un hilo
+ * (promedio, maximo y cuantos esperaron mas de 100 ms / 1 s) y cuanto
+ * tarda en ejecutarse.
+ */
+public class RequestLane {
+
+    private static final long ESPERA_LENTA_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long ESPERA_MUY_LENTA_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final String nombre;
+    private final int hilos;
+    private final int capacidadCola;
+    private final ThreadPoolExecutor pool;
+
+    private final LongAdder recibidos = new LongAdder();
+    private final LongAdder rechazados = new LongAdder();
+    private final LongAdder iniciados = new LongAdder();
+    private final LongAdder terminados = new LongAdder();
+    private final LongAdder esperaTotalNs = new LongAdder();
+    private final AtomicLong esperaMaxNs = new AtomicLong();
+    private final LongAdder esperasLentas = new LongAdder();
+    private final LongAdder esperasMuyLentas = new LongAdder();
+    private final LongAdder ejecucionTotalNs = new LongAdder();
+
+    /**
+     * @param hilos hilos del carril
+     * @param capacidadCola requests que pueden esperar un hilo
+     */
+    public RequestLane(String nombre, int hilos, int capacidadCola) {
+        this.nombre = nombre;
+        this.hilos = hilos;
+        this.capacidadCola = capacidadCola;
+        AtomicInteger n = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(hilos, hilos, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(capacidadCola), r -> {
+                Thread t = new Thread(r, "REST-" + nombre + "-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Encolar un request
+     * @throws RejectedExecutionException si la cola esta llena o el carril se detuvo
+     */
+    public void execute(Runnable tarea) {
+        recibidos.increment();
+        long encolado = System.nanoTime();
+        try {
+            pool.execute(() -> {
+                long inicio = System.nanoTime();
+                recordWait(inicio - encolado);
+                try {
+                    tarea.run();
+                } finally {
+                    ejecucionTotalNs.add(System.nanoTime() - inicio);
+                    terminados.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rechazados.increment();
+            long n = rechazados.sum();
+            if (n == 1 || n % 100 == 0) {
+                System.err.println("[REST] Carril " + nombre + " saturado: " + n + " requests rechazados");
+            }
+            throw e;
+        }
+    }
+
+    private void recordWait(long esperaNs) {
+        iniciados.increment();
+        esperaTotalNs.add(esperaNs);
+        if (esperaNs > ESPERA_LENTA_NS) esperasLentas.increment();
+        if (esperaNs > ESPERA_MUY_LENTA_NS) esperasMuyLentas.increment();
+        long max = esperaMaxNs.get();
+        while (esperaNs > max && !esperaMaxNs.compareAndSet(max, esperaNs)) {
+            max = esperaMaxNs.get();
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    public String getName() { return nombre; }
+
+    /**
+     * Metricas del carril en JSON (tiempos en ms)
+     */
+    public String statsJson() {
+        long hechos = terminados.sum();
+        long conHilo = iniciados.sum();
+        return String.format(java.util.Locale.US,
+            "{\"name\": \"%s\", \"threads\": %d, \"active\": %d, \"queued\": %d, \"queueCapacity\": %d, " +
+            "\"received\": %d, \"completed\": %d, \"rejected\": %d, " +
+            "\"avgWaitMs\": %.3f, \"maxWaitMs\": %.3f, \"waitsOver100ms\": %d, \"waitsOver1s\": %d, " +
+            "\"avgRunMs\": %.3f}",
+            nombre, hilos, pool.getActiveCount(), pool.getQueue().size(), capacidadCola,
+            recibidos.sum(), hechos, rechazados.sum(),
+            conHilo > 0 ? esperaTotalNs.sum() / 1e6 / conHilo : 0.0,
+            esperaMaxNs.get() / 1e6, esperasLentas.sum(), esperasMuyLentas.sum(),
+            hechos > 0 ? ejecucionTotalNs.sum() / 1e6 / hechos : 0.0);
+    }
+}
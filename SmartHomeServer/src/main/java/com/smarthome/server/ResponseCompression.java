@@ -0,0 +1,163 @@
+package com.smarthome.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresion de respuestas del RestServer (gzip / deflate)
+ *
+ * - negotiate() elige la codificacion segun Accept-Encoding (gzip primero;
+ *   las que traen q=0 no se usan).
+ * - Las respuestas menores a UMBRAL_BYTES se mandan sin comprimir: el
+ *   encabezado y el costo de CPU no valen la pena.
+ * - Las respuestas que se pueden repetir tal cual (las que tienen ETag:
+ *   lista de dispositivos, panel HTML) se comprimen mientras se escriben
+ *   y se guardan en un LRU acotado por bytes; la llave incluye la version,
+ *   asi que un cambio en los dispositivos simplemente deja de coincidir
+ *   con lo guardado.
+ */
+public class ResponseCompression {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    public static final int UMBRAL_BYTES = 1024;
+
+    private static final int CACHE_MAX_BYTES = 4 * 1024 * 1024;
+    private static final int CACHE_MAX_ENTRADAS = 256;
+
+    /**
+     * Cuerpo de una respuesta escrito directo a un stream
+     */
+    public interface Body {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private final Map<String, byte[]> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cacheBytes;
+
+    private final AtomicLong comprimidas = new AtomicLong();
+    private final AtomicLong bytesOriginales = new AtomicLong();
+    private final AtomicLong bytesEnviados = new AtomicLong();
+    private final AtomicLong aciertos = new AtomicLong();
+    private final AtomicLong fallos = new AtomicLong();
+
+    /**
+     * Codificacion a usar segun Accept-Encoding, o null para mandar sin comprimir
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) return null;
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String parte : acceptEncoding.split(",")) {
+            String[] campos = parte.trim().split(";");
+            String nombre = campos[0].trim().toLowerCase();
+            if (isRejected(campos)) continue;
+            if (nombre.equals(GZIP) || nombre.equals("x-gzip") || nombre.equals("*")) gzip = true;
+            else if (nombre.equals(DEFLATE)) deflate = true;
+        }
+        return gzip ? GZIP : deflate ? DEFLATE : null;
+    }
+
+    private static boolean isRejected(String[] campos) {
+        for (int i = 1; i < campos.length; i++) {
+            String param = campos[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2)) <= 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Envolver un stream de respuesta (para respuestas que se escriben por partes)
+     */
+    public static OutputStream wrap(OutputStream out, String encoding) throws IOException {
+        if (GZIP.equals(encoding)) return new GZIPOutputStream(out, 8192);
+        if (DEFLATE.equals(encoding)) return new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION), 8192);
+        return out;
+    }
+
+    /**
+     * Comprimir una respuesta completa
+     */
+    public byte[] compress(byte[] datos, String encoding) throws IOException {
+        return compress(out -> out.write(datos), encoding);
+    }
+
+    /**
+     * Comprimir un cuerpo mientras se escribe (sin tenerlo completo sin comprimir)
+     */
+    public byte[] compress(Body body, String encoding) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+        long[] originales = {0};
+        try (OutputStream out = new FilterOutputStream(wrap(buffer, encoding)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                originales[0] += len;
+                this.out.write(b, off, len);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                originales[0]++;
+                this.out.write(b);
+            }
+        }) {
+            body.write(out);
+        }
+        byte[] resultado = buffer.toByteArray();
+        comprimidas.incrementAndGet();
+        bytesOriginales.addAndGet(originales[0]);
+        bytesEnviados.addAndGet(resultado.length);
+        return resultado;
+    }
+
+    /**
+     * Respuesta comprimida guardada, o null
+     * @param key contenido exacto (ruta + version) y codificacion
+     */
+    public synchronized byte[] getCached(String key) {
+        byte[] datos = cache.get(key);
+        if (datos != null) aciertos.incrementAndGet(); else fallos.incrementAndGet();
+        return datos;
+    }
+
+    public synchronized void putCached(String key, byte[] datos) {
+        if (datos.length > CACHE_MAX_BYTES / 4) return;
+        byte[] anterior = cache.put(key, datos);
+        if (anterior != null) cacheBytes -= anterior.length;
+        cacheBytes += datos.length;
+        Iterator<byte[]> it = cache.values().iterator();
+        while ((cacheBytes > CACHE_MAX_BYTES || cache.size() > CACHE_MAX_ENTRADAS) && it.hasNext()) {
+            cacheBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Metricas en JSON
+     */
+    public synchronized String statsJson() {
+        long originales = bytesOriginales.get();
+        return "{\"compressed\": " + comprimidas.get() + ", \"bytesIn\": " + originales +
+            ", \"bytesOut\": " + bytesEnviados.get() +
+            ", \"ratio\": " + (originales > 0 ? String.format(java.util.Locale.US, "%.3f",
+                (double) bytesEnviados.get() / originales) : "null") +
+            ", \"cacheEntries\": " + cache.size() + ", \"cacheBytes\": " + cacheBytes +
+            ", \"cacheHits\": " + aciertos.get() + ", \"cacheMisses\": " + fallos.get() + "}";
+    }
+}
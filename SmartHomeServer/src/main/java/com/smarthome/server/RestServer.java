@@ -8,12 +8,21 @@ import com.smarthome.service.*;
 import com.smarthome.model.*;
 import com.smarthome.security.JwtUtil;
 import com.smarthome.protocol.JsonMessage;
+import com.smarthome.protocol.JsonStreamWriter;
+import com.smarthome.protocol.JsonWritable;
+import org.bson.Document;
 
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * SERVIDOR REST - Smart Home - API HTTP para control de dispositivos y debug
@@ -22,6 +31,16 @@ import java.util.HashMap;
 public class RestServer {
     
     private static final int PORT = 8080;
+    private static final int PAGINA_MAX = 10000; // Maximo de logs por pagina
+    private static final long ROOMS_RESYNC_MS = 60_000; // Relectura de casas (cambios externos)
+    
+    // Carriles de requests (se pueden cambiar con -Drest.hilosControl=N, etc.)
+    private static final int HILOS_CONTROL = Integer.getInteger("rest.hilosControl", 4);
+    private static final int COLA_CONTROL = Integer.getInteger("rest.colaControl", 100);
+    private static final int HILOS_CONSULTA = Integer.getInteger("rest.hilosConsulta", 8);
+    private static final int COLA_CONSULTA = Integer.getInteger("rest.colaConsulta", 200);
+    private static final int HILOS_EXPORT = Integer.getInteger("rest.hilosExport", 2);
+    private static final int COLA_EXPORT = Integer.getInteger("rest.colaExport", 4);
     private HttpServer server;
     
     // Servicios
@@ -30,6 +49,40 @@ public class RestServer {
     private HouseService houseService;
     private EnergyService energyService;
     private ActivityService activityService;
+    private EnergyRollupService rollupService;
+    private EnergyRetentionService retentionService;
+    private EnergySeriesService seriesService;
+    private TariffService tariffService;
+    private EnergyCostService costService;
+    private EnergySimulationService simulationService;
+    
+    // Stream SSE de telemetria de energia
+    private SseBroadcaster energyStream = new SseBroadcaster("energy");
+    
+    // Envio del canal "energy" a los clientes WebSocket en un hilo propio: un
+    // cliente lento no frena el muestreo. Si se acumulan frames se descartan
+    // los mas viejos (cada tick trae el estado completo)
+    private ExecutorService wsEnergyWriter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(32), r -> {
+            Thread t = new Thread(r, "WS-energy");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    
+    // Control de dispositivos, login y lecturas ligeras vs consultas pesadas
+    // (energia, historial, busqueda): una agregacion lenta no frena el control.
+    // Las exportaciones (largas) tienen su propio carril para no ocupar las consultas
+    private RequestLane controlLane;
+    private RequestLane queryLane;
+    private RequestLane exportLane;
+    
+    // ETag de dispositivos: arranque + secuencia de cambios del DeviceStateRegistry
+    // (el arranque evita que una secuencia se repita despues de reiniciar)
+    private final String etagPrefix = Long.toHexString(System.currentTimeMillis());
+    private final DeviceStateRegistry deviceRegistry = DeviceStateRegistry.getInstance();
+    
+    // gzip/deflate de respuestas y cache de las comprimidas que se repiten
+    private final ResponseCompression compression = new ResponseCompression();
     
     public void start() throws IOException {
         // Inicializar MongoDB
@@ -43,24 +96,83 @@ public class RestServer {
         energyService = new EnergyService();
         activityService = ActivityService.getInstance();
         
-        // Iniciar muestreo de energia (cada 30 segundos)
+        // Publicar cada tick de muestreo por SSE y por el canal "energy" del WebSocket
+        energyService.addTickListener(frame -> {
+            energyStream.publish("energy", frame);
+            WebSocketServer wsServer = WebSocketServer.getInstance();
+            if (wsServer != null) {
+                wsEnergyWriter.execute(() -> wsServer.broadcastToChannel("energy", frame));
+            }
+        });
+        
+        // Iniciar muestreo de energia (cada 5 segundos)
         energyService.startSampling();
         
+        // Compactacion de historicos (rollups) y retencion con downsampling
+        rollupService = new EnergyRollupService();
+        rollupService.startScheduler();
+        retentionService = new EnergyRetentionService(energyService, rollupService, activityService);
+        retentionService.start();
+        seriesService = new EnergySeriesService(rollupService,
+            retentionService.getDiasCrudos(), retentionService.getDiasHoras());
+        seriesService.ensureIndexes();
+        energyService.ensureIndexes();
+        
+        // Tarifas por casa y costo sobre rollups
+        tariffService = new TariffService();
+        tariffService.ensureIndexes();
+        costService = new EnergyCostService(tariffService, rollupService, energyService.getCube());
+        simulationService = new EnergySimulationService(rollupService, costService);
+        
+        // Cargar el cubo de energia en segundo plano (rollups + muestras recientes)
+        Thread cargaCubo = new Thread(() -> {
+            try {
+                energyService.getCube().load(rollupService, energyService);
+            } catch (Exception e) {
+                System.err.println("[CUBE] Error cargando cubo de energia: " + e.getMessage());
+            }
+        }, "Energy-Cube-Load");
+        cargaCubo.setDaemon(true);
+        cargaCubo.start();
+        activityService.ensureIndexes();
+        activityService.loadRing();
+        activityService.loadStats();
+        
+        // Indice de busqueda de actividades (en segundo plano; lo nuevo se agrega al terminar)
+        Thread cargaIndice = new Thread(() -> {
+            try {
+                activityService.loadSearchIndex();
+            } catch (Exception e) {
+                System.err.println("[ACTIVITY] Error cargando indice de busqueda: " + e.getMessage());
+            }
+        }, "Activity-Search-Load");
+        cargaIndice.setDaemon(true);
+        cargaIndice.start();
+        
         // Crear servidor HTTP
         server = HttpServer.create(new InetSocketAddress(PORT), 0);
         
+        controlLane = new RequestLane("control", HILOS_CONTROL, COLA_CONTROL);
+        queryLane = new RequestLane("query", HILOS_CONSULTA, COLA_CONSULTA);
+        exportLane = new RequestLane("export", HILOS_EXPORT, COLA_EXPORT);
+        
         // Registrar endpoints
-        server.createContext("/", new HomeHandler());
-        server.createContext("/api/devices", new DevicesHandler());
-        server.createContext("/api/device", new DeviceHandler());
-        server.createContext("/api/rooms", new RoomsHandler());
-        server.createContext("/api/users", new UsersHandler());
-        server.createContext("/api/login", new LoginHandler());
-        server.createContext("/api/register", new RegisterHandler());
-        server.createContext("/api/control", new ControlHandler());
-        server.createContext("/api/energy", new EnergyHandler());
-        server.createContext("/api/activity", new ActivityHandler());
+        server.createContext("/", lane(controlLane, new HomeHandler()));
+        server.createContext("/api/devices", lane(controlLane, new DevicesHandler()));
+        server.createContext("/api/device", lane(controlLane, new DeviceHandler()));
+        server.createContext("/api/rooms", lane(controlLane, new RoomsHandler()));
+        server.createContext("/api/users", lane(controlLane, new UsersHandler()));
+        server.createContext("/api/login", lane(controlLane, new LoginHandler()));
+        server.createContext("/api/register", lane(controlLane, new RegisterHandler()));
+        server.createContext("/api/control", lane(controlLane, new ControlHandler()));
+        server.createContext("/api/energy", lane(queryLane, new EnergyHandler()));
+        server.createContext("/api/energy/stream", lane(queryLane, new EnergyStreamHandler()));
+        server.createContext("/api/activity", lane(queryLane, new ActivityHandler()));
+        server.createContext("/api/activity/search", lane(queryLane, new ActivitySearchHandler()));
+        server.createContext("/api/activity/stats", lane(queryLane, new ActivityStatsHandler()));
+        server.createContext("/api/export", lane(exportLane, new ExportHandler()));
         
+        // El dispatcher solo pasa cada request a su carril
         server.setExecutor(null);
         server.start();
         
@@ -69,6 +181,7 @@ public class RestServer {
         System.out.println("  [NET] Puerto: " + PORT);
         System.out.println("  [DB] MongoDB: Conectado");
         System.out.println("  [DEV] Dispositivos: " + deviceService.count());
+        System.out.println("  [POOL] Hilos: control " + HILOS_CONTROL + ", consultas " + HILOS_CONSULTA);
         System.out.println("=======================================================");
         System.out.println("\n[INFO] Endpoints disponibles:");
         System.out.println("  GET  http://localhost:" + PORT + "/              - Panel de control");
@@ -80,7 +193,11 @@ public class RestServer {
         System.out.println("  POST http://localhost:" + PORT + "/api/register  - Registro");
         System.out.println("  POST http://localhost:" + PORT + "/api/control   - Controlar dispositivo");
         System.out.println("  GET  http://localhost:" + PORT + "/api/energy    - Estadisticas de energia");
+        System.out.println("  GET  http://localhost:" + PORT + "/api/energy/stream - Potencia en vivo (SSE)");
         System.out.println("  GET  http://localhost:" + PORT + "/api/activity  - Historial de actividad");
+        System.out.println("  GET  http://localhost:" + PORT + "/api/activity/search?q= - Buscar en la actividad");
+        System.out.println("  GET  http://localhost:" + PORT + "/api/activity/stats - Estadisticas de actividad");
+        System.out.println("  GET  http://localhost:" + PORT + "/api/export/energy|activity - Exportar CSV/NDJSON");
         System.out.println("\n[OK] Servidor listo...");
     }
     
@@ -88,8 +205,23 @@ public class RestServer {
         if (energyService != null) {
             energyService.stopSampling();
         }
+        if (retentionService != null) {
+            retentionService.stop();
+        }
+        if (rollupService != null) {
+            rollupService.stopScheduler();
+        }
+        if (activityService != null) {
+            // Escribir las actividades en cola antes de cerrar la conexion
+            activityService.shutdown();
+        }
+        energyStream.close();
+        wsEnergyWriter.shutdown();
         if (server != null) {
             server.stop(0);
+            controlLane.shutdown();
+            queryLane.shutdown();
+            exportLane.shutdown();
             MongoDBConnection.getInstance().close();
             System.out.println("[STOP] Servidor REST detenido");
         }
@@ -105,8 +237,15 @@ public class RestServer {
     class HomeHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            String html = generateDashboardHTML();
-            sendResponse(exchange, 200, "text/html", html);
+            // El panel solo depende de los dispositivos
+            String etag = etag(deviceRegistry.getVersion());
+            if (notModified(exchange, etag)) {
+                return;
+            }
+            sendCacheable(exchange, "/|" + etag, "text/html", () -> {
+                byte[] html = generateDashboardHTML().getBytes("UTF-8");
+                return out -> out.write(html);
+            });
         }
     }
     
@@ -125,19 +264,25 @@ public class RestServer {
                 return;
             }
             
-            Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
-            List<Device> devices;
-            
-            if (params.containsKey("room")) {
-                devices = deviceService.findByRoom(params.get("room"));
-            } else if (params.containsKey("type")) {
-                devices = deviceService.findByType(params.get("type"));
-            } else {
-                devices = deviceService.findAll();
+            // La version se lee antes que la base: si algo cambia mientras tanto,
+            // el siguiente GET ya no coincide y se descarga de nuevo
+            String etag = etag(deviceRegistry.getVersion());
+            if (notModified(exchange, etag)) {
+                return;
             }
             
-            String json = devicesToJson(devices);
-            sendResponse(exchange, 200, "application/json", json);
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+            sendCacheable(exchange, exchange.getRequestURI() + "|" + etag, "application/json", () -> {
+                List<Device> devices;
+                if (params.containsKey("room")) {
+                    devices = deviceService.findByRoom(params.get("room"));
+                } else if (params.containsKey("type")) {
+                    devices = deviceService.findByType(params.get("type"));
+                } else {
+                    devices = deviceService.findAll();
+                }
+                return out -> writeJsonArray(out, devices);
+            });
         }
     }
     
@@ -163,6 +308,11 @@ public class RestServer {
                 return;
             }
             
+            long version = deviceRegistry.getVersion(id);
+            if (version >= 0 && notModified(exchange, etag(version))) {
+                return;
+            }
+            
             Device device = deviceService.findById(id);
             if (device == null) {
                 sendResponse(exchange, 404, "application/json", 
@@ -178,6 +328,9 @@ public class RestServer {
      * GET /api/rooms - Lista habitaciones
      */
     class RoomsHandler implements HttpHandler {
+        // Respuesta ya armada y la version de casas con que se leyo
+        private volatile RoomsSnapshot snapshot;
+        
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             setCorsHeaders(exchange);
@@ -187,11 +340,43 @@ public class RestServer {
                 return;
             }
             
+            // El ETag sale de la version de casas: si el cliente ya la tiene
+            // no se lee MongoDB ni se arma la respuesta
+            RoomsSnapshot rooms = roomsSnapshot();
+            if (rooms.status == 200
+                    && notModified(exchange, "\"" + etagPrefix + "-r" + Long.toHexString(rooms.version) + "\"")) {
+                return;
+            }
+            sendResponse(exchange, rooms.status, "application/json", rooms.body);
+        }
+        
+        /**
+         * Releer las casas solo si cambio la version o si la lectura tiene mas
+         * de ROOMS_RESYNC_MS (cambios hechos fuera del servidor, ej. AddDevice)
+         */
+        private RoomsSnapshot roomsSnapshot() {
+            long version = HouseService.getVersion();
+            long ahora = System.currentTimeMillis();
+            RoomsSnapshot actual = snapshot;
+            if (actual != null && actual.version == version && ahora - actual.leidoEn < ROOMS_RESYNC_MS) {
+                return actual;
+            }
+            
+            RoomsSnapshot leido = readRooms(version, ahora);
+            if (actual != null && actual.version == version
+                    && (actual.status != leido.status || !actual.body.equals(leido.body))) {
+                // Cambio externo: nueva version para que los clientes no se queden con la vieja
+                HouseService.touch();
+                leido = new RoomsSnapshot(HouseService.getVersion(), ahora, leido.status, leido.body);
+            }
+            snapshot = leido;
+            return leido;
+        }
+        
+        private RoomsSnapshot readRooms(long version, long ahora) {
             List<House> houses = houseService.findAll();
             if (houses.isEmpty()) {
-                sendResponse(exchange, 404, "application/json", 
-                    "{\"error\": \"No hay casas\"}");
-                return;
+                return new RoomsSnapshot(version, ahora, 404, "{\"error\": \"No hay casas\"}");
             }
             
             House house = houses.get(0);
@@ -204,8 +389,21 @@ public class RestServer {
                 json.append("\"").append(rooms.get(i)).append("\"");
             }
             json.append("]}");
-            
-            sendResponse(exchange, 200, "application/json", json.toString());
+            return new RoomsSnapshot(version, ahora, 200, json.toString());
+        }
+    }
+    
+    private static final class RoomsSnapshot {
+        final long version;
+        final long leidoEn;
+        final int status;
+        final String body;
+        
+        RoomsSnapshot(long version, long leidoEn, int status, String body) {
+            this.version = version;
+            this.leidoEn = leidoEn;
+            this.status = status;
+            this.body = body;
         }
     }
     
@@ -371,7 +569,7 @@ public class RestServer {
     
     /**
      * GET /api/activity - Historial de actividad
-     * Params: ?limit=50&user=admin&action=LOGIN
+     * Params: ?limit=50&user=admin&action=LOGIN&device=X&before=<timestamp>,<id>
      */
     class ActivityHandler implements HttpHandler {
         @Override
@@ -393,32 +591,117 @@ public class RestServer {
                 // Usar default
             }
             
-            java.util.List<ActivityLog> logs;
+            // Filtros opcionales (se combinan entre si)
+            String filterUser = emptyToNull(params.get("user"));
+            String filterAction = emptyToNull(params.get("action"));
+            String filterDevice = emptyToNull(params.get("device"));
             
-            // Filtrar por usuario si se especifica
-            String filterUser = params.get("user");
-            String filterAction = params.get("action");
-            String filterDevice = params.get("device");
+            // Paginacion por llave: before=<timestamp>,<id> (valor "next" de la pagina anterior)
+            LogCursor before;
+            try {
+                before = LogCursor.parse(params.get("before"));
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, 400, "application/json", 
+                    "{\"error\": \"" + e.getMessage() + "\"}");
+                return;
+            }
             
-            if (filterUser != null && !filterUser.isEmpty()) {
-                logs = activityService.getByUser(filterUser, limit);
-            } else if (filterAction != null && !filterAction.isEmpty()) {
-                logs = activityService.getByAction(filterAction, limit);
-            } else if (filterDevice != null && !filterDevice.isEmpty()) {
-                logs = activityService.getByDevice(filterDevice, limit);
-            } else {
-                logs = activityService.getRecent(limit);
+            int pagina = Math.max(1, Math.min(limit, PAGINA_MAX));
+            streamPage(exchange, sink -> activityService.forEachPage(filterUser, filterAction, 
+                filterDevice, before, pagina, sink::accept));
+        }
+    }
+    
+    /**
+     * GET /api/activity/search?q=texto[&desde=ms][&hasta=ms][&limit=N][&before=ts,id]
+     * Busqueda de texto (todas las palabras) en detalles, dispositivo, usuario e IP,
+     * mas nuevas primero; misma forma de respuesta y paginacion que /api/activity
+     */
+    class ActivitySearchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCorsHeaders(exchange);
+            
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
             }
             
-            // Construir JSON
-            StringBuilder json = new StringBuilder("{\"count\": ").append(logs.size()).append(", \"logs\": [");
-            for (int i = 0; i < logs.size(); i++) {
-                if (i > 0) json.append(",");
-                json.append(logs.get(i).toJson());
+            // "+" y otros separadores en q solo separan palabras
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+            String consulta = params.getOrDefault("q", "");
+            long desde;
+            long hasta;
+            int limit;
+            LogCursor before;
+            try {
+                desde = params.containsKey("desde") ? Long.parseLong(params.get("desde")) : 0;
+                hasta = params.containsKey("hasta") ? Long.parseLong(params.get("hasta")) : Long.MAX_VALUE;
+                limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : 50;
+                before = LogCursor.parse(params.get("before"));
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, 400, "application/json", 
+                    "{\"error\": \"" + e.getMessage() + "\"}");
+                return;
             }
-            json.append("]}");
             
-            sendResponse(exchange, 200, "application/json", json.toString());
+            int pagina = Math.max(1, Math.min(limit, PAGINA_MAX));
+            // La pagina se arma antes de responder para poder contestar 400/503
+            List<ActivityLog> items = new java.util.ArrayList<>();
+            LogCursor next;
+            try {
+                next = activityService.search(consulta, desde, hasta, before, pagina, 
+                    items::add);
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, 400, "application/json", 
+                    "{\"error\": \"" + e.getMessage() + "\"}");
+                return;
+            } catch (IllegalStateException e) {
+                sendResponse(exchange, 503, "application/json", 
+                    "{\"error\": \"" + e.getMessage() + "\"}");
+                return;
+            }
+            streamPage(exchange, sink -> {
+                items.forEach(sink);
+                return next;
+            });
+        }
+    }
+    
+    /**
+     * GET /api/activity/stats[?horas=N][&dias=N][&top=N][&user=X]
+     * Acciones por usuario y hora, logins por dia y dispositivos mas usados,
+     * desde contadores en memoria (no lee los logs)
+     */
+    class ActivityStatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCorsHeaders(exchange);
+            
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+            int horas;
+            int dias;
+            int top;
+            try {
+                horas = params.containsKey("horas") ? Integer.parseInt(params.get("horas")) : 24;
+                dias = params.containsKey("dias") ? Integer.parseInt(params.get("dias")) : 7;
+                top = params.containsKey("top") ? Integer.parseInt(params.get("top")) : 10;
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "application/json", 
+                    "{\"error\": \"Parametro numerico no valido\"}");
+                return;
+            }
+            
+            horas = Math.max(1, Math.min(horas, ActivityStats.HORAS_MEMORIA));
+            dias = Math.max(1, Math.min(dias, ActivityStats.DIAS_MEMORIA));
+            top = Math.max(1, top);
+            sendResponse(exchange, 200, "application/json", 
+                activityService.getStats().toJson(horas, dias, top, emptyToNull(params.get("user"))));
         }
     }
     
@@ -590,12 +873,13 @@ public class RestServer {
     /**
      * GET /api/energy - Obtener estadisticas de consumo energetico
      * Params:
-     *   - type: summary | byDevice | byType | byHour | byDay | current | logs
+     *   - type: dashboard | summary | cost | projection | tariff | simulate | byDevice | byType | byHour | byDay | current | logs | series | retention
      *   - houseId: ID de la casa (opcional, usa primera si no se proporciona)
      *   - desde: timestamp inicio (para rangos)
      *   - hasta: timestamp fin (para rangos)
      *   - dias: numero de dias para byDay (default 7)
      *   - limit: limite de logs a retornar (default 50)
+     *   - deviceId, points, mode (lttb | minmax), source (auto | raw | hour | day): para series
      */
     class EnergyHandler implements HttpHandler {
         @Override
@@ -613,9 +897,9 @@ public class RestServer {
             // Obtener houseId (usar primera casa si no se proporciona)
             String houseId = params.get("houseId");
             if (houseId == null) {
-                List<House> houses = houseService.findAll();
-                if (!houses.isEmpty()) {
-                    houseId = houses.get(0).getIdString();
+                House house = houseService.findFirst();
+                if (house != null) {
+                    houseId = house.getIdString();
                 } else {
                     sendResponse(exchange, 404, "application/json", 
                         "{\"error\": \"No hay casas registradas\"}");
@@ -623,35 +907,92 @@ public class RestServer {
                 }
             }
             
-            // Timestamps para rangos (default: ultimas 24 horas)
+            // Timestamps para rangos (default: las 24 horas que terminan con el minuto
+            // actual; alineado al minuto para que los tableros abiertos compartan cache)
             long ahora = System.currentTimeMillis();
+            long finMinuto = EnergyQueryCache.alignUp(ahora);
             long desde = params.containsKey("desde") ? 
                 Long.parseLong(params.get("desde")) : 
-                ahora - (24 * 60 * 60 * 1000);
+                finMinuto + 1 - (24 * 60 * 60 * 1000);
             long hasta = params.containsKey("hasta") ? 
-                Long.parseLong(params.get("hasta")) : ahora;
+                Long.parseLong(params.get("hasta")) : finMinuto;
             
             StringBuilder json = new StringBuilder();
             
             switch (type) {
+                case "dashboard":
+                    // Todas las vistas de la pagina de energia en una sola respuesta
+                    int diasDashboard = params.containsKey("dias") ? 
+                        Integer.parseInt(params.get("dias")) : 7;
+                    int limitDashboard = params.containsKey("limit") ? 
+                        Integer.parseInt(params.get("limit")) : 50;
+                    EnergyDashboard dashboard = energyService.getDashboard(houseId, desde, hasta, 
+                        diasDashboard, limitDashboard);
+                    EnergyCost costoDashboard = costService.computeCost(houseId, desde, hasta);
+                    dashboard.setCostoEstimado(costoDashboard.getTotal());
+                    dashboard.setPrecioPorKwh(costoDashboard.getPrecioPromedio());
+                    Tariff tarifaDashboard = tariffService.getTariff(houseId);
+                    dashboard.setMoneda(tarifaDashboard.getMoneda());
+                    dashboard.setTarifa(tarifaDashboard.getName());
+                    dashboard.setProyeccionJson(costService.projectPeriod(houseId).toJson());
+                    json.append(dashboard.toJson());
+                    break;
+                    
                 case "summary":
                     // Resumen general: consumo total, actual, costo estimado
                     double totalKwh = energyService.getTotalConsumption(houseId, desde, hasta);
                     double currentWatts = energyService.getCurrentPowerUsage();
-                    double costoPorKwh = 1.20; // Precio promedio en MXN
-                    double costoEstimado = energyService.calculateCost(totalKwh, costoPorKwh);
+                    Tariff tarifa = tariffService.getTariff(houseId);
+                    EnergyCost costo = costService.computeCost(houseId, desde, hasta);
                     
                     json.append("{")
                         .append("\"totalKwh\": ").append(String.format(java.util.Locale.US, "%.4f", totalKwh)).append(",")
                         .append("\"currentWatts\": ").append(String.format(java.util.Locale.US, "%.1f", currentWatts)).append(",")
-                        .append("\"costoEstimado\": ").append(String.format(java.util.Locale.US, "%.2f", costoEstimado)).append(",")
-                        .append("\"precioPorKwh\": ").append(costoPorKwh).append(",")
-                        .append("\"moneda\": \"MXN\",")
+                        .append("\"costoEstimado\": ").append(String.format(java.util.Locale.US, "%.2f", costo.getTotal())).append(",")
+                        .append("\"precioPorKwh\": ").append(String.format(java.util.Locale.US, "%.4f", costo.getPrecioPromedio())).append(",")
+                        .append("\"moneda\": \"").append(tarifa.getMoneda()).append("\",")
                         .append("\"periodoDesde\": ").append(desde).append(",")
-                        .append("\"periodoHasta\": ").append(hasta)
+                        .append("\"periodoHasta\": ").append(hasta).append(",")
+                        .append("\"costo\": ").append(costo.toJson()).append(",")
+                        .append("\"proyeccion\": ").append(costService.projectPeriod(houseId).toJson())
                         .append("}");
                     break;
                     
+                case "cost":
+                    // Costo desglosado por escalon y franja con la tarifa de la casa
+                    json.append(costService.computeCost(houseId, desde, hasta).toJson());
+                    break;
+                    
+                case "projection":
+                    // Costo del periodo de facturacion en curso y proyeccion al cierre
+                    json.append(costService.projectPeriod(houseId).toJson());
+                    break;
+                    
+                case "tariff":
+                    // GET: tarifa de la casa; POST/PUT con JSON: reemplazarla
+                    String metodo = exchange.getRequestMethod();
+                    if ("POST".equals(metodo) || "PUT".equals(metodo)) {
+                        Tariff nueva;
+                        try {
+                            nueva = Tariff.fromDocument(Document.parse(readBody(exchange)));
+                            nueva.setHouseId(houseId);
+                            tariffService.save(nueva);
+                        } catch (IllegalArgumentException | org.bson.json.JsonParseException e) {
+                            sendResponse(exchange, 400, "application/json",
+                                "{\"error\": \"Tarifa no valida: " + e.getMessage().replace("\"", "'") + "\"}");
+                            return;
+                        }
+                        costService.invalidate(houseId);
+                        json.append(nueva.toJson());
+                    } else if ("DELETE".equals(metodo)) {
+                        tariffService.delete(houseId);
+                        costService.invalidate(houseId);
+                        json.append(tariffService.getTariff(houseId).toJson());
+                    } else {
+                        json.append(tariffService.getTariff(houseId).toJson());
+                    }
+                    break;
+                    
                 case "byDevice":
                     // Consumo por dispositivo
                     Map<String, Double> byDevice = energyService.getConsumptionByDevice(houseId, desde, hasta);
@@ -721,22 +1062,96 @@ public class RestServer {
                     break;
                     
                 case "logs":
-                    // Ultimos eventos de energia
+                    // Eventos de energia paginados (mas nuevos primero), escritos conforme
+                    // salen del cursor. Siguiente pagina: before=<next>
                     int limit = params.containsKey("limit") ? 
                         Integer.parseInt(params.get("limit")) : 50;
-                    java.util.List<com.smarthome.model.EnergyLog> logs = 
-                        energyService.getRecentLogs(houseId, limit);
-                    json.append("{\"logs\": [");
-                    for (int l = 0; l < logs.size(); l++) {
-                        if (l > 0) json.append(",");
-                        json.append(logs.get(l).toJson());
+                    LogCursor before;
+                    try {
+                        before = LogCursor.parse(params.get("before"));
+                    } catch (IllegalArgumentException e) {
+                        sendResponse(exchange, 400, "application/json", 
+                            "{\"error\": \"" + e.getMessage() + "\"}");
+                        return;
+                    }
+                    int pagina = Math.max(1, Math.min(limit, PAGINA_MAX));
+                    streamPage(exchange, sink -> energyService.forEachLog(before, pagina, sink::accept));
+                    return;
+                    
+                case "series":
+                    // Serie de watts reducida en el servidor (LTTB o min/max por cubeta):
+                    // de un dispositivo (deviceId) o el total de la casa
+                    int puntos = params.containsKey("points") ? 
+                        Integer.parseInt(params.get("points")) : EnergySeriesService.PUNTOS_DEFAULT;
+                    try {
+                        json.append(seriesService.getSeries(houseId, params.get("deviceId"), desde, hasta, puntos,
+                            params.getOrDefault("mode", "lttb"),
+                            params.getOrDefault("source", EnergySeriesService.SOURCE_AUTO)).toJson());
+                    } catch (IllegalArgumentException e) {
+                        sendResponse(exchange, 400, "application/json", 
+                            "{\"error\": \"" + e.getMessage() + "\"}");
+                        return;
+                    }
+                    break;
+                    
+                case "cube":
+                    // Cubo casa -> habitacion -> dispositivo: drill-down y slices por deviceId
+                    // Filtros: houseId, room, deviceType, deviceId; groupBy: house|room|type|device|hour|day
+                    EnergyCube cube = energyService.getCube();
+                    if (!cube.isLoaded()) {
+                        sendResponse(exchange, 503, "application/json", 
+                            "{\"error\": \"Cubo de energia cargando, intente de nuevo\"}");
+                        return;
+                    }
+                    try {
+                        json.append(cube.query(emptyToNull(params.get("houseId")), 
+                            emptyToNull(params.get("room")), emptyToNull(params.get("deviceType")),
+                            emptyToNull(params.get("deviceId")), 
+                            params.getOrDefault("groupBy", EnergyCube.GROUP_ROOM), desde, hasta).toJson());
+                    } catch (IllegalArgumentException e) {
+                        sendResponse(exchange, 400, "application/json", 
+                            "{\"error\": \"" + e.getMessage() + "\"}");
+                        return;
+                    }
+                    break;
+                    
+                case "simulate":
+                    // Que pasaria si: reglas rule.<tipo|deviceId|all>.<maxHoursPerDay|valuePct|offHours>
+                    // sobre los ultimos "dias" de uso (default 7)
+                    try {
+                        int diasSimulacion = params.containsKey("dias") ? 
+                            Integer.parseInt(params.get("dias")) : EnergySimulationService.DIAS_DEFAULT;
+                        json.append(simulationService.simulate(houseId, diasSimulacion,
+                            EnergySimulationService.parseRules(params)).toJson());
+                    } catch (IllegalArgumentException e) {
+                        sendResponse(exchange, 400, "application/json", 
+                            "{\"error\": \"" + e.getMessage().replace("\"", "'") + "\"}");
+                        return;
                     }
-                    json.append("]}");
+                    break;
+                    
+                case "sampler":
+                    // Metricas del muestreo (duracion de tick, overruns) y de los escritores por lotes
+                    String sampler = energyService.getSamplerStats().toJson();
+                    json.append(sampler, 0, sampler.length() - 1)
+                        .append(", \"writer\": ").append(energyService.getLogWriter().statsJson())
+                        .append(", \"activityWriter\": ").append(activityService.getLogWriter().statsJson())
+                        .append(", \"restLanes\": [").append(controlLane.statsJson())
+                        .append(", ").append(queryLane.statsJson())
+                        .append(", ").append(exportLane.statsJson()).append("]")
+                        .append(", \"compression\": ").append(compression.statsJson())
+                        .append("}");
+                    break;
+                    
+                case "retention":
+                    // Reporte de la ultima corrida de retencion
+                    RetentionReport report = retentionService.getLastReport();
+                    json.append(report != null ? report.toJson() : "{\"status\": \"pending\"}");
                     break;
                     
                 default:
                     sendResponse(exchange, 400, "application/json", 
-                        "{\"error\": \"Tipo de consulta no valido. Use: summary, byDevice, byType, byHour, byDay, current, logs\"}");
+                        "{\"error\": \"Tipo de consulta no valido. Use: dashboard, summary, cost, projection, tariff, byDevice, byType, byHour, byDay, current, logs, series, cube, simulate, sampler, retention\"}");
                     return;
             }
             
@@ -744,25 +1159,443 @@ public class RestServer {
         }
     }
     
+    /**
+     * GET /api/energy/stream - Telemetria de potencia en vivo (Server-Sent Events)
+     * Envia un evento "energy" por cada tick de muestreo (5 segundos):
+     *   {"action":"ENERGY_TICK","timestamp":...,"totalWatts":...,"devices":[{"id","name","type","watts"}]}
+     */
+    class EnergyStreamHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCorsHeaders(exchange);
+            
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            
+            // El exchange queda abierto; los frames los escribe el SseBroadcaster
+            energyStream.subscribe(exchange);
+        }
+    }
+    
+    /**
+     * GET /api/export/energy   - Historial de consumo (CSV o NDJSON)
+     * GET /api/export/activity - Historial de actividad (CSV o NDJSON)
+     * Params: format=csv|ndjson, desde, hasta (default: todo hasta ahora), houseId,
+     *         gzip=1 (o Accept-Encoding: gzip)
+     *         energy:   granularity=raw|hour|day (hour/day salen de los rollups)
+     *         activity: user, action (houseId = actividad de los dispositivos de la casa)
+     *
+     * La respuesta es chunked y se escribe conforme se lee el cursor de Mongo,
+     * asi que la memoria no depende del numero de filas. Las exportaciones
+     * corren en su propio pool para no ocupar el hilo del HttpServer.
+     */
+    class ExportHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            setCorsHeaders(exchange);
+            
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            
+            String path = exchange.getRequestURI().getPath();
+            String tipo = path.endsWith("/energy") ? "energy" : 
+                          path.endsWith("/activity") ? "activity" : null;
+            if (tipo == null) {
+                sendResponse(exchange, 404, "application/json", 
+                    "{\"error\": \"Use /api/export/energy o /api/export/activity\"}");
+                return;
+            }
+            
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+            String format = params.getOrDefault("format", ExportWriter.FORMAT_CSV);
+            String granularity = params.getOrDefault("granularity", "raw");
+            if (!ExportWriter.FORMAT_CSV.equals(format) && !ExportWriter.FORMAT_NDJSON.equals(format)) {
+                sendResponse(exchange, 400, "application/json", 
+                    "{\"error\": \"Formato no valido. Use: csv, ndjson\"}");
+                return;
+            }
+            if (!"raw".equals(granularity) && !"hour".equals(granularity) && !"day".equals(granularity)) {
+                sendResponse(exchange, 400, "application/json", 
+                    "{\"error\": \"Granularidad no valida. Use: raw, hour, day\"}");
+                return;
+            }
+            
+            long desde;
+            long hasta;
+            try {
+                desde = params.containsKey("desde") ? Long.parseLong(params.get("desde")) : 0;
+                hasta = params.containsKey("hasta") ? Long.parseLong(params.get("hasta")) : System.currentTimeMillis();
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "application/json", 
+                    "{\"error\": \"desde/hasta deben ser timestamps en ms\"}");
+                return;
+            }
+            
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            boolean gzip = "1".equals(params.get("gzip")) || "true".equals(params.get("gzip")) ||
+                (acceptEncoding != null && acceptEncoding.contains("gzip"));
+            
+            // Corre en el hilo del carril export: con el carril lleno se responde 503
+            long inicio = System.currentTimeMillis();
+            try {
+                long filas = runExport(exchange, tipo, format, granularity, desde, hasta, gzip, params);
+                System.out.println("[EXPORT] " + tipo + " " + format + (gzip ? "+gzip" : "") + 
+                    ": " + filas + " filas en " + (System.currentTimeMillis() - inicio) + " ms");
+            } catch (Exception e) {
+                System.err.println("[EXPORT] Error exportando " + tipo + ": " + e.getMessage());
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+    
+    /**
+     * Escribir la exportacion al body (chunked, opcionalmente gzip)
+     * @return filas escritas
+     */
+    private long runExport(HttpExchange exchange, String tipo, String format, String granularity,
+                           long desde, long hasta, boolean gzip, Map<String, String> params) throws IOException {
+        String archivo = tipo + ("raw".equals(granularity) || !"energy".equals(tipo) ? "" : "-" + granularity) +
+            "-" + desde + "-" + hasta + "." + format;
+        exchange.getResponseHeaders().set("Content-Type", ExportWriter.contentType(format) + "; charset=UTF-8");
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + archivo + "\"");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, 0);
+        
+        OutputStream body = exchange.getResponseBody();
+        if (gzip) {
+            body = new GZIPOutputStream(body, 8192);
+        }
+        String houseId = emptyToNull(params.get("houseId"));
+        
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(body, "UTF-8"), 16384)) {
+            ExportWriter writer;
+            try {
+                if ("activity".equals(tipo)) {
+                    writer = new ExportWriter(out, format, "id", "timestamp", "username", "action",
+                        "deviceId", "deviceName", "deviceType", "details", "ipAddress");
+                    writer.writeHeader();
+                    
+                    List<String> deviceIds = null;
+                    if (houseId != null) {
+                        deviceIds = new java.util.ArrayList<>();
+                        for (Device d : deviceService.findByHouseId(houseId)) {
+                            deviceIds.add(d.getIdString());
+                        }
+                    }
+                    ExportWriter w = writer;
+                    activityService.forEachInRange(desde, hasta, emptyToNull(params.get("user")),
+                        emptyToNull(params.get("action")), deviceIds, doc -> writeActivityRow(w, doc));
+                    
+                } else if ("raw".equals(granularity)) {
+                    writer = new ExportWriter(out, format, "timestamp", "houseId", "room", "deviceId", "deviceName",
+                        "deviceType", "eventType", "wattsConsumed", "duration", "kwh");
+                    writer.writeHeader();
+                    ExportWriter w = writer;
+                    energyService.forEachRaw(houseId, desde, hasta, doc -> writeEnergyRow(w, doc));
+                    
+                } else {
+                    writer = new ExportWriter(out, format, "bucketStart", "granularity", "houseId", "room", "deviceId",
+                        "deviceName", "deviceType", "kwh", "samples", "duration", "wattsMin", "wattsMax");
+                    writer.writeHeader();
+                    ExportWriter w = writer;
+                    String gran = "hour".equals(granularity) ? EnergyRollup.GRANULARITY_HOUR : EnergyRollup.GRANULARITY_DAY;
+                    rollupService.forEachRollup(gran, houseId, desde, hasta, r -> writeRollupRow(w, r));
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return writer.getRows();
+        }
+    }
+    
+    private static void writeEnergyRow(ExportWriter w, org.bson.Document doc) {
+        try {
+            w.beginRow();
+            w.field(numberOf(doc, "timestamp"));
+            w.field(doc.getString("houseId"));
+            w.field(doc.getString("room"));
+            w.field(doc.getString("deviceId"));
+            w.field(doc.getString("deviceName"));
+            w.field(doc.getString("deviceType"));
+            w.field(doc.getString("eventType"));
+            w.field(decimalOf(doc, "wattsConsumed"));
+            w.field(numberOf(doc, "duration"));
+            w.field(EnergyLog.kwhFromDocument(doc));
+            w.endRow();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private static void writeRollupRow(ExportWriter w, EnergyRollup r) {
+        try {
+            w.beginRow();
+            w.field(r.getBucketStart());
+            w.field(r.getGranularity());
+            w.field(r.getHouseId());
+            w.field(r.getRoom());
+            w.field(r.getDeviceId());
+            w.field(r.getDeviceName());
+            w.field(r.getDeviceType());
+            w.field(r.getKwh());
+            w.field(r.getSamples());
+            w.field(r.getDuration());
+            w.field(r.getWattsMin());
+            w.field(r.getWattsMax());
+            w.endRow();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private static void writeActivityRow(ExportWriter w, org.bson.Document doc) {
+        try {
+            org.bson.types.ObjectId id = doc.getObjectId("_id");
+            w.beginRow();
+            w.field(id != null ? id.toHexString() : null);
+            w.field(numberOf(doc, "timestamp"));
+            w.field(doc.getString("username"));
+            w.field(doc.getString("action"));
+            w.field(doc.getString("deviceId"));
+            w.field(doc.getString("deviceName"));
+            w.field(doc.getString("deviceType"));
+            w.field(doc.getString("details"));
+            w.field(doc.getString("ipAddress"));
+            w.endRow();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private static long numberOf(org.bson.Document doc, String key) {
+        Object v = doc.get(key);
+        return v instanceof Number ? ((Number) v).longValue() : 0;
+    }
+    
+    private static double decimalOf(org.bson.Document doc, String key) {
+        Object v = doc.get(key);
+        return v instanceof Number ? ((Number) v).doubleValue() : 0;
+    }
+    
     // ═══════════════════════════════════════════════════════════
     // UTILIDADES
     // ═══════════════════════════════════════════════════════════
     
+    /**
+     * Ejecutar un handler en un carril; con el carril saturado responde 503
+     */
+    private HttpHandler lane(RequestLane carril, HttpHandler handler) {
+        return exchange -> {
+            try {
+                carril.execute(() -> {
+                    try {
+                        handler.handle(exchange);
+                    } catch (Exception e) {
+                        System.err.println("[REST] Error en " + exchange.getRequestURI().getPath() + ": " + e.getMessage());
+                        exchange.close();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                setCorsHeaders(exchange);
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendResponse(exchange, 503, "application/json", 
+                    "{\"error\": \"Servidor ocupado (" + carril.getName() + "), intente de nuevo\"}");
+            }
+        };
+    }
+    
+    private String etag(long version) {
+        return "\"" + etagPrefix + "-" + Long.toHexString(version) + "\"";
+    }
+    
+    /**
+     * Poner el ETag y, si el cliente ya tiene esa version (If-None-Match),
+     * responder 304 sin cuerpo
+     * @return true si ya se respondio 304
+     */
+    private boolean notModified(HttpExchange exchange, String etag) throws IOException {
+        exchange.getResponseHeaders().set("ETag", etag);
+        // El navegador guarda la respuesta pero la revalida en cada GET
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch == null) return false;
+        for (String candidato : ifNoneMatch.split(",")) {
+            String tag = candidato.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            // La version comprimida lleva la codificacion en el ETag (misma version)
+            tag = tag.replace("-" + ResponseCompression.GZIP + "\"", "\"")
+                .replace("-" + ResponseCompression.DEFLATE + "\"", "\"");
+            if (tag.equals(etag) || tag.equals("*")) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return true;
+            }
+        }
+        return false;
+    }
+    
     private void setCorsHeaders(HttpExchange exchange) {
         exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
         exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, Authorization");
+        exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, Authorization, If-None-Match");
+        exchange.getResponseHeaders().add("Access-Control-Expose-Headers", "ETag");
     }
     
     private void sendResponse(HttpExchange exchange, int code, String contentType, String body) throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
         byte[] bytes = body.getBytes("UTF-8");
+        String encoding = null;
+        if (bytes.length >= ResponseCompression.UMBRAL_BYTES) {
+            encoding = ResponseCompression.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            if (encoding != null) {
+                bytes = compression.compress(bytes, encoding);
+            }
+        }
+        sendBytes(exchange, code, contentType, bytes, encoding);
+    }
+    
+    /**
+     * Datos de una respuesta cacheable: load() lee lo necesario (ej. MongoDB)
+     * y regresa el cuerpo que solo lo escribe
+     */
+    interface BodySource {
+        ResponseCompression.Body load() throws Exception;
+    }
+    
+    /**
+     * Responder 200 con un contenido que se repite tal cual mientras no cambie
+     * su version: la forma comprimida se guarda y se reutiliza sin volver a
+     * armar el cuerpo (ni leer MongoDB). Sin compresion el cuerpo se escribe
+     * directo al body (chunked).
+     *
+     * Los datos se cargan antes de mandar los encabezados: si la carga falla
+     * se responde 500 en vez de un 200 cortado.
+     * @param cacheKey identifica el contenido exacto (ruta + ETag)
+     */
+    private void sendCacheable(HttpExchange exchange, String cacheKey, String contentType,
+                               BodySource source) throws IOException {
+        String encoding = ResponseCompression.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        String key = cacheKey + "|" + encoding;
+        byte[] comprimido = encoding != null ? compression.getCached(key) : null;
+        if (comprimido != null) {
+            sendBytes(exchange, 200, contentType, comprimido, encoding);
+            return;
+        }
+        
+        ResponseCompression.Body body;
+        try {
+            body = source.load();
+        } catch (Exception e) {
+            System.err.println("[REST] Error en " + exchange.getRequestURI().getPath() + ": " + e.getMessage());
+            sendResponse(exchange, 500, "application/json", "{\"error\": \"Error interno\"}");
+            return;
+        }
+        
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (encoding == null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                body.write(out);
+            }
+            return;
+        }
+        
+        // Se comprime mientras se escribe; se guarda aunque sea chico (se arma una vez por version)
+        comprimido = compression.compress(body, encoding);
+        compression.putCached(key, comprimido);
+        sendBytes(exchange, 200, contentType, comprimido, encoding);
+    }
+    
+    /**
+     * Escribir una lista de modelos como arreglo JSON directo al stream
+     */
+    private static void writeJsonArray(OutputStream out, List<? extends JsonWritable> items) throws IOException {
+        JsonStreamWriter w = new JsonStreamWriter(out);
+        w.beginArray();
+        for (JsonWritable item : items) {
+            item.writeJson(w);
+        }
+        w.endArray().flush();
+    }
+    
+    private void sendBytes(HttpExchange exchange, int code, String contentType, byte[] bytes, 
+                           String encoding) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+        if (encoding != null || bytes.length >= ResponseCompression.UMBRAL_BYTES) {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        }
+        if (encoding != null) {
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+            // ETag distinto para la forma comprimida (es otra representacion)
+            String etag = exchange.getResponseHeaders().getFirst("ETag");
+            if (etag != null && etag.endsWith("\"")) {
+                exchange.getResponseHeaders().set("ETag", 
+                    etag.substring(0, etag.length() - 1) + "-" + encoding + "\"");
+            }
+        }
         exchange.sendResponseHeaders(code, bytes.length);
         OutputStream os = exchange.getResponseBody();
         os.write(bytes);
         os.close();
     }
     
+    /**
+     * Fuente de una pagina de logs: entrega cada elemento (se serializa al
+     * escribirlo) y regresa el cursor de la siguiente pagina (o null)
+     */
+    interface PageSource {
+        LogCursor write(java.util.function.Consumer<JsonWritable> sink);
+    }
+    
+    /**
+     * Escribir una pagina {"logs": [...], "count": N, "next": "..."} directo al
+     * body mientras se lee del cursor (respuesta chunked, memoria constante)
+     */
+    private void streamPage(HttpExchange exchange, PageSource source) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        // El tamaño no se conoce antes de escribir; una pagina de logs casi siempre pasa el umbral
+        String encoding = ResponseCompression.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (encoding != null) {
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        exchange.sendResponseHeaders(200, 0);
+        
+        try (JsonStreamWriter w = new JsonStreamWriter(
+                ResponseCompression.wrap(exchange.getResponseBody(), encoding))) {
+            w.beginObject().name("logs").beginArray();
+            int[] count = {0};
+            LogCursor next;
+            try {
+                next = source.write(item -> {
+                    try {
+                        item.writeJson(w);
+                        count[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            w.endArray()
+             .field("count", count[0])
+             .field("next", next != null ? next.toString() : null)
+             .endObject();
+        }
+    }
+    
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+    
     private String readBody(HttpExchange exchange) throws IOException {
         BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody()));
         StringBuilder sb = new StringBuilder();
@@ -806,16 +1639,6 @@ public class RestServer {
         return data;
     }
     
-    private String devicesToJson(List<Device> devices) {
-        StringBuilder json = new StringBuilder("[");
-        for (int i = 0; i < devices.size(); i++) {
-            if (i > 0) json.append(",");
-            json.append(devices.get(i).toJson());
-        }
-        json.append("]");
-        return json.toString();
-    }
-    
     /**
      * Genera el HTML del panel de control
      */
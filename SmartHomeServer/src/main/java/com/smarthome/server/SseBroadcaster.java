@@ -0,0 +1,94 @@
+package com.smarthome.server;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Canal Server-Sent Events sobre el HttpServer del RestServer
+ *
+ * Cada suscriptor es un HttpExchange que se deja abierto con
+ * transferencia chunked. El handler solo registra el exchange y regresa,
+ * asi el hilo dispatcher del HttpServer queda libre. Las escrituras se
+ * hacen en un hilo propio para que un navegador lento no frene a quien
+ * publica (el muestreo de energia).
+ */
+public class SseBroadcaster {
+
+    private final String name;
+    private final Set<HttpExchange> subscribers = ConcurrentHashMap.newKeySet();
+    private final ExecutorService writer;
+
+    public SseBroadcaster(String name) {
+        this.name = name;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "SSE-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Abre el stream SSE sobre el exchange y lo registra como suscriptor
+     */
+    public void subscribe(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().set("Connection", "keep-alive");
+        exchange.sendResponseHeaders(200, 0);
+
+        // Reintento del navegador en 5 segundos si se cae la conexion
+        OutputStream os = exchange.getResponseBody();
+        os.write("retry: 5000\n\n".getBytes(StandardCharsets.UTF_8));
+        os.flush();
+
+        subscribers.add(exchange);
+        System.out.println("[SSE] Suscriptor " + name + " conectado. Total: " + subscribers.size());
+    }
+
+    /**
+     * Publica un evento a todos los suscriptores (asincrono)
+     */
+    public void publish(String event, String data) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+
+        byte[] frame = ("event: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+        writer.execute(() -> {
+            for (HttpExchange exchange : subscribers) {
+                try {
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(frame);
+                    os.flush();
+                } catch (IOException e) {
+                    // Navegador desconectado
+                    subscribers.remove(exchange);
+                    exchange.close();
+                    System.out.println("[SSE] Suscriptor " + name + " desconectado. Total: " + subscribers.size());
+                }
+            }
+        });
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Cierra todos los streams abiertos
+     */
+    public void close() {
+        writer.shutdown();
+        for (HttpExchange exchange : subscribers) {
+            exchange.close();
+        }
+        subscribers.clear();
+    }
+}
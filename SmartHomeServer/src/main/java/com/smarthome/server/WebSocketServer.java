@@ -161,6 +161,24 @@ public class WebSocketServer implements Runnable {
         System.out.println("[WS] Broadcast enviado a " + sent + "/" + clients.size() + " clientes WebSocket");
     }
     
+    /**
+     * Envía un mensaje solo a los clientes suscritos a un canal
+     * (ej. "energy" para la telemetria de consumo cada 5 segundos).
+     * No imprime nada por mensaje para no llenar la consola.
+     */
+    public void broadcastToChannel(String channel, String message) {
+        for (WebSocketClient client : clients) {
+            if (!client.isSubscribed(channel)) {
+                continue;
+            }
+            try {
+                client.sendMessage(message);
+            } catch (Exception e) {
+                System.err.println("[WS] Error enviando a cliente: " + e.getMessage());
+            }
+        }
+    }
+    
     /**
      * Broadcast directo desde el servidor (sin pasar por UDP)
      */
@@ -191,6 +209,9 @@ public class WebSocketServer implements Runnable {
         private OutputStream out;
         private volatile boolean connected = false;
         
+        // Canales de push a los que esta suscrito (ej. "energy")
+        private Set<String> channels = ConcurrentHashMap.newKeySet();
+        
         public WebSocketClient(Socket socket, WebSocketServer server) {
             this.socket = socket;
             this.server = server;
@@ -346,6 +367,18 @@ public class WebSocketServer implements Runnable {
                 
                 if ("PING".equals(action)) {
                     sendMessage("{\"action\":\"PONG\",\"timestamp\":" + System.currentTimeMillis() + "}");
+                } else if ("SUBSCRIBE".equals(action)) {
+                    // {"action":"SUBSCRIBE","channel":"energy"}
+                    String channel = json.getString("channel");
+                    if (channel != null) {
+                        channels.add(channel);
+                        sendMessage("{\"action\":\"SUBSCRIBED\",\"channel\":\"" + channel + "\"}");
+                    }
+                } else if ("UNSUBSCRIBE".equals(action)) {
+                    String channel = json.getString("channel");
+                    if (channel != null) {
+                        channels.remove(channel);
+                    }
                 }
                 // Otros mensajes se pueden manejar aquí
                 
@@ -354,6 +387,10 @@ public class WebSocketServer implements Runnable {
             }
         }
         
+        public boolean isSubscribed(String channel) {
+            return channels.contains(channel);
+        }
+        
         /**
          * Envía un mensaje al cliente WebSocket
          */
@@ -0,0 +1,407 @@
+package com.smarthome.service;
+
+import com.smarthome.model.ActivityLog;
+import org.bson.types.ObjectId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Almacen frio de actividades: un archivo comprimido por dia local
+ *
+ * Las actividades que salen de activity_logs (retencion) se guardan en
+ * archivos yyyy-MM-dd.seg, ordenadas por (timestamp, _id):
+ *
+ *   cabecera  magic, version, actividades, bloques
+ *   indice    por bloque: primer timestamp, offset, bytes comprimidos,
+ *             bytes sin comprimir, actividades
+ *   bloques   BLOQUE actividades serializadas y comprimidas con Deflater
+ *
+ * El indice es disperso (una entrada por bloque): una consulta por rango
+ * busca en el indice los bloques que tocan el rango y solo descomprime
+ * esos. Los archivos se leen con mmap y se guardan abiertos los mas usados.
+ *
+ * Los archivos se escriben completos en un temporal y se renombran, asi
+ * que un archivo nunca queda a medias; escribir un dia que ya existe lo
+ * mezcla con lo anterior (sin repetir _id).
+ */
+public class ActivityArchive {
+
+    public static final String DIR_DEFAULT = "data/activity-archive";
+
+    private static final int MAGIC = 0x53484153;     // "SHAS"
+    private static final int VERSION = 1;
+    private static final int BLOQUE = 256;
+    private static final int CABECERA = 16;
+    private static final int ENTRADA_INDICE = 28;
+    private static final int SEGMENTOS_ABIERTOS = 32;
+    private static final String EXTENSION = ".seg";
+
+    private final Path dir;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final ConcurrentSkipListMap<LocalDate, Path> dias = new ConcurrentSkipListMap<>();
+
+    // Segmentos mapeados recientemente (LRU)
+    private final Map<LocalDate, Segment> abiertos = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LocalDate, Segment> eldest) {
+            return size() > SEGMENTOS_ABIERTOS;
+        }
+    };
+
+    public ActivityArchive(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> archivos = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+                for (Path archivo : archivos) {
+                    String nombre = archivo.getFileName().toString();
+                    dias.put(LocalDate.parse(nombre.substring(0, nombre.length() - EXTENSION.length())), archivo);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[ACTIVITY] Error abriendo archivo de actividad " + dir + ": " + e.getMessage());
+        }
+        if (!dias.isEmpty()) {
+            System.out.println("[ACTIVITY] Archivo frio: " + dias.size() + " dias (" +
+                dias.firstKey() + " a " + dias.lastKey() + ")");
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // ESCRITURA
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Guardar las actividades de un dia local (se mezclan con las ya archivadas)
+     * @return actividades en el archivo del dia
+     */
+    public synchronized int writeDay(LocalDate dia, List<ActivityLog> logs) throws IOException {
+        List<ActivityLog> todas = new ArrayList<>(logs);
+        Segment anterior = segment(dia);
+        if (anterior != null) {
+            Set<ObjectId> ids = new HashSet<>();
+            for (ActivityLog log : logs) ids.add(log.getId());
+            anterior.forEach(0, anterior.bloques, log -> {
+                if (!ids.contains(log.getId())) todas.add(log);
+                return true;
+            });
+        }
+        todas.sort(Comparator.comparingLong(ActivityLog::getTimestamp).thenComparing(ActivityLog::getId));
+
+        int bloques = (todas.size() + BLOQUE - 1) / BLOQUE;
+        byte[][] comprimidos = new byte[bloques][];
+        int[] crudos = new int[bloques];
+        Deflater deflater = new Deflater();
+        try {
+            for (int b = 0; b < bloques; b++) {
+                byte[] crudo = encode(todas.subList(b * BLOQUE, Math.min(todas.size(), (b + 1) * BLOQUE)));
+                crudos[b] = crudo.length;
+                comprimidos[b] = deflate(deflater, crudo);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        Path tmp = dir.resolve(dia + EXTENSION + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer indice = ByteBuffer.allocate(CABECERA + bloques * ENTRADA_INDICE);
+            indice.putInt(MAGIC).putInt(VERSION).putInt(todas.size()).putInt(bloques);
+            long offset = CABECERA + (long) bloques * ENTRADA_INDICE;
+            for (int b = 0; b < bloques; b++) {
+                indice.putLong(todas.get(b * BLOQUE).getTimestamp())
+                    .putLong(offset)
+                    .putInt(comprimidos[b].length)
+                    .putInt(crudos[b])
+                    .putInt(Math.min(BLOQUE, todas.size() - b * BLOQUE));
+                offset += comprimidos[b].length;
+            }
+            indice.flip();
+            while (indice.hasRemaining()) ch.write(indice);
+            for (byte[] bloque : comprimidos) {
+                ByteBuffer buf = ByteBuffer.wrap(bloque);
+                while (buf.hasRemaining()) ch.write(buf);
+            }
+            ch.force(true);
+        }
+        Path destino = dir.resolve(dia + EXTENSION);
+        Files.move(tmp, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (abiertos) {
+            abiertos.remove(dia);
+        }
+        dias.put(dia, destino);
+        return todas.size();
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] crudo) {
+        deflater.reset();
+        deflater.setInput(crudo);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(crudo.length / 3 + 64);
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(List<ActivityLog> logs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(logs.size() * 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (ActivityLog log : logs) {
+            out.write(log.getId().toByteArray());
+            out.writeLong(log.getTimestamp());
+            writeString(out, log.getUsername());
+            writeString(out, log.getAction());
+            writeString(out, log.getDeviceId());
+            writeString(out, log.getDeviceName());
+            writeString(out, log.getDeviceType());
+            writeString(out, log.getDetails());
+            writeString(out, log.getIpAddress());
+            out.writeInt(log.getCount());
+            writeString(out, log.getFirstValue());
+            writeString(out, log.getLastValue());
+            out.writeLong(log.getDuration());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String valor) throws IOException {
+        out.writeBoolean(valor != null);
+        if (valor != null) out.writeUTF(valor);
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // LECTURA
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Archivo de un dia mapeado en memoria
+     */
+    private static final class Segment {
+        final MappedByteBuffer buf;
+        final int bloques;
+        final long[] primerTs;
+        final long[] offsets;
+        final int[] comprimidos;
+        final int[] crudos;
+        final int[] entradas;
+
+        Segment(Path archivo) throws IOException {
+            try (FileChannel ch = FileChannel.open(archivo, StandardOpenOption.READ)) {
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+                throw new IOException("Archivo de actividad no valido: " + archivo);
+            }
+            bloques = buf.getInt(12);
+            primerTs = new long[bloques];
+            offsets = new long[bloques];
+            comprimidos = new int[bloques];
+            crudos = new int[bloques];
+            entradas = new int[bloques];
+            for (int b = 0; b < bloques; b++) {
+                int p = CABECERA + b * ENTRADA_INDICE;
+                primerTs[b] = buf.getLong(p);
+                offsets[b] = buf.getLong(p + 8);
+                comprimidos[b] = buf.getInt(p + 16);
+                crudos[b] = buf.getInt(p + 20);
+                entradas[b] = buf.getInt(p + 24);
+            }
+        }
+
+        /** Ultimo bloque que empieza antes o en timestamp (0 si ninguno) */
+        int blockAt(long timestamp) {
+            int lo = 0, hi = bloques - 1, r = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (primerTs[mid] <= timestamp) { r = mid; lo = mid + 1; } else hi = mid - 1;
+            }
+            return r;
+        }
+
+        List<ActivityLog> decode(int b) throws IOException {
+            byte[] comprimido = new byte[comprimidos[b]];
+            ByteBuffer vista = buf.duplicate();
+            vista.position((int) offsets[b]);
+            vista.get(comprimido);
+
+            byte[] crudo = new byte[crudos[b]];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(comprimido);
+                inflater.inflate(crudo);
+            } catch (DataFormatException e) {
+                throw new IOException("Bloque de actividad corrupto", e);
+            } finally {
+                inflater.end();
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(crudo));
+            List<ActivityLog> logs = new ArrayList<>(entradas[b]);
+            byte[] id = new byte[12];
+            for (int i = 0; i < entradas[b]; i++) {
+                ActivityLog log = new ActivityLog();
+                in.readFully(id);
+                log.setId(new ObjectId(id));
+                log.setTimestamp(in.readLong());
+                log.setUsername(readString(in));
+                log.setAction(readString(in));
+                log.setDeviceId(readString(in));
+                log.setDeviceName(readString(in));
+                log.setDeviceType(readString(in));
+                log.setDetails(readString(in));
+                log.setIpAddress(readString(in));
+                log.setCount(in.readInt());
+                log.setFirstValue(readString(in));
+                log.setLastValue(readString(in));
+                log.setDuration(in.readLong());
+                // El formato no guarda el inicio: es el timestamp menos la duracion
+                log.setStartTime(log.getTimestamp() - log.getDuration());
+                logs.add(log);
+            }
+            return logs;
+        }
+
+        /** Recorrer los bloques [desde, hasta) en orden; el consumer regresa false para parar */
+        boolean forEach(int desde, int hasta, Predicate<ActivityLog> consumer) throws IOException {
+            for (int b = desde; b < hasta; b++) {
+                for (ActivityLog log : decode(b)) {
+                    if (!consumer.test(log)) return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private Segment segment(LocalDate dia) throws IOException {
+        Path archivo = dias.get(dia);
+        if (archivo == null) return null;
+        synchronized (abiertos) {
+            Segment seg = abiertos.get(dia);
+            if (seg == null) {
+                seg = new Segment(archivo);
+                abiertos.put(dia, seg);
+            }
+            return seg;
+        }
+    }
+
+    /**
+     * Recorrer las actividades de [desde, hasta) en orden cronologico
+     */
+    public void forEachAscending(long desde, long hasta, Predicate<ActivityLog> filtro,
+                                 Consumer<ActivityLog> consumer) throws IOException {
+        LocalDate primero = toDay(desde);
+        LocalDate ultimo = toDay(hasta - 1);
+        for (LocalDate dia : dias.subMap(primero, true, ultimo, true).keySet()) {
+            Segment seg = segment(dia);
+            if (seg == null || seg.bloques == 0) continue;
+            boolean sigue = seg.forEach(seg.blockAt(desde), seg.bloques, log -> {
+                if (log.getTimestamp() >= hasta) return false;
+                if (log.getTimestamp() >= desde && filtro.test(log)) consumer.accept(log);
+                return true;
+            });
+            if (!sigue) return;
+        }
+    }
+
+    /**
+     * Recorrer las actividades de lo mas nuevo a lo mas viejo, empezando
+     * despues del cursor y sin pasar de desde
+     * @param consumer regresa false para terminar
+     */
+    public void forEachDescending(long desde, LogCursor before, Predicate<ActivityLog> filtro,
+                                  Predicate<ActivityLog> consumer) throws IOException {
+        if (dias.isEmpty()) return;
+        LocalDate ultimo = before != null ? toDay(before.getTimestamp()) : dias.lastKey();
+        LocalDate primero = toDay(desde);
+        if (ultimo.isBefore(primero)) return;
+        for (LocalDate dia : dias.subMap(primero, true, ultimo, true).descendingKeySet()) {
+            Segment seg = segment(dia);
+            if (seg == null || seg.bloques == 0) continue;
+            int b = before != null ? seg.blockAt(before.getTimestamp()) : seg.bloques - 1;
+            for (; b >= 0; b--) {
+                List<ActivityLog> logs = seg.decode(b);
+                for (int i = logs.size() - 1; i >= 0; i--) {
+                    ActivityLog log = logs.get(i);
+                    if (log.getTimestamp() < desde) return;
+                    if (before != null && !isBefore(log, before)) continue;
+                    if (filtro.test(log) && !consumer.test(log)) return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Actividad archivada con ese timestamp y _id, o null
+     */
+    public ActivityLog find(long timestamp, ObjectId id) throws IOException {
+        ActivityLog[] encontrada = new ActivityLog[1];
+        forEachAscending(timestamp, timestamp + 1, log -> id.equals(log.getId()),
+            log -> encontrada[0] = log);
+        return encontrada[0];
+    }
+
+    private static boolean isBefore(ActivityLog log, LogCursor before) {
+        if (log.getTimestamp() != before.getTimestamp()) {
+            return log.getTimestamp() < before.getTimestamp();
+        }
+        return before.getId() != null && log.getId().compareTo(before.getId()) < 0;
+    }
+
+    private LocalDate toDay(long timestamp) {
+        return java.time.Instant.ofEpochMilli(timestamp).atZone(zone).toLocalDate();
+    }
+
+    /**
+     * Fin del ultimo dia archivado (0 si no hay archivo): lo anterior ya
+     * salio de la coleccion caliente
+     */
+    public long archivedUntil() {
+        if (dias.isEmpty()) return 0;
+        return dias.lastKey().plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    public boolean isEmpty() {
+        return dias.isEmpty();
+    }
+
+    /**
+     * Metricas del archivo en JSON
+     */
+    public String statsJson() {
+        long bytes = 0;
+        for (Path archivo : dias.values()) {
+            try {
+                bytes += Files.size(archivo);
+            } catch (IOException e) {
+                // Archivo borrado a mano: se ignora
+            }
+        }
+        return "{\"dir\": \"" + dir.toString().replace("\\", "/") + "\", \"days\": " + dias.size() +
+            ", \"bytes\": " + bytes +
+            ", \"first\": " + (dias.isEmpty() ? "null" : "\"" + dias.firstKey() + "\"") +
+            ", \"last\": " + (dias.isEmpty() ? "null" : "\"" + dias.lastKey() + "\"") + "}";
+    }
+}
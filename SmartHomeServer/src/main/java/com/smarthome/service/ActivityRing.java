@@ -0,0 +1,256 @@
+package com.smarthome.service;
+
+import com.smarthome.model.ActivityLog;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Anillo en memoria con las actividades mas recientes
+ *
+ * Cada actividad recibe un numero de secuencia y ocupa la casilla
+ * seq % capacidad; al llenarse, la nueva reemplaza a la mas vieja. Ademas
+ * de la cadena principal (seq, seq-1, ...) cada entrada apunta a la
+ * actividad anterior del mismo usuario, de la misma accion y del mismo
+ * dispositivo, y se guarda la cabeza de cada cadena. Filtrar por usuario
+ * recorre solo las actividades de ese usuario.
+ *
+ * Las entradas son inmutables: una sola escritura a la vez (add) y lecturas
+ * sin candado. Si una cadena llega a una casilla ya reemplazada, el anillo
+ * no alcanza para la consulta y se regresa null para que se lea de MongoDB.
+ *
+ * Las paginas van en orden (timestamp desc, _id desc). La secuencia casi
+ * siempre sigue ese orden, pero una actividad puede llegar con un timestamp
+ * anterior a otras ya agregadas (ej. una rafaga que se cierra tarde) y su
+ * timestamp no se toca. Cada entrada guarda el mayor timestamp visto hasta
+ * ella (techo): ninguna actividad anterior en la secuencia es mas nueva que
+ * ese techo, asi que una consulta sigue recorriendo mientras el techo no
+ * quede por debajo de su ultima actividad, y al final ordena lo encontrado.
+ */
+public class ActivityRing {
+
+    public static final int CAPACIDAD_DEFAULT = 8192;
+
+    private static final long NINGUNA = -1;
+
+    // Orden de las paginas: timestamp desc, _id desc
+    private static final Comparator<ActivityLog> ORDEN = Comparator
+        .comparingLong(ActivityLog::getTimestamp).thenComparing(ActivityLog::getId).reversed();
+
+    private static final class Entry {
+        final long seq;
+        final ActivityLog log;
+        final long techo;       // Mayor timestamp desde el inicio hasta esta entrada
+        final long prevUser;
+        final long prevAction;
+        final long prevDevice;
+
+        Entry(long seq, ActivityLog log, long techo, long prevUser, long prevAction, long prevDevice) {
+            this.seq = seq;
+            this.log = log;
+            this.techo = techo;
+            this.prevUser = prevUser;
+            this.prevAction = prevAction;
+            this.prevDevice = prevDevice;
+        }
+    }
+
+    private final int capacidad;
+    private final AtomicReferenceArray<Entry> casillas;
+
+    // Ultima actividad de cada usuario, accion y dispositivo
+    private final Map<String, Long> porUsuario = new ConcurrentHashMap<>();
+    private final Map<String, Long> porAccion = new ConcurrentHashMap<>();
+    private final Map<String, Long> porDispositivo = new ConcurrentHashMap<>();
+
+    private volatile long siguiente;        // Secuencia de la proxima actividad
+    private volatile boolean completo;      // El anillo tiene toda la historia (desde la carga)
+    private long mayorTimestamp;
+
+    public ActivityRing() {
+        this(CAPACIDAD_DEFAULT);
+    }
+
+    public ActivityRing(int capacidad) {
+        this.capacidad = capacidad;
+        this.casillas = new AtomicReferenceArray<>(capacidad);
+    }
+
+    /**
+     * Agregar una actividad nueva (asigna el _id si no tiene)
+     */
+    public synchronized void add(ActivityLog log) {
+        if (log.getId() == null) {
+            log.setId(new ObjectId());
+        }
+        mayorTimestamp = Math.max(mayorTimestamp, log.getTimestamp());
+
+        long seq = siguiente;
+        Entry entry = new Entry(seq, log, mayorTimestamp,
+            link(porUsuario, log.getUsername(), seq),
+            link(porAccion, log.getAction(), seq),
+            link(porDispositivo, log.getDeviceId(), seq));
+        casillas.set((int) (seq % capacidad), entry);
+        siguiente = seq + 1;
+    }
+
+    private static long link(Map<String, Long> cabezas, String key, long seq) {
+        if (key == null) return NINGUNA;
+        Long anterior = cabezas.put(key, seq);
+        return anterior != null ? anterior : NINGUNA;
+    }
+
+    /**
+     * Cargar las actividades mas recientes de la base (orden cronologico)
+     *
+     * Las que ya estaban en el anillo (registradas antes de la carga) se
+     * conservan despues de las cargadas.
+     * @param todas true si la lista es toda la historia (no hay mas viejas)
+     */
+    public synchronized void load(List<ActivityLog> recientes, boolean todas) {
+        List<ActivityLog> previas = new ArrayList<>();
+        Set<ObjectId> ids = new HashSet<>();
+        for (long s = Math.max(0, siguiente - capacidad); s < siguiente; s++) {
+            Entry e = casillas.get((int) (s % capacidad));
+            previas.add(e.log);
+            ids.add(e.log.getId());
+        }
+
+        porUsuario.clear();
+        porAccion.clear();
+        porDispositivo.clear();
+        for (int i = 0; i < capacidad; i++) {
+            casillas.set(i, null);
+        }
+        siguiente = 0;
+        mayorTimestamp = 0;
+
+        for (ActivityLog log : recientes) {
+            if (!ids.contains(log.getId())) add(log);
+        }
+        for (ActivityLog log : previas) {
+            add(log);
+        }
+        completo = todas && siguiente <= capacidad;
+    }
+
+    /**
+     * Pagina de actividades (mas nuevas primero) con filtros opcionales
+     * @param before cursor de la pagina anterior, o null
+     * @param limit maximo de actividades; se busca una mas para saber si hay otra pagina
+     * @return hasta limit + 1 actividades, o null si el anillo no alcanza y hay que ir a MongoDB
+     */
+    public List<ActivityLog> query(String username, String action, String deviceId,
+                                   LogCursor before, int limit) {
+        // Recorrer la cadena mas selectiva; los demas filtros se revisan en cada entrada
+        int cadena;
+        long seq;
+        if (deviceId != null) {
+            cadena = 3;
+            seq = head(porDispositivo, deviceId);
+        } else if (username != null) {
+            cadena = 1;
+            seq = head(porUsuario, username);
+        } else if (action != null) {
+            cadena = 2;
+            seq = head(porAccion, action);
+        } else {
+            cadena = 0;
+            seq = siguiente - 1;
+        }
+
+        List<ActivityLog> resultado = new ArrayList<>(Math.min(limit + 1, 64));
+        long umbral = Long.MIN_VALUE;   // Timestamp de la actividad limit + 1 al ordenar
+        while (true) {
+            if (seq < 0) {
+                // Inicio de la historia conocida
+                if (!completo) return null;
+                break;
+            }
+            Entry e = casillas.get((int) (seq % capacidad));
+            if (e == null || e.seq != seq) {
+                // La cadena sigue en actividades que ya salieron del anillo
+                return null;
+            }
+            ActivityLog log = e.log;
+            if ((username == null || username.equals(log.getUsername()))
+                    && (action == null || action.equals(log.getAction()))
+                    && (deviceId == null || deviceId.equals(log.getDeviceId()))
+                    && (before == null || isBefore(log, before))) {
+                resultado.add(log);
+                if (resultado.size() == limit + 1 || resultado.size() > 2 * (limit + 1)) {
+                    umbral = trim(resultado, limit);
+                }
+            }
+            if (resultado.size() > limit && umbral > e.techo) {
+                // Todo lo anterior en la secuencia es mas viejo que la pagina
+                break;
+            }
+            switch (cadena) {
+                case 1: seq = e.prevUser; break;
+                case 2: seq = e.prevAction; break;
+                case 3: seq = e.prevDevice; break;
+                default: seq = seq - 1;
+            }
+        }
+        if (resultado.size() > limit) {
+            trim(resultado, limit);
+        } else {
+            resultado.sort(ORDEN);
+        }
+        return resultado;
+    }
+
+    /**
+     * Ordenar y dejar solo las primeras limit + 1
+     * @return timestamp de la ultima que queda
+     */
+    private static long trim(List<ActivityLog> logs, int limit) {
+        logs.sort(ORDEN);
+        logs.subList(limit + 1, logs.size()).clear();
+        return logs.get(limit).getTimestamp();
+    }
+
+    /**
+     * Actividad del anillo con ese timestamp y _id, o null
+     * (solo recorre las entradas cuyo techo alcanza al timestamp)
+     */
+    public ActivityLog find(long timestamp, ObjectId id) {
+        for (long seq = siguiente - 1; seq >= 0; seq--) {
+            Entry e = casillas.get((int) (seq % capacidad));
+            if (e == null || e.seq != seq || e.techo < timestamp) return null;
+            if (id.equals(e.log.getId())) return e.log;
+        }
+        return null;
+    }
+
+    private static long head(Map<String, Long> cabezas, String key) {
+        Long seq = cabezas.get(key);
+        return seq != null ? seq : NINGUNA;
+    }
+
+    /**
+     * La actividad va despues del cursor en el orden (timestamp desc, _id desc)
+     */
+    private static boolean isBefore(ActivityLog log, LogCursor before) {
+        if (log.getTimestamp() != before.getTimestamp()) {
+            return log.getTimestamp() < before.getTimestamp();
+        }
+        return before.getId() != null && log.getId().compareTo(before.getId()) < 0;
+    }
+
+    public int getCapacity() { return capacidad; }
+
+    public int size() {
+        return (int) Math.min(siguiente, capacidad);
+    }
+
+    public boolean isComplete() { return completo; }
+}
@@ -0,0 +1,314 @@
+package com.smarthome.service;
+
+import com.smarthome.model.ActivityLog;
+import org.bson.types.ObjectId;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Indice invertido de texto sobre las actividades
+ *
+ * Cada actividad recibe un numero interno (doc) en orden de llegada; por
+ * cada palabra de details, deviceName, username e ipAddress se guarda la
+ * lista de docs que la contienen (posting list), que queda creciente porque
+ * los docs solo se agregan al final. Para cada doc se guarda solo su
+ * timestamp y su _id; el resto de la actividad se lee de MongoDB por _id al
+ * armar la respuesta.
+ *
+ * El orden de llegada casi siempre es cronologico, pero una actividad puede
+ * llegar con un timestamp anterior (ej. una rafaga que se cierra tarde).
+ * Por eso ademas del timestamp real se guarda el techo de cada doc (el
+ * mayor timestamp hasta el), que si es creciente, y el mayor retraso visto.
+ *
+ * Una busqueda convierte el rango de tiempo en un rango de docs (busqueda
+ * binaria sobre los techos, ampliada por el retraso), recorre la lista mas
+ * corta de las palabras pedidas de lo mas nuevo a lo mas viejo, revisa el
+ * timestamp real de cada doc y lo confirma en las demas listas con
+ * busqueda binaria. El costo depende de la lista mas corta, no del total
+ * de actividades.
+ *
+ * Las palabras se comparan sin mayusculas ni acentos; todas las palabras de
+ * la consulta deben aparecer (AND).
+ */
+public class ActivitySearchIndex {
+
+    private static final int CAPACIDAD_INICIAL = 1024;
+
+    // Orden de las paginas: timestamp desc, _id desc
+    private static final Comparator<LogCursor> ORDEN = (a, b) -> compare(b, a);
+
+    /**
+     * Lista de docs de una palabra (creciente)
+     */
+    private static final class Postings {
+        int[] docs = new int[4];
+        int size;
+
+        void add(int doc) {
+            if (size > 0 && docs[size - 1] == doc) return;  // La palabra se repite en la actividad
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+
+        /** Primera posicion con doc >= valor */
+        int lowerBound(int valor) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (docs[mid] < valor) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        boolean contains(int doc) {
+            int i = lowerBound(doc);
+            return i < size && docs[i] == doc;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> postings = new HashMap<>();
+    private long[] timestamps = new long[CAPACIDAD_INICIAL];
+    private long[] techos = new long[CAPACIDAD_INICIAL];     // Mayor timestamp hasta cada doc
+    private long retrasoMax;                                 // Mayor (techo - timestamp)
+    private ObjectId[] ids = new ObjectId[CAPACIDAD_INICIAL];
+    private int docs;
+
+    // Mientras se carga de la base, lo nuevo se guarda aparte y se agrega al final
+    private volatile boolean cargado;
+    private List<ActivityLog> pendientes = new ArrayList<>();
+
+    /**
+     * Agregar una actividad recien registrada
+     */
+    public void add(ActivityLog log) {
+        lock.writeLock().lock();
+        try {
+            if (!cargado) {
+                pendientes.add(log);
+                return;
+            }
+            append(log.getTimestamp(), log.getId(), log.getDetails(), log.getDeviceName(),
+                log.getUsername(), log.getIpAddress());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Agregar una actividad leida de la base durante la carga (orden cronologico)
+     */
+    public void addLoaded(long timestamp, ObjectId id, String details, String deviceName,
+                          String username, String ipAddress) {
+        lock.writeLock().lock();
+        try {
+            append(timestamp, id, details, deviceName, username, ipAddress);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Terminar la carga: agregar lo registrado mientras tanto que no salio en la lectura
+     */
+    public void finishLoad() {
+        lock.writeLock().lock();
+        try {
+            for (ActivityLog log : pendientes) {
+                if (!containsRecent(log.getTimestamp(), log.getId())) {
+                    append(log.getTimestamp(), log.getId(), log.getDetails(), log.getDeviceName(),
+                        log.getUsername(), log.getIpAddress());
+                }
+            }
+            pendientes = new ArrayList<>();
+            cargado = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * El _id ya esta entre los docs cuyo techo alcanza al timestamp
+     * (los anteriores son todos mas viejos)
+     */
+    private boolean containsRecent(long timestamp, ObjectId id) {
+        for (int doc = docs - 1; doc >= 0 && techos[doc] >= timestamp; doc--) {
+            if (ids[doc] != null && ids[doc].equals(id)) return true;
+        }
+        return false;
+    }
+
+    private void append(long timestamp, ObjectId id, String... campos) {
+        if (docs == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, docs * 2);
+            techos = Arrays.copyOf(techos, docs * 2);
+            ids = Arrays.copyOf(ids, docs * 2);
+        }
+        int doc = docs++;
+        long techo = doc > 0 ? Math.max(techos[doc - 1], timestamp) : timestamp;
+        timestamps[doc] = timestamp;
+        techos[doc] = techo;
+        retrasoMax = Math.max(retrasoMax, techo - timestamp);
+        ids[doc] = id;
+        for (String campo : campos) {
+            for (String token : tokenize(campo)) {
+                postings.computeIfAbsent(token, k -> new Postings()).add(doc);
+            }
+        }
+    }
+
+    /**
+     * Buscar actividades con todas las palabras de la consulta
+     * @param desde inicio del rango (inclusivo)
+     * @param hasta fin del rango (exclusivo)
+     * @param before cursor de la pagina anterior, o null
+     * @param limit maximo de resultados; se busca uno mas para saber si hay otra pagina
+     * @return (timestamp, _id) de las actividades encontradas, mas nuevas primero (hasta limit + 1)
+     */
+    public List<LogCursor> search(String consulta, long desde, long hasta, LogCursor before, int limit) {
+        List<String> tokens = tokenize(consulta);
+        if (tokens.isEmpty()) {
+            throw new IllegalArgumentException("Consulta vacia");
+        }
+        if (!cargado) {
+            throw new IllegalStateException("Indice de busqueda cargando");
+        }
+
+        lock.readLock().lock();
+        try {
+            List<Postings> listas = new ArrayList<>(tokens.size());
+            for (String token : tokens) {
+                Postings p = postings.get(token);
+                if (p == null) return Collections.emptyList();
+                listas.add(p);
+            }
+            listas.sort(Comparator.comparingInt(p -> p.size));
+
+            // Rango de docs [lo, hi) donde pueden estar las actividades del rango de
+            // tiempo y antes del cursor: antes de lo todo es anterior a desde, y
+            // desde hi todo es de hasta en adelante (o no va despues del cursor)
+            int lo = firstDocWithTechoAtLeast(desde);
+            int hi = firstDocWithTechoAtLeast(saturatedAdd(hasta, retrasoMax));
+            if (before != null) {
+                hi = Math.min(hi, firstDocWithTechoAtLeast(saturatedAdd(before.getTimestamp(), retrasoMax + 1)));
+            }
+
+            List<LogCursor> resultado = new ArrayList<>(Math.min(limit + 1, 256));
+            long umbral = Long.MIN_VALUE;   // Timestamp del resultado limit + 1 al ordenar
+            Postings menor = listas.get(0);
+            for (int i = menor.lowerBound(hi) - 1; i >= 0; i--) {
+                int doc = menor.docs[i];
+                if (doc < lo) break;
+                if (resultado.size() > limit && umbral > techos[doc]) {
+                    // Lo que falta es mas viejo que la pagina
+                    break;
+                }
+                long ts = timestamps[doc];
+                if (ts < desde || ts >= hasta) continue;
+                LogCursor hit = new LogCursor(ts, ids[doc]);
+                if (before != null && compare(hit, before) >= 0) continue;
+                boolean enTodas = true;
+                for (int l = 1; l < listas.size() && enTodas; l++) {
+                    enTodas = listas.get(l).contains(doc);
+                }
+                if (enTodas) {
+                    resultado.add(hit);
+                    if (resultado.size() == limit + 1 || resultado.size() > 2 * (limit + 1)) {
+                        umbral = trim(resultado, limit);
+                    }
+                }
+            }
+            if (resultado.size() > limit) {
+                trim(resultado, limit);
+            } else {
+                resultado.sort(ORDEN);
+            }
+            return resultado;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int firstDocWithTechoAtLeast(long timestamp) {
+        int lo = 0, hi = docs;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (techos[mid] < timestamp) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long r = a + b;
+        return ((a ^ r) & (b ^ r)) < 0 ? Long.MAX_VALUE : r;
+    }
+
+    /**
+     * Comparar en orden cronologico (timestamp, _id); un id null va antes de
+     * todos los del mismo timestamp
+     */
+    private static int compare(LogCursor a, LogCursor b) {
+        int c = Long.compare(a.getTimestamp(), b.getTimestamp());
+        if (c != 0) return c;
+        if (a.getId() == null) return b.getId() == null ? 0 : -1;
+        return b.getId() != null ? a.getId().compareTo(b.getId()) : 1;
+    }
+
+    /**
+     * Ordenar (mas nuevos primero) y dejar solo los primeros limit + 1
+     * @return timestamp del ultimo que queda
+     */
+    private static long trim(List<LogCursor> hits, int limit) {
+        hits.sort(ORDEN);
+        hits.subList(limit + 1, hits.size()).clear();
+        return hits.get(limit).getTimestamp();
+    }
+
+    /**
+     * Separar un texto en palabras sin mayusculas ni acentos
+     */
+    static List<String> tokenize(String texto) {
+        if (texto == null || texto.isEmpty()) return Collections.emptyList();
+        for (int i = 0; i < texto.length(); i++) {
+            if (texto.charAt(i) >= 128) {
+                // Solo los textos con acentos pasan por la normalizacion
+                texto = Normalizer.normalize(texto, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+                break;
+            }
+        }
+        List<String> tokens = new ArrayList<>(4);
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= texto.length(); i++) {
+            char c = i < texto.length() ? Character.toLowerCase(texto.charAt(i)) : ' ';
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                token.append(c);
+            } else if (token.length() > 0) {
+                String t = token.toString();
+                if (!tokens.contains(t)) tokens.add(t);
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    public boolean isLoaded() { return cargado; }
+
+    /**
+     * Metricas del indice en JSON
+     */
+    public String statsJson() {
+        lock.readLock().lock();
+        try {
+            long entradas = 0;
+            for (Postings p : postings.values()) entradas += p.size;
+            return "{\"loaded\": " + cargado + ", \"docs\": " + docs + ", \"terms\": " + postings.size() +
+                ", \"postings\": " + entradas + "}";
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
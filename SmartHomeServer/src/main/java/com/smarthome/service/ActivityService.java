@@ -2,23 +2,94 @@ package com.smarthome.service;
 
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.Sorts;
+import com.smarthome.database.BatchedLogWriter;
 import com.smarthome.database.MongoDBConnection;
 import com.smarthome.model.ActivityLog;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static com.mongodb.client.model.Filters.*;
 
 /**
  * Servicio para registrar y consultar actividad de usuarios
+ *
+ * Las actividades se escriben por lotes en segundo plano: el login o el
+ * control de un dispositivo solo encolan el registro. Con la cola llena la
+ * actividad la escribe quien la registra (CALLER_RUNS), para no perder
+ * registros de auditoria.
+ *
+ * Las ultimas actividades se guardan tambien en un anillo en memoria
+ * (ActivityRing) con cadenas por usuario, accion y dispositivo: las
+ * consultas recientes y las primeras paginas del historial salen de ahi y
+ * solo van a MongoDB cuando piden mas atras de lo que cubre el anillo.
+ *
+ * La busqueda de texto (details, deviceName, username, ipAddress) usa un
+ * indice invertido en memoria (ActivitySearchIndex) que se carga al
+ * arrancar y se actualiza con cada actividad registrada.
+ *
+ * Los cambios seguidos de un mismo usuario sobre el mismo dispositivo y con
+ * el mismo comando (ej. arrastrar el slider de brillo) se agrupan en una
+ * sola entrada con el primer y el ultimo valor, cuantos fueron y cuanto
+ * duraron. La entrada se registra cuando la rafaga termina (VENTANA_RAFAGA_MS
+ * sin cambios, o RAFAGA_MAX_MS desde el primero).
+ *
+ * Las actividades viejas no se borran: la retencion las pasa por dia a
+ * archivos comprimidos (ActivityArchive) y las consultas por rango y la
+ * paginacion continuan en ese archivo cuando llegan al final de MongoDB.
+ *
+ * Cada actividad suma ademas en contadores por usuario, accion y hora y por
+ * dispositivo y dia (ActivityStats), que responden /api/activity/stats sin
+ * leer los logs.
  */
 public class ActivityService {
     
-    private static final String COLLECTION_NAME = "activity_logs";
+    public static final String COLLECTION_NAME = "activity_logs";
+    
+    // Escritura por lotes de activity_logs
+    private static final int COLA_MAX_LOGS = 10_000;
+    private static final int LOTE_LOGS = 200;
+    private static final long ESPERA_LOTE_MS = 500;
+    private static final int REINTENTOS_LOTE = 3;
+    
+    // Agrupacion de rafagas de cambios
+    private static final long VENTANA_RAFAGA_MS = 2000;
+    private static final long RAFAGA_MAX_MS = 30_000;
+    
+    // Escritura de los contadores de actividad
+    private static final long PERSISTIR_STATS_MS = 60_000;
+    
     private MongoCollection<Document> collection;
+    private final BatchedLogWriter logWriter;
+    
+    private static final Document SEARCH_PROJECTION = new Document("timestamp", 1)
+        .append("details", 1).append("deviceName", 1)
+        .append("username", 1).append("ipAddress", 1);
+    private final ActivityRing ring = new ActivityRing();
+    private final ActivitySearchIndex searchIndex = new ActivitySearchIndex();
+    private final ActivityArchive archive = new ActivityArchive(Paths.get(ActivityArchive.DIR_DEFAULT));
+    private final ActivityStats stats = new ActivityStats();
+    
+    // Rafagas abiertas por usuario|dispositivo|comando
+    private final Map<String, Burst> rafagas = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService cierreRafagas;
     
     // Singleton
     private static ActivityService instance;
@@ -33,20 +104,197 @@ public class ActivityService {
     public ActivityService() {
         this.collection = MongoDBConnection.getInstance()
                 .getCollection(COLLECTION_NAME);
+        this.logWriter = new BatchedLogWriter("activity", collection,
+            COLA_MAX_LOGS, LOTE_LOGS, ESPERA_LOTE_MS, REINTENTOS_LOTE,
+            BatchedLogWriter.OverflowPolicy.CALLER_RUNS);
+        // El eco en consola sale del hilo de escritura, no del request
+        this.logWriter.setOnFlush(lote -> {
+            for (Document doc : lote) {
+                System.out.println("[ACTIVITY] " + ActivityLog.fromDocument(doc));
+            }
+        });
+        this.logWriter.start();
+        
+        this.cierreRafagas = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Activity-Bursts");
+            t.setDaemon(true);
+            return t;
+        });
+        this.cierreRafagas.scheduleWithFixedDelay(this::closeIdleBursts, 
+            VENTANA_RAFAGA_MS / 2, VENTANA_RAFAGA_MS / 2, TimeUnit.MILLISECONDS);
+        // El mismo hilo guarda los contadores (solo celdas con cambios); una
+        // excepcion que escape cancelaria las corridas siguientes
+        this.cierreRafagas.scheduleWithFixedDelay(() -> {
+            try {
+                stats.persist();
+            } catch (Exception e) {
+                System.err.println("[ACTIVITY] Error guardando estadisticas: " + e.getMessage());
+            }
+        }, PERSISTIR_STATS_MS, PERSISTIR_STATS_MS, TimeUnit.MILLISECONDS);
     }
     
     /**
-     * Registrar una actividad
+     * Registrar una actividad (se encola; no espera a MongoDB)
      */
     public void log(ActivityLog activity) {
         try {
-            collection.insertOne(activity.toDocument());
-            System.out.println("[ACTIVITY] " + activity.toString());
+            // El anillo asigna el _id: memoria y base quedan en el mismo orden
+            ring.add(activity);
+            searchIndex.add(activity);
+            stats.record(activity);
+            logWriter.submit(activity.toDocument());
         } catch (Exception e) {
             System.err.println("[ACTIVITY] Error guardando: " + e.getMessage());
         }
     }
     
+    /**
+     * Escribir las actividades pendientes (al cerrar el servidor)
+     */
+    public void shutdown() {
+        cierreRafagas.shutdown();
+        // Las rafagas abiertas se registran antes de vaciar la cola
+        for (String key : rafagas.keySet()) {
+            Burst rafaga = rafagas.remove(key);
+            if (rafaga != null) log(rafaga.toLog());
+        }
+        stats.persist();
+        logWriter.stop(10_000);
+    }
+    
+    public BatchedLogWriter getLogWriter() {
+        return logWriter;
+    }
+    
+    /**
+     * Cargar las actividades mas recientes de la base en el anillo
+     */
+    public void loadRing() {
+        long inicio = System.currentTimeMillis();
+        List<ActivityLog> recientes = new ArrayList<>();
+        try (MongoCursor<Document> cursor = collection.find()
+                .sort(LogCursor.SORT)
+                .limit(ring.getCapacity())
+                .iterator()) {
+            while (cursor.hasNext()) {
+                recientes.add(ActivityLog.fromDocument(cursor.next()));
+            }
+        } catch (Exception e) {
+            System.err.println("[ACTIVITY] Error cargando actividades recientes: " + e.getMessage());
+            return;
+        }
+        Collections.reverse(recientes);
+        // Con archivo frio la base no tiene toda la historia
+        ring.load(recientes, recientes.size() < ring.getCapacity() && archive.isEmpty());
+        System.out.println("[ACTIVITY] Anillo cargado: " + ring.size() + " actividades en " +
+            (System.currentTimeMillis() - inicio) + " ms");
+    }
+    
+    /**
+     * Cargar los contadores de actividad guardados (o contarlos desde la base la primera vez)
+     */
+    public void loadStats() {
+        stats.ensureIndexes();
+        try {
+            stats.load(collection);
+        } catch (Exception e) {
+            System.err.println("[ACTIVITY] Error cargando estadisticas: " + e.getMessage());
+        }
+    }
+    
+    public ActivityStats getStats() {
+        return stats;
+    }
+    
+    /**
+     * Construir el indice de busqueda con todas las actividades de la base
+     * (lo registrado mientras tanto se agrega al terminar)
+     */
+    public void loadSearchIndex() {
+        long inicio = System.currentTimeMillis();
+        long n = 0;
+        try (MongoCursor<Document> cursor = collection.find()
+                .projection(SEARCH_PROJECTION)
+                .sort(Sorts.ascending("timestamp", "_id"))
+                .batchSize(5000)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                Long ts = doc.getLong("timestamp");
+                searchIndex.addLoaded(ts != null ? ts : 0, doc.getObjectId("_id"),
+                    doc.getString("details"), doc.getString("deviceName"),
+                    doc.getString("username"), doc.getString("ipAddress"));
+                n++;
+            }
+        } finally {
+            searchIndex.finishLoad();
+        }
+        System.out.println("[ACTIVITY] Indice de busqueda cargado: " + n + " actividades en " +
+            (System.currentTimeMillis() - inicio) + " ms");
+    }
+    
+    /**
+     * Buscar actividades por texto en un rango de tiempo (mas nuevas primero)
+     * @param before cursor de la pagina anterior, o null para la primera
+     * @return cursor de la siguiente pagina, o null si no hay mas
+     * @throws IllegalArgumentException si la consulta no tiene palabras
+     * @throws IllegalStateException si el indice aun se esta cargando
+     */
+    public LogCursor search(String consulta, long desde, long hasta, LogCursor before, int limit,
+                            Consumer<ActivityLog> consumer) {
+        List<LogCursor> hits = searchIndex.search(consulta, desde, hasta, before, limit);
+        if (hits.isEmpty()) return null;
+        
+        // Leer las actividades completas por _id (una sola consulta)
+        List<ObjectId> ids = new ArrayList<>(hits.size());
+        for (LogCursor hit : hits) ids.add(hit.getId());
+        Map<ObjectId, ActivityLog> porId = new HashMap<>();
+        try (MongoCursor<Document> cursor = collection.find(in("_id", ids)).iterator()) {
+            while (cursor.hasNext()) {
+                ActivityLog log = ActivityLog.fromDocument(cursor.next());
+                porId.put(log.getId(), log);
+            }
+        }
+        
+        for (int i = 0; i < hits.size() && i < limit; i++) {
+            ActivityLog log = porId.get(ids.get(i));
+            if (log == null) log = findOutsideCollection(hits.get(i));
+            // Si tampoco esta en el anillo ni en el archivo (ya se borro) se omite
+            if (log != null) consumer.accept(log);
+        }
+        return hits.size() > limit ? hits.get(limit - 1) : null;
+    }
+    
+    /**
+     * Actividad que no salio de la coleccion: aun en la cola de escritura
+     * (esta en el anillo) o ya movida al archivo frio
+     */
+    private ActivityLog findOutsideCollection(LogCursor hit) {
+        ActivityLog log = ring.find(hit.getTimestamp(), hit.getId());
+        if (log != null || hit.getTimestamp() >= archive.archivedUntil()) return log;
+        try {
+            return archive.find(hit.getTimestamp(), hit.getId());
+        } catch (IOException e) {
+            System.err.println("[ACTIVITY] Error leyendo archivo frio: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    public ActivitySearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+    
+    /**
+     * Actividades del anillo, o null si hay que ir a MongoDB
+     */
+    private List<ActivityLog> fromRing(String username, String action, String deviceId, int limit) {
+        List<ActivityLog> logs = ring.query(username, action, deviceId, null, limit);
+        if (logs != null && logs.size() > limit) {
+            logs.remove(limit);
+        }
+        return logs;
+    }
+    
     /**
      * Registrar login
      */
@@ -92,7 +340,90 @@ public class ActivityService {
         ActivityLog log = new ActivityLog(username, ActivityLog.ACTION_DEVICE_CHANGE, 
                                           deviceId, deviceName, details);
         log.setDeviceType(deviceType);
-        log(log);
+        if (deviceId == null) {
+            log(log);
+            return;
+        }
+        
+        // "SET_VALUE: 80" -> comando SET_VALUE, valor 80
+        int sep = details != null ? details.indexOf(": ") : -1;
+        String comando = sep >= 0 ? details.substring(0, sep) : details;
+        String valor = sep >= 0 ? details.substring(sep + 2) : null;
+        String key = username + "|" + deviceId + "|" + ActivityLog.ACTION_DEVICE_CHANGE + "|" + comando;
+        long ahora = log.getTimestamp();
+        
+        ActivityLog[] cerrada = new ActivityLog[1];
+        rafagas.compute(key, (k, rafaga) -> {
+            if (rafaga != null && ahora - rafaga.ultimo <= VENTANA_RAFAGA_MS 
+                    && ahora - rafaga.primero < RAFAGA_MAX_MS) {
+                rafaga.add(valor, ahora);
+                return rafaga;
+            }
+            if (rafaga != null) cerrada[0] = rafaga.toLog();
+            return new Burst(log, comando, valor);
+        });
+        if (cerrada[0] != null) log(cerrada[0]);
+    }
+    
+    /**
+     * Rafaga de cambios en curso (se registra como una sola actividad)
+     */
+    private static final class Burst {
+        final ActivityLog log;      // Primer cambio
+        final String comando;
+        final String primerValor;
+        final long primero;
+        String ultimoValor;
+        long ultimo;
+        int cambios = 1;
+        
+        Burst(ActivityLog log, String comando, String valor) {
+            this.log = log;
+            this.comando = comando;
+            this.primerValor = valor;
+            this.ultimoValor = valor;
+            this.primero = log.getTimestamp();
+            this.ultimo = primero;
+        }
+        
+        void add(String valor, long timestamp) {
+            ultimoValor = valor;
+            ultimo = timestamp;
+            cambios++;
+        }
+        
+        ActivityLog toLog() {
+            if (cambios > 1) {
+                // Fecha del ultimo cambio; el inicio se guarda aparte (la rafaga
+                // se registra hasta 30 s despues y puede quedar detras de otras)
+                log.setTimestamp(ultimo);
+                log.setStartTime(primero);
+                log.setDetails(ultimoValor != null ? comando + ": " + ultimoValor : comando);
+                log.setCount(cambios);
+                log.setFirstValue(primerValor);
+                log.setLastValue(ultimoValor);
+                log.setDuration(ultimo - primero);
+            }
+            return log;
+        }
+    }
+    
+    /**
+     * Registrar las rafagas que ya no recibieron cambios dentro de la ventana
+     */
+    private void closeIdleBursts() {
+        long ahora = System.currentTimeMillis();
+        for (String key : rafagas.keySet()) {
+            ActivityLog[] cerrada = new ActivityLog[1];
+            rafagas.computeIfPresent(key, (k, rafaga) -> {
+                if (ahora - rafaga.ultimo <= VENTANA_RAFAGA_MS && ahora - rafaga.primero < RAFAGA_MAX_MS) {
+                    return rafaga;
+                }
+                cerrada[0] = rafaga.toLog();
+                return null;
+            });
+            if (cerrada[0] != null) log(cerrada[0]);
+        }
     }
     
     /**
@@ -108,9 +439,11 @@ public class ActivityService {
      * Obtener últimas N actividades
      */
     public List<ActivityLog> getRecent(int limit) {
-        List<ActivityLog> logs = new ArrayList<>();
+        List<ActivityLog> logs = fromRing(null, null, null, limit);
+        if (logs != null) return logs;
+        logs = new ArrayList<>();
         try (MongoCursor<Document> cursor = collection.find()
-                .sort(Sorts.descending("timestamp"))
+                .sort(LogCursor.SORT)
                 .limit(limit)
                 .iterator()) {
             while (cursor.hasNext()) {
@@ -124,9 +457,11 @@ public class ActivityService {
      * Obtener actividades de un usuario
      */
     public List<ActivityLog> getByUser(String username, int limit) {
-        List<ActivityLog> logs = new ArrayList<>();
+        List<ActivityLog> logs = fromRing(username, null, null, limit);
+        if (logs != null) return logs;
+        logs = new ArrayList<>();
         try (MongoCursor<Document> cursor = collection.find(eq("username", username))
-                .sort(Sorts.descending("timestamp"))
+                .sort(LogCursor.SORT)
                 .limit(limit)
                 .iterator()) {
             while (cursor.hasNext()) {
@@ -140,9 +475,11 @@ public class ActivityService {
      * Obtener actividades por tipo de acción
      */
     public List<ActivityLog> getByAction(String action, int limit) {
-        List<ActivityLog> logs = new ArrayList<>();
+        List<ActivityLog> logs = fromRing(null, action, null, limit);
+        if (logs != null) return logs;
+        logs = new ArrayList<>();
         try (MongoCursor<Document> cursor = collection.find(eq("action", action))
-                .sort(Sorts.descending("timestamp"))
+                .sort(LogCursor.SORT)
                 .limit(limit)
                 .iterator()) {
             while (cursor.hasNext()) {
@@ -156,9 +493,11 @@ public class ActivityService {
      * Obtener actividades de un dispositivo
      */
     public List<ActivityLog> getByDevice(String deviceId, int limit) {
-        List<ActivityLog> logs = new ArrayList<>();
+        List<ActivityLog> logs = fromRing(null, null, deviceId, limit);
+        if (logs != null) return logs;
+        logs = new ArrayList<>();
         try (MongoCursor<Document> cursor = collection.find(eq("deviceId", deviceId))
-                .sort(Sorts.descending("timestamp"))
+                .sort(LogCursor.SORT)
                 .limit(limit)
                 .iterator()) {
             while (cursor.hasNext()) {
@@ -175,16 +514,161 @@ public class ActivityService {
         List<ActivityLog> logs = new ArrayList<>();
         try (MongoCursor<Document> cursor = collection.find(
                 and(gte("timestamp", desde), lte("timestamp", hasta)))
-                .sort(Sorts.descending("timestamp"))
+                .sort(LogCursor.SORT)
                 .limit(limit)
                 .iterator()) {
             while (cursor.hasNext()) {
                 logs.add(ActivityLog.fromDocument(cursor.next()));
             }
         }
+        if (logs.size() < limit) {
+            // Continuar con el archivo frio despues de lo ultimo que dio la base
+            ActivityLog ultimo = logs.isEmpty() ? null : logs.get(logs.size() - 1);
+            LogCursor desdeArchivo = ultimo != null ? new LogCursor(ultimo.getTimestamp(), ultimo.getId())
+                : new LogCursor(hasta + 1, null);
+            forEachArchived(desde, desdeArchivo, log -> true, log -> {
+                logs.add(log);
+                return logs.size() < limit;
+            });
+        }
         return logs;
     }
     
+    /**
+     * Recorrer una página de actividades (más nuevas primero) sin materializarla.
+     * Los filtros son opcionales (null = sin filtro) y se combinan entre sí.
+     * @param before cursor de la página anterior, o null para la primera
+     * @return cursor de la siguiente página, o null si no hay más
+     */
+    public LogCursor forEachPage(String username, String action, String deviceId,
+                                 LogCursor before, int limit, Consumer<ActivityLog> consumer) {
+        List<Bson> filtros = new ArrayList<>();
+        if (username != null) filtros.add(eq("username", username));
+        if (action != null) filtros.add(eq("action", action));
+        if (deviceId != null) filtros.add(eq("deviceId", deviceId));
+        Bson filtro = filtros.isEmpty() ? null : (filtros.size() == 1 ? filtros.get(0) : and(filtros));
+        
+        // Primero el anillo: trae limit + 1 para saber si hay otra pagina
+        List<ActivityLog> recientes = ring.query(username, action, deviceId, before, limit);
+        if (recientes != null) {
+            for (int i = 0; i < recientes.size() && i < limit; i++) {
+                consumer.accept(recientes.get(i));
+            }
+            if (recientes.size() > limit) {
+                ActivityLog ultimoLog = recientes.get(limit - 1);
+                return new LogCursor(ultimoLog.getTimestamp(), ultimoLog.getId());
+            }
+            return null;
+        }
+        
+        Document ultimo = null;
+        int n = 0;
+        try (MongoCursor<Document> cursor = collection.find(LogCursor.combine(filtro, before))
+                .sort(LogCursor.SORT)
+                .limit(limit + 1)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                if (n == limit) {
+                    return LogCursor.of(ultimo);
+                }
+                consumer.accept(ActivityLog.fromDocument(doc));
+                ultimo = doc;
+                n++;
+            }
+        }
+        
+        // Se acabo la base: seguir con el archivo frio
+        LogCursor[] siguiente = {null};
+        LogCursor[] entregado = {ultimo != null ? LogCursor.of(ultimo) : before};
+        int[] total = {n};
+        forEachArchived(0, entregado[0], 
+            log -> (username == null || username.equals(log.getUsername()))
+                && (action == null || action.equals(log.getAction()))
+                && (deviceId == null || deviceId.equals(log.getDeviceId())),
+            log -> {
+                if (total[0] == limit) {
+                    // Hay al menos una mas: la pagina sigue
+                    siguiente[0] = entregado[0];
+                    return false;
+                }
+                consumer.accept(log);
+                entregado[0] = new LogCursor(log.getTimestamp(), log.getId());
+                total[0]++;
+                return true;
+            });
+        return siguiente[0];
+    }
+    
+    /**
+     * Recorrer el archivo frio de lo mas nuevo a lo mas viejo (un error de
+     * lectura corta el recorrido: la respuesta se queda con lo de la base)
+     */
+    private void forEachArchived(long desde, LogCursor before, java.util.function.Predicate<ActivityLog> filtro,
+                                 java.util.function.Predicate<ActivityLog> consumer) {
+        try {
+            archive.forEachDescending(desde, before, filtro, consumer);
+        } catch (IOException e) {
+            System.err.println("[ACTIVITY] Error leyendo archivo frio: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Recorrer las actividades de un rango en orden cronológico, sin
+     * materializarlas (exportaciones). Filtros opcionales (null = sin filtro).
+     * @param deviceIds dispositivos a incluir (ej. los de una casa)
+     */
+    public void forEachInRange(long desde, long hasta, String username, String action,
+                               java.util.Collection<String> deviceIds, Consumer<Document> consumer) {
+        List<Bson> filtros = new ArrayList<>();
+        filtros.add(gte("timestamp", desde));
+        filtros.add(lt("timestamp", hasta));
+        if (username != null) filtros.add(eq("username", username));
+        if (action != null) filtros.add(eq("action", action));
+        if (deviceIds != null) filtros.add(in("deviceId", deviceIds));
+        
+        // Lo archivado va primero (es mas viejo que todo lo que queda en la base)
+        long hastaArchivo = Math.min(hasta, archive.archivedUntil());
+        if (desde < hastaArchivo) {
+            try {
+                archive.forEachAscending(desde, hastaArchivo, 
+                    log -> (username == null || username.equals(log.getUsername()))
+                        && (action == null || action.equals(log.getAction()))
+                        && (deviceIds == null || deviceIds.contains(log.getDeviceId())),
+                    log -> consumer.accept(log.toDocument()));
+            } catch (IOException e) {
+                System.err.println("[ACTIVITY] Error leyendo archivo frio: " + e.getMessage());
+            }
+            filtros.set(0, gte("timestamp", hastaArchivo));
+        }
+        
+        try (MongoCursor<Document> cursor = collection.find(and(filtros))
+                .sort(Sorts.ascending("timestamp", "_id"))
+                .batchSize(1000)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                consumer.accept(cursor.next());
+            }
+        }
+    }
+    
+    /**
+     * Crear los índices de la paginación (uno por cada filtro del endpoint)
+     */
+    public void ensureIndexes() {
+        try {
+            collection.createIndex(Indexes.descending("timestamp", "_id"));
+            collection.createIndex(Indexes.compoundIndex(Indexes.ascending("username"),
+                Indexes.descending("timestamp", "_id")));
+            collection.createIndex(Indexes.compoundIndex(Indexes.ascending("action"),
+                Indexes.descending("timestamp", "_id")));
+            collection.createIndex(Indexes.compoundIndex(Indexes.ascending("deviceId"),
+                Indexes.descending("timestamp", "_id")));
+        } catch (Exception e) {
+            System.err.println("[ACTIVITY] Error creando índices: " + e.getMessage());
+        }
+    }
+    
     /**
      * Contar actividades
      */
@@ -193,10 +677,71 @@ public class ActivityService {
     }
     
     /**
-     * Limpiar actividades antiguas (más de X días)
+     * Borrar actividades en [desde, hasta) (lotes del motor de retención)
      */
-    public long cleanOld(int dias) {
-        long limite = System.currentTimeMillis() - ((long) dias * 24 * 60 * 60 * 1000);
-        return collection.deleteMany(lt("timestamp", limite)).getDeletedCount();
+    public long deleteRange(long desde, long hasta) {
+        return collection.deleteMany(and(gte("timestamp", desde), lt("timestamp", hasta)))
+            .getDeletedCount();
+    }
+    
+    /**
+     * Timestamp de la actividad más antigua anterior a un límite (o -1 si no hay)
+     */
+    public long oldestTimestampBefore(long limite) {
+        Document doc = collection.find(lt("timestamp", limite))
+            .sort(Sorts.ascending("timestamp"))
+            .projection(new Document("timestamp", 1))
+            .first();
+        if (doc == null) return -1;
+        Long ts = doc.getLong("timestamp");
+        return ts != null ? ts : -1;
+    }
+    
+    /**
+     * Pasar al archivo frio las actividades de un dia local y borrarlas de
+     * la base (primero se escribe el archivo; si falla, no se borra nada)
+     * @return actividades movidas
+     */
+    public long archiveDay(LocalDate dia) throws IOException {
+        ZoneId zona = ZoneId.systemDefault();
+        long desde = dia.atStartOfDay(zona).toInstant().toEpochMilli();
+        long hasta = dia.plusDays(1).atStartOfDay(zona).toInstant().toEpochMilli();
+        
+        List<ActivityLog> logs = new ArrayList<>();
+        try (MongoCursor<Document> cursor = collection.find(
+                and(gte("timestamp", desde), lt("timestamp", hasta)))
+                .sort(Sorts.ascending("timestamp", "_id"))
+                .batchSize(1000)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                logs.add(ActivityLog.fromDocument(cursor.next()));
+            }
+        }
+        if (logs.isEmpty()) return 0;
+        
+        archive.writeDay(dia, logs);
+        deleteRange(desde, hasta);
+        return logs.size();
+    }
+    
+    public ActivityArchive getArchive() {
+        return archive;
+    }
+    
+    /**
+     * Archivar las actividades antiguas (más de X días), día por día
+     * @return actividades movidas al archivo frio
+     */
+    public long cleanOld(int dias) throws IOException {
+        ZoneId zona = ZoneId.systemDefault();
+        LocalDate limite = LocalDate.now(zona).minusDays(dias);
+        long movidas = 0;
+        long ts = oldestTimestampBefore(limite.atStartOfDay(zona).toInstant().toEpochMilli());
+        if (ts < 0) return 0;
+        for (LocalDate dia = java.time.Instant.ofEpochMilli(ts).atZone(zona).toLocalDate(); 
+                dia.isBefore(limite); dia = dia.plusDays(1)) {
+            movidas += archiveDay(dia);
+        }
+        return movidas;
     }
 }
@@ -0,0 +1,378 @@
+package com.smarthome.service;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import com.smarthome.database.MongoDBConnection;
+import com.smarthome.model.ActivityLog;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.mongodb.client.model.Filters.*;
+
+/**
+ * Contadores de actividad en memoria (analitica sin leer los logs)
+ *
+ * Cada actividad registrada suma 1 en dos tablas:
+ *   - hora x usuario x accion  (ultimas HORAS_MEMORIA horas)
+ *   - dia local x dispositivo  (ultimos DIAS_MEMORIA dias)
+ * Sumar es un LongAdder por celda, sin candados. Las consultas recorren
+ * como mucho HORAS_MEMORIA + DIAS_MEMORIA cubetas: su costo depende de
+ * cuantos usuarios y dispositivos hay, no de cuantas actividades.
+ *
+ * Las celdas que cambiaron se escriben cada minuto en activity_stats con
+ * upsert del valor absoluto (idempotente); al arrancar se cargan de ahi.
+ * Si la coleccion esta vacia se reconstruyen una vez desde activity_logs.
+ */
+public class ActivityStats {
+
+    public static final String COLLECTION_NAME = "activity_stats";
+
+    public static final int HORAS_MEMORIA = 7 * 24;
+    public static final int DIAS_MEMORIA = 90;
+
+    private static final String TIPO_HORA = "hour";
+    private static final String TIPO_DISPOSITIVO = "device";
+    private static final String SIN_USUARIO = "-";
+
+    /**
+     * Contador de una celda (cubeta + llaves)
+     */
+    private static final class Cell {
+        final String tipo;
+        final long bucket;
+        final String llave;         // username o deviceId
+        final String accion;        // Solo en la tabla por hora
+        final LongAdder count = new LongAdder();
+        volatile String nombre;     // deviceName
+
+        Cell(String tipo, long bucket, String llave, String accion) {
+            this.tipo = tipo;
+            this.bucket = bucket;
+            this.llave = llave;
+            this.accion = accion;
+        }
+
+        Document toDocument() {
+            Document doc = new Document("tipo", tipo).append("bucket", bucket);
+            if (TIPO_HORA.equals(tipo)) {
+                doc.append("username", llave).append("action", accion);
+            } else {
+                doc.append("deviceId", llave).append("deviceName", nombre);
+            }
+            return doc.append("count", count.sum());
+        }
+
+        Bson filter() {
+            return TIPO_HORA.equals(tipo)
+                ? and(eq("tipo", tipo), eq("bucket", bucket), eq("username", llave), eq("action", accion))
+                : and(eq("tipo", tipo), eq("bucket", bucket), eq("deviceId", llave));
+        }
+    }
+
+    private final MongoCollection<Document> collection;
+    private final ZoneId zona = ZoneId.systemDefault();
+
+    // hora -> usuario -> accion -> celda
+    private final ConcurrentSkipListMap<Long, Map<String, Map<String, Cell>>> porHora = new ConcurrentSkipListMap<>();
+    // dia local -> dispositivo -> celda
+    private final ConcurrentSkipListMap<Long, Map<String, Cell>> porDia = new ConcurrentSkipListMap<>();
+
+    // Celdas con cambios sin escribir
+    private final Set<Cell> sucias = ConcurrentHashMap.newKeySet();
+
+    // Dia local en curso [inicioDia, finDia) para no convertir fechas en cada actividad
+    private volatile long[] diaActual = {0, 0};
+
+    public ActivityStats() {
+        this.collection = MongoDBConnection.getInstance().getCollection(COLLECTION_NAME);
+    }
+
+    /**
+     * Contar una actividad registrada
+     */
+    public void record(ActivityLog log) {
+        long ts = log.getTimestamp();
+        String usuario = log.getUsername() != null ? log.getUsername() : SIN_USUARIO;
+        String accion = log.getAction() != null ? log.getAction() : SIN_USUARIO;
+        increment(hourCell(ts - Math.floorMod(ts, TimeBuckets.HOUR_MS), usuario, accion), 1);
+
+        if (log.getDeviceId() != null) {
+            Cell cell = deviceCell(dayStart(ts), log.getDeviceId());
+            if (log.getDeviceName() != null) cell.nombre = log.getDeviceName();
+            increment(cell, 1);
+        }
+    }
+
+    private void increment(Cell cell, long n) {
+        // Primero el contador y despues la marca: persist() quita la marca antes de leer
+        cell.count.add(n);
+        sucias.add(cell);
+    }
+
+    private Cell hourCell(long hora, String usuario, String accion) {
+        return porHora.computeIfAbsent(hora, h -> new ConcurrentHashMap<>())
+            .computeIfAbsent(usuario, u -> new ConcurrentHashMap<>())
+            .computeIfAbsent(accion, a -> new Cell(TIPO_HORA, hora, usuario, accion));
+    }
+
+    private Cell deviceCell(long dia, String deviceId) {
+        return porDia.computeIfAbsent(dia, d -> new ConcurrentHashMap<>())
+            .computeIfAbsent(deviceId, id -> new Cell(TIPO_DISPOSITIVO, dia, deviceId, null));
+    }
+
+    /**
+     * Inicio (epoch ms) del dia local de un timestamp
+     */
+    private long dayStart(long ts) {
+        long[] dia = diaActual;
+        if (ts >= dia[0] && ts < dia[1]) return dia[0];
+        LocalDate fecha = Instant.ofEpochMilli(ts).atZone(zona).toLocalDate();
+        long inicio = fecha.atStartOfDay(zona).toInstant().toEpochMilli();
+        long fin = fecha.plusDays(1).atStartOfDay(zona).toInstant().toEpochMilli();
+        if (ts >= System.currentTimeMillis() - TimeBuckets.DAY_MS) {
+            diaActual = new long[] {inicio, fin};
+        }
+        return inicio;
+    }
+
+    public void ensureIndexes() {
+        try {
+            collection.createIndex(Indexes.ascending("tipo", "bucket", "username", "action", "deviceId"),
+                new IndexOptions().unique(true));
+        } catch (Exception e) {
+            System.err.println("[ACTIVITY] Error creando indice de estadisticas: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cargar los contadores guardados; si no hay, reconstruirlos desde activity_logs
+     * (se suman a lo que ya se haya contado desde el arranque)
+     */
+    public void load(MongoCollection<Document> logs) {
+        long inicio = System.currentTimeMillis();
+        long desdeHora = horaLimite(inicio);
+        long desdeDia = diaLimite(inicio);
+        long celdas = 0;
+        try (MongoCursor<Document> cursor = collection.find(or(
+                and(eq("tipo", TIPO_HORA), gte("bucket", desdeHora)),
+                and(eq("tipo", TIPO_DISPOSITIVO), gte("bucket", desdeDia)))).iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                long bucket = doc.getLong("bucket");
+                long n = doc.getLong("count");
+                Cell cell;
+                if (TIPO_HORA.equals(doc.getString("tipo"))) {
+                    cell = hourCell(bucket, doc.getString("username"), doc.getString("action"));
+                } else {
+                    cell = deviceCell(bucket, doc.getString("deviceId"));
+                    if (cell.nombre == null) cell.nombre = doc.getString("deviceName");
+                }
+                // Lo guardado no se vuelve a escribir
+                cell.count.add(n);
+                celdas++;
+            }
+        }
+
+        if (celdas == 0 && collection.countDocuments() == 0) {
+            rebuild(logs, Math.min(desdeHora, desdeDia));
+            persist();
+        }
+        System.out.println("[ACTIVITY] Estadisticas cargadas: " + porHora.size() + " horas, " +
+            porDia.size() + " dias en " + (System.currentTimeMillis() - inicio) + " ms");
+    }
+
+    /**
+     * Contar las actividades de la base dentro de la ventana
+     */
+    private void rebuild(MongoCollection<Document> logs, long desde) {
+        long horaMin = horaLimite(System.currentTimeMillis());
+        try (MongoCursor<Document> cursor = logs.find(gte("timestamp", desde))
+                .projection(new Document("username", 1).append("action", 1)
+                    .append("deviceId", 1).append("deviceName", 1).append("timestamp", 1))
+                .batchSize(5000)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                ActivityLog log = ActivityLog.fromDocument(cursor.next());
+                if (log.getTimestamp() >= horaMin) {
+                    record(log);
+                } else if (log.getDeviceId() != null) {
+                    // Fuera de la ventana por hora: solo la tabla por dia
+                    Cell cell = deviceCell(dayStart(log.getTimestamp()), log.getDeviceId());
+                    if (log.getDeviceName() != null) cell.nombre = log.getDeviceName();
+                    increment(cell, 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Escribir las celdas con cambios y soltar las cubetas fuera de la ventana
+     * @return celdas escritas
+     */
+    public int persist() {
+        List<Cell> escritas = new ArrayList<>();
+        List<WriteModel<Document>> ops = new ArrayList<>();
+        for (Cell cell : sucias) {
+            sucias.remove(cell);
+            escritas.add(cell);
+            ops.add(new ReplaceOneModel<>(cell.filter(), cell.toDocument(), new ReplaceOptions().upsert(true)));
+        }
+        try {
+            if (!ops.isEmpty()) collection.bulkWrite(ops);
+        } catch (Exception e) {
+            System.err.println("[ACTIVITY] Error guardando estadisticas: " + e.getMessage());
+            // Se reintentan en la siguiente corrida
+            sucias.addAll(escritas);
+            return 0;
+        }
+
+        long ahora = System.currentTimeMillis();
+        long horaMin = horaLimite(ahora);
+        long diaMin = diaLimite(ahora);
+        porHora.headMap(horaMin).clear();
+        porDia.headMap(diaMin).clear();
+        try {
+            collection.deleteMany(or(
+                and(eq("tipo", TIPO_HORA), lt("bucket", horaMin)),
+                and(eq("tipo", TIPO_DISPOSITIVO), lt("bucket", diaMin))));
+        } catch (Exception e) {
+            // Lo viejo se vuelve a borrar en la siguiente corrida
+            System.err.println("[ACTIVITY] Error depurando estadisticas: " + e.getMessage());
+        }
+        return ops.size();
+    }
+
+    private static long horaLimite(long ahora) {
+        return ahora - Math.floorMod(ahora, TimeBuckets.HOUR_MS) - (HORAS_MEMORIA - 1) * TimeBuckets.HOUR_MS;
+    }
+
+    private long diaLimite(long ahora) {
+        return LocalDate.now(zona).minusDays(DIAS_MEMORIA - 1).atStartOfDay(zona).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Estadisticas en JSON
+     * @param horas horas hacia atras para las tablas por usuario (1..HORAS_MEMORIA)
+     * @param dias dias hacia atras para los dispositivos (1..DIAS_MEMORIA)
+     * @param top maximo de dispositivos
+     * @param username solo este usuario, o null para todos
+     */
+    public String toJson(int horas, int dias, int top, String username) {
+        long ahora = System.currentTimeMillis();
+        long horaActual = ahora - Math.floorMod(ahora, TimeBuckets.HOUR_MS);
+        long desdeHora = horaActual - (horas - 1) * TimeBuckets.HOUR_MS;
+        long desdeDia = LocalDate.now(zona).minusDays(dias - 1).atStartOfDay(zona).toInstant().toEpochMilli();
+
+        // Por hora: total y por usuario x accion; logins por dia local
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{\"hours\": ").append(horas).append(", \"days\": ").append(dias)
+            .append(", \"byHour\": [");
+        Map<String, Map<String, Long>> porUsuario = new TreeMap<>();
+        Map<Long, Long> loginsPorDia = new TreeMap<>();
+        long total = 0;
+        long logins = 0;
+        boolean primeraHora = true;
+        for (Map.Entry<Long, Map<String, Map<String, Cell>>> hora : porHora.tailMap(desdeHora).entrySet()) {
+            long totalHora = 0;
+            StringBuilder usuarios = new StringBuilder();
+            for (Map.Entry<String, Map<String, Cell>> usuario : hora.getValue().entrySet()) {
+                if (username != null && !username.equals(usuario.getKey())) continue;
+                StringBuilder acciones = new StringBuilder();
+                for (Cell cell : usuario.getValue().values()) {
+                    long n = cell.count.sum();
+                    if (n == 0) continue;
+                    if (acciones.length() > 0) acciones.append(", ");
+                    acciones.append("\"").append(cell.accion).append("\": ").append(n);
+                    totalHora += n;
+                    porUsuario.computeIfAbsent(usuario.getKey(), u -> new TreeMap<>())
+                        .merge(cell.accion, n, Long::sum);
+                    if (ActivityLog.ACTION_LOGIN.equals(cell.accion)) {
+                        logins += n;
+                        loginsPorDia.merge(dayStart(hora.getKey()), n, Long::sum);
+                    }
+                }
+                if (acciones.length() == 0) continue;
+                if (usuarios.length() > 0) usuarios.append(", ");
+                usuarios.append("\"").append(escape(usuario.getKey())).append("\": {").append(acciones).append("}");
+            }
+            if (totalHora == 0) continue;
+            total += totalHora;
+            if (!primeraHora) json.append(", ");
+            primeraHora = false;
+            json.append("{\"hour\": ").append(hora.getKey()).append(", \"total\": ").append(totalHora)
+                .append(", \"byUser\": {").append(usuarios).append("}}");
+        }
+        json.append("], \"total\": ").append(total);
+
+        json.append(", \"byUser\": [");
+        boolean primero = true;
+        for (Map.Entry<String, Map<String, Long>> usuario : porUsuario.entrySet()) {
+            long totalUsuario = 0;
+            StringBuilder acciones = new StringBuilder();
+            for (Map.Entry<String, Long> accion : usuario.getValue().entrySet()) {
+                if (acciones.length() > 0) acciones.append(", ");
+                acciones.append("\"").append(accion.getKey()).append("\": ").append(accion.getValue());
+                totalUsuario += accion.getValue();
+            }
+            if (!primero) json.append(", ");
+            primero = false;
+            json.append("{\"user\": \"").append(escape(usuario.getKey())).append("\", \"total\": ")
+                .append(totalUsuario).append(", \"actions\": {").append(acciones).append("}}");
+        }
+
+        json.append("], \"logins\": {\"total\": ").append(logins).append(", \"byDay\": [");
+        primero = true;
+        for (Map.Entry<Long, Long> dia : loginsPorDia.entrySet()) {
+            if (!primero) json.append(", ");
+            primero = false;
+            json.append("{\"day\": ").append(dia.getKey()).append(", \"count\": ").append(dia.getValue()).append("}");
+        }
+
+        // Dispositivos mas usados en la ventana de dias
+        Map<String, long[]> usos = new HashMap<>();
+        Map<String, String> nombres = new HashMap<>();
+        NavigableMap<Long, Map<String, Cell>> ventanaDias = porDia.tailMap(desdeDia, true);
+        for (Map<String, Cell> dispositivos : ventanaDias.values()) {
+            for (Cell cell : dispositivos.values()) {
+                usos.computeIfAbsent(cell.llave, k -> new long[1])[0] += cell.count.sum();
+                if (cell.nombre != null) nombres.put(cell.llave, cell.nombre);
+            }
+        }
+        List<Map.Entry<String, long[]>> ranking = new ArrayList<>(usos.entrySet());
+        ranking.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        json.append("]}, \"topDevices\": [");
+        for (int i = 0; i < ranking.size() && i < top; i++) {
+            Map.Entry<String, long[]> uso = ranking.get(i);
+            if (i > 0) json.append(", ");
+            String nombre = nombres.get(uso.getKey());
+            json.append("{\"deviceId\": \"").append(escape(uso.getKey())).append("\", \"deviceName\": ")
+                .append(nombre != null ? "\"" + escape(nombre) + "\"" : "null")
+                .append(", \"count\": ").append(uso.getValue()[0]).append("}");
+        }
+        json.append("], \"pending\": ").append(sucias.size()).append("}");
+        return json.toString();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -22,6 +22,9 @@ public class DeviceService {
     private static final String COLLECTION_NAME = "dispositivos";
     private MongoCollection<Document> collection;
     
+    // Estado en memoria para el muestreo de energia (se avisa cada escritura)
+    private final DeviceStateRegistry registry = DeviceStateRegistry.getInstance();
+    
     public DeviceService() {
         this.collection = MongoDBConnection.getInstance()
                 .getCollection(COLLECTION_NAME);
@@ -34,6 +37,7 @@ public class DeviceService {
         Document doc = device.toDocument();
         collection.insertOne(doc);
         device.setId(doc.getObjectId("_id"));
+        registry.onUpsert(device);
         System.out.println("[OK] Dispositivo creado: " + device.getName());
         return device;
     }
@@ -112,6 +116,7 @@ public class DeviceService {
                 eq("_id", device.getId()),
                 device.toDocument()
             );
+            if (result.getMatchedCount() > 0) registry.onUpsert(device);
             return result.getModifiedCount() > 0;
         } catch (Exception e) {
             System.err.println("Error al actualizar: " + e.getMessage());
@@ -129,6 +134,7 @@ public class DeviceService {
                 new Document("$set", new Document("status", status)
                     .append("lastUpdate", System.currentTimeMillis()))
             );
+            if (result.getMatchedCount() > 0) registry.onStatus(deviceId, status);
             System.out.println("Dispositivo " + deviceId + " -> status: " + status);
             return result.getModifiedCount() > 0;
         } catch (Exception e) {
@@ -147,6 +153,7 @@ public class DeviceService {
                 new Document("$set", new Document("value", value)
                     .append("lastUpdate", System.currentTimeMillis()))
             );
+            if (result.getMatchedCount() > 0) registry.onValue(deviceId, value);
             return result.getModifiedCount() > 0;
         } catch (Exception e) {
             System.err.println("Error al actualizar valor: " + e.getMessage());
@@ -165,6 +172,7 @@ public class DeviceService {
                     .append("lastUpdate", System.currentTimeMillis()))
             );
             // Usar matchedCount para comandos repetidos (CMD:PLAY, CMD:PLAY)
+            if (result.getMatchedCount() > 0) registry.onColor(deviceId, color);
             return result.getMatchedCount() > 0;
         } catch (Exception e) {
             System.err.println("Error al actualizar color: " + e.getMessage());
@@ -182,6 +190,7 @@ public class DeviceService {
                 new Document("$set", new Document("tracks", tracks)
                     .append("lastUpdate", System.currentTimeMillis()))
             );
+            if (result.getMatchedCount() > 0) registry.onTracks(deviceId, tracks);
             System.out.println("Speaker " + deviceId + " -> tracks: " + tracks);
             return result.getModifiedCount() > 0;
         } catch (Exception e) {
@@ -196,6 +205,7 @@ public class DeviceService {
     public boolean delete(String id) {
         try {
             DeleteResult result = collection.deleteOne(eq("_id", new ObjectId(id)));
+            registry.onDelete(id);
             return result.getDeletedCount() > 0;
         } catch (Exception e) {
             System.err.println("Error al eliminar: " + e.getMessage());
@@ -208,6 +218,7 @@ public class DeviceService {
      */
     public long deleteByHouseId(String houseId) {
         DeleteResult result = collection.deleteMany(eq("houseId", houseId));
+        registry.onDeleteHouse(houseId);
         return result.getDeletedCount();
     }
     
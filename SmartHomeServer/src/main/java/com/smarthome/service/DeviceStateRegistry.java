@@ -0,0 +1,286 @@
+package com.smarthome.service;
+
+import com.smarthome.model.Device;
+import com.smarthome.model.EnergyLog;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estado en memoria de los dispositivos para el muestreo de energia
+ *
+ * DeviceService avisa cada escritura (status, valor, color, alta, baja) y
+ * el registro mantiene por casa el conjunto de dispositivos que estan
+ * consumiendo, con sus watts ya calculados. Asi cada tick de muestreo
+ * recorre solo los dispositivos activos, sin consultar MongoDB.
+ *
+ * Los cambios hechos fuera de este proceso (scripts como AddDevice o
+ * CleanDevices) se recogen con resync() periodico desde la base.
+ *
+ * Cada cambio real (algun campo distinto, alta o baja) avanza una secuencia
+ * global y deja esa secuencia como version del dispositivo. El RestServer
+ * arma los ETag con ellas: si no cambiaron, responde 304 sin leer MongoDB.
+ */
+public class DeviceStateRegistry {
+
+    private static final String CASA_DEFAULT = "default";
+
+    // Todos los dispositivos conocidos, por id
+    private final Map<String, DeviceState> devices = new ConcurrentHashMap<>();
+
+    // Dispositivos consumiendo, por casa (shard del muestreo)
+    private final Map<String, Map<String, DeviceState>> activeByHouse = new ConcurrentHashMap<>();
+
+    private volatile long lastResync;
+
+    // Secuencia de cambios (global) y ultima secuencia de cada dispositivo
+    private volatile long secuencia;
+    private final Map<String, Long> versiones = new ConcurrentHashMap<>();
+
+    // Singleton
+    private static final DeviceStateRegistry instance = new DeviceStateRegistry();
+
+    public static DeviceStateRegistry getInstance() {
+        return instance;
+    }
+
+    private DeviceStateRegistry() {
+    }
+
+    /**
+     * Estado inmutable de un dispositivo (se reemplaza completo en cada cambio)
+     */
+    public static final class DeviceState {
+        public final String id;
+        public final String name;
+        public final String type;
+        public final String room;
+        public final String houseId;
+        public final boolean status;
+        public final int value;
+        public final String color;
+        public final boolean consuming;
+        public final double watts;
+        final int tracksHash;          // Solo para detectar cambios en la lista de tracks
+        final long changedAt;          // Cuando se armo este estado (ms)
+
+        DeviceState(String id, String name, String type, String room, String houseId,
+                    boolean status, int value, String color, int tracksHash) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.room = room;
+            this.houseId = houseId == null || houseId.isEmpty() ? CASA_DEFAULT : houseId;
+            this.status = status;
+            this.value = value;
+            this.color = color;
+            this.consuming = isConsuming(type, status, color);
+            this.watts = consuming ? EnergyLog.calculateWatts(type, "ON", value) : 0;
+            this.tracksHash = tracksHash;
+            this.changedAt = System.currentTimeMillis();
+        }
+
+        static DeviceState of(Device device) {
+            return new DeviceState(device.getIdString(), device.getName(), device.getType(),
+                device.getRoom(), device.getHouseId(), device.isStatus(), device.getValue(),
+                device.getColor(), Objects.hashCode(device.getTracks()));
+        }
+
+        DeviceState withStatus(boolean nuevo) {
+            return new DeviceState(id, name, type, room, houseId, nuevo, value, color, tracksHash);
+        }
+
+        DeviceState withValue(int nuevo) {
+            return new DeviceState(id, name, type, room, houseId, status, nuevo, color, tracksHash);
+        }
+
+        DeviceState withColor(String nuevo) {
+            return new DeviceState(id, name, type, room, houseId, status, value, nuevo, tracksHash);
+        }
+
+        DeviceState withTracks(List<String> nuevos) {
+            return new DeviceState(id, name, type, room, houseId, status, value, color, Objects.hashCode(nuevos));
+        }
+
+        /**
+         * Mismos datos (lo que se ve en el JSON del dispositivo)
+         */
+        boolean sameAs(DeviceState otro) {
+            return status == otro.status && value == otro.value && tracksHash == otro.tracksHash
+                && Objects.equals(name, otro.name) && Objects.equals(type, otro.type)
+                && Objects.equals(room, otro.room) && houseId.equals(otro.houseId)
+                && Objects.equals(color, otro.color);
+        }
+    }
+
+    /**
+     * Determinar si un dispositivo esta consumiendo energia
+     * Logica especifica por tipo (el porton solo consume por accion)
+     */
+    public static boolean isConsuming(String tipo, boolean status, String color) {
+        if (tipo == null) {
+            return status;
+        }
+        switch (tipo) {
+            case "door":
+                // Porton: se registra por accion en logDoorAction, no por muestreo
+                return false;
+
+            case "speaker":
+                // Speaker solo consume si esta reproduciendo (no pausado ni detenido)
+                // Si color contiene PAUSE o STOP, no esta consumiendo
+                if (color != null && (color.contains("PAUSE") || color.contains("STOP"))) {
+                    return false;
+                }
+                return status && color != null && color.contains("PLAY");
+
+            default:
+                // light, tv, ac, washer, camera...: encendido = status true
+                return status;
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // AVISOS DE DeviceService
+    // ═══════════════════════════════════════════════════════════
+
+    public synchronized void onUpsert(Device device) {
+        if (device == null || device.getId() == null) return;
+        put(DeviceState.of(device));
+    }
+
+    public synchronized void onStatus(String deviceId, boolean status) {
+        DeviceState actual = devices.get(deviceId);
+        if (actual != null) put(actual.withStatus(status));
+    }
+
+    public synchronized void onValue(String deviceId, int value) {
+        DeviceState actual = devices.get(deviceId);
+        if (actual != null) put(actual.withValue(value));
+    }
+
+    public synchronized void onColor(String deviceId, String color) {
+        DeviceState actual = devices.get(deviceId);
+        if (actual != null) put(actual.withColor(color));
+    }
+
+    public synchronized void onTracks(String deviceId, List<String> tracks) {
+        DeviceState actual = devices.get(deviceId);
+        if (actual != null) put(actual.withTracks(tracks));
+    }
+
+    public synchronized void onDelete(String deviceId) {
+        DeviceState anterior = devices.remove(deviceId);
+        if (anterior != null) {
+            deactivate(anterior);
+            versiones.remove(deviceId);
+            secuencia++;
+        }
+    }
+
+    public synchronized void onDeleteHouse(String houseId) {
+        for (DeviceState state : new ArrayList<>(devices.values())) {
+            if (state.houseId.equals(houseId)) {
+                onDelete(state.id);
+            }
+        }
+    }
+
+    /**
+     * Reemplazar el estado completo con lo que hay en la base
+     * (recoge cambios hechos por otros procesos)
+     * @param leidoEn momento en que se empezo a leer la base; los dispositivos
+     *                que cambiaron en este proceso despues de ese momento se
+     *                conservan porque la lectura ya es vieja para ellos
+     */
+    public synchronized void resync(List<Device> desdeBase, long leidoEn) {
+        Set<String> vistos = new HashSet<>();
+        for (Device device : desdeBase) {
+            if (device.getId() == null) continue;
+            String id = device.getIdString();
+            vistos.add(id);
+            DeviceState actual = devices.get(id);
+            if (actual != null && actual.changedAt > leidoEn) {
+                continue;
+            }
+            put(DeviceState.of(device));
+        }
+        for (DeviceState state : new ArrayList<>(devices.values())) {
+            if (!vistos.contains(state.id) && state.changedAt <= leidoEn) {
+                onDelete(state.id);
+            }
+        }
+        lastResync = System.currentTimeMillis();
+    }
+
+    private void put(DeviceState state) {
+        DeviceState anterior = devices.put(state.id, state);
+        if (anterior == null || !anterior.sameAs(state)) {
+            secuencia++;
+            versiones.put(state.id, secuencia);
+        }
+        if (anterior != null && !anterior.houseId.equals(state.houseId)) {
+            deactivate(anterior);
+        }
+        if (state.consuming) {
+            activeByHouse.computeIfAbsent(state.houseId, h -> new ConcurrentHashMap<>())
+                .put(state.id, state);
+        } else {
+            deactivate(state);
+        }
+    }
+
+    private void deactivate(DeviceState state) {
+        Map<String, DeviceState> activos = activeByHouse.get(state.houseId);
+        if (activos != null) {
+            activos.remove(state.id);
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // CONSULTAS
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Dispositivos consumiendo, agrupados por casa
+     * (vista en vivo; las casas sin activos pueden aparecer vacias)
+     */
+    public Map<String, Map<String, DeviceState>> getActiveByHouse() {
+        return activeByHouse;
+    }
+
+    public DeviceState get(String deviceId) {
+        return devices.get(deviceId);
+    }
+
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    public int getActiveCount() {
+        int n = 0;
+        for (Map<String, DeviceState> activos : activeByHouse.values()) {
+            n += activos.size();
+        }
+        return n;
+    }
+
+    /**
+     * Secuencia del ultimo cambio en cualquier dispositivo
+     */
+    public long getVersion() {
+        return secuencia;
+    }
+
+    /**
+     * Secuencia del ultimo cambio de un dispositivo, o -1 si no se conoce
+     */
+    public long getVersion(String deviceId) {
+        Long version = versiones.get(deviceId);
+        return version != null ? version : -1;
+    }
+
+    public long getLastResync() {
+        return lastResync;
+    }
+}
@@ -0,0 +1,270 @@
+package com.smarthome.service;
+
+import com.smarthome.model.EnergyCost;
+import com.smarthome.model.Tariff;
+
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Motor de costo de consumo con tarifas por escalones y franjas horarias
+ *
+ * El costo se calcula hora por hora sobre los rollups HOUR (y las muestras
+ * crudas aun no compactadas), nunca sobre cada muestra: cada hora se cobra
+ * con el escalon que corresponde al acumulado del periodo de facturacion
+ * hasta ese momento y con el factor de su franja horaria local.
+ *
+ * Para que la proyeccion del periodo en curso se pueda mostrar en vivo, se
+ * guarda por casa el consumo por hora del periodo actual: las horas
+ * cerradas se leen una sola vez y solo las horas abiertas se vuelven a
+ * leer (del cubo en memoria si ya esta cargado).
+ *
+ * Igual que las demas vistas de /api/energy el consumo no se filtra por
+ * casa; houseId elige la tarifa.
+ */
+public class EnergyCostService {
+
+    // Una hora se considera cerrada cuando ya paso este margen (lotes del escritor de logs)
+    private static final long MARGEN_CIERRE_MS = 2 * 60 * 1000;
+    // No volver a leer las horas abiertas mas seguido que el muestreo
+    private static final long REFRESCO_MS = EnergyService.INTERVALO_MUESTREO_SEGUNDOS * 1000L;
+    // Rebanadas para repartir la proyeccion entre escalones y franjas
+    private static final int REBANADAS_PROYECCION = 100;
+
+    private final TariffService tariffService;
+    private final EnergyRollupService rollupService;
+    private final EnergyCube cube;
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    private final Map<String, PeriodProfile> perfiles = new ConcurrentHashMap<>();
+
+    public EnergyCostService(TariffService tariffService, EnergyRollupService rollupService, EnergyCube cube) {
+        this.tariffService = tariffService;
+        this.rollupService = rollupService;
+        this.cube = cube;
+    }
+
+    /**
+     * Consumo por hora del periodo de facturacion en curso de una casa
+     */
+    private static final class PeriodProfile {
+        final Tariff tariff;
+        final long inicio;
+        final long fin;
+        final double[] kwh;     // kWh por hora desde inicio
+        int cerradas;           // Horas completas ya leidas (no se vuelven a leer)
+        long refrescado;
+
+        PeriodProfile(Tariff tariff, long inicio, long fin) {
+            this.tariff = tariff;
+            this.inicio = inicio;
+            this.fin = fin;
+            this.kwh = new double[(int) ((fin - inicio + TimeBuckets.HOUR_MS - 1) / TimeBuckets.HOUR_MS)];
+        }
+
+        int index(long timestamp) {
+            return (int) ((timestamp - inicio) / TimeBuckets.HOUR_MS);
+        }
+    }
+
+    /**
+     * Proyeccion del periodo de facturacion en curso
+     */
+    public static class Projection {
+        public final EnergyCost actual;
+        public final EnergyCost proyectado;
+
+        Projection(EnergyCost actual, EnergyCost proyectado) {
+            this.actual = actual;
+            this.proyectado = proyectado;
+        }
+
+        public String toJson() {
+            return "{\"actual\": " + actual.toJson() + ", \"proyectado\": " + proyectado.toJson() + "}";
+        }
+    }
+
+    /**
+     * Acumula horas en orden cronologico: lleva el acumulado del periodo (para
+     * el escalon) y cobra solo las horas dentro del rango pedido
+     */
+    private final class Acumulador implements EnergyRollupService.HourlyTotalConsumer {
+        private final Tariff tariff;
+        private final EnergyCost costo;
+        private final TimeBuckets buckets;
+        private final long desdeHora;
+        private final long hasta;
+        private long finPeriodo;
+        double acumulado;
+
+        Acumulador(Tariff tariff, EnergyCost costo, long inicioPeriodo, long desde, long hasta) {
+            this.tariff = tariff;
+            this.costo = costo;
+            this.buckets = TimeBuckets.of(zone, inicioPeriodo, Math.max(inicioPeriodo, hasta));
+            this.desdeHora = EnergyRollupService.alignHour(desde);
+            this.hasta = hasta;
+            this.finPeriodo = tariff.periodEnd(inicioPeriodo, zone);
+        }
+
+        @Override
+        public void accept(long hourStart, double kwh) {
+            while (hourStart >= finPeriodo) {
+                acumulado = 0;
+                finPeriodo = tariff.periodEnd(finPeriodo, zone);
+            }
+            if (hourStart >= desdeHora && hourStart < hasta) {
+                costo.add(tariff, acumulado, tariff.bandIndex(buckets.hourOfDay(hourStart)), kwh);
+            }
+            acumulado += kwh;
+        }
+    }
+
+    /**
+     * Costo del consumo en [desde, hasta) con la tarifa de la casa
+     * (resolucion de una hora: cuenta las horas que empiezan en el rango)
+     */
+    public EnergyCost computeCost(String houseId, long desde, long hasta) {
+        Tariff tariff = tariffService.getTariff(houseId);
+        long ahora = System.currentTimeMillis();
+        EnergyCost costo = new EnergyCost(tariff, desde, hasta);
+        long inicioPeriodo = tariff.periodStart(desde, zone);
+
+        PeriodProfile perfil = currentProfile(houseId, tariff, ahora);
+        Acumulador acumulador = new Acumulador(tariff, costo, inicioPeriodo, desde, hasta);
+        if (inicioPeriodo == perfil.inicio) {
+            // Rango dentro del periodo en curso: todo sale de memoria
+            synchronized (perfil) {
+                int hastaIdx = Math.min(perfil.kwh.length, perfil.index(Math.max(perfil.inicio, hasta - 1)) + 1);
+                for (int i = 0; i < hastaIdx; i++) {
+                    if (perfil.kwh[i] > 0) {
+                        acumulador.accept(perfil.inicio + i * TimeBuckets.HOUR_MS, perfil.kwh[i]);
+                    }
+                }
+            }
+        } else {
+            // Periodos anteriores: recorrer rollups desde el inicio del periodo de "desde"
+            rollupService.forEachHourTotal(null, inicioPeriodo, hasta, acumulador);
+        }
+        return costo;
+    }
+
+    /**
+     * Costo de una serie de consumo por hora que empieza en inicio (alineado
+     * a la hora), por ejemplo un consumo simulado. El escalon parte del
+     * consumo real del periodo antes de inicio.
+     */
+    public EnergyCost priceHourly(String houseId, long inicio, double[] kwhPorHora) {
+        Tariff tariff = tariffService.getTariff(houseId);
+        long hasta = inicio + kwhPorHora.length * TimeBuckets.HOUR_MS;
+        long inicioPeriodo = tariff.periodStart(inicio, zone);
+
+        EnergyCost costo = new EnergyCost(tariff, inicio, hasta);
+        Acumulador acumulador = new Acumulador(tariff, costo, inicioPeriodo, inicio, hasta);
+        if (inicio > inicioPeriodo) {
+            acumulador.acumulado = computeCost(houseId, inicioPeriodo, inicio).getKwh();
+        }
+        for (int i = 0; i < kwhPorHora.length; i++) {
+            if (kwhPorHora[i] > 0) {
+                acumulador.accept(inicio + i * TimeBuckets.HOUR_MS, kwhPorHora[i]);
+            }
+        }
+        return costo;
+    }
+
+    /**
+     * Costo del periodo en curso hasta ahora y su proyeccion al cierre
+     *
+     * Los kWh se extrapolan linealmente con el avance del periodo y se
+     * reparten entre franjas con la misma mezcla observada hasta ahora; el
+     * proyectado incluye el cargo fijo del periodo.
+     */
+    public Projection projectPeriod(String houseId) {
+        Tariff tariff = tariffService.getTariff(houseId);
+        long ahora = System.currentTimeMillis();
+        PeriodProfile perfil = currentProfile(houseId, tariff, ahora);
+
+        EnergyCost actual = computeCost(houseId, perfil.inicio, ahora);
+        double avance = Math.min(1.0, Math.max(TimeBuckets.HOUR_MS, ahora - perfil.inicio)
+            / (double) (perfil.fin - perfil.inicio));
+        actual.setAvance(avance);
+
+        EnergyCost proyectado = new EnergyCost(tariff, perfil.inicio, perfil.fin);
+        proyectado.setAvance(avance);
+        proyectado.setCargoFijo(tariff.getCargoFijo());
+        double kwhTotal = actual.getKwh() / avance;
+        if (actual.getKwh() > 0) {
+            int franjas = tariff.getBands().size();
+            double rebanada = kwhTotal / REBANADAS_PROYECCION;
+            double acumulado = 0;
+            for (int r = 0; r < REBANADAS_PROYECCION; r++) {
+                for (int b = 0; b <= franjas; b++) {
+                    double parte = rebanada * actual.getBandKwh(b) / actual.getKwh();
+                    proyectado.add(tariff, acumulado, b < franjas ? b : -1, parte);
+                    acumulado += parte;
+                }
+            }
+        }
+        return new Projection(actual, proyectado);
+    }
+
+    /**
+     * Perfil del periodo en curso, con las horas nuevas ya leidas
+     */
+    private PeriodProfile currentProfile(String houseId, Tariff tariff, long ahora) {
+        String key = houseId != null ? houseId : "";
+        long inicio = tariff.periodStart(ahora, zone);
+        PeriodProfile perfil = perfiles.compute(key, (k, actual) ->
+            actual != null && actual.tariff == tariff && actual.inicio == inicio
+                ? actual : new PeriodProfile(tariff, inicio, tariff.periodEnd(inicio, zone)));
+
+        synchronized (perfil) {
+            if (ahora - perfil.refrescado < REFRESCO_MS) {
+                return perfil;
+            }
+            long cierre = Math.max(perfil.inicio, EnergyRollupService.alignHour(ahora - MARGEN_CIERRE_MS));
+            long leidasHasta = perfil.inicio + perfil.cerradas * TimeBuckets.HOUR_MS;
+
+            // Horas abiertas: se vuelven a leer completas en cada refresco
+            Arrays.fill(perfil.kwh, perfil.cerradas, perfil.kwh.length, 0);
+            if (cierre > leidasHasta) {
+                rollupService.forEachHourTotal(null, leidasHasta, cierre, (hora, kwh) -> {
+                    int i = perfil.index(hora);
+                    if (i >= 0 && i < perfil.kwh.length) perfil.kwh[i] += kwh;
+                });
+                perfil.cerradas = perfil.index(cierre);
+            }
+            readOpenHours(perfil, cierre, ahora);
+            perfil.refrescado = ahora;
+        }
+        return perfil;
+    }
+
+    /**
+     * Horas aun abiertas [cierre, ahora): del cubo si esta cargado (incluye
+     * las muestras que aun no llegan a MongoDB), si no de las muestras crudas
+     */
+    private void readOpenHours(PeriodProfile perfil, long cierre, long ahora) {
+        if (ahora <= cierre) return;
+        if (cube.isLoaded()) {
+            EnergyCube.Slice slice = cube.query(null, null, null, null, EnergyCube.GROUP_HOUR, cierre, ahora);
+            for (EnergyCube.Cell cell : slice.cells) {
+                int i = perfil.index(Long.parseLong(cell.key));
+                if (i >= perfil.cerradas && i < perfil.kwh.length) perfil.kwh[i] += cell.kwh;
+            }
+        } else {
+            rollupService.forEachHourTotal(null, cierre, ahora, (hora, kwh) -> {
+                int i = perfil.index(hora);
+                if (i >= perfil.cerradas && i < perfil.kwh.length) perfil.kwh[i] += kwh;
+            });
+        }
+    }
+
+    /**
+     * Olvidar el perfil de una casa (ej. al cambiar su tarifa)
+     */
+    public void invalidate(String houseId) {
+        perfiles.remove(houseId != null ? houseId : "");
+    }
+}
@@ -0,0 +1,512 @@
+package com.smarthome.service;
+
+import com.smarthome.model.EnergyLog;
+import com.smarthome.model.EnergyRollup;
+import org.bson.Document;
+
+import java.util.*;
+
+/**
+ * Cubo OLAP en memoria del consumo: casa -> habitacion -> dispositivo, mas
+ * la dimension tipo, por hora
+ *
+ * Cada nodo del arbol (casa, habitacion, dispositivo, y casa+tipo) guarda su
+ * consumo por hora de una ventana de DIAS_VENTANA dias junto con la suma
+ * acumulada, de modo que el consumo de cualquier rango de horas de un nodo
+ * es una resta (O(1)). Las consultas de drill-down (hijos de un nodo) y de
+ * slice (filtros por casa, habitacion, tipo o dispositivo) se resuelven con
+ * los nodos ya agregados, sin tocar MongoDB.
+ *
+ * Se carga al iniciar desde los rollups HOUR (y las muestras crudas aun no
+ * compactadas) y despues se mantiene con cada tick de muestreo.
+ * Los dispositivos se identifican por deviceId (dos con el mismo nombre no chocan).
+ */
+public class EnergyCube {
+
+    public static final int DIAS_VENTANA = 90;
+    private static final int HORAS = DIAS_VENTANA * 24;
+    private static final int HORAS_CORRIMIENTO = 7 * 24; // Al llenarse, se descarta una semana
+    private static final String SIN_HABITACION = "sin-habitacion";
+
+    public static final String GROUP_HOUSE = "house";
+    public static final String GROUP_ROOM = "room";
+    public static final String GROUP_TYPE = "type";
+    public static final String GROUP_DEVICE = "device";
+    public static final String GROUP_HOUR = "hour";
+    public static final String GROUP_DAY = "day";
+
+    // Hora (epoch / HOUR_MS) del indice 0 de las series
+    private long baseHour;
+
+    private final Map<String, Node> houses = new LinkedHashMap<>();
+    private final Map<String, Node> devices = new HashMap<>();
+    private final Map<String, Map<String, Node>> typesByHouse = new HashMap<>();
+
+    // Muestras anteriores a este instante vienen de la carga inicial
+    private volatile long corte = Long.MAX_VALUE;
+    private volatile boolean cargado = false;
+
+    public EnergyCube() {
+        long ahora = System.currentTimeMillis();
+        this.baseHour = hourOf(ahora) - HORAS + HORAS_CORRIMIENTO;
+    }
+
+    /**
+     * Serie de consumo por hora de un nodo del cubo
+     */
+    static final class Node {
+        final String key;
+        String label;
+        String type;        // Solo dispositivos
+        String room;        // Solo dispositivos
+        String houseId;     // Solo dispositivos
+        final Map<String, Node> children = new LinkedHashMap<>();
+
+        double[] v = new double[HORAS];   // kWh por hora
+        double[] c = new double[HORAS];   // Suma acumulada de v (valida hasta "last")
+        int last = -1;
+
+        Node(String key, String label) {
+            this.key = key;
+            this.label = label;
+        }
+
+        void add(int i, double kwh) {
+            if (i > last) {
+                double base = last >= 0 ? c[last] : 0;
+                for (int j = last + 1; j < i; j++) c[j] = base;
+                c[i] = base;
+                last = i;
+            }
+            v[i] += kwh;
+            for (int j = i; j <= last; j++) c[j] += kwh;
+        }
+
+        /**
+         * Suma acumulada hasta el indice i inclusive
+         */
+        double cum(int i) {
+            if (i < 0 || last < 0) return 0;
+            return c[Math.min(i, last)];
+        }
+
+        /**
+         * Consumo del rango de indices [desde, hasta]
+         */
+        double sum(int desde, int hasta) {
+            if (hasta < desde) return 0;
+            return cum(hasta) - cum(desde - 1);
+        }
+
+        void shift(int n) {
+            double quitado = cum(n - 1);
+            System.arraycopy(v, n, v, 0, HORAS - n);
+            Arrays.fill(v, HORAS - n, HORAS, 0);
+            if (last >= n) {
+                for (int j = 0; j <= last - n; j++) c[j] = c[j + n] - quitado;
+                last -= n;
+            } else {
+                last = -1;
+            }
+            Arrays.fill(c, last + 1, HORAS, 0);
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // CARGA Y ACTUALIZACION
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Cargar la ventana desde los rollups HOUR y las muestras crudas que
+     * aun no se compactan. Las muestras en vivo que lleguen mientras tanto
+     * (posteriores al corte) se aplican directamente.
+     */
+    public void load(EnergyRollupService rollupService, EnergyService energyService) {
+        long inicioCarga = System.currentTimeMillis();
+        corte = inicioCarga;
+        long desde = baseHour * TimeBuckets.HOUR_MS;
+        long checkpoint = Math.max(desde, rollupService.getHourlyCheckpoint());
+
+        DeviceStateRegistry registry = DeviceStateRegistry.getInstance();
+        int[] rollups = {0};
+        rollupService.forEachRollup(EnergyRollup.GRANULARITY_HOUR, null, desde, checkpoint, r -> {
+            String room = r.getRoom();
+            if (room == null) {
+                // Rollups anteriores a la habitacion: usar la habitacion actual del dispositivo
+                DeviceStateRegistry.DeviceState state = registry.get(r.getDeviceId());
+                room = state != null ? state.room : null;
+            }
+            apply(r.getHouseId(), room, r.getDeviceType(), r.getDeviceId(), r.getDeviceName(),
+                r.getBucketStart(), r.getKwh());
+            rollups[0]++;
+        });
+
+        long[] crudos = {0};
+        energyService.forEachRaw(null, checkpoint, corte, (Document doc) -> {
+            apply(doc.getString("houseId"), doc.getString("room"), doc.getString("deviceType"),
+                doc.getString("deviceId"), doc.getString("deviceName"),
+                EnergyService.timestampOf(doc), EnergyLog.kwhFromDocument(doc));
+            crudos[0]++;
+        });
+
+        cargado = true;
+        System.out.println("[CUBE] Cubo de energia cargado: " + rollups[0] + " rollups + " + crudos[0] +
+            " muestras, " + devices.size() + " dispositivos en " +
+            (System.currentTimeMillis() - inicioCarga) + " ms");
+    }
+
+    /**
+     * Agregar consumo en vivo (tick de muestreo o accion de porton)
+     */
+    public void addSample(String houseId, String room, String type, String deviceId, String name,
+                          long timestamp, double kwh) {
+        if (timestamp < corte) {
+            return; // Ya lo cuenta la carga inicial
+        }
+        apply(houseId, room, type, deviceId, name, timestamp, kwh);
+    }
+
+    private synchronized void apply(String houseId, String room, String type, String deviceId,
+                                    String name, long timestamp, double kwh) {
+        if (deviceId == null || kwh == 0) return;
+        if (houseId == null || houseId.isEmpty()) houseId = "default";
+        if (room == null || room.isEmpty()) room = SIN_HABITACION;
+        if (type == null) type = "unknown";
+
+        long hora = hourOf(timestamp);
+        if (hora - baseHour >= HORAS) {
+            avanzar(hora);
+        }
+        int i = (int) (hora - baseHour);
+        if (i < 0) return; // Fuera de la ventana
+
+        Node casa = houses.computeIfAbsent(houseId, h -> new Node(h, h));
+        Node habitacion = casa.children.computeIfAbsent(room, r -> new Node(r, r));
+        Node dispositivo = devices.get(deviceId);
+        if (dispositivo == null || !dispositivo.houseId.equals(houseId) || !dispositivo.room.equals(room)) {
+            dispositivo = moverDispositivo(dispositivo, deviceId, casa, habitacion);
+        }
+        dispositivo.label = name != null ? name : deviceId;
+        dispositivo.type = type;
+        Node tipo = typesByHouse.computeIfAbsent(houseId, h -> new LinkedHashMap<>())
+            .computeIfAbsent(type, t -> new Node(t, t));
+
+        casa.add(i, kwh);
+        habitacion.add(i, kwh);
+        dispositivo.add(i, kwh);
+        tipo.add(i, kwh);
+    }
+
+    /**
+     * Alta de un dispositivo en el arbol, o cambio de casa/habitacion
+     * (su historial queda en la nueva ubicacion; las sumas anteriores de la
+     * ubicacion vieja se conservan porque ese consumo ocurrio ahi)
+     */
+    private Node moverDispositivo(Node anterior, String deviceId, Node casa, Node habitacion) {
+        Node nodo = anterior != null ? anterior : new Node(deviceId, deviceId);
+        if (anterior != null) {
+            Node casaVieja = houses.get(anterior.houseId);
+            if (casaVieja != null) {
+                Node habitacionVieja = casaVieja.children.get(anterior.room);
+                if (habitacionVieja != null) habitacionVieja.children.remove(deviceId);
+            }
+        }
+        nodo.houseId = casa.key;
+        nodo.room = habitacion.key;
+        habitacion.children.put(deviceId, nodo);
+        devices.put(deviceId, nodo);
+        return nodo;
+    }
+
+    /**
+     * Correr la ventana para que quepa la hora indicada
+     */
+    private void avanzar(long hora) {
+        long necesario = hora - baseHour - HORAS + 1;
+        int n = (int) Math.min(HORAS, Math.max(HORAS_CORRIMIENTO, necesario));
+        for (Node nodo : allNodes()) {
+            nodo.shift(n);
+        }
+        baseHour += n;
+    }
+
+    private List<Node> allNodes() {
+        List<Node> nodos = new ArrayList<>(devices.values());
+        for (Node casa : houses.values()) {
+            nodos.add(casa);
+            nodos.addAll(casa.children.values());
+        }
+        for (Map<String, Node> tipos : typesByHouse.values()) {
+            nodos.addAll(tipos.values());
+        }
+        return nodos;
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // CONSULTAS
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Celda del resultado de una consulta
+     */
+    public static class Cell {
+        public final String key;
+        public final String label;
+        public final double kwh;
+        public final int devices;
+
+        Cell(String key, String label, double kwh, int devices) {
+            this.key = key;
+            this.label = label;
+            this.kwh = kwh;
+            this.devices = devices;
+        }
+    }
+
+    /**
+     * Resultado de una consulta del cubo
+     */
+    public static class Slice {
+        public final String groupBy;
+        public final long desde;
+        public final long hasta;
+        public final double totalKwh;
+        public final List<Cell> cells;
+        public final long tookNanos;
+
+        Slice(String groupBy, long desde, long hasta, double totalKwh, List<Cell> cells, long tookNanos) {
+            this.groupBy = groupBy;
+            this.desde = desde;
+            this.hasta = hasta;
+            this.totalKwh = totalKwh;
+            this.cells = cells;
+            this.tookNanos = tookNanos;
+        }
+
+        public String toJson() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"groupBy\": \"").append(groupBy).append("\"")
+              .append(", \"desde\": ").append(desde)
+              .append(", \"hasta\": ").append(hasta)
+              .append(", \"totalKwh\": ").append(String.format(Locale.US, "%.6f", totalKwh))
+              .append(", \"tookMicros\": ").append(String.format(Locale.US, "%.1f", tookNanos / 1000.0))
+              .append(", \"cells\": [");
+            for (int i = 0; i < cells.size(); i++) {
+                Cell cell = cells.get(i);
+                if (i > 0) sb.append(",");
+                sb.append("{\"key\": \"").append(cell.key).append("\"")
+                  .append(", \"label\": \"").append(cell.label).append("\"")
+                  .append(", \"kwh\": ").append(String.format(Locale.US, "%.6f", cell.kwh))
+                  .append(", \"devices\": ").append(cell.devices)
+                  .append("}");
+            }
+            sb.append("]}");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Consultar el cubo
+     * @param houseId, room, type, deviceId filtros (null = todos)
+     * @param groupBy house | room | type | device | hour | day
+     * @param desde, hasta rango en ms (se recorta a la ventana del cubo; horas completas)
+     */
+    public synchronized Slice query(String houseId, String room, String type, String deviceId,
+                                    String groupBy, long desde, long hasta) {
+        long t0 = System.nanoTime();
+        int i0 = (int) Math.max(0, hourOf(desde) - baseHour);
+        int i1 = (int) Math.min(HORAS - 1, hourOf(hasta - 1) - baseHour);
+
+        // Nodos mas agregados posibles que cubren exactamente el filtro
+        List<Node> base = baseNodes(houseId, room, type, deviceId);
+
+        List<Cell> cells = new ArrayList<>();
+        double total = 0;
+        switch (groupBy) {
+            case GROUP_HOUR:
+            case GROUP_DAY:
+                total = timeCells(base, i0, i1, GROUP_DAY.equals(groupBy), cells);
+                break;
+
+            case GROUP_HOUSE:
+            case GROUP_ROOM:
+            case GROUP_TYPE:
+            case GROUP_DEVICE:
+                Map<String, double[]> grupos = new LinkedHashMap<>();
+                Map<String, String> etiquetas = new HashMap<>();
+                boolean filtroDispositivo = type != null || deviceId != null;
+                if (!filtroDispositivo && GROUP_HOUSE.equals(groupBy)) {
+                    for (Node casa : housesFor(houseId)) {
+                        acumular(grupos, etiquetas, casa.key, casa.key,
+                            room != null ? roomSum(casa, room, i0, i1) : casa.sum(i0, i1),
+                            countDevices(casa, room));
+                    }
+                } else if (!filtroDispositivo && GROUP_ROOM.equals(groupBy)) {
+                    for (Node casa : housesFor(houseId)) {
+                        for (Node habitacion : casa.children.values()) {
+                            if (room != null && !room.equals(habitacion.key)) continue;
+                            acumular(grupos, etiquetas, habitacion.key, habitacion.key,
+                                habitacion.sum(i0, i1), habitacion.children.size());
+                        }
+                    }
+                } else if (room == null && deviceId == null && GROUP_TYPE.equals(groupBy)) {
+                    for (Node casa : housesFor(houseId)) {
+                        Map<String, Node> tipos = typesByHouse.getOrDefault(casa.key, Collections.emptyMap());
+                        for (Node tipo : tipos.values()) {
+                            if (type != null && !type.equals(tipo.key)) continue;
+                            acumular(grupos, etiquetas, tipo.key, tipo.key, tipo.sum(i0, i1),
+                                countDevicesOfType(casa, tipo.key));
+                        }
+                    }
+                } else {
+                    // Caso general: recorrer los dispositivos que pasan el filtro
+                    for (Node d : matchingDevices(houseId, room, type, deviceId)) {
+                        String key;
+                        String label;
+                        switch (groupBy) {
+                            case GROUP_HOUSE: key = d.houseId; label = d.houseId; break;
+                            case GROUP_ROOM: key = d.room; label = d.room; break;
+                            case GROUP_TYPE: key = d.type; label = d.type; break;
+                            default: key = d.key; label = d.label;
+                        }
+                        acumular(grupos, etiquetas, key, label, d.sum(i0, i1), 1);
+                    }
+                }
+                for (Map.Entry<String, double[]> e : grupos.entrySet()) {
+                    cells.add(new Cell(e.getKey(), etiquetas.get(e.getKey()), e.getValue()[0], (int) e.getValue()[1]));
+                    total += e.getValue()[0];
+                }
+                cells.sort((a, b) -> Double.compare(b.kwh, a.kwh));
+                break;
+
+            default:
+                throw new IllegalArgumentException("groupBy no valido: " + groupBy);
+        }
+
+        long desdeReal = (baseHour + i0) * TimeBuckets.HOUR_MS;
+        long hastaReal = (baseHour + i1 + 1) * TimeBuckets.HOUR_MS;
+        return new Slice(groupBy, desdeReal, hastaReal, total, cells, System.nanoTime() - t0);
+    }
+
+    private static void acumular(Map<String, double[]> grupos, Map<String, String> etiquetas,
+                                 String key, String label, double kwh, int dispositivos) {
+        double[] g = grupos.computeIfAbsent(key, k -> new double[2]);
+        g[0] += kwh;
+        g[1] += dispositivos;
+        etiquetas.putIfAbsent(key, label);
+    }
+
+    /**
+     * Series por hora o dia local del filtro
+     */
+    private double timeCells(List<Node> base, int i0, int i1, boolean porDia, List<Cell> cells) {
+        double total = 0;
+        if (i1 < i0) return 0;
+
+        TimeBuckets buckets = porDia
+            ? TimeBuckets.of((baseHour + i0) * TimeBuckets.HOUR_MS, (baseHour + i1) * TimeBuckets.HOUR_MS)
+            : null;
+        double[] acumulado = new double[porDia ? buckets.dayCount() : i1 - i0 + 1];
+        for (Node nodo : base) {
+            for (int i = i0; i <= i1 && i <= nodo.last; i++) {
+                double kwh = nodo.v[i];
+                if (kwh == 0) continue;
+                int idx = porDia ? buckets.dayIndex((baseHour + i) * TimeBuckets.HOUR_MS) : i - i0;
+                acumulado[idx] += kwh;
+            }
+        }
+        for (int k = 0; k < acumulado.length; k++) {
+            String key = porDia
+                ? buckets.dayAt(k).toString()
+                : String.valueOf((baseHour + i0 + k) * TimeBuckets.HOUR_MS);
+            cells.add(new Cell(key, key, acumulado[k], 0));
+            total += acumulado[k];
+        }
+        return total;
+    }
+
+    /**
+     * Nodos que suman exactamente el filtro (los mas agregados disponibles)
+     */
+    private List<Node> baseNodes(String houseId, String room, String type, String deviceId) {
+        List<Node> base = new ArrayList<>();
+        if (deviceId != null || (room != null && type != null)) {
+            base.addAll(matchingDevices(houseId, room, type, deviceId));
+        } else if (room != null) {
+            for (Node casa : housesFor(houseId)) {
+                Node habitacion = casa.children.get(room);
+                if (habitacion != null) base.add(habitacion);
+            }
+        } else if (type != null) {
+            for (Node casa : housesFor(houseId)) {
+                Node tipo = typesByHouse.getOrDefault(casa.key, Collections.emptyMap()).get(type);
+                if (tipo != null) base.add(tipo);
+            }
+        } else {
+            base.addAll(housesFor(houseId));
+        }
+        return base;
+    }
+
+    private Collection<Node> housesFor(String houseId) {
+        if (houseId == null) return houses.values();
+        Node casa = houses.get(houseId);
+        return casa != null ? Collections.singletonList(casa) : Collections.emptyList();
+    }
+
+    private List<Node> matchingDevices(String houseId, String room, String type, String deviceId) {
+        List<Node> resultado = new ArrayList<>();
+        if (deviceId != null) {
+            Node d = devices.get(deviceId);
+            if (d != null && (houseId == null || houseId.equals(d.houseId))
+                    && (room == null || room.equals(d.room)) && (type == null || type.equals(d.type))) {
+                resultado.add(d);
+            }
+            return resultado;
+        }
+        for (Node casa : housesFor(houseId)) {
+            for (Node habitacion : casa.children.values()) {
+                if (room != null && !room.equals(habitacion.key)) continue;
+                for (Node d : habitacion.children.values()) {
+                    if (type == null || type.equals(d.type)) resultado.add(d);
+                }
+            }
+        }
+        return resultado;
+    }
+
+    private static double roomSum(Node casa, String room, int i0, int i1) {
+        Node habitacion = casa.children.get(room);
+        return habitacion != null ? habitacion.sum(i0, i1) : 0;
+    }
+
+    private static int countDevices(Node casa, String room) {
+        int n = 0;
+        for (Node habitacion : casa.children.values()) {
+            if (room == null || room.equals(habitacion.key)) n += habitacion.children.size();
+        }
+        return n;
+    }
+
+    private static int countDevicesOfType(Node casa, String type) {
+        int n = 0;
+        for (Node habitacion : casa.children.values()) {
+            for (Node d : habitacion.children.values()) {
+                if (type.equals(d.type)) n++;
+            }
+        }
+        return n;
+    }
+
+    private static long hourOf(long timestamp) {
+        return Math.floorDiv(timestamp, TimeBuckets.HOUR_MS);
+    }
+
+    public boolean isLoaded() {
+        return cargado;
+    }
+
+    public synchronized int getDeviceCount() {
+        return devices.size();
+    }
+}
@@ -0,0 +1,161 @@
+package com.smarthome.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache de resultados de consultas de energia
+ *
+ * Llave: (houseId, vista, rango exacto pedido, parametros extra). La cache
+ * no cambia el rango: quien quiera compartir entradas entre navegadores
+ * usa rangos por minuto (alignDown/alignUp), como los defaults del
+ * RestServer y las ventanas "ultimas 24 h / N dias". Cada entrada guarda un
+ * FutureTask: si llegan peticiones identicas al mismo tiempo la consulta
+ * a MongoDB se ejecuta una sola vez y las demas esperan el resultado.
+ *
+ * Una entrada se invalida cuando se registra una muestra cuyo timestamp
+ * cae dentro de su ventana; las ventanas historicas permanecen en cache.
+ * Las que llegan al presente se invalidan con cada lote del escritor (~5 s),
+ * asi que para ellas la cache sirve sobre todo para juntar peticiones iguales.
+ * El tamaño esta acotado con desalojo LRU.
+ */
+public class EnergyQueryCache {
+
+    public static final long BUCKET_MS = 60 * 1000; // Rangos alineados al minuto
+    private static final int MAX_ENTRIES_DEFAULT = 256;
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries;
+
+    // Estadisticas
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private static class Entry {
+        final long desde;
+        final long hasta;
+        final FutureTask<Object> task;
+
+        Entry(long desde, long hasta, FutureTask<Object> task) {
+            this.desde = desde;
+            this.hasta = hasta;
+            this.task = task;
+        }
+    }
+
+    public EnergyQueryCache() {
+        this(MAX_ENTRIES_DEFAULT);
+    }
+
+    public EnergyQueryCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        // accessOrder = true -> orden LRU
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > EnergyQueryCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Alinear el inicio de un rango hacia abajo al bucket
+     */
+    public static long alignDown(long timestamp) {
+        return Math.floorDiv(timestamp, BUCKET_MS) * BUCKET_MS;
+    }
+
+    /**
+     * Alinear el fin de un rango hacia arriba al bucket (ultimo ms incluido)
+     */
+    public static long alignUp(long timestamp) {
+        return alignDown(timestamp) + BUCKET_MS - 1;
+    }
+
+    /**
+     * Obtener un resultado de cache o calcularlo con el loader
+     * desde/hasta son el rango exacto de la consulta (tambien la ventana que se invalida)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String houseId, String view, long desde, long hasta, String extra, Callable<T> loader) {
+        String key = houseId + "|" + view + "|" + desde + "|" + hasta + "|" + extra;
+
+        Entry entry;
+        boolean owner = false;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(desde, hasta, new FutureTask<>((Callable<Object>) loader));
+                entries.put(key, entry);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            misses.incrementAndGet();
+            entry.task.run();
+        } else {
+            hits.incrementAndGet();
+        }
+
+        try {
+            return (T) entry.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Consulta de energia interrumpida", e);
+        } catch (ExecutionException e) {
+            // No guardar errores en cache
+            synchronized (entries) {
+                entries.remove(key, entry);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Invalidar las entradas cuya ventana cubre algun instante de [desde, hasta]
+     * Se llama cuando se registran muestras nuevas con esos timestamps
+     */
+    public void invalidateRange(long desde, long hasta) {
+        synchronized (entries) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.desde <= hasta && desde <= entry.hasta) {
+                    it.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public void invalidate(long timestamp) {
+        invalidateRange(timestamp, timestamp);
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getInvalidations() { return invalidations.get(); }
+}
@@ -0,0 +1,223 @@
+package com.smarthome.service;
+
+import com.smarthome.database.MongoDBConnection;
+import com.smarthome.model.EnergyRollup;
+import com.smarthome.model.RetentionReport;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.concurrent.*;
+
+/**
+ * Motor de retencion de historicos de energia y actividad
+ *
+ * En lugar de borrar con un deleteMany gigante:
+ * - Muestras crudas con mas de DIAS_CRUDOS dias: se compactan a rollups HOUR
+ *   y luego se borran, una hora por lote.
+ * - Rollups HOUR con mas de DIAS_HORAS dias: se compactan a rollups DAY y
+ *   luego se borran, un dia por lote.
+ * - Actividad con mas de DIAS_ACTIVIDAD dias: se pasa al archivo frio
+ *   (ActivityArchive) y se borra de la base, un dia local por lote.
+ *
+ * Entre lotes hay una pausa y cada corrida tiene un presupuesto de tiempo;
+ * lo que no alcanza se continua en la siguiente corrida. Asi la purga
+ * nunca compite por mucho tiempo con las consultas del tablero.
+ */
+public class EnergyRetentionService {
+
+    private static final int DIAS_CRUDOS = 30;
+    private static final int DIAS_HORAS = 365;
+    private static final int DIAS_ACTIVIDAD = 90;    // En la base; lo anterior queda archivado
+
+    private static final long PAUSA_ENTRE_LOTES_MS = 250;
+    private static final long PRESUPUESTO_CORRIDA_MS = 60 * 1000;
+    private static final int INTERVALO_HORAS = 1;
+
+    private final EnergyService energyService;
+    private final EnergyRollupService rollupService;
+    private final ActivityService activityService;
+    private final int diasCrudos;
+    private final int diasHoras;
+    private final int diasActividad;
+
+    private ScheduledExecutorService scheduler;
+    private volatile RetentionReport lastReport;
+
+    public EnergyRetentionService(EnergyService energyService, EnergyRollupService rollupService,
+                                  ActivityService activityService) {
+        this(energyService, rollupService, activityService, DIAS_CRUDOS, DIAS_HORAS, DIAS_ACTIVIDAD);
+    }
+
+    public EnergyRetentionService(EnergyService energyService, EnergyRollupService rollupService,
+                                  ActivityService activityService,
+                                  int diasCrudos, int diasHoras, int diasActividad) {
+        this.energyService = energyService;
+        this.rollupService = rollupService;
+        this.activityService = activityService;
+        this.diasCrudos = diasCrudos;
+        this.diasHoras = diasHoras;
+        this.diasActividad = diasActividad;
+    }
+
+    /**
+     * Programar la retencion cada hora
+     */
+    public void start() {
+        if (scheduler != null && !scheduler.isShutdown()) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Energy-Retention");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::runSafely, 2 * 60, INTERVALO_HORAS * 3600L, TimeUnit.SECONDS);
+        System.out.println("[RETENTION] Retencion programada - crudos " + diasCrudos + 
+            " dias, horas " + diasHoras + " dias, actividad " + diasActividad + " dias");
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    private void runSafely() {
+        try {
+            RetentionReport report = runOnce();
+            if (report.getRawDeleted() + report.getHourlyDeleted() + report.getActivityDeleted() > 0) {
+                System.out.println("[RETENTION] " + report);
+            }
+        } catch (Exception e) {
+            System.err.println("[RETENTION] Error en retencion: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ejecutar una corrida de retencion (con presupuesto de tiempo)
+     */
+    public RetentionReport runOnce() throws InterruptedException {
+        RetentionReport report = new RetentionReport();
+        long ahora = System.currentTimeMillis();
+        long fin = ahora + PRESUPUESTO_CORRIDA_MS;
+
+        double avgCrudo = avgObjSize(EnergySampleStore.getInstance().getCollectionName());
+        double avgRollup = avgObjSize(EnergyRollupService.COLLECTION_NAME);
+        double avgActividad = avgObjSize(ActivityService.COLLECTION_NAME);
+
+        boolean completo = purgeRaw(ahora - diasCrudos * TimeBuckets.DAY_MS, fin, report)
+            && purgeHourly(ahora - diasHoras * TimeBuckets.DAY_MS, fin, report)
+            && purgeActivity(ahora - diasActividad * TimeBuckets.DAY_MS, fin, report);
+
+        report.setRawBytesReclaimed((long) (report.getRawDeleted() * avgCrudo));
+        report.setHourlyBytesReclaimed((long) (report.getHourlyDeleted() * avgRollup));
+        report.setActivityBytesReclaimed((long) (report.getActivityDeleted() * avgActividad));
+        report.setCompleted(completo);
+        report.setFinishedAt(System.currentTimeMillis());
+        lastReport = report;
+        return report;
+    }
+
+    /**
+     * Crudos -> rollups HOUR, una hora por lote
+     * @return true si se termino antes de agotar el presupuesto
+     */
+    private boolean purgeRaw(long limite, long fin, RetentionReport report) throws InterruptedException {
+        long hora = energyService.oldestTimestampBefore(limite);
+        if (hora < 0) return true;
+        hora = EnergyRollupService.alignHour(hora);
+
+        // Solo horas completas anteriores al limite
+        long limiteHora = EnergyRollupService.alignHour(limite);
+        while (hora < limiteHora) {
+            if (System.currentTimeMillis() > fin) return false;
+
+            report.addHourlyRollupsWritten(rollupService.rollupHour(hora));
+            report.addRawDeleted(energyService.deleteRange(hora, hora + TimeBuckets.HOUR_MS));
+            report.addBatch();
+            hora += TimeBuckets.HOUR_MS;
+            Thread.sleep(PAUSA_ENTRE_LOTES_MS);
+        }
+        return true;
+    }
+
+    /**
+     * Rollups HOUR -> rollups DAY, un dia local por lote
+     */
+    private boolean purgeHourly(long limite, long fin, RetentionReport report) throws InterruptedException {
+        long masAntiguo = rollupService.oldestBucket(EnergyRollup.GRANULARITY_HOUR);
+        if (masAntiguo < 0 || masAntiguo >= limite) return true;
+
+        TimeBuckets dias = TimeBuckets.of(masAntiguo, limite);
+        // El ultimo dia del rango contiene al limite: no esta completo
+        for (int d = 0; d < dias.dayCount() - 1; d++) {
+            if (System.currentTimeMillis() > fin) return false;
+
+            long inicioDia = dias.dayStart(d);
+            long finDia = dias.dayStart(d + 1);
+            report.addDailyRollupsWritten(rollupService.rollupDay(inicioDia, finDia));
+            report.addHourlyDeleted(rollupService.deleteRange(EnergyRollup.GRANULARITY_HOUR, inicioDia, finDia));
+            report.addBatch();
+            Thread.sleep(PAUSA_ENTRE_LOTES_MS);
+        }
+        return true;
+    }
+
+    /**
+     * Actividad antigua al archivo frio, un dia local por lote
+     * (solo dias completos anteriores al limite)
+     */
+    private boolean purgeActivity(long limite, long fin, RetentionReport report) throws InterruptedException {
+        long ts = activityService.oldestTimestampBefore(limite);
+        if (ts < 0) return true;
+
+        ZoneId zona = ZoneId.systemDefault();
+        LocalDate ultimo = Instant.ofEpochMilli(limite).atZone(zona).toLocalDate();
+        LocalDate dia = Instant.ofEpochMilli(ts).atZone(zona).toLocalDate();
+        while (dia.isBefore(ultimo)) {
+            if (System.currentTimeMillis() > fin) return false;
+
+            try {
+                long movidas = activityService.archiveDay(dia);
+                report.addActivityArchived(movidas);
+                report.addActivityDeleted(movidas);
+            } catch (IOException e) {
+                // Sin archivo no se borra: se reintenta en la siguiente corrida
+                System.err.println("[ACTIVITY] Error archivando " + dia + ": " + e.getMessage());
+                return false;
+            }
+            report.addBatch();
+            dia = dia.plusDays(1);
+            Thread.sleep(PAUSA_ENTRE_LOTES_MS);
+        }
+        return true;
+    }
+
+    /**
+     * Tamaño promedio de documento de una coleccion (0 si no se puede leer)
+     */
+    private double avgObjSize(String collectionName) {
+        try {
+            Document stats = MongoDBConnection.getInstance().getDatabase()
+                .runCommand(new Document("collStats", collectionName));
+            Object avg = stats.get("avgObjSize");
+            return avg instanceof Number ? ((Number) avg).doubleValue() : 0;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reporte de la ultima corrida (null si aun no corre)
+     */
+    public RetentionReport getLastReport() {
+        return lastReport;
+    }
+
+    public int getDiasCrudos() { return diasCrudos; }
+    public int getDiasHoras() { return diasHoras; }
+}
@@ -0,0 +1,333 @@
+package com.smarthome.service;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Updates;
+import com.smarthome.database.MongoDBConnection;
+import com.smarthome.model.EnergyRollup;
+import org.bson.Document;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mongodb.client.model.Filters.*;
+
+/**
+ * Reconstruccion (backfill) de rollups desde el historico crudo de energy_logs
+ *
+ * Para cuando se agregan o cambian los rollups y hay que reprocesar la
+ * historia existente:
+ *
+ * - El rango se parte en bloques de un dia (UTC, alineados a la hora). Cada
+ *   bloque se divide recursivamente en tramos de horasPorCursor horas, cada
+ *   tramo se lee con su propio cursor y se agrega en un ForkJoinPool; los
+ *   parciales se combinan por (hora, dispositivo) y el bloque se escribe con
+ *   upsert (idempotente, igual que la compactacion normal).
+ * - Cada bloque terminado se anota en energy_rollup_state (_id "backfill"),
+ *   asi que si el proceso se detiene, la siguiente corrida con el mismo rango
+ *   salta los bloques ya hechos.
+ * - Se limita la lectura a maxDocsPorSegundo (entre todos los cursores) y el
+ *   numero de cursores al paralelismo del pool, para no saturar la conexion
+ *   a Atlas que usa el servidor en vivo.
+ *
+ * Al final se recalculan los rollups DAY de los dias locales que tuvieron
+ * muestras crudas.
+ */
+public class EnergyRollupBackfill {
+
+    private static final String STATE_ID = "backfill";
+    private static final long BLOQUE_MS = TimeBuckets.DAY_MS;
+    private static final int DOCS_POR_PERMISO = 500;   // Granularidad del limitador
+
+    private final EnergyRollupService rollupService;
+    private final EnergySampleStore rawStore;
+    private final MongoCollection<Document> stateCollection;
+    private final int paralelismo;
+    private final int horasPorCursor;
+    private final Throttle throttle;
+
+    private final AtomicLong docsLeidos = new AtomicLong();
+    private final AtomicLong rollupsEscritos = new AtomicLong();
+    private final AtomicLong bloquesHechos = new AtomicLong();
+    private final ConcurrentSkipListSet<Long> horasConDatos = new ConcurrentSkipListSet<>();
+    private volatile boolean detenido;
+
+    /**
+     * @param paralelismo cursores simultaneos (hilos del pool)
+     * @param horasPorCursor horas que lee cada cursor (1-24)
+     * @param maxDocsPorSegundo limite global de lectura (0 = sin limite)
+     */
+    public EnergyRollupBackfill(EnergyRollupService rollupService, int paralelismo, int horasPorCursor,
+                                long maxDocsPorSegundo) {
+        MongoDBConnection conn = MongoDBConnection.getInstance();
+        this.rollupService = rollupService;
+        this.rawStore = EnergySampleStore.getInstance();
+        this.stateCollection = conn.getCollection(EnergyRollupService.STATE_COLLECTION);
+        this.paralelismo = Math.max(1, paralelismo);
+        this.horasPorCursor = Math.max(1, Math.min(24, horasPorCursor));
+        this.throttle = new Throttle(maxDocsPorSegundo);
+    }
+
+    /**
+     * Limitador de documentos por segundo compartido por todos los cursores
+     */
+    static final class Throttle {
+        private final long porSegundo;
+        private long ventana;
+        private long usados;
+
+        Throttle(long porSegundo) {
+            this.porSegundo = porSegundo;
+        }
+
+        void acquire(int docs) {
+            if (porSegundo <= 0) return;
+            long espera;
+            synchronized (this) {
+                long ahora = System.currentTimeMillis();
+                if (ahora - ventana >= 1000) {
+                    ventana = ahora;
+                    usados = 0;
+                }
+                usados += docs;
+                espera = usados > porSegundo ? ventana + 1000 - ahora : 0;
+            }
+            if (espera > 0) {
+                try {
+                    Thread.sleep(espera);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Rollups parciales: hora -> (dispositivo|casa -> rollup)
+     */
+    private static Map<Long, Map<String, EnergyRollup>> merge(Map<Long, Map<String, EnergyRollup>> a,
+                                                           Map<Long, Map<String, EnergyRollup>> b) {
+        if (a.size() < b.size()) {
+            Map<Long, Map<String, EnergyRollup>> t = a;
+            a = b;
+            b = t;
+        }
+        for (Map.Entry<Long, Map<String, EnergyRollup>> hora : b.entrySet()) {
+            Map<String, EnergyRollup> destino = a.get(hora.getKey());
+            if (destino == null) {
+                a.put(hora.getKey(), hora.getValue());
+                continue;
+            }
+            for (Map.Entry<String, EnergyRollup> e : hora.getValue().entrySet()) {
+                EnergyRollup actual = destino.get(e.getKey());
+                if (actual == null) {
+                    destino.put(e.getKey(), e.getValue());
+                } else {
+                    actual.merge(e.getValue());
+                }
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Lee un tramo con su propio cursor, o lo parte en dos si es mas largo
+     * que horasPorCursor
+     */
+    private final class RangeTask extends RecursiveTask<Map<Long, Map<String, EnergyRollup>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final long desde;
+        private final long hasta;
+
+        RangeTask(long desde, long hasta) {
+            this.desde = desde;
+            this.hasta = hasta;
+        }
+
+        @Override
+        protected Map<Long, Map<String, EnergyRollup>> compute() {
+            long horas = (hasta - desde) / TimeBuckets.HOUR_MS;
+            if (horas > horasPorCursor) {
+                long mitad = desde + (horas / 2) * TimeBuckets.HOUR_MS;
+                RangeTask izquierda = new RangeTask(desde, mitad);
+                izquierda.fork();
+                Map<Long, Map<String, EnergyRollup>> derecha = new RangeTask(mitad, hasta).compute();
+                return merge(izquierda.join(), derecha);
+            }
+            return read();
+        }
+
+        private Map<Long, Map<String, EnergyRollup>> read() {
+            Map<Long, Map<String, EnergyRollup>> porHora = new HashMap<>();
+            if (detenido) return porHora;
+
+            int pendientes = 0;
+            try (MongoCursor<Document> cursor = rawStore.find(
+                    and(gte("timestamp", desde), lt("timestamp", hasta)))
+                    .projection(EnergyRollupService.RAW_PROJECTION)
+                    .batchSize(1000).iterator()) {
+                while (cursor.hasNext()) {
+                    Document doc = cursor.next();
+                    long hora = EnergyRollupService.alignHour(EnergyService.timestampOf(doc));
+                    EnergyRollupService.addRawSample(
+                        porHora.computeIfAbsent(hora, h -> new HashMap<>()), hora, doc);
+                    if (++pendientes == DOCS_POR_PERMISO) {
+                        docsLeidos.addAndGet(pendientes);
+                        throttle.acquire(pendientes);
+                        pendientes = 0;
+                        if (detenido) break;
+                    }
+                }
+            }
+            docsLeidos.addAndGet(pendientes);
+            return porHora;
+        }
+    }
+
+    /**
+     * Un bloque: agregar, escribir y anotar en el checkpoint
+     */
+    private final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long desde;
+        private final long hasta;
+
+        ChunkTask(long desde, long hasta) {
+            this.desde = desde;
+            this.hasta = hasta;
+        }
+
+        @Override
+        protected void compute() {
+            if (detenido) return;
+            Map<Long, Map<String, EnergyRollup>> porHora = new RangeTask(desde, hasta).compute();
+            if (detenido) return; // Bloque incompleto: no se escribe ni se anota
+
+            List<EnergyRollup> rollups = new ArrayList<>();
+            for (Map.Entry<Long, Map<String, EnergyRollup>> hora : porHora.entrySet()) {
+                if (!hora.getValue().isEmpty()) {
+                    horasConDatos.add(hora.getKey());
+                    rollups.addAll(hora.getValue().values());
+                }
+            }
+            rollupsEscritos.addAndGet(rollupService.upsert(rollups));
+            stateCollection.updateOne(eq("_id", STATE_ID), Updates.addToSet("done", desde));
+            long hechos = bloquesHechos.incrementAndGet();
+            System.out.println("[ROLLUP] Backfill: bloque " + new Date(desde) + " listo (" +
+                rollups.size() + " rollups, " + hechos + " bloques)");
+        }
+    }
+
+    /**
+     * Reconstruir los rollups de [desde, hasta)
+     * @param reiniciar ignorar el checkpoint de una corrida anterior del mismo rango
+     * @return resumen de la corrida en JSON
+     */
+    public String run(long desde, long hasta, boolean reiniciar) {
+        long inicio = EnergyRollupService.alignHour(desde);
+        long fin = Math.min(EnergyRollupService.alignHour(hasta + TimeBuckets.HOUR_MS - 1),
+            EnergyRollupService.alignHour(System.currentTimeMillis()));
+        if (fin <= inicio) {
+            throw new IllegalArgumentException("Rango vacio para backfill");
+        }
+        long t0 = System.currentTimeMillis();
+        detenido = false;
+
+        Set<Long> hechos = loadCheckpoint(inicio, fin, reiniciar);
+        List<ChunkTask> bloques = new ArrayList<>();
+        int saltados = 0;
+        for (long b = inicio; b < fin; b += BLOQUE_MS) {
+            if (hechos.contains(b)) {
+                saltados++;
+            } else {
+                bloques.add(new ChunkTask(b, Math.min(fin, b + BLOQUE_MS)));
+            }
+        }
+        System.out.println("[ROLLUP] Backfill " + new Date(inicio) + " -> " + new Date(fin) + ": " +
+            bloques.size() + " bloques pendientes, " + saltados + " ya hechos, " + paralelismo + " cursores");
+
+        ForkJoinPool pool = new ForkJoinPool(paralelismo);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(bloques);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+
+        int dias = 0;
+        if (!detenido) {
+            dias = rebuildDays();
+            stateCollection.updateOne(eq("_id", STATE_ID),
+                Updates.combine(Updates.set("completed", true), Updates.set("updatedAt", System.currentTimeMillis())));
+        }
+
+        String resumen = String.format(Locale.US,
+            "{\"desde\": %d, \"hasta\": %d, \"chunks\": %d, \"skipped\": %d, \"docsRead\": %d, " +
+            "\"hourlyRollups\": %d, \"dailyRebuilt\": %d, \"stopped\": %b, \"tookMs\": %d}",
+            inicio, fin, bloquesHechos.get(), saltados, docsLeidos.get(), rollupsEscritos.get(),
+            dias, detenido, System.currentTimeMillis() - t0);
+        System.out.println("[ROLLUP] Backfill terminado: " + resumen);
+        return resumen;
+    }
+
+    /**
+     * Bloques ya hechos de una corrida anterior con el mismo rango
+     * (con otro rango, o si se pide reiniciar, se empieza de cero)
+     */
+    @SuppressWarnings("unchecked")
+    private Set<Long> loadCheckpoint(long inicio, long fin, boolean reiniciar) {
+        Document estado = stateCollection.find(eq("_id", STATE_ID)).first();
+        if (!reiniciar && estado != null && Objects.equals(estado.getLong("desde"), inicio)
+                && Objects.equals(estado.getLong("hasta"), fin)) {
+            List<Long> done = (List<Long>) estado.get("done");
+            return done != null ? new HashSet<>(done) : new HashSet<>();
+        }
+        stateCollection.replaceOne(eq("_id", STATE_ID),
+            new Document("_id", STATE_ID).append("desde", inicio).append("hasta", fin)
+                .append("done", new ArrayList<Long>()).append("completed", false)
+                .append("startedAt", System.currentTimeMillis()),
+            new ReplaceOptions().upsert(true));
+        return new HashSet<>();
+    }
+
+    /**
+     * Recalcular los rollups DAY de los dias locales con horas reconstruidas
+     */
+    private int rebuildDays() {
+        if (horasConDatos.isEmpty()) return 0;
+        TimeBuckets rango = TimeBuckets.of(horasConDatos.first(), horasConDatos.last());
+        boolean[] conDatos = new boolean[rango.dayCount()];
+        for (long hora : horasConDatos) {
+            conDatos[rango.dayIndex(hora)] = true;
+        }
+        int dias = 0;
+        for (int d = 0; d < conDatos.length && !detenido; d++) {
+            if (!conDatos[d]) continue;
+            throttle.acquire(DOCS_POR_PERMISO);
+            rollupService.rollupDay(rango.dayStart(d), rango.dayStart(d + 1));
+            dias++;
+        }
+        return dias;
+    }
+
+    /**
+     * Detener la corrida: los bloques en curso no se anotan y se repiten al reanudar
+     */
+    public void stop() {
+        detenido = true;
+    }
+
+    public long getDocsRead() { return docsLeidos.get(); }
+    public long getChunksDone() { return bloquesHechos.get(); }
+}
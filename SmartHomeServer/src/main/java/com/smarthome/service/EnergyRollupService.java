@@ -0,0 +1,387 @@
+package com.smarthome.service;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.WriteModel;
+import com.smarthome.database.MongoDBConnection;
+import com.smarthome.model.EnergyLog;
+import com.smarthome.model.EnergyRollup;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import static com.mongodb.client.model.Filters.*;
+
+/**
+ * Servicio de agregados (rollups) de consumo electrico
+ *
+ * Compacta las muestras crudas de energy_logs en cubetas por hora y las
+ * horas en cubetas por dia local (coleccion energy_rollups). Las cubetas se
+ * escriben con upsert sobre (granularity, deviceId, bucketStart), asi que
+ * recalcular una hora o un dia es idempotente.
+ *
+ * Un job periodico compacta las horas y dias ya cerrados usando un
+ * checkpoint en energy_rollup_state, de modo que las consultas de rangos
+ * largos pueden leer rollups en lugar de muestras crudas.
+ */
+public class EnergyRollupService {
+
+    public static final String COLLECTION_NAME = "energy_rollups";
+    static final String STATE_COLLECTION = "energy_rollup_state";
+    private static final int INTERVALO_MINUTOS = 5;
+    private static final int DIAS_INICIALES = 2; // Sin checkpoint: compactar desde el inicio de anteayer
+
+    static final Document RAW_PROJECTION = new Document("timestamp", 1)
+        .append("deviceId", 1).append("deviceName", 1).append("deviceType", 1)
+        .append("houseId", 1).append("room", 1).append("wattsConsumed", 1).append("duration", 1)
+        .append("eventType", 1);
+
+    private MongoCollection<Document> collection;
+    private EnergySampleStore rawStore;
+    private MongoCollection<Document> stateCollection;
+    private ScheduledExecutorService scheduler;
+
+    public EnergyRollupService() {
+        MongoDBConnection conn = MongoDBConnection.getInstance();
+        this.collection = conn.getCollection(COLLECTION_NAME);
+        this.rawStore = EnergySampleStore.getInstance();
+        this.stateCollection = conn.getCollection(STATE_COLLECTION);
+    }
+
+    /**
+     * Crear los indices de la coleccion de rollups
+     */
+    public void ensureIndexes() {
+        try {
+            collection.createIndex(
+                Indexes.ascending("granularity", "deviceId", "bucketStart"),
+                new IndexOptions().unique(true));
+            collection.createIndex(Indexes.ascending("granularity", "houseId", "bucketStart"));
+        } catch (Exception e) {
+            System.err.println("[ROLLUP] Error creando indices: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Iniciar la compactacion periodica de horas y dias cerrados
+     */
+    public void startScheduler() {
+        if (scheduler != null && !scheduler.isShutdown()) {
+            return;
+        }
+        ensureIndexes();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Energy-Rollup");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::rollupPending, 1, INTERVALO_MINUTOS, TimeUnit.MINUTES);
+        System.out.println("[ROLLUP] Compactacion iniciada - cada " + INTERVALO_MINUTOS + " minutos");
+    }
+
+    public void stopScheduler() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Compactar las horas y dias cerrados desde el ultimo checkpoint
+     */
+    public void rollupPending() {
+        try {
+            long ahora = System.currentTimeMillis();
+            long horaCerrada = alignHour(ahora);
+
+            long haceDias = ahora - DIAS_INICIALES * TimeBuckets.DAY_MS;
+            long desdeHora = getCheckpoint(EnergyRollup.GRANULARITY_HOUR,
+                TimeBuckets.of(haceDias, haceDias).dayStart(0));
+            int horas = 0;
+            for (long h = desdeHora; h < horaCerrada; h += TimeBuckets.HOUR_MS) {
+                rollupHour(h);
+                setCheckpoint(EnergyRollup.GRANULARITY_HOUR, h + TimeBuckets.HOUR_MS);
+                horas++;
+            }
+
+            // Dias locales cerrados (a partir de las horas ya compactadas)
+            TimeBuckets hoy = TimeBuckets.of(ahora, ahora);
+            long inicioHoy = hoy.dayStart(0);
+            long desdeDia = getCheckpoint(EnergyRollup.GRANULARITY_DAY,
+                TimeBuckets.of(desdeHora, desdeHora).dayStart(0));
+            int dias = 0;
+            if (desdeDia < inicioHoy) {
+                TimeBuckets rango = TimeBuckets.of(desdeDia, inicioHoy - 1);
+                for (int d = 0; d < rango.dayCount(); d++) {
+                    rollupDay(rango.dayStart(d), rango.dayStart(d + 1));
+                    setCheckpoint(EnergyRollup.GRANULARITY_DAY, rango.dayStart(d + 1));
+                    dias++;
+                }
+            }
+
+            if (horas > 0 || dias > 0) {
+                System.out.println("[ROLLUP] Compactadas " + horas + " horas y " + dias + " dias");
+            }
+        } catch (Exception e) {
+            System.err.println("[ROLLUP] Error compactando: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compactar una hora de muestras crudas en rollups HOUR
+     * @return numero de rollups escritos
+     */
+    public int rollupHour(long hourStart) {
+        long hourEnd = hourStart + TimeBuckets.HOUR_MS;
+        Map<String, EnergyRollup> porDispositivo = new HashMap<>();
+
+        try (MongoCursor<Document> cursor = rawStore.find(
+                and(gte("timestamp", hourStart), lt("timestamp", hourEnd))
+            ).projection(RAW_PROJECTION).iterator()) {
+
+            while (cursor.hasNext()) {
+                addRawSample(porDispositivo, hourStart, cursor.next());
+            }
+        }
+
+        return upsert(porDispositivo.values());
+    }
+
+    /**
+     * Agregar un documento crudo a la cubeta de su dispositivo
+     *
+     * La llave es solo el deviceId, igual que el upsert: si el dispositivo
+     * cambia de casa dentro de la hora sus muestras se suman en una sola
+     * cubeta (con la casa de la primera muestra) en vez de pisarse.
+     */
+    static void addRawSample(Map<String, EnergyRollup> porDispositivo, long bucketStart, Document doc) {
+        String deviceId = doc.getString("deviceId");
+
+        EnergyRollup rollup = porDispositivo.get(deviceId);
+        if (rollup == null) {
+            rollup = new EnergyRollup(EnergyRollup.GRANULARITY_HOUR, bucketStart, doc.getString("houseId"),
+                deviceId, doc.getString("deviceName"), doc.getString("deviceType"));
+            rollup.setRoom(doc.getString("room"));
+            porDispositivo.put(deviceId, rollup);
+        }
+
+        Double watts = doc.getDouble("wattsConsumed");
+        Long dur = doc.getLong("duration");
+        rollup.addSample(watts != null ? watts : 0, dur != null ? dur : 0, EnergyLog.kwhFromDocument(doc));
+    }
+
+    /**
+     * Compactar los rollups HOUR de un dia local en rollups DAY
+     * @return numero de rollups escritos
+     */
+    public int rollupDay(long dayStart, long dayEnd) {
+        Map<String, EnergyRollup> porDispositivo = new HashMap<>();
+
+        try (MongoCursor<Document> cursor = collection.find(
+                and(eq("granularity", EnergyRollup.GRANULARITY_HOUR),
+                    gte("bucketStart", dayStart), lt("bucketStart", dayEnd))
+            ).iterator()) {
+
+            while (cursor.hasNext()) {
+                EnergyRollup hora = EnergyRollup.fromDocument(cursor.next());
+                // Misma llave que el upsert (una cubeta DAY por dispositivo)
+                String key = hora.getDeviceId();
+                EnergyRollup dia = porDispositivo.get(key);
+                if (dia == null) {
+                    dia = new EnergyRollup(EnergyRollup.GRANULARITY_DAY, dayStart, hora.getHouseId(),
+                        hora.getDeviceId(), hora.getDeviceName(), hora.getDeviceType());
+                    dia.setRoom(hora.getRoom());
+                    porDispositivo.put(key, dia);
+                }
+                dia.merge(hora);
+            }
+        }
+
+        return upsert(porDispositivo.values());
+    }
+
+    /**
+     * Escribir rollups con upsert (idempotente)
+     */
+    public int upsert(Collection<EnergyRollup> rollups) {
+        if (rollups.isEmpty()) {
+            return 0;
+        }
+
+        List<WriteModel<Document>> ops = new ArrayList<>();
+        for (EnergyRollup rollup : rollups) {
+            Bson filtro = and(eq("granularity", rollup.getGranularity()),
+                eq("deviceId", rollup.getDeviceId()),
+                eq("bucketStart", rollup.getBucketStart()));
+            ops.add(new ReplaceOneModel<>(filtro, rollup.toDocument(), new ReplaceOptions().upsert(true)));
+        }
+        collection.bulkWrite(ops);
+        return ops.size();
+    }
+
+    /**
+     * Recorrer los rollups de un rango en orden cronologico sin materializarlos
+     * @param houseId casa a filtrar, o null para todas
+     */
+    public void forEachRollup(String granularity, String houseId, long desde, long hasta,
+                              Consumer<EnergyRollup> consumer) {
+        Bson filtro = and(eq("granularity", granularity),
+            gte("bucketStart", desde), lt("bucketStart", hasta));
+        if (houseId != null) {
+            filtro = and(filtro, eq("houseId", houseId));
+        }
+
+        try (MongoCursor<Document> cursor = collection.find(filtro)
+                .sort(Sorts.ascending("bucketStart")).iterator()) {
+            while (cursor.hasNext()) {
+                consumer.accept(EnergyRollup.fromDocument(cursor.next()));
+            }
+        }
+    }
+
+    /**
+     * Consumo total de una hora (todas las cubetas del filtro sumadas)
+     */
+    public interface HourlyTotalConsumer {
+        void accept(long hourStart, double kwh);
+    }
+
+    /**
+     * Recorrer rollups HOUR por dispositivo de un rango en orden cronologico:
+     * los ya compactados hasta el checkpoint y despues los que se arman al
+     * vuelo con las muestras crudas aun no compactadas (una hora a la vez).
+     * @param houseId casa a filtrar, o null para todas
+     */
+    public void forEachHourRollup(String houseId, long desde, long hasta, Consumer<EnergyRollup> consumer) {
+        long inicio = alignHour(desde);
+        long hastaRollups = Math.min(hasta, Math.max(inicio, getHourlyCheckpoint()));
+        if (hastaRollups > inicio) {
+            forEachRollup(EnergyRollup.GRANULARITY_HOUR, houseId, inicio, hastaRollups, consumer);
+        }
+
+        long desdeCrudo = Math.max(inicio, hastaRollups);
+        if (hasta <= desdeCrudo) return;
+
+        Bson filtro = and(gte("timestamp", desdeCrudo), lt("timestamp", hasta));
+        if (houseId != null) {
+            filtro = and(eq("houseId", houseId), filtro);
+        }
+        long hora = Long.MIN_VALUE;
+        Map<String, EnergyRollup> porDispositivo = new HashMap<>();
+        try (MongoCursor<Document> cursor = rawStore.find(filtro)
+                .projection(RAW_PROJECTION).sort(Sorts.ascending("timestamp")).iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                long h = alignHour(EnergyService.timestampOf(doc));
+                if (h != hora) {
+                    porDispositivo.values().forEach(consumer);
+                    porDispositivo.clear();
+                    hora = h;
+                }
+                addRawSample(porDispositivo, hora, doc);
+            }
+        }
+        porDispositivo.values().forEach(consumer);
+    }
+
+    /**
+     * Recorrer el consumo por hora de un rango en orden cronologico (rollups
+     * y cola cruda, ver forEachHourRollup). Las horas sin consumo no se emiten.
+     * @param houseId casa a filtrar, o null para todas
+     */
+    public void forEachHourTotal(String houseId, long desde, long hasta, HourlyTotalConsumer consumer) {
+        long[] hora = {Long.MIN_VALUE};
+        double[] kwh = {0};
+        forEachHourRollup(houseId, desde, hasta, rollup -> {
+            if (rollup.getBucketStart() != hora[0]) {
+                if (hora[0] != Long.MIN_VALUE) consumer.accept(hora[0], kwh[0]);
+                hora[0] = rollup.getBucketStart();
+                kwh[0] = 0;
+            }
+            kwh[0] += rollup.getKwh();
+        });
+        if (hora[0] != Long.MIN_VALUE) {
+            consumer.accept(hora[0], kwh[0]);
+        }
+    }
+
+    /**
+     * Recorrer los rollups de un dispositivo en orden cronologico
+     * (usa el indice unico granularity + deviceId + bucketStart)
+     */
+    public void forEachDeviceRollup(String granularity, String deviceId, long desde, long hasta,
+                                    Consumer<EnergyRollup> consumer) {
+        try (MongoCursor<Document> cursor = collection.find(and(eq("granularity", granularity),
+                eq("deviceId", deviceId), gte("bucketStart", desde), lt("bucketStart", hasta)))
+                .sort(Sorts.ascending("bucketStart")).iterator()) {
+            while (cursor.hasNext()) {
+                consumer.accept(EnergyRollup.fromDocument(cursor.next()));
+            }
+        }
+    }
+
+    /**
+     * Borrar rollups de una granularidad en [desde, hasta)
+     */
+    public long deleteRange(String granularity, long desde, long hasta) {
+        return collection.deleteMany(and(eq("granularity", granularity),
+            gte("bucketStart", desde), lt("bucketStart", hasta))).getDeletedCount();
+    }
+
+    /**
+     * Timestamp del rollup mas antiguo de una granularidad (o -1 si no hay)
+     */
+    public long oldestBucket(String granularity) {
+        Document doc = collection.find(eq("granularity", granularity))
+            .sort(Sorts.ascending("bucketStart")).first();
+        if (doc == null) return -1;
+        Long start = doc.getLong("bucketStart");
+        return start != null ? start : -1;
+    }
+
+    /**
+     * Hasta donde estan compactadas las horas (exclusivo)
+     */
+    public long getHourlyCheckpoint() {
+        return getCheckpoint(EnergyRollup.GRANULARITY_HOUR, -1);
+    }
+
+    /**
+     * Hasta donde estan compactados los dias (exclusivo)
+     */
+    public long getDailyCheckpoint() {
+        return getCheckpoint(EnergyRollup.GRANULARITY_DAY, -1);
+    }
+
+    private long getCheckpoint(String granularity, long porDefecto) {
+        Document doc = stateCollection.find(eq("_id", granularity)).first();
+        if (doc == null) return porDefecto;
+        Long until = doc.getLong("until");
+        return until != null ? until : porDefecto;
+    }
+
+    private void setCheckpoint(String granularity, long until) {
+        stateCollection.replaceOne(eq("_id", granularity),
+            new Document("_id", granularity).append("until", until),
+            new ReplaceOptions().upsert(true));
+    }
+
+    /**
+     * Alinear a la hora (UTC) hacia abajo
+     */
+    public static long alignHour(long timestamp) {
+        return Math.floorDiv(timestamp, TimeBuckets.HOUR_MS) * TimeBuckets.HOUR_MS;
+    }
+
+    public MongoCollection<Document> getCollection() {
+        return collection;
+    }
+}
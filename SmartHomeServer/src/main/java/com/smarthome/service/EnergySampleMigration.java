@@ -0,0 +1,186 @@
+package com.smarthome.service;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.smarthome.database.MongoDBConnection;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static com.mongodb.client.model.Filters.*;
+
+/**
+ * Migracion de energy_logs a la coleccion time-series energy_samples
+ *
+ * - Copia en orden de _id por lotes (insertMany sin orden); el ultimo _id
+ *   copiado se anota en energy_rollup_state (_id "timeseries"), asi que la
+ *   copia se puede interrumpir y continuar, y una segunda corrida solo copia
+ *   lo que se escribio despues.
+ * - Se limita a maxDocsPorSegundo para no saturar la conexion a Atlas que
+ *   usa el servidor en vivo.
+ * - energy_logs no se borra: queda como respaldo hasta que la retencion lo
+ *   vacie o se elimine a mano.
+ *
+ * Para cambiar de coleccion: copiar con el servidor en marcha, detenerlo,
+ * correr una ultima vez con activar (copia la cola, crea los indices,
+ * prueba las consultas ordenadas y guarda el modo) y volver a arrancar el
+ * servidor. Si la prueba falla no se activa.
+ */
+public class EnergySampleMigration {
+
+    private static final int LOTE = 1000;
+
+    private final MongoCollection<Document> origen;
+    private final MongoCollection<Document> stateCollection;
+    private final EnergySampleStore destino;
+    private final EnergyRollupBackfill.Throttle throttle;
+    private volatile boolean detenido;
+
+    /**
+     * @param maxDocsPorSegundo limite de lectura (0 = sin limite)
+     */
+    public EnergySampleMigration(long maxDocsPorSegundo) {
+        MongoDBConnection conn = MongoDBConnection.getInstance();
+        this.origen = conn.getCollection(EnergyService.COLLECTION_NAME);
+        this.stateCollection = conn.getCollection(EnergyRollupService.STATE_COLLECTION);
+        EnergySampleStore.createTimeSeriesCollection(conn.getDatabase());
+        this.destino = EnergySampleStore.timeSeriesStore();
+        this.throttle = new EnergyRollupBackfill.Throttle(maxDocsPorSegundo);
+    }
+
+    /**
+     * Copiar las muestras pendientes
+     * @param reiniciar olvidar el avance anterior (puede duplicar muestras ya copiadas)
+     * @param activar al terminar, usar la coleccion time-series desde el siguiente arranque
+     * @return resumen de la corrida en JSON
+     */
+    public String run(boolean reiniciar, boolean activar) {
+        long t0 = System.currentTimeMillis();
+        detenido = false;
+
+        Document estado = stateCollection.find(eq("_id", EnergySampleStore.STATE_ID)).first();
+        ObjectId ultimo = !reiniciar && estado != null ? estado.getObjectId("lastId") : null;
+        if (ultimo != null) {
+            System.out.println("[ENERGY] Migracion continua despues de " + ultimo);
+        }
+
+        long copiados = 0;
+        long duplicados = 0;
+        List<Document> lote = new ArrayList<>(LOTE);
+        try (MongoCursor<Document> cursor = origen.find(ultimo != null ? gt("_id", ultimo) : new Document())
+                .sort(Sorts.ascending("_id"))
+                .batchSize(LOTE)
+                .iterator()) {
+            while (!detenido && cursor.hasNext()) {
+                lote.add(destino.toStored(cursor.next()));
+                if (lote.size() == LOTE || !cursor.hasNext()) {
+                    throttle.acquire(lote.size());
+                    duplicados += insert(lote);
+                    copiados += lote.size();
+                    ultimo = lote.get(lote.size() - 1).getObjectId("_id");
+                    saveCheckpoint(ultimo, lote.size());
+                    lote.clear();
+                    if (copiados % 100_000 < LOTE) {
+                        System.out.println("[ENERGY] Migracion: " + copiados + " muestras copiadas");
+                    }
+                }
+            }
+        }
+
+        boolean activada = false;
+        if (activar && !detenido) {
+            // Sin indices o con consultas que MongoDB rechaza, el servidor
+            // arrancaria sobre una coleccion que no puede leer
+            String error = verify();
+            if (error == null) {
+                EnergySampleStore.setActivated(true);
+                activada = true;
+            } else {
+                System.err.println("[ENERGY] Migracion: no se activa la coleccion time-series: " + error);
+            }
+        }
+
+        String resumen = String.format(Locale.US,
+            "{\"copied\": %d, \"duplicates\": %d, \"lastId\": %s, \"total\": %d, " +
+            "\"activated\": %b, \"stopped\": %b, \"tookMs\": %d}",
+            copiados, duplicados, ultimo != null ? "\"" + ultimo.toHexString() + "\"" : "null",
+            destino.count(), activada, detenido, System.currentTimeMillis() - t0);
+        System.out.println("[ENERGY] Migracion terminada: " + resumen);
+        return resumen;
+    }
+
+    /**
+     * Insertar un lote; las claves duplicadas (si la coleccion las rechaza) se ignoran
+     * @return documentos rechazados
+     */
+    private int insert(List<Document> lote) {
+        try {
+            destino.getCollection().insertMany(lote, new InsertManyOptions().ordered(false));
+            return 0;
+        } catch (MongoBulkWriteException e) {
+            boolean soloDuplicados = e.getWriteErrors().stream().allMatch(err -> err.getCode() == 11000);
+            if (!soloDuplicados) throw e;
+            return e.getWriteErrors().size();
+        }
+    }
+
+    /**
+     * Crear los indices del servidor en la coleccion time-series y correr
+     * las consultas ordenadas que usa (paginacion, exportacion, series)
+     * @return null si todo funciono, o el error
+     */
+    String verify() {
+        try {
+            EnergyService.createIndexes(destino);
+            EnergySeriesService.createIndexes(destino);
+
+            Document ultima = destino.find().sort(LogCursor.SORT).limit(1).first();
+            if (ultima == null) return null;
+            long hasta = ultima.getLong("timestamp");
+            long desde = hasta - 60 * 60 * 1000L;
+            destino.find(and(eq("houseId", ultima.getString("houseId")), gte("timestamp", desde), lte("timestamp", hasta)))
+                .sort(Sorts.ascending("timestamp", "_id"))
+                .projection(Projections.include("timestamp", "wattsConsumed", "duration"))
+                .limit(10)
+                .first();
+            destino.find(and(eq("deviceId", ultima.getString("deviceId")), lt("timestamp", hasta)))
+                .sort(LogCursor.SORT)
+                .limit(10)
+                .first();
+            return null;
+        } catch (Exception e) {
+            return e.getMessage();
+        }
+    }
+
+    private void saveCheckpoint(ObjectId ultimo, int docs) {
+        stateCollection.updateOne(eq("_id", EnergySampleStore.STATE_ID),
+            Updates.combine(Updates.set("lastId", ultimo), Updates.inc("copied", (long) docs),
+                Updates.set("updatedAt", System.currentTimeMillis())),
+            new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Volver a energy_logs en el siguiente arranque (las muestras escritas
+     * mientras estuvo activa la coleccion time-series no se copian de regreso)
+     */
+    public static void deactivate() {
+        EnergySampleStore.setActivated(false);
+    }
+
+    /**
+     * Detener la copia al terminar el lote en curso (el avance queda guardado)
+     */
+    public void stop() {
+        detenido = true;
+    }
+}
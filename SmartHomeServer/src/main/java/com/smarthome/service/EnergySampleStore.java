@@ -0,0 +1,321 @@
+package com.smarthome.service;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.TimeSeriesGranularity;
+import com.mongodb.client.model.TimeSeriesOptions;
+import com.smarthome.database.MongoDBConnection;
+import org.bson.*;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.mongodb.client.model.Filters.*;
+
+/**
+ * Almacen de las muestras crudas de energia
+ *
+ * Las muestras pueden vivir en la coleccion normal energy_logs (un
+ * documento plano por muestra) o en la coleccion time-series nativa
+ * energy_samples, donde MongoDB agrupa las muestras en cubetas por
+ * dispositivo y comprime por columna:
+ *
+ *   { ts: Date (timeField), meta: {deviceId, houseId, deviceType, deviceName, room} (metaField),
+ *     wattsConsumed, duration, eventType }
+ *
+ * El resto del codigo sigue escribiendo filtros, ordenes y proyecciones
+ * con los nombres planos (timestamp en ms, deviceId, houseId...). En modo
+ * time-series el almacen los traduce (timestamp -> ts, en filtros como fecha; campos
+ * de dispositivo -> meta.*) y regresa cada documento ya aplanado, asi que
+ * EnergyLog.fromDocument y kwhFromDocument no cambian.
+ *
+ * El modo se elige al arrancar: time-series si MigrateEnergyTimeSeries lo
+ * activo (documento "timeseries" en energy_rollup_state).
+ *
+ * Nota: las colecciones time-series no tienen indice unico en _id (en
+ * energy_logs el duplicado se rechaza). Antes de reintentar un lote con
+ * resultado desconocido el escritor busca con writtenFilter las muestras
+ * que si quedaron; solo si esa busqueda tambien falla puede duplicar.
+ */
+public final class EnergySampleStore {
+
+    public static final String TS_COLLECTION_NAME = "energy_samples";
+    public static final String TIME_FIELD = "ts";
+    public static final String META_FIELD = "meta";
+    static final String STATE_ID = "timeseries";
+
+    private static final String TIMESTAMP = "timestamp";
+    private static final Set<String> META = Set.of("deviceId", "houseId", "deviceType", "deviceName", "room");
+
+    private final boolean timeSeries;
+    private final String collectionName;
+    private final MongoCollection<Document> collection;
+
+    // Singleton
+    private static EnergySampleStore instance;
+
+    public static synchronized EnergySampleStore getInstance() {
+        if (instance == null) {
+            instance = new EnergySampleStore(isActivated());
+        }
+        return instance;
+    }
+
+    private EnergySampleStore(boolean timeSeries) {
+        this.timeSeries = timeSeries;
+        this.collectionName = timeSeries ? TS_COLLECTION_NAME : EnergyService.COLLECTION_NAME;
+        this.collection = MongoDBConnection.getInstance().getCollection(collectionName);
+        if (timeSeries) {
+            System.out.println("[ENERGY] Muestras en coleccion time-series " + TS_COLLECTION_NAME);
+        }
+    }
+
+    /**
+     * Almacen sobre la coleccion time-series aunque no este activada
+     * (para la migracion)
+     */
+    static EnergySampleStore timeSeriesStore() {
+        return new EnergySampleStore(true);
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // CONSULTAS
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Consulta con nombres planos; los documentos salen aplanados
+     */
+    public final class Query {
+        private final Bson filtro;
+        private Bson sort;
+        private Bson projection;
+        private int limit;
+        private int batchSize;
+
+        Query(Bson filtro) {
+            this.filtro = filtro;
+        }
+
+        public Query sort(Bson sort) { this.sort = sort; return this; }
+        public Query projection(Bson projection) { this.projection = projection; return this; }
+        public Query limit(int limit) { this.limit = limit; return this; }
+        public Query batchSize(int batchSize) { this.batchSize = batchSize; return this; }
+
+        private FindIterable<Document> build() {
+            FindIterable<Document> it = collection.find(translate(filtro));
+            if (sort != null) it.sort(translateKeys(sort));
+            if (projection != null) it.projection(translateKeys(projection));
+            if (limit > 0) it.limit(limit);
+            if (batchSize > 0) it.batchSize(batchSize);
+            return it;
+        }
+
+        public MongoCursor<Document> iterator() {
+            return timeSeries ? build().map(EnergySampleStore::flatten).iterator() : build().iterator();
+        }
+
+        public Document first() {
+            Document doc = build().first();
+            return timeSeries && doc != null ? flatten(doc) : doc;
+        }
+    }
+
+    public Query find() {
+        return new Query(new Document());
+    }
+
+    public Query find(Bson filtro) {
+        return new Query(filtro);
+    }
+
+    public long deleteMany(Bson filtro) {
+        return collection.deleteMany(translate(filtro)).getDeletedCount();
+    }
+
+    public long count() {
+        return collection.countDocuments();
+    }
+
+    /**
+     * Crear un indice (llaves con nombres planos)
+     */
+    public void createIndex(Bson keys) {
+        collection.createIndex(translateKeys(keys));
+    }
+
+    /**
+     * Filtro para encontrar las muestras de un lote (ya en la forma de la
+     * coleccion) que quedaron escritas; el rango de ts deja que MongoDB
+     * descarte cubetas sin revisarlas. null si la coleccion rechaza el _id
+     * repetido y no hace falta buscar
+     */
+    public Bson writtenFilter(List<Document> lote) {
+        if (!timeSeries || lote.isEmpty()) return null;
+        List<Object> ids = new ArrayList<>(lote.size());
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (Document doc : lote) {
+            ids.add(doc.get("_id"));
+            Date ts = doc.getDate(TIME_FIELD);
+            if (ts != null) {
+                min = Math.min(min, ts.getTime());
+                max = Math.max(max, ts.getTime());
+            }
+        }
+        if (min > max) return in("_id", ids);
+        return and(gte(TIME_FIELD, new Date(min)), lte(TIME_FIELD, new Date(max)), in("_id", ids));
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // FORMA DE LOS DOCUMENTOS
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Documento plano (EnergyLog.toDocument) en la forma de la coleccion
+     */
+    public Document toStored(Document plano) {
+        if (!timeSeries) return plano;
+        Document meta = new Document();
+        Document doc = new Document();
+        for (Map.Entry<String, Object> e : plano.entrySet()) {
+            String key = e.getKey();
+            if (TIMESTAMP.equals(key)) {
+                doc.put(TIME_FIELD, new Date(((Number) e.getValue()).longValue()));
+            } else if (META.contains(key)) {
+                if (e.getValue() != null) meta.put(key, e.getValue());
+            } else {
+                doc.put(key, e.getValue());
+            }
+        }
+        doc.put(META_FIELD, meta);
+        return doc;
+    }
+
+    /**
+     * Documento time-series a la forma plana (timestamp en ms, meta arriba)
+     */
+    static Document flatten(Document doc) {
+        Object ts = doc.remove(TIME_FIELD);
+        if (ts instanceof Date) {
+            doc.put(TIMESTAMP, ((Date) ts).getTime());
+        }
+        Object meta = doc.remove(META_FIELD);
+        if (meta instanceof Document) {
+            doc.putAll((Document) meta);
+        }
+        return doc;
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // TRADUCCION DE NOMBRES
+    // ═══════════════════════════════════════════════════════════
+
+    private Bson translate(Bson bson) {
+        if (!timeSeries || bson == null) return bson;
+        BsonDocument plano = bson.toBsonDocument(BsonDocument.class, collection.getCodecRegistry());
+        return translateDocument(plano, false);
+    }
+
+    private static BsonDocument translateDocument(BsonDocument doc, boolean esTiempo) {
+        BsonDocument out = new BsonDocument();
+        for (Map.Entry<String, BsonValue> e : doc.entrySet()) {
+            String key = e.getKey();
+            if (key.startsWith("$")) {
+                // Operador ($and, $or, $gte...): se conserva y se traducen sus argumentos
+                out.put(key, translateValue(e.getValue(), esTiempo));
+            } else if (TIMESTAMP.equals(key)) {
+                out.put(TIME_FIELD, translateValue(e.getValue(), true));
+            } else if (META.contains(key)) {
+                out.put(META_FIELD + "." + key, translateValue(e.getValue(), false));
+            } else {
+                out.put(key, translateValue(e.getValue(), false));
+            }
+        }
+        return out;
+    }
+
+    private static BsonValue translateValue(BsonValue value, boolean esTiempo) {
+        if (value.isDocument()) {
+            return translateDocument(value.asDocument(), esTiempo);
+        }
+        if (value.isArray()) {
+            BsonArray out = new BsonArray();
+            for (BsonValue v : value.asArray()) {
+                out.add(translateValue(v, esTiempo));
+            }
+            return out;
+        }
+        if (esTiempo && value.isNumber()) {
+            return new BsonDateTime(value.asNumber().longValue());
+        }
+        return value;
+    }
+
+    /**
+     * Proyecciones, ordenes y llaves de indice: solo se cambian los nombres.
+     * Sus valores (1/0, 1/-1, "text"...) no son tiempos y no se convierten a fecha
+     */
+    private Bson translateKeys(Bson keys) {
+        if (!timeSeries || keys == null) return keys;
+        return translateKeys(keys.toBsonDocument(BsonDocument.class, collection.getCodecRegistry()));
+    }
+
+    static BsonDocument translateKeys(BsonDocument plano) {
+        BsonDocument out = new BsonDocument();
+        for (Map.Entry<String, BsonValue> e : plano.entrySet()) {
+            String key = e.getKey();
+            if (TIMESTAMP.equals(key)) key = TIME_FIELD;
+            else if (META.contains(key)) key = META_FIELD + "." + key;
+            out.put(key, e.getValue());
+        }
+        return out;
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // ACTIVACION
+    // ═══════════════════════════════════════════════════════════
+
+    private static boolean isActivated() {
+        Document estado = MongoDBConnection.getInstance()
+            .getCollection(EnergyRollupService.STATE_COLLECTION)
+            .find(eq("_id", STATE_ID)).first();
+        return estado != null && Boolean.TRUE.equals(estado.getBoolean("active"));
+    }
+
+    /**
+     * Guardar el modo que se usara en el siguiente arranque
+     */
+    static void setActivated(boolean activo) {
+        MongoCollection<Document> estado = MongoDBConnection.getInstance()
+            .getCollection(EnergyRollupService.STATE_COLLECTION);
+        Document doc = estado.find(eq("_id", STATE_ID)).first();
+        if (doc == null) doc = new Document("_id", STATE_ID);
+        doc.put("active", activo);
+        doc.put("updatedAt", System.currentTimeMillis());
+        estado.replaceOne(eq("_id", STATE_ID), doc, new ReplaceOptions().upsert(true));
+    }
+
+    /**
+     * Crear la coleccion time-series si no existe
+     */
+    static void createTimeSeriesCollection(MongoDatabase db) {
+        for (String nombre : db.listCollectionNames()) {
+            if (TS_COLLECTION_NAME.equals(nombre)) return;
+        }
+        db.createCollection(TS_COLLECTION_NAME, new CreateCollectionOptions().timeSeriesOptions(
+            new TimeSeriesOptions(TIME_FIELD).metaField(META_FIELD).granularity(TimeSeriesGranularity.SECONDS)));
+        System.out.println("[ENERGY] Coleccion time-series creada: " + TS_COLLECTION_NAME);
+    }
+
+    public boolean isTimeSeries() { return timeSeries; }
+    public String getCollectionName() { return collectionName; }
+    MongoCollection<Document> getCollection() { return collection; }
+}
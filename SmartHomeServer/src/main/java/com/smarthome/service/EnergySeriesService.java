@@ -0,0 +1,374 @@
+package com.smarthome.service;
+
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+import com.smarthome.model.EnergyLog;
+import com.smarthome.model.EnergyRollup;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.Locale;
+
+import static com.mongodb.client.model.Filters.*;
+
+/**
+ * Series de potencia (watts vs tiempo) reducidas en el servidor para graficas
+ *
+ * Recorre en una sola pasada las muestras crudas o los rollups del rango y
+ * alimenta un SeriesDownsampler, de modo que la respuesta tiene siempre a lo
+ * mas "puntos" puntos sin importar si el rango es de una hora o de un ano.
+ *
+ * Fuentes (source):
+ * - raw:  muestras de energy_logs (rangos cortos y recientes)
+ * - hour: rollups HOUR + muestras crudas de la hora aun no compactada
+ * - day:  rollups DAY + HOUR + crudas para el tramo aun no compactado
+ * - auto: elige segun el largo del rango y la retencion de cada nivel
+ *
+ * Sin deviceId se grafica el total de la casa houseId (suma de cada tick de
+ * muestreo; sin houseId, de todas las casas).
+ */
+public class EnergySeriesService {
+
+    public static final String SOURCE_AUTO = "auto";
+    public static final String SOURCE_RAW = "raw";
+    public static final String SOURCE_HOUR = "hour";
+    public static final String SOURCE_DAY = "day";
+
+    public static final int PUNTOS_DEFAULT = 300;
+    public static final int PUNTOS_MAX = 2000;
+
+    private static final long RAW_MAX_RANGO_MS = 2 * TimeBuckets.DAY_MS;
+    private static final long HOUR_MAX_RANGO_MS = 90 * TimeBuckets.DAY_MS;
+    private static final long INTERVALO_MS = EnergyService.INTERVALO_MUESTREO_SEGUNDOS * 1000L;
+
+    private static final Document SERIES_PROJECTION = new Document("timestamp", 1)
+        .append("wattsConsumed", 1).append("duration", 1)
+        .append("eventType", 1).append("deviceType", 1);
+
+    private final EnergySampleStore rawStore;
+    private final EnergyRollupService rollupService;
+    private final int diasCrudos;
+    private final int diasHoras;
+
+    public EnergySeriesService(EnergyRollupService rollupService, int diasCrudos, int diasHoras) {
+        this.rawStore = EnergySampleStore.getInstance();
+        this.rollupService = rollupService;
+        this.diasCrudos = diasCrudos;
+        this.diasHoras = diasHoras;
+    }
+
+    /**
+     * Crear el indice de lecturas por dispositivo ordenadas por tiempo
+     * (las de una casa usan el indice houseId/timestamp de EnergyService)
+     */
+    public void ensureIndexes() {
+        try {
+            createIndexes(rawStore);
+        } catch (Exception e) {
+            System.err.println("[ENERGY] Error creando indices de series: " + e.getMessage());
+        }
+    }
+
+    static void createIndexes(EnergySampleStore destino) {
+        destino.createIndex(Indexes.ascending("deviceId", "timestamp"));
+    }
+
+    /**
+     * Resultado de una consulta de serie
+     */
+    public static class Result {
+        public final String source;
+        public final String mode;
+        public final String houseId;
+        public final String deviceId;
+        public final long desde;
+        public final long hasta;
+        public final long inputPoints;
+        public final SeriesDownsampler.Series series;
+
+        Result(String source, String mode, String houseId, String deviceId, long desde, long hasta,
+               long inputPoints, SeriesDownsampler.Series series) {
+            this.source = source;
+            this.mode = mode;
+            this.houseId = houseId;
+            this.deviceId = deviceId;
+            this.desde = desde;
+            this.hasta = hasta;
+            this.inputPoints = inputPoints;
+            this.series = series;
+        }
+
+        /**
+         * JSON compacto: arreglos paralelos t (epoch ms) y w (watts)
+         */
+        public String toJson() {
+            StringBuilder sb = new StringBuilder(64 + series.size() * 24);
+            sb.append("{\"source\": \"").append(source).append("\"")
+              .append(", \"mode\": \"").append(mode).append("\"")
+              .append(", \"houseId\": ").append(houseId != null ? "\"" + houseId + "\"" : "null")
+              .append(", \"deviceId\": ").append(deviceId != null ? "\"" + deviceId + "\"" : "null")
+              .append(", \"desde\": ").append(desde)
+              .append(", \"hasta\": ").append(hasta)
+              .append(", \"inputPoints\": ").append(inputPoints)
+              .append(", \"points\": ").append(series.size())
+              .append(", \"t\": [");
+            for (int i = 0; i < series.size(); i++) {
+                if (i > 0) sb.append(",");
+                sb.append(series.timeAt(i));
+            }
+            sb.append("], \"w\": [");
+            for (int i = 0; i < series.size(); i++) {
+                if (i > 0) sb.append(",");
+                sb.append(String.format(Locale.US, "%.1f", series.valueAt(i)));
+            }
+            sb.append("]}");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Obtener la serie de potencia reducida
+     * @param houseId casa del total (se ignora con deviceId), o null para todas
+     * @param deviceId dispositivo, o null para el total de la casa
+     * @param mode "lttb" o "minmax"
+     * @param source raw | hour | day | auto
+     */
+    public Result getSeries(String houseId, String deviceId, long desde, long hasta, int puntos,
+                            String mode, String source) {
+        if (hasta <= desde) {
+            throw new IllegalArgumentException("Rango invalido: hasta <= desde");
+        }
+        if (deviceId != null) {
+            houseId = null;
+        }
+        puntos = Math.max(3, Math.min(PUNTOS_MAX, puntos));
+        boolean minMax = "minmax".equals(mode);
+        String fuente = resolveSource(source, desde, hasta);
+
+        SeriesDownsampler sampler = minMax
+            ? SeriesDownsampler.minMax(desde, hasta, puntos)
+            : SeriesDownsampler.lttb(desde, hasta, puntos);
+
+        switch (fuente) {
+            case SOURCE_RAW:
+                GapFiller crudo = new GapFiller(sampler, INTERVALO_MS);
+                readRaw(houseId, deviceId, desde, hasta, crudo);
+                break;
+
+            case SOURCE_HOUR:
+            case SOURCE_DAY:
+                readRollupChain(houseId, deviceId, desde, hasta, SOURCE_DAY.equals(fuente), sampler);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Fuente no valida: " + source);
+        }
+
+        return new Result(fuente, minMax ? "minmax" : "lttb", houseId, deviceId, desde, hasta,
+            sampler.getCount(), sampler.finish());
+    }
+
+    /**
+     * Elegir la fuente segun el largo del rango y lo que aun existe de cada nivel
+     */
+    String resolveSource(String source, long desde, long hasta) {
+        if (source != null && !SOURCE_AUTO.equals(source)) {
+            return source;
+        }
+        long ahora = System.currentTimeMillis();
+        long rango = hasta - desde;
+        if (rango > HOUR_MAX_RANGO_MS || desde < ahora - diasHoras * TimeBuckets.DAY_MS) {
+            return SOURCE_DAY;
+        }
+        if (rango > RAW_MAX_RANGO_MS || desde < ahora - diasCrudos * TimeBuckets.DAY_MS) {
+            return SOURCE_HOUR;
+        }
+        return SOURCE_RAW;
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // MUESTRAS CRUDAS
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Recorrer las muestras crudas en orden. Sin deviceId se suman las
+     * muestras de un mismo tick (todas caen dentro de medio intervalo).
+     */
+    private void readRaw(String houseId, String deviceId, long desde, long hasta, GapFiller sink) {
+        Bson filtro = rawFilter(houseId, deviceId, desde, hasta);
+
+        long tickT = Long.MIN_VALUE;
+        double tickW = 0;
+        try (MongoCursor<Document> cursor = rawStore.find(filtro)
+                .projection(SERIES_PROJECTION)
+                .sort(Sorts.ascending("timestamp")).iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                long ts = EnergyService.timestampOf(doc);
+                Double w = doc.getDouble("wattsConsumed");
+                double watts = w != null ? w : 0;
+
+                if (deviceId != null) {
+                    sink.add(ts, watts);
+                    continue;
+                }
+                if (tickT != Long.MIN_VALUE && ts - tickT < INTERVALO_MS / 2) {
+                    tickW += watts;
+                } else {
+                    if (tickT != Long.MIN_VALUE) sink.add(tickT, tickW);
+                    tickT = ts;
+                    tickW = watts;
+                }
+            }
+        }
+        if (tickT != Long.MIN_VALUE) sink.add(tickT, tickW);
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // ROLLUPS
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Dias compactados (si se pidio) -> horas compactadas -> horas crudas aun
+     * no compactadas. Cada tramo empieza donde termina el anterior.
+     */
+    private void readRollupChain(String houseId, String deviceId, long desde, long hasta, boolean usarDias,
+                                 SeriesDownsampler sampler) {
+        GapFiller sink = new GapFiller(sampler, TimeBuckets.HOUR_MS);
+        long cursor = desde;
+
+        if (usarDias) {
+            long hastaDias = Math.min(hasta, Math.max(desde, rollupService.getDailyCheckpoint()));
+            if (hastaDias > cursor) {
+                // Los dias cambian de largo solo con el horario de verano; basta DAY_MS
+                sink.setStep(TimeBuckets.DAY_MS);
+                readRollups(EnergyRollup.GRANULARITY_DAY, houseId, deviceId, cursor, hastaDias,
+                    TimeBuckets.DAY_MS, sink);
+                sink.setStep(TimeBuckets.HOUR_MS);
+                cursor = hastaDias;
+            }
+        }
+
+        long hastaHoras = Math.min(hasta, Math.max(cursor, rollupService.getHourlyCheckpoint()));
+        if (hastaHoras > cursor) {
+            readRollups(EnergyRollup.GRANULARITY_HOUR, houseId, deviceId, cursor, hastaHoras,
+                TimeBuckets.HOUR_MS, sink);
+            cursor = hastaHoras;
+        }
+
+        if (hasta > cursor) {
+            readRawHourly(houseId, deviceId, cursor, hasta, sink);
+        }
+    }
+
+    /**
+     * Rollups de una granularidad; sin deviceId se suman los de la misma cubeta
+     */
+    private void readRollups(String granularity, String houseId, String deviceId, long desde, long hasta,
+                             long bucketMs, GapFiller sink) {
+        long[] actual = {Long.MIN_VALUE};
+        double[] kwh = {0};
+
+        java.util.function.Consumer<EnergyRollup> consumer = rollup -> {
+            if (rollup.getBucketStart() != actual[0]) {
+                if (actual[0] != Long.MIN_VALUE) {
+                    sink.add(actual[0], kwhToWatts(kwh[0], bucketMs));
+                }
+                actual[0] = rollup.getBucketStart();
+                kwh[0] = 0;
+            }
+            kwh[0] += rollup.getKwh();
+        };
+
+        if (deviceId != null) {
+            rollupService.forEachDeviceRollup(granularity, deviceId, desde, hasta, consumer);
+        } else {
+            rollupService.forEachRollup(granularity, houseId, desde, hasta, consumer);
+        }
+        if (actual[0] != Long.MIN_VALUE) {
+            sink.add(actual[0], kwhToWatts(kwh[0], bucketMs));
+        }
+    }
+
+    /**
+     * Muestras crudas agregadas por hora (tramo aun no compactado)
+     * La hora en curso se promedia sobre el tiempo transcurrido
+     */
+    private void readRawHourly(String houseId, String deviceId, long desde, long hasta, GapFiller sink) {
+        Bson filtro = rawFilter(houseId, deviceId, desde, hasta);
+
+        long ahora = System.currentTimeMillis();
+        long hora = Long.MIN_VALUE;
+        double kwh = 0;
+        try (MongoCursor<Document> cursor = rawStore.find(filtro)
+                .projection(SERIES_PROJECTION)
+                .sort(Sorts.ascending("timestamp")).iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                long h = EnergyRollupService.alignHour(EnergyService.timestampOf(doc));
+                if (h != hora) {
+                    if (hora != Long.MIN_VALUE) {
+                        sink.add(hora, kwhToWatts(kwh, TimeBuckets.HOUR_MS));
+                    }
+                    hora = h;
+                    kwh = 0;
+                }
+                kwh += EnergyLog.kwhFromDocument(doc);
+            }
+        }
+        if (hora != Long.MIN_VALUE) {
+            long transcurrido = Math.min(TimeBuckets.HOUR_MS, Math.max(1, Math.min(hasta, ahora) - hora));
+            sink.add(hora, kwhToWatts(kwh, transcurrido));
+        }
+    }
+
+    /**
+     * Filtro de muestras crudas de un dispositivo, una casa o todas
+     */
+    private static Bson rawFilter(String houseId, String deviceId, long desde, long hasta) {
+        Bson filtro = and(gte("timestamp", desde), lt("timestamp", hasta));
+        if (deviceId != null) {
+            return and(eq("deviceId", deviceId), filtro);
+        }
+        if (houseId != null) {
+            return and(eq("houseId", houseId), filtro);
+        }
+        return filtro;
+    }
+
+    private static double kwhToWatts(double kwh, long ms) {
+        return ms > 0 ? kwh * 1000 * TimeBuckets.HOUR_MS / ms : 0;
+    }
+
+    /**
+     * Inserta puntos en cero en los huecos (dispositivo apagado o sin
+     * muestras) para que la grafica no una con una recta dos tramos
+     * separados. Solo agrega los bordes del hueco, no un punto por intervalo.
+     */
+    private static class GapFiller {
+        private final SeriesDownsampler sampler;
+        private long step;
+        private long prevT = Long.MIN_VALUE;
+        private double prevV;
+
+        GapFiller(SeriesDownsampler sampler, long step) {
+            this.sampler = sampler;
+            this.step = step;
+        }
+
+        void setStep(long step) {
+            this.step = step;
+        }
+
+        void add(long t, double v) {
+            if (prevT != Long.MIN_VALUE && t - prevT > 2 * step) {
+                if (prevV != 0) sampler.add(prevT + step, 0);
+                if (v != 0) sampler.add(t - step, 0);
+            }
+            sampler.add(t, v);
+            prevT = t;
+            prevV = v;
+        }
+    }
+}
@@ -1,15 +1,23 @@
 package com.smarthome.service;
 
-import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.Sorts;
-import com.smarthome.database.MongoDBConnection;
+import com.smarthome.database.BatchedLogWriter;
 import com.smarthome.model.Device;
+import com.smarthome.model.EnergyDashboard;
 import com.smarthome.model.EnergyLog;
+import com.smarthome.model.SamplerStats;
+import com.smarthome.protocol.JsonStreamWriter;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 import static com.mongodb.client.model.Filters.*;
 
@@ -19,15 +27,46 @@ import static com.mongodb.client.model.Filters.*;
  */
 public class EnergyService {
     
-    private static final String COLLECTION_NAME = "energy_logs";
-    private static final int INTERVALO_MUESTREO_SEGUNDOS = 5; // Cada 5 segundos
+    public static final String COLLECTION_NAME = "energy_logs";
+    public static final int INTERVALO_MUESTREO_SEGUNDOS = 5; // Cada 5 segundos
+    private static final int RESYNC_SEGUNDOS = 60; // Recarga del estado de dispositivos
     
-    private MongoCollection<Document> collection;
+    // Escritura por lotes de energy_logs
+    private static final int COLA_MAX_LOGS = 50_000;  // Memoria acotada si la base no responde
+    private static final int LOTE_LOGS = 500;
+    private static final long ESPERA_LOTE_MS = 1000;
+    private static final int REINTENTOS_LOTE = 5;
+    public static final double PRECIO_KWH_DEFAULT = 1.20; // Precio promedio en MXN
+    
+    // Campos necesarios para calcular kWh por cubeta (evita traer documentos completos)
+    private static final Document KWH_PROJECTION = new Document("timestamp", 1)
+        .append("wattsConsumed", 1).append("duration", 1)
+        .append("eventType", 1).append("deviceType", 1);
+    private static final java.time.format.DateTimeFormatter DAY_LABEL = 
+        java.time.format.DateTimeFormatter.ofPattern("dd/MM");
+    
+    private final EnergySampleStore store;
     private DeviceService deviceService;
     private ScheduledExecutorService scheduler;
+    private ForkJoinPool shardPool;
+    private final BatchedLogWriter logWriter;
+    
+    // Estado en memoria de los dispositivos (avisado por DeviceService)
+    private final DeviceStateRegistry registry = DeviceStateRegistry.getInstance();
+    private final SamplerStats samplerStats = new SamplerStats(INTERVALO_MUESTREO_SEGUNDOS * 1000L);
     
     // Cache de watts actuales por dispositivo (para mostrar en tiempo real)
-    private Map<String, Double> deviceCurrentWatts = new ConcurrentHashMap<>();
+    // (se reemplaza completo en cada tick)
+    private volatile Map<String, Double> deviceCurrentWatts = new ConcurrentHashMap<>();
+    
+    // Cache de resultados de consultas (invalidada al registrar muestras)
+    private EnergyQueryCache queryCache = new EnergyQueryCache();
+    
+    // Cubo casa -> habitacion -> dispositivo (se alimenta con cada tick)
+    private final EnergyCube cube = new EnergyCube();
+    
+    // Suscriptores de la telemetria por tick (WebSocket, SSE)
+    private List<Consumer<String>> tickListeners = new CopyOnWriteArrayList<>();
     
     // Singleton
     private static EnergyService instance;
@@ -40,9 +79,33 @@ public class EnergyService {
     }
     
     public EnergyService() {
-        this.collection = MongoDBConnection.getInstance()
-                .getCollection(COLLECTION_NAME);
+        // energy_logs o la coleccion time-series, segun la migracion
+        this.store = EnergySampleStore.getInstance();
         this.deviceService = new DeviceService();
+        
+        // Las muestras se escriben por lotes en segundo plano; la cache se
+        // invalida cuando el lote ya es visible en la base
+        this.logWriter = new BatchedLogWriter("energy", store.getCollection(), 
+            COLA_MAX_LOGS, LOTE_LOGS, ESPERA_LOTE_MS, REINTENTOS_LOTE);
+        this.logWriter.setOnFlush(this::invalidateFlushed);
+        this.logWriter.setWrittenFilter(store::writtenFilter);
+        this.logWriter.start();
+    }
+    
+    /**
+     * Invalidar las consultas cacheadas que cubren un lote recien escrito
+     */
+    private void invalidateFlushed(List<Document> lote) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (Document doc : lote) {
+            long ts = timestampOf(doc);
+            min = Math.min(min, ts);
+            max = Math.max(max, ts);
+        }
+        if (min <= max) {
+            queryCache.invalidateRange(min, max);
+        }
     }
     
     /**
@@ -54,7 +117,17 @@ public class EnergyService {
             return; // Ya esta corriendo
         }
         
-        scheduler = Executors.newSingleThreadScheduledExecutor();
+        // Dos hilos: la recarga desde la base no retrasa los ticks
+        scheduler = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "Energy-Sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        // Pool work-stealing: una tarea por casa en cada tick
+        shardPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        
+        // Cargar el estado de los dispositivos y refrescarlo periodicamente
+        scheduler.scheduleWithFixedDelay(this::resyncDevices, 0, RESYNC_SEGUNDOS, TimeUnit.SECONDS);
         scheduler.scheduleAtFixedRate(
             this::sampleAllDevices, 
             10, // Delay inicial de 10 segundos
@@ -69,120 +142,231 @@ public class EnergyService {
      * Detener el muestreo
      */
     public void stopSampling() {
-        if (scheduler != null) {
-            scheduler.shutdown();
-            System.out.println("[ENERGY] Muestreo detenido");
+        // Esperar el muestreo en curso (y sus shards) para que sus muestras
+        // lleguen a la cola antes de vaciarla
+        awaitPool(scheduler);
+        awaitPool(shardPool);
+        System.out.println("[ENERGY] Muestreo detenido");
+        // Escribir lo que quede en la cola antes de cerrar la conexion
+        logWriter.stop(10_000);
+    }
+    
+    private static void awaitPool(ExecutorService pool) {
+        if (pool == null) {
+            return;
+        }
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(5, TimeUnit.SECONDS)) {
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
         }
     }
     
     /**
-     * Muestrear todos los dispositivos y registrar consumo de los encendidos
+     * Recargar el estado de los dispositivos desde la base
+     * (cambios hechos por otros procesos; los de este proceso llegan por DeviceService)
+     */
+    private void resyncDevices() {
+        try {
+            long leidoEn = System.currentTimeMillis();
+            registry.resync(deviceService.findAll(), leidoEn);
+            samplerStats.setLastResync(leidoEn);
+        } catch (Exception e) {
+            System.err.println("[ENERGY] Error sincronizando dispositivos: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Muestrear los dispositivos encendidos y registrar su consumo
+     * Cada casa es un shard que se muestrea en paralelo a partir del estado
+     * en memoria (DeviceStateRegistry); el costo es O(dispositivos activos)
      */
     private void sampleAllDevices() {
+        long inicio = System.nanoTime();
+        long ts = System.currentTimeMillis();
+        int encendidos = 0;
+        int shards = 0;
+        boolean error = false;
+        
         try {
-            List<Device> devices = deviceService.findAll();
-            int encendidos = 0;
+            List<Callable<ShardResult>> tareas = new ArrayList<>();
+            for (Map.Entry<String, Map<String, DeviceStateRegistry.DeviceState>> casa : 
+                    registry.getActiveByHouse().entrySet()) {
+                Collection<DeviceStateRegistry.DeviceState> activos = casa.getValue().values();
+                if (!activos.isEmpty()) {
+                    tareas.add(() -> sampleHouse(activos, ts));
+                }
+            }
+            shards = tareas.size();
+            
             double totalWatts = 0;
             StringBuilder nombresActivos = new StringBuilder();
+            StringBuilder frameDevices = new StringBuilder();
+            Map<String, Double> wattsActuales = new ConcurrentHashMap<>();
             
-            deviceCurrentWatts.clear();
-            
-            for (Device device : devices) {
-                String tipo = device.getType();
-                
-                // Ignorar porton (solo consume por accion)
-                if ("door".equals(tipo)) {
+            for (Future<ShardResult> futuro : shardPool.invokeAll(tareas)) {
+                ShardResult shard;
+                try {
+                    shard = futuro.get();
+                } catch (ExecutionException e) {
+                    error = true;
+                    System.err.println("[ENERGY] Error en shard de muestreo: " + e.getCause().getMessage());
                     continue;
                 }
+                if (shard.count == 0) continue;
                 
-                // Verificar si esta encendido segun el tipo
-                boolean estaEncendido = isDeviceConsuming(device);
-                
-                if (estaEncendido) {
-                    double watts = EnergyLog.calculateWatts(tipo, "ON", device.getValue());
-                    
-                    // Registrar consumo por el intervalo de muestreo
-                    EnergyLog log = new EnergyLog(
-                        device.getIdString(), 
-                        device.getName(), 
-                        tipo, 
-                        "SAMPLE"
-                    );
-                    log.setWattsConsumed(watts);
-                    log.setDuration(INTERVALO_MUESTREO_SEGUNDOS * 1000L); // en milisegundos
-                    
-                    // Usar houseId del dispositivo, o "default" si es null
-                    String houseId = device.getHouseId();
-                    if (houseId == null || houseId.isEmpty()) {
-                        houseId = "default";
-                    }
-                    log.setHouseId(houseId);
-                    
-                    collection.insertOne(log.toDocument());
-                    
-                    // Guardar en cache para mostrar en tiempo real
-                    deviceCurrentWatts.put(device.getName(), watts);
-                    
-                    // Agregar nombre a la lista
-                    if (encendidos > 0) nombresActivos.append(", ");
-                    nombresActivos.append(device.getName()).append("(").append(String.format("%.0f", watts)).append("W)");
-                    
-                    encendidos++;
-                    totalWatts += watts;
+                if (encendidos > 0) {
+                    nombresActivos.append(", ");
+                    frameDevices.append(",");
                 }
+                nombresActivos.append(shard.nombres);
+                frameDevices.append(shard.frame.toString(StandardCharsets.UTF_8));
+                wattsActuales.putAll(shard.watts);
+                encendidos += shard.count;
+                totalWatts += shard.totalWatts;
             }
             
+            // Guardar en cache para mostrar en tiempo real
+            deviceCurrentWatts = wattsActuales;
+            
             if (encendidos > 0) {
                 System.out.printf("[ENERGY] Muestreo: %d dispositivos, %.1fW total -> %s%n", 
                     encendidos, totalWatts, nombresActivos.toString());
             }
             
+            publishTick(ts, totalWatts, frameDevices.toString());
+            
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
+            error = true;
             System.err.println("[ENERGY] Error en muestreo: " + e.getMessage());
+        } finally {
+            double duracionMs = (System.nanoTime() - inicio) / 1_000_000.0;
+            samplerStats.record(ts, duracionMs, encendidos, shards, registry.getDeviceCount(), error);
+            if (duracionMs > INTERVALO_MUESTREO_SEGUNDOS * 1000L) {
+                System.err.printf("[ENERGY] Tick de muestreo excedio el intervalo: %.0f ms%n", duracionMs);
+            }
         }
     }
     
     /**
-     * Determinar si un dispositivo esta consumiendo energia
-     * Logica especifica por tipo
+     * Resultado del muestreo de una casa
+     */
+    private static class ShardResult {
+        int count;
+        double totalWatts;
+        StringBuilder nombres = new StringBuilder();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        Map<String, Double> watts = new HashMap<>();
+    }
+    
+    /**
+     * Muestrear los dispositivos activos de una casa
+     * (las muestras se encolan en el escritor por lotes, sin esperar a la base)
      */
-    private boolean isDeviceConsuming(Device device) {
-        String tipo = device.getType();
-        boolean status = device.isStatus();
-        String color = device.getColor(); // Para speaker, contiene el comando
+    private ShardResult sampleHouse(Collection<DeviceStateRegistry.DeviceState> activos, long ts) 
+            throws IOException {
+        ShardResult shard = new ShardResult();
+        List<Document> docs = new ArrayList<>();
+        // Los nombres vienen del usuario: el escritor los escapa
+        JsonStreamWriter frame = new JsonStreamWriter(shard.frame);
         
-        switch (tipo) {
-            case "light":
-                // Luz encendida = status true
-                return status;
-                
-            case "tv":
-                // TV mostrada = status TRUE = consume energia
-                return status;
-                
-            case "speaker":
-                // Speaker solo consume si esta reproduciendo (no pausado ni detenido)
-                // Si color contiene PAUSE o STOP, no esta consumiendo
-                if (color != null && (color.contains("PAUSE") || color.contains("STOP"))) {
-                    return false;
-                }
-                // Solo consume si status true Y esta reproduciendo
-                return status && color != null && color.contains("PLAY");
-                
-            case "ac":
-                // Clima encendido = status true
-                return status;
-                
-            case "washer":
-                // Lavadora encendida = status true
-                return status;
-                
-            case "camera":
-                // Camaras solo consumen si estan activas (status true)
-                return status;
-                
-            default:
-                return status;
+        for (DeviceStateRegistry.DeviceState device : activos) {
+            double watts = device.watts;
+            
+            // Registrar consumo por el intervalo de muestreo
+            EnergyLog log = new EnergyLog(device.id, device.name, device.type, "SAMPLE");
+            log.setTimestamp(ts);
+            log.setWattsConsumed(watts);
+            log.setDuration(INTERVALO_MUESTREO_SEGUNDOS * 1000L); // en milisegundos
+            log.setHouseId(device.houseId);
+            log.setRoom(device.room);
+            docs.add(store.toStored(log.toDocument()));
+            cube.addSample(device.houseId, device.room, device.type, device.id, device.name, 
+                ts, log.getKwhConsumed());
+            
+            shard.watts.put(device.name, watts);
+            
+            // Agregar nombre a la lista
+            if (shard.count > 0) shard.nombres.append(", ");
+            shard.nombres.append(device.name).append("(").append(String.format("%.0f", watts)).append("W)");
+            
+            // Agregar al frame de telemetria
+            frame.beginObject()
+                .field("id", device.id)
+                .field("name", device.name)
+                .field("type", device.type)
+                .field("watts", watts, 1)
+                .endObject();
+            
+            shard.count++;
+            shard.totalWatts += watts;
+        }
+        
+        frame.flush();
+        logWriter.submitAll(docs);
+        return shard;
+    }
+    
+    /**
+     * Cubo de consumo por casa, habitacion, tipo y dispositivo
+     */
+    public EnergyCube getCube() {
+        return cube;
+    }
+    
+    /**
+     * Metricas del escritor por lotes de energy_logs
+     */
+    public BatchedLogWriter getLogWriter() {
+        return logWriter;
+    }
+    
+    /**
+     * Metricas del muestreo (duracion de tick, overruns)
+     */
+    public SamplerStats getSamplerStats() {
+        return samplerStats;
+    }
+    
+    /**
+     * Registrar un suscriptor de la telemetria en vivo
+     * Recibe un frame JSON compacto por cada tick de muestreo
+     */
+    public void addTickListener(Consumer<String> listener) {
+        tickListeners.add(listener);
+    }
+    
+    public void removeTickListener(Consumer<String> listener) {
+        tickListeners.remove(listener);
+    }
+    
+    /**
+     * Publicar el frame del tick: potencia total y watts por dispositivo
+     * Se publica aunque no haya dispositivos encendidos para que las
+     * graficas en vivo marquen 0W
+     */
+    private void publishTick(long timestamp, double totalWatts, String devicesJson) {
+        if (tickListeners.isEmpty()) {
+            return;
+        }
+        
+        String frame = "{\"action\":\"ENERGY_TICK\",\"timestamp\":" + timestamp +
+            ",\"interval\":" + INTERVALO_MUESTREO_SEGUNDOS +
+            ",\"totalWatts\":" + String.format(Locale.US, "%.1f", totalWatts) +
+            ",\"devices\":[" + devicesJson + "]}";
+        
+        for (Consumer<String> listener : tickListeners) {
+            try {
+                listener.accept(frame);
+            } catch (Exception e) {
+                System.err.println("[ENERGY] Error publicando telemetria: " + e.getMessage());
+            }
         }
     }
     
@@ -201,8 +385,12 @@ public class EnergyService {
         log.setWattsConsumed(EnergyLog.WATTS_DOOR_ACTION);
         log.setDuration(5000); // 5 segundos en ms
         log.setHouseId(device.getHouseId());
+        log.setRoom(device.getRoom());
         
-        collection.insertOne(log.toDocument());
+        // Encolar: el control del porton no espera la escritura del log
+        logWriter.submit(store.toStored(log.toDocument()));
+        cube.addSample(log.getHouseId(), log.getRoom(), log.getDeviceType(), log.getDeviceId(), 
+            log.getDeviceName(), log.getTimestamp(), log.getKwhConsumed());
         System.out.printf("[ENERGY] Porton %s: 200W x 5s = %.4f kWh%n", 
             action, log.getKwhConsumed());
     }
@@ -211,10 +399,15 @@ public class EnergyService {
      * Obtener consumo total en kWh para un periodo (sin filtrar por casa)
      */
     public double getTotalConsumption(String houseId, long desde, long hasta) {
+        return queryCache.get(houseId, "total", desde, hasta, "", 
+            () -> queryTotalConsumption(desde, hasta));
+    }
+    
+    private double queryTotalConsumption(long desde, long hasta) {
         double totalKwh = 0;
         
         // No filtramos por houseId para simplificar
-        try (MongoCursor<Document> cursor = collection.find(
+        try (MongoCursor<Document> cursor = store.find(
                 and(
                     gte("timestamp", desde),
                     lte("timestamp", hasta)
@@ -234,9 +427,14 @@ public class EnergyService {
      * Obtener consumo por dispositivo
      */
     public Map<String, Double> getConsumptionByDevice(String houseId, long desde, long hasta) {
+        return queryCache.get(houseId, "byDevice", desde, hasta, "", 
+            () -> Collections.unmodifiableMap(queryConsumptionByDevice(desde, hasta)));
+    }
+    
+    private Map<String, Double> queryConsumptionByDevice(long desde, long hasta) {
         Map<String, Double> consumoByDevice = new HashMap<>();
         
-        try (MongoCursor<Document> cursor = collection.find(
+        try (MongoCursor<Document> cursor = store.find(
                 and(
                     gte("timestamp", desde),
                     lte("timestamp", hasta)
@@ -258,9 +456,14 @@ public class EnergyService {
      * Obtener consumo por tipo de dispositivo
      */
     public Map<String, Double> getConsumptionByType(String houseId, long desde, long hasta) {
+        return queryCache.get(houseId, "byType", desde, hasta, "", 
+            () -> Collections.unmodifiableMap(queryConsumptionByType(desde, hasta)));
+    }
+    
+    private Map<String, Double> queryConsumptionByType(long desde, long hasta) {
         Map<String, Double> consumoByType = new HashMap<>();
         
-        try (MongoCursor<Document> cursor = collection.find(
+        try (MongoCursor<Document> cursor = store.find(
                 and(
                     gte("timestamp", desde),
                     lte("timestamp", hasta)
@@ -280,59 +483,187 @@ public class EnergyService {
     
     /**
      * Obtener consumo por hora del dia (ultimas 24 horas)
+     * La ventana son las 24 h que terminan con el minuto actual (ver rollingStart)
      */
     public Map<Integer, Double> getConsumptionByHour(String houseId) {
+        long ahora = System.currentTimeMillis();
+        long inicio = rollingStart(ahora, 1);
+        long fin = EnergyQueryCache.alignUp(ahora);
+        return queryCache.get(houseId, "byHour", inicio, fin, "", 
+            () -> Collections.unmodifiableMap(queryConsumptionByHour(inicio)));
+    }
+    
+    private Map<Integer, Double> queryConsumptionByHour(long desde) {
+        TimeBuckets buckets = TimeBuckets.of(desde, System.currentTimeMillis());
+        double[] byHour = new double[24];
+        
+        try (MongoCursor<Document> cursor = store.find(
+                gte("timestamp", desde)
+            ).projection(KWH_PROJECTION).iterator()) {
+            
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                byHour[buckets.hourOfDay(timestampOf(doc))] += EnergyLog.kwhFromDocument(doc);
+            }
+        }
+        
         Map<Integer, Double> consumoByHour = new HashMap<>();
         for (int i = 0; i < 24; i++) {
-            consumoByHour.put(i, 0.0);
+            consumoByHour.put(i, byHour[i]);
         }
-        
+        return consumoByHour;
+    }
+    
+    /**
+     * Obtener consumo diario (los ultimos N dias, ver rollingStart)
+     */
+    public Map<String, Double> getConsumptionByDay(String houseId, int dias) {
         long ahora = System.currentTimeMillis();
-        long hace24h = ahora - (24 * 60 * 60 * 1000);
+        long inicio = rollingStart(ahora, dias);
+        long fin = EnergyQueryCache.alignUp(ahora);
+        return queryCache.get(houseId, "byDay", inicio, fin, String.valueOf(dias), 
+            () -> Collections.unmodifiableMap(queryConsumptionByDay(inicio)));
+    }
+    
+    private Map<String, Double> queryConsumptionByDay(long desde) {
+        TimeBuckets buckets = TimeBuckets.of(desde, System.currentTimeMillis());
+        double[] byDay = new double[buckets.dayCount()];
+        int[] muestras = new int[buckets.dayCount()];
         
-        try (MongoCursor<Document> cursor = collection.find(
-                gte("timestamp", hace24h)
-            ).iterator()) {
+        try (MongoCursor<Document> cursor = store.find(
+                gte("timestamp", desde)
+            ).projection(KWH_PROJECTION).iterator()) {
             
-            Calendar cal = Calendar.getInstance();
             while (cursor.hasNext()) {
-                EnergyLog log = EnergyLog.fromDocument(cursor.next());
-                cal.setTimeInMillis(log.getTimestamp());
-                int hora = cal.get(Calendar.HOUR_OF_DAY);
-                double current = consumoByHour.get(hora);
-                consumoByHour.put(hora, current + log.getKwhConsumed());
+                Document doc = cursor.next();
+                int dia = buckets.dayIndex(timestampOf(doc));
+                if (dia >= 0 && dia < byDay.length) {
+                    byDay[dia] += EnergyLog.kwhFromDocument(doc);
+                    muestras[dia]++;
+                }
             }
         }
         
-        return consumoByHour;
+        return dayLabels(buckets, byDay, muestras);
     }
     
     /**
-     * Obtener consumo diario
+     * Inicio de una ventana movil de N dias que termina con el minuto actual
+     *
+     * Las vistas "ultimas 24 h / N dias" se definen por minuto completo (no
+     * por milisegundo) para que las consultas del mismo minuto compartan la
+     * entrada de cache. Como la ventana incluye el presente, cada lote del
+     * escritor (~5 s) la invalida: la cache aqui solo junta las consultas
+     * iguales que llegan entre dos lotes.
      */
-    public Map<String, Double> getConsumptionByDay(String houseId, int dias) {
+    private static long rollingStart(long ahora, int dias) {
+        return EnergyQueryCache.alignUp(ahora) + 1 - (long) dias * 24 * 60 * 60 * 1000;
+    }
+    
+    /**
+     * Convertir cubetas diarias a {"dd/MM": kWh} en orden cronologico
+     * Solo incluye dias con al menos un registro
+     */
+    private static Map<String, Double> dayLabels(TimeBuckets buckets, double[] byDay, int[] muestras) {
         Map<String, Double> consumoByDay = new LinkedHashMap<>();
-        
+        for (int d = 0; d < byDay.length; d++) {
+            if (muestras[d] > 0) {
+                consumoByDay.put(buckets.dayAt(d).format(DAY_LABEL), byDay[d]);
+            }
+        }
+        return consumoByDay;
+    }
+    
+    static long timestampOf(Document doc) {
+        Long ts = doc.getLong("timestamp");
+        if (ts != null) return ts;
+        // Documento tal como se guarda en la coleccion time-series (lotes del escritor)
+        java.util.Date fecha = doc.getDate(EnergySampleStore.TIME_FIELD);
+        return fecha != null ? fecha.getTime() : 0;
+    }
+    
+    /**
+     * Obtener todas las vistas del tablero de energia en una sola pasada
+     * Resumen y consumo por tipo usan [desde, hasta], por hora las ultimas 24h
+     * y por dia los ultimos N dias; todo sale del mismo cursor
+     */
+    public EnergyDashboard getDashboard(String houseId, long desde, long hasta, int dias, int limitLogs) {
         long ahora = System.currentTimeMillis();
-        long hace = ahora - ((long) dias * 24 * 60 * 60 * 1000);
+        long inicio = desde;
+        long fin = hasta;
+        long hace24h = rollingStart(ahora, 1);
+        long haceDias = rollingStart(ahora, dias);
+        long scanDesde = Math.min(inicio, Math.min(hace24h, haceDias));
+        long scanHasta = Math.max(fin, EnergyQueryCache.alignUp(ahora));
         
-        try (MongoCursor<Document> cursor = collection.find(
-                gte("timestamp", hace)
-            ).sort(Sorts.ascending("timestamp")).iterator()) {
-            
-            Calendar cal = Calendar.getInstance();
-            java.text.SimpleDateFormat sdf = new java.text.SimpleDateFormat("dd/MM");
+        DashboardAggregates agg = queryCache.get(houseId, "dashboard", scanDesde, scanHasta, 
+            inicio + "|" + fin + "|" + dias, 
+            () -> queryDashboardAggregates(inicio, fin, hace24h, haceDias, scanDesde, scanHasta));
+        
+        EnergyDashboard dashboard = new EnergyDashboard();
+        dashboard.setPeriodoDesde(desde);
+        dashboard.setPeriodoHasta(hasta);
+        dashboard.setTotalKwh(agg.totalKwh);
+        dashboard.setCurrentWatts(getCurrentPowerUsage());
+        dashboard.setPrecioPorKwh(PRECIO_KWH_DEFAULT);
+        dashboard.setCostoEstimado(calculateCost(agg.totalKwh, PRECIO_KWH_DEFAULT));
+        dashboard.setConsumoByHour(agg.byHour.clone());
+        dashboard.setConsumoByType(agg.byType);
+        dashboard.setConsumoByDay(agg.byDay);
+        dashboard.setDispositivosActivos(getActiveDevicesConsumption());
+        dashboard.setLogs(getRecentLogs(houseId, limitLogs));
+        return dashboard;
+    }
+    
+    /**
+     * Agregados del tablero (parte cacheable, sin potencia actual ni logs)
+     */
+    private static class DashboardAggregates {
+        double totalKwh;
+        double[] byHour = new double[24];
+        Map<String, Double> byType = new HashMap<>();
+        Map<String, Double> byDay = new LinkedHashMap<>();
+    }
+    
+    private DashboardAggregates queryDashboardAggregates(long desde, long hasta, long hace24h, 
+                                                        long haceDias, long scanDesde, long scanHasta) {
+        DashboardAggregates agg = new DashboardAggregates();
+        TimeBuckets buckets = TimeBuckets.of(haceDias, scanHasta);
+        double[] byDay = new double[buckets.dayCount()];
+        int[] muestras = new int[buckets.dayCount()];
+        
+        try (MongoCursor<Document> cursor = store.find(
+                and(
+                    gte("timestamp", scanDesde),
+                    lte("timestamp", scanHasta)
+                )
+            ).projection(KWH_PROJECTION).iterator()) {
             
             while (cursor.hasNext()) {
-                EnergyLog log = EnergyLog.fromDocument(cursor.next());
-                cal.setTimeInMillis(log.getTimestamp());
-                String dia = sdf.format(cal.getTime());
-                double current = consumoByDay.getOrDefault(dia, 0.0);
-                consumoByDay.put(dia, current + log.getKwhConsumed());
+                Document doc = cursor.next();
+                long ts = timestampOf(doc);
+                double kwh = EnergyLog.kwhFromDocument(doc);
+                
+                if (ts >= desde && ts <= hasta) {
+                    agg.totalKwh += kwh;
+                    agg.byType.merge(doc.getString("deviceType"), kwh, Double::sum);
+                }
+                if (ts >= hace24h) {
+                    agg.byHour[buckets.hourOfDay(ts)] += kwh;
+                }
+                if (ts >= haceDias) {
+                    int dia = buckets.dayIndex(ts);
+                    if (dia >= 0 && dia < byDay.length) {
+                        byDay[dia] += kwh;
+                        muestras[dia]++;
+                    }
+                }
             }
         }
         
-        return consumoByDay;
+        agg.byType = Collections.unmodifiableMap(agg.byType);
+        agg.byDay = Collections.unmodifiableMap(dayLabels(buckets, byDay, muestras));
+        return agg;
     }
     
     /**
@@ -341,8 +672,8 @@ public class EnergyService {
     public List<EnergyLog> getRecentLogs(String houseId, int limit) {
         List<EnergyLog> logs = new ArrayList<>();
         
-        try (MongoCursor<Document> cursor = collection.find()
-                .sort(Sorts.descending("timestamp"))
+        try (MongoCursor<Document> cursor = store.find()
+                .sort(LogCursor.SORT)
                 .limit(limit)
                 .iterator()) {
             
@@ -354,6 +685,75 @@ public class EnergyService {
         return logs;
     }
     
+    /**
+     * Recorrer una pagina de eventos de energia (mas nuevos primero) sin
+     * materializarla; cada evento se entrega al consumer conforme sale del cursor
+     * @param before cursor de la pagina anterior, o null para la primera
+     * @return cursor de la siguiente pagina, o null si no hay mas
+     */
+    public LogCursor forEachLog(LogCursor before, int limit, Consumer<EnergyLog> consumer) {
+        Document ultimo = null;
+        int n = 0;
+        
+        try (MongoCursor<Document> cursor = store.find(LogCursor.combine(null, before))
+                .sort(LogCursor.SORT)
+                .limit(limit + 1)
+                .iterator()) {
+            
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                if (n == limit) {
+                    // Hay al menos un documento mas: la pagina sigue
+                    return LogCursor.of(ultimo);
+                }
+                consumer.accept(EnergyLog.fromDocument(doc));
+                ultimo = doc;
+                n++;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Recorrer las muestras crudas de un rango en orden cronologico, sin
+     * materializarlas (exportaciones)
+     * @param houseId casa a filtrar, o null para todas
+     */
+    public void forEachRaw(String houseId, long desde, long hasta, Consumer<Document> consumer) {
+        Bson filtro = and(gte("timestamp", desde), lt("timestamp", hasta));
+        if (houseId != null) {
+            filtro = and(eq("houseId", houseId), filtro);
+        }
+        
+        try (MongoCursor<Document> cursor = store.find(filtro)
+                .sort(Sorts.ascending("timestamp", "_id"))
+                .batchSize(1000)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                consumer.accept(cursor.next());
+            }
+        }
+    }
+    
+    /**
+     * Crear los indices de las muestras usados por la paginacion y la exportacion
+     */
+    public void ensureIndexes() {
+        try {
+            createIndexes(store);
+        } catch (Exception e) {
+            System.err.println("[ENERGY] Error creando indices: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Indices de las muestras crudas (tambien los crea la migracion antes de activar)
+     */
+    static void createIndexes(EnergySampleStore destino) {
+        destino.createIndex(Indexes.descending("timestamp", "_id"));
+        destino.createIndex(Indexes.ascending("houseId", "timestamp"));
+    }
+    
     /**
      * Obtener consumo actual estimado (dispositivos encendidos ahora)
      */
@@ -384,13 +784,47 @@ public class EnergyService {
      */
     public long cleanOldLogs(int diasAntiguedad) {
         long limite = System.currentTimeMillis() - ((long) diasAntiguedad * 24 * 60 * 60 * 1000);
-        return collection.deleteMany(lt("timestamp", limite)).getDeletedCount();
+        long borrados = store.deleteMany(lt("timestamp", limite));
+        if (borrados > 0) {
+            queryCache.invalidateRange(Long.MIN_VALUE, limite);
+        }
+        return borrados;
+    }
+    
+    /**
+     * Borrar muestras crudas en [desde, hasta) (lotes del motor de retencion)
+     */
+    public long deleteRange(long desde, long hasta) {
+        long borrados = store.deleteMany(
+            and(gte("timestamp", desde), lt("timestamp", hasta)));
+        if (borrados > 0) {
+            queryCache.invalidateRange(desde, hasta);
+        }
+        return borrados;
+    }
+    
+    /**
+     * Timestamp de la muestra mas antigua anterior a un limite (o -1 si no hay)
+     */
+    public long oldestTimestampBefore(long limite) {
+        Document doc = store.find(lt("timestamp", limite))
+            .sort(Sorts.ascending("timestamp"))
+            .projection(new Document("timestamp", 1))
+            .first();
+        return doc != null ? timestampOf(doc) : -1;
+    }
+    
+    /**
+     * Estadisticas del cache de consultas
+     */
+    public EnergyQueryCache getQueryCache() {
+        return queryCache;
     }
     
     /**
      * Contar total de logs
      */
     public long count() {
-        return collection.countDocuments();
+        return store.count();
     }
 }
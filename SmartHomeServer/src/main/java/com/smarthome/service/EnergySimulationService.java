@@ -0,0 +1,413 @@
+package com.smarthome.service;
+
+import com.smarthome.model.EnergyCost;
+import com.smarthome.model.EnergyLog;
+import com.smarthome.model.EnergyRollup;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Simulacion "que pasaria si" sobre el consumo historico
+ *
+ * Toma los ultimos N dias por dispositivo y por hora (tiempo encendido y
+ * kWh, de los rollups HOUR y la cola cruda) y los vuelve a pasar por
+ * EnergyLog.calculateWatts con reglas de uso modificadas:
+ *
+ *   rule.ac.maxHoursPerDay=4     el clima encendido maximo 4 h por dia
+ *   rule.light.valuePct=50       luces al 50% de su brillo (value)
+ *   rule.tv.offHours=0-7         tv apagada de 0:00 a 7:00 (hora local)
+ *
+ * El objetivo de una regla es un tipo de dispositivo, un deviceId o "all".
+ * Cada dispositivo se simula en paralelo sobre arreglos primitivos; el
+ * costo del consumo original y del simulado se calcula con la tarifa de la
+ * casa (EnergyCostService). El historial leido se guarda un minuto para
+ * que probar varias reglas seguidas no vuelva a consultar MongoDB.
+ */
+public class EnergySimulationService {
+
+    public static final int DIAS_DEFAULT = 7;
+    public static final int DIAS_MAX = EnergyCube.DIAS_VENTANA;
+    private static final long CACHE_MS = 60_000;
+    private static final double MS_POR_HORA = TimeBuckets.HOUR_MS;
+
+    private final EnergyRollupService rollupService;
+    private final EnergyCostService costService;
+    private final Map<Integer, History> cache = new ConcurrentHashMap<>();
+
+    public EnergySimulationService(EnergyRollupService rollupService, EnergyCostService costService) {
+        this.rollupService = rollupService;
+        this.costService = costService;
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // REGLAS
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Regla de uso para un tipo, un dispositivo o todos ("all")
+     */
+    public static final class Rule {
+        final String target;
+        double maxHorasDia = -1;
+        double valuePct = -1;
+        int offDesde = -1;
+        int offHasta = -1;
+
+        Rule(String target) {
+            this.target = target;
+        }
+
+        boolean matches(DeviceHistory d) {
+            return "all".equals(target) || target.equals(d.type) || target.equals(d.id);
+        }
+
+        boolean apagado(int horaLocal) {
+            if (offDesde < 0) return false;
+            if (offDesde <= offHasta) return horaLocal >= offDesde && horaLocal < offHasta;
+            return horaLocal >= offDesde || horaLocal < offHasta;
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder("{\"target\": \"").append(target).append("\"");
+            if (maxHorasDia >= 0) json.append(String.format(Locale.US, ", \"maxHoursPerDay\": %.2f", maxHorasDia));
+            if (valuePct >= 0) json.append(String.format(Locale.US, ", \"valuePct\": %.1f", valuePct));
+            if (offDesde >= 0) json.append(", \"offHours\": \"").append(offDesde).append("-").append(offHasta).append("\"");
+            return json.append("}").toString();
+        }
+    }
+
+    /**
+     * Leer las reglas de los parametros rule.&lt;objetivo&gt;.&lt;parametro&gt;
+     * @throws IllegalArgumentException si falta una regla o un valor no es valido
+     */
+    public static List<Rule> parseRules(Map<String, String> params) {
+        Map<String, Rule> reglas = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : params.entrySet()) {
+            if (!e.getKey().startsWith("rule.")) continue;
+            String[] partes = e.getKey().split("\\.");
+            if (partes.length != 3 || partes[1].isEmpty()) {
+                throw new IllegalArgumentException("Regla no valida: " + e.getKey());
+            }
+            Rule regla = reglas.computeIfAbsent(partes[1], Rule::new);
+            String valor = e.getValue();
+            try {
+                switch (partes[2]) {
+                    case "maxHoursPerDay":
+                        regla.maxHorasDia = Double.parseDouble(valor);
+                        if (regla.maxHorasDia < 0 || regla.maxHorasDia > 24) {
+                            throw new IllegalArgumentException("maxHoursPerDay debe estar entre 0 y 24");
+                        }
+                        break;
+                    case "valuePct":
+                        regla.valuePct = Double.parseDouble(valor);
+                        if (regla.valuePct < 0 || regla.valuePct > 100) {
+                            throw new IllegalArgumentException("valuePct debe estar entre 0 y 100");
+                        }
+                        break;
+                    case "offHours":
+                        String[] rango = valor.split("-");
+                        regla.offDesde = Integer.parseInt(rango[0]);
+                        regla.offHasta = Integer.parseInt(rango[1]);
+                        if (regla.offDesde < 0 || regla.offDesde > 23 || regla.offHasta < 0
+                                || regla.offHasta > 24 || regla.offDesde == regla.offHasta) {
+                            throw new IllegalArgumentException("offHours debe ser desde-hasta en horas 0-24");
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Parametro de regla no valido: " + partes[2] +
+                            " (use maxHoursPerDay, valuePct u offHours)");
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                throw new IllegalArgumentException("Valor no valido para " + e.getKey() + ": " + valor);
+            }
+        }
+        if (reglas.isEmpty()) {
+            throw new IllegalArgumentException(
+                "Se necesita al menos una regla rule.<tipo|deviceId|all>.<maxHoursPerDay|valuePct|offHours>");
+        }
+        return new ArrayList<>(reglas.values());
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // HISTORIAL
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Tiempo encendido y kWh por hora de un dispositivo
+     */
+    static final class DeviceHistory {
+        final String id;
+        String name;
+        String type;
+        final long[] onMs;
+        final double[] kwh;
+
+        DeviceHistory(String id, int horas) {
+            this.id = id;
+            this.onMs = new long[horas];
+            this.kwh = new double[horas];
+        }
+    }
+
+    /**
+     * Ventana de N dias ya leida (horas completas)
+     */
+    static final class History {
+        final int dias;
+        final long inicio;
+        final int horas;
+        final int[] horaLocal;   // Hora local (0-23) de cada indice
+        final int[] diaLocal;    // Dia local (0 = primer dia) de cada indice
+        final List<DeviceHistory> devices = new ArrayList<>();
+        long leido;
+        long loadMs;
+
+        History(int dias, long inicio, int horas) {
+            this.dias = dias;
+            this.inicio = inicio;
+            this.horas = horas;
+            this.horaLocal = new int[horas];
+            this.diaLocal = new int[horas];
+            TimeBuckets buckets = TimeBuckets.of(inicio, inicio + horas * TimeBuckets.HOUR_MS);
+            for (int i = 0; i < horas; i++) {
+                long t = inicio + i * TimeBuckets.HOUR_MS;
+                horaLocal[i] = buckets.hourOfDay(t);
+                diaLocal[i] = buckets.dayIndex(t);
+            }
+        }
+    }
+
+    private History history(int dias) {
+        long ahora = System.currentTimeMillis();
+        History actual = cache.get(dias);
+        if (actual != null && ahora - actual.leido < CACHE_MS) {
+            return actual;
+        }
+
+        long t0 = System.currentTimeMillis();
+        long fin = EnergyRollupService.alignHour(ahora);
+        long inicio = fin - dias * TimeBuckets.DAY_MS;
+        int horas = (int) ((fin - inicio) / TimeBuckets.HOUR_MS);
+        History h = new History(dias, inicio, horas);
+
+        Map<String, DeviceHistory> porId = new LinkedHashMap<>();
+        rollupService.forEachHourRollup(null, inicio, fin, (EnergyRollup r) -> {
+            int i = (int) ((r.getBucketStart() - inicio) / TimeBuckets.HOUR_MS);
+            if (i < 0 || i >= horas || r.getDeviceId() == null) return;
+            DeviceHistory d = porId.computeIfAbsent(r.getDeviceId(), id -> new DeviceHistory(id, horas));
+            d.name = r.getDeviceName();
+            d.type = r.getDeviceType();
+            d.onMs[i] += r.getDuration();
+            d.kwh[i] += r.getKwh();
+        });
+        h.devices.addAll(porId.values());
+        h.leido = ahora;
+        h.loadMs = System.currentTimeMillis() - t0;
+        cache.put(dias, h);
+        return h;
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // SIMULACION
+    // ═══════════════════════════════════════════════════════════
+
+    /**
+     * Resultado de una simulacion
+     */
+    public static class Result {
+        int dias;
+        long desde;
+        long hasta;
+        List<Rule> rules;
+        EnergyCost base;
+        EnergyCost simulado;
+        String[] ids;
+        String[] names;
+        String[] types;
+        double[] baseKwh;
+        double[] simKwh;
+        boolean cached;
+        long loadMs;
+        long tookMs;
+
+        public String toJson() {
+            double ahorroKwh = base.getKwh() - simulado.getKwh();
+            double ahorroCosto = base.getTotal() - simulado.getTotal();
+            double factorMes = 30.0 / dias;
+
+            StringBuilder json = new StringBuilder();
+            json.append("{\"dias\": ").append(dias)
+                .append(", \"desde\": ").append(desde)
+                .append(", \"hasta\": ").append(hasta)
+                .append(", \"rules\": [");
+            for (int i = 0; i < rules.size(); i++) {
+                if (i > 0) json.append(",");
+                json.append(rules.get(i).toJson());
+            }
+            json.append("]")
+                .append(String.format(Locale.US,
+                    ", \"baseline\": {\"kwh\": %.4f, \"costo\": %.2f}, \"simulado\": {\"kwh\": %.4f, \"costo\": %.2f}" +
+                    ", \"ahorro\": {\"kwh\": %.4f, \"costo\": %.2f, \"pct\": %.2f}" +
+                    ", \"ahorroMensual\": {\"kwh\": %.4f, \"costo\": %.2f}",
+                    base.getKwh(), base.getTotal(), simulado.getKwh(), simulado.getTotal(),
+                    ahorroKwh, ahorroCosto, base.getKwh() > 0 ? ahorroKwh * 100 / base.getKwh() : 0,
+                    ahorroKwh * factorMes, ahorroCosto * factorMes))
+                .append(", \"costoBase\": ").append(base.toJson())
+                .append(", \"costoSimulado\": ").append(simulado.toJson())
+                .append(", \"byDevice\": [");
+
+            Integer[] orden = new Integer[ids.length];
+            for (int i = 0; i < orden.length; i++) orden[i] = i;
+            Arrays.sort(orden, (a, b) -> Double.compare(baseKwh[b] - simKwh[b], baseKwh[a] - simKwh[a]));
+            int n = 0;
+            for (int i : orden) {
+                if (baseKwh[i] == 0 && simKwh[i] == 0) continue;
+                if (n++ > 0) json.append(",");
+                json.append("{\"deviceId\": \"").append(ids[i]).append("\"")
+                    .append(", \"name\": \"").append(names[i] != null ? names[i].replace("\"", "\\\"") : "").append("\"")
+                    .append(", \"type\": \"").append(types[i] != null ? types[i] : "").append("\"")
+                    .append(String.format(Locale.US, ", \"baselineKwh\": %.4f, \"simuladoKwh\": %.4f, \"ahorroKwh\": %.4f}",
+                        baseKwh[i], simKwh[i], baseKwh[i] - simKwh[i]));
+            }
+            json.append("], \"devices\": ").append(ids.length)
+                .append(", \"cached\": ").append(cached)
+                .append(", \"loadMs\": ").append(loadMs)
+                .append(", \"tookMs\": ").append(tookMs)
+                .append("}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Simular los ultimos dias con reglas de uso
+     * @param houseId casa cuya tarifa se usa para el costo
+     */
+    public Result simulate(String houseId, int dias, List<Rule> rules) {
+        if (dias < 1 || dias > DIAS_MAX) {
+            throw new IllegalArgumentException("dias debe estar entre 1 y " + DIAS_MAX);
+        }
+        long t0 = System.currentTimeMillis();
+        long antes = t0;
+        History h = history(dias);
+        boolean enCache = h.leido < antes;
+
+        int n = h.devices.size();
+        double[][] simulado = new double[n][];
+        IntStream.range(0, n).parallel().forEach(i -> simulado[i] = simulateDevice(h, h.devices.get(i), rules));
+
+        // Totales por hora (consumo original y simulado) para el costo con tarifa
+        double[] base = new double[h.horas];
+        double[] sim = new double[h.horas];
+        Result r = new Result();
+        r.ids = new String[n];
+        r.names = new String[n];
+        r.types = new String[n];
+        r.baseKwh = new double[n];
+        r.simKwh = new double[n];
+        for (int d = 0; d < n; d++) {
+            DeviceHistory dev = h.devices.get(d);
+            r.ids[d] = dev.id;
+            r.names[d] = dev.name;
+            r.types[d] = dev.type;
+            for (int i = 0; i < h.horas; i++) {
+                base[i] += dev.kwh[i];
+                sim[i] += simulado[d][i];
+                r.baseKwh[d] += dev.kwh[i];
+                r.simKwh[d] += simulado[d][i];
+            }
+        }
+
+        r.dias = dias;
+        r.desde = h.inicio;
+        r.hasta = h.inicio + h.horas * TimeBuckets.HOUR_MS;
+        r.rules = rules;
+        r.base = costService.priceHourly(houseId, h.inicio, base);
+        r.simulado = costService.priceHourly(houseId, h.inicio, sim);
+        r.cached = enCache;
+        r.loadMs = enCache ? 0 : h.loadMs;
+        r.tookMs = System.currentTimeMillis() - t0;
+        return r;
+    }
+
+    /**
+     * Consumo simulado por hora de un dispositivo
+     *
+     * Se escala el tiempo encendido (offHours, maxHoursPerDay) y la potencia
+     * (valuePct, via calculateWatts con el value estimado de cada hora) sobre
+     * el consumo registrado, asi las acciones del porton (sin duracion) se
+     * conservan salvo que caigan en una franja apagada.
+     */
+    private static double[] simulateDevice(History h, DeviceHistory d, List<Rule> rules) {
+        double[] sim = d.kwh.clone();
+        List<Rule> aplicables = new ArrayList<>();
+        for (Rule rule : rules) {
+            if (rule.matches(d)) aplicables.add(rule);
+        }
+        if (aplicables.isEmpty()) return sim;
+
+        double[] onSim = new double[h.horas];
+        for (int i = 0; i < h.horas; i++) {
+            onSim[i] = d.onMs[i];
+        }
+
+        for (Rule rule : aplicables) {
+            // Franja apagada
+            if (rule.offDesde >= 0) {
+                for (int i = 0; i < h.horas; i++) {
+                    if (rule.apagado(h.horaLocal[i])) {
+                        onSim[i] = 0;
+                        sim[i] = 0;
+                    }
+                }
+            }
+            // Tope de horas encendido por dia local: se recorta proporcionalmente
+            if (rule.maxHorasDia >= 0) {
+                double tope = rule.maxHorasDia * MS_POR_HORA;
+                int i = 0;
+                while (i < h.horas) {
+                    int dia = h.diaLocal[i];
+                    int j = i;
+                    double total = 0;
+                    while (j < h.horas && h.diaLocal[j] == dia) total += onSim[j++];
+                    if (total > tope) {
+                        double factor = tope / total;
+                        for (int k = i; k < j; k++) onSim[k] *= factor;
+                    }
+                    i = j;
+                }
+            }
+        }
+
+        // Potencia: el value de cada hora se estima de los watts promedio registrados
+        double valuePct = -1;
+        for (Rule rule : aplicables) {
+            if (rule.valuePct >= 0) valuePct = rule.valuePct;
+        }
+        for (int i = 0; i < h.horas; i++) {
+            if (d.onMs[i] <= 0) continue;   // Sin tiempo encendido (ej. porton): ya quedo en sim
+            double factorTiempo = onSim[i] / d.onMs[i];
+            double factorPotencia = 1;
+            if (valuePct >= 0 && d.type != null) {
+                double wattsProm = d.kwh[i] * 1000 * MS_POR_HORA / d.onMs[i];
+                int value = estimateValue(d.type, wattsProm);
+                double wBase = EnergyLog.calculateWatts(d.type, "ON", value);
+                double wSim = EnergyLog.calculateWatts(d.type, "ON", (int) Math.round(value * valuePct / 100));
+                factorPotencia = wBase > 0 ? wSim / wBase : 1;
+            }
+            sim[i] = d.kwh[i] * factorTiempo * factorPotencia;
+        }
+        return sim;
+    }
+
+    /**
+     * value (brillo 0-6000) que da esos watts en calculateWatts; los tipos
+     * cuyo modelo no depende de value regresan 0
+     */
+    private static int estimateValue(String type, double watts) {
+        if (!"light".equals(type)) return 0;
+        double factor = (watts - EnergyLog.WATTS_LIGHT) / (EnergyLog.WATTS_LIGHT_MAX - EnergyLog.WATTS_LIGHT);
+        return (int) Math.round(Math.max(0, Math.min(1, factor)) * 6000);
+    }
+}
@@ -10,6 +10,7 @@ import org.bson.types.ObjectId;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.mongodb.client.model.Filters.*;
 
@@ -19,6 +20,11 @@ import static com.mongodb.client.model.Filters.*;
 public class HouseService {
     
     private static final String COLLECTION_NAME = "casas";
+    
+    // Secuencia de cambios a casas hechos por este proceso (ETag de /api/rooms);
+    // compartida entre instancias porque TcpServer y RestServer crean la suya
+    private static final AtomicLong version = new AtomicLong();
+    
     private MongoCollection<Document> collection;
     
     public HouseService() {
@@ -33,6 +39,7 @@ public class HouseService {
         Document doc = house.toDocument();
         collection.insertOne(doc);
         house.setId(doc.getObjectId("_id"));
+        version.incrementAndGet();
         System.out.println("[OK] Casa creada: " + house.getName());
         return house;
     }
@@ -57,6 +64,14 @@ public class HouseService {
         return House.fromDocument(doc);
     }
     
+    /**
+     * Obtener la primera casa registrada (casa por defecto)
+     */
+    public House findFirst() {
+        Document doc = collection.find().first();
+        return House.fromDocument(doc);
+    }
+    
     /**
      * Obtener todas las casas
      */
@@ -76,6 +91,7 @@ public class HouseService {
     public boolean update(House house) {
         try {
             collection.replaceOne(eq("_id", house.getId()), house.toDocument());
+            version.incrementAndGet();
             return true;
         } catch (Exception e) {
             return false;
@@ -91,6 +107,7 @@ public class HouseService {
                 eq("_id", new ObjectId(houseId)),
                 new Document("$addToSet", new Document("rooms", room))
             );
+            version.incrementAndGet();
             return true;
         } catch (Exception e) {
             return false;
@@ -103,12 +120,27 @@ public class HouseService {
     public boolean delete(String id) {
         try {
             DeleteResult result = collection.deleteOne(eq("_id", new ObjectId(id)));
+            if (result.getDeletedCount() > 0) version.incrementAndGet();
             return result.getDeletedCount() > 0;
         } catch (Exception e) {
             return false;
         }
     }
     
+    /**
+     * Secuencia del ultimo cambio a casas hecho por este proceso
+     */
+    public static long getVersion() {
+        return version.get();
+    }
+    
+    /**
+     * Marcar un cambio que no paso por este servicio (otro proceso o la base a mano)
+     */
+    public static void touch() {
+        version.incrementAndGet();
+    }
+    
     /**
      * Contar casas
      */
@@ -0,0 +1,90 @@
+package com.smarthome.service;
+
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import static com.mongodb.client.model.Filters.*;
+
+/**
+ * Cursor de paginacion por llave (keyset) para colecciones de logs
+ *
+ * Las paginas se recorren de lo mas nuevo a lo mas viejo ordenando por
+ * (timestamp desc, _id desc). El cursor "before=<timestamp>,<id>" apunta al
+ * ultimo documento entregado; la siguiente pagina empieza justo despues de
+ * el, sin skip(), por lo que cada pagina cuesta lo mismo sin importar que
+ * tan profundo se pagine. El _id desempata documentos con el mismo timestamp.
+ */
+public final class LogCursor {
+
+    /** Orden de las paginas (debe coincidir con el indice timestamp/_id) */
+    public static final Bson SORT = Sorts.descending("timestamp", "_id");
+
+    private final long timestamp;
+    private final ObjectId id;
+
+    public LogCursor(long timestamp, ObjectId id) {
+        this.timestamp = timestamp;
+        this.id = id;
+    }
+
+    /**
+     * Leer un cursor "timestamp,id"
+     * @return null si el texto es null o vacio
+     * @throws IllegalArgumentException si el formato no es valido
+     */
+    public static LogCursor parse(String texto) {
+        if (texto == null || texto.isEmpty()) {
+            return null;
+        }
+        int coma = texto.indexOf(',');
+        try {
+            if (coma < 0) {
+                // Solo timestamp: todo lo anterior a ese instante
+                return new LogCursor(Long.parseLong(texto), null);
+            }
+            return new LogCursor(Long.parseLong(texto.substring(0, coma)),
+                new ObjectId(texto.substring(coma + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Cursor no valido: " + texto);
+        }
+    }
+
+    /**
+     * Cursor que apunta a un documento ya leido
+     */
+    public static LogCursor of(Document doc) {
+        Long ts = doc.getLong("timestamp");
+        return new LogCursor(ts != null ? ts : 0, doc.getObjectId("_id"));
+    }
+
+    /**
+     * Filtro de los documentos que van despues del cursor
+     */
+    public Bson filter() {
+        if (id == null) {
+            return lt("timestamp", timestamp);
+        }
+        return or(lt("timestamp", timestamp),
+            and(eq("timestamp", timestamp), lt("_id", id)));
+    }
+
+    /**
+     * Combinar el filtro del cursor con otro filtro (cualquiera puede ser null)
+     */
+    public static Bson combine(Bson filtro, LogCursor before) {
+        if (before == null) {
+            return filtro != null ? filtro : new Document();
+        }
+        return filtro != null ? and(filtro, before.filter()) : before.filter();
+    }
+
+    public long getTimestamp() { return timestamp; }
+    public ObjectId getId() { return id; }
+
+    @Override
+    public String toString() {
+        return id != null ? timestamp + "," + id.toHexString() : String.valueOf(timestamp);
+    }
+}
@@ -0,0 +1,278 @@
+package com.smarthome.service;
+
+/**
+ * Reduccion de series de tiempo a un numero fijo de puntos, en una pasada
+ *
+ * Los puntos se reciben en orden cronologico con add() y el resultado se
+ * obtiene con finish(). Las cubetas se definen por tiempo sobre [desde, hasta],
+ * asi que solo se guardan en memoria las cubetas en curso, no la serie completa.
+ *
+ * - lttb():   Largest-Triangle-Three-Buckets. Conserva la forma de la curva
+ *             eligiendo por cubeta el punto que forma el triangulo de mayor
+ *             area con el punto elegido antes y el promedio de la cubeta siguiente.
+ * - minMax(): minimo y maximo de cada cubeta (conserva picos exactos).
+ */
+public abstract class SeriesDownsampler {
+
+    protected final long desde;
+    protected final long hasta;
+    protected final int buckets;
+    protected final Series out;
+    protected long count;
+
+    protected SeriesDownsampler(long desde, long hasta, int buckets, int capacidad) {
+        this.desde = desde;
+        this.hasta = Math.max(hasta, desde + 1);
+        this.buckets = Math.max(1, buckets);
+        this.out = new Series(capacidad);
+    }
+
+    /**
+     * LTTB con un maximo de "puntos" puntos de salida (minimo 3)
+     */
+    public static SeriesDownsampler lttb(long desde, long hasta, int puntos) {
+        return new Lttb(desde, hasta, Math.max(3, puntos));
+    }
+
+    /**
+     * Min/max por cubeta con un maximo de "puntos" puntos de salida
+     */
+    public static SeriesDownsampler minMax(long desde, long hasta, int puntos) {
+        return new MinMax(desde, hasta, Math.max(2, puntos));
+    }
+
+    /**
+     * Agregar un punto (t debe ser no decreciente)
+     */
+    public abstract void add(long t, double v);
+
+    /**
+     * Terminar y obtener la serie reducida
+     */
+    public abstract Series finish();
+
+    /**
+     * Puntos de entrada procesados
+     */
+    public long getCount() {
+        return count;
+    }
+
+    protected int bucketOf(long t) {
+        long b = (t - desde) * buckets / (hasta - desde);
+        return (int) Math.max(0, Math.min(buckets - 1, b));
+    }
+
+    /**
+     * Serie de salida en arreglos primitivos
+     */
+    public static class Series {
+        private long[] t;
+        private double[] v;
+        private int size;
+
+        Series(int capacidad) {
+            t = new long[Math.max(4, capacidad)];
+            v = new double[Math.max(4, capacidad)];
+        }
+
+        void add(long ts, double value) {
+            if (size == t.length) {
+                t = java.util.Arrays.copyOf(t, size * 2);
+                v = java.util.Arrays.copyOf(v, size * 2);
+            }
+            t[size] = ts;
+            v[size] = value;
+            size++;
+        }
+
+        public int size() { return size; }
+        public long timeAt(int i) { return t[i]; }
+        public double valueAt(int i) { return v[i]; }
+    }
+
+    /**
+     * Buffer reutilizable de una cubeta
+     */
+    private static class Bucket {
+        long[] t = new long[64];
+        double[] v = new double[64];
+        int n;
+        int index = -1;
+
+        void add(long ts, double value) {
+            if (n == t.length) {
+                t = java.util.Arrays.copyOf(t, n * 2);
+                v = java.util.Arrays.copyOf(v, n * 2);
+            }
+            t[n] = ts;
+            v[n] = value;
+            n++;
+        }
+
+        void reset(int idx) {
+            n = 0;
+            index = idx;
+        }
+
+        double avgT() {
+            double s = 0;
+            for (int i = 0; i < n; i++) s += t[i];
+            return s / n;
+        }
+
+        double avgV() {
+            double s = 0;
+            for (int i = 0; i < n; i++) s += v[i];
+            return s / n;
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // LTTB
+    // ═══════════════════════════════════════════════════════════
+
+    private static class Lttb extends SeriesDownsampler {
+
+        private Bucket actual = new Bucket();     // Pendiente de elegir punto
+        private Bucket siguiente = new Bucket();  // Acumulando
+        private boolean hayPrimero = false;
+        private long aT;                          // Ultimo punto elegido
+        private double aV;
+        private long ultimoT;                     // Ultimo punto recibido
+        private double ultimoV;
+
+        Lttb(long desde, long hasta, int puntos) {
+            super(desde, hasta, puntos - 2, puntos);
+        }
+
+        @Override
+        public void add(long t, double v) {
+            count++;
+            if (!hayPrimero) {
+                // El primer punto siempre se conserva
+                hayPrimero = true;
+                aT = t;
+                aV = v;
+                out.add(t, v);
+                ultimoT = t;
+                ultimoV = v;
+                return;
+            }
+
+            // El punto anterior (ya no es el ultimo) entra a su cubeta
+            if (count > 2) {
+                place(ultimoT, ultimoV);
+            }
+            ultimoT = t;
+            ultimoV = v;
+        }
+
+        private void place(long t, double v) {
+            int b = bucketOf(t);
+            if (siguiente.index == b || siguiente.index < 0) {
+                siguiente.index = b;
+                siguiente.add(t, v);
+                return;
+            }
+
+            // Nueva cubeta: ya se conoce el promedio de "siguiente", elegir en "actual"
+            if (actual.n > 0) {
+                select(actual, siguiente.avgT(), siguiente.avgV());
+            }
+            Bucket tmp = actual;
+            actual = siguiente;
+            siguiente = tmp;
+            siguiente.reset(b);
+            siguiente.add(t, v);
+        }
+
+        /**
+         * Elegir el punto de la cubeta con mayor area de triangulo (a, p, c)
+         */
+        private void select(Bucket bucket, double cT, double cV) {
+            double maxArea = -1;
+            int elegido = 0;
+            for (int i = 0; i < bucket.n; i++) {
+                double area = Math.abs((aT - cT) * (bucket.v[i] - aV) - (aT - bucket.t[i]) * (cV - aV));
+                if (area > maxArea) {
+                    maxArea = area;
+                    elegido = i;
+                }
+            }
+            aT = bucket.t[elegido];
+            aV = bucket.v[elegido];
+            out.add(aT, aV);
+        }
+
+        @Override
+        public Series finish() {
+            if (count >= 2) {
+                if (actual.n > 0) {
+                    if (siguiente.n > 0) {
+                        select(actual, siguiente.avgT(), siguiente.avgV());
+                    } else {
+                        select(actual, ultimoT, ultimoV);
+                    }
+                }
+                if (siguiente.n > 0) {
+                    select(siguiente, ultimoT, ultimoV);
+                }
+                // El ultimo punto siempre se conserva
+                out.add(ultimoT, ultimoV);
+            }
+            return out;
+        }
+    }
+
+    // ═══════════════════════════════════════════════════════════
+    // MIN / MAX
+    // ═══════════════════════════════════════════════════════════
+
+    private static class MinMax extends SeriesDownsampler {
+
+        private int indice = -1;
+        private long minT, maxT;
+        private double minV, maxV;
+
+        MinMax(long desde, long hasta, int puntos) {
+            super(desde, hasta, puntos / 2, puntos);
+        }
+
+        @Override
+        public void add(long t, double v) {
+            count++;
+            int b = bucketOf(t);
+            if (b != indice) {
+                flush();
+                indice = b;
+                minT = maxT = t;
+                minV = maxV = v;
+                return;
+            }
+            if (v < minV) { minV = v; minT = t; }
+            if (v > maxV) { maxV = v; maxT = t; }
+        }
+
+        private void flush() {
+            if (indice < 0) return;
+            // Emitir en orden cronologico
+            if (minT == maxT) {
+                out.add(minT, minV);
+            } else if (minT < maxT) {
+                out.add(minT, minV);
+                out.add(maxT, maxV);
+            } else {
+                out.add(maxT, maxV);
+                out.add(minT, minV);
+            }
+        }
+
+        @Override
+        public Series finish() {
+            flush();
+            indice = -1;
+            return out;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.smarthome.service;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOptions;
+import com.smarthome.database.MongoDBConnection;
+import com.smarthome.model.Tariff;
+import org.bson.Document;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.mongodb.client.model.Filters.*;
+
+/**
+ * Servicio de tarifas electricas por casa (coleccion tariffs)
+ * Las casas sin tarifa guardada usan Tariff.defaultFor (CFE domestica aprox.)
+ */
+public class TariffService {
+
+    public static final String COLLECTION_NAME = "tariffs";
+
+    private final MongoCollection<Document> collection;
+
+    // Tarifas ya leidas por casa (cambian solo con save/delete)
+    private final Map<String, Tariff> cache = new ConcurrentHashMap<>();
+
+    public TariffService() {
+        this.collection = MongoDBConnection.getInstance()
+                .getCollection(COLLECTION_NAME);
+    }
+
+    /**
+     * Crear el indice unico por casa
+     */
+    public void ensureIndexes() {
+        try {
+            collection.createIndex(Indexes.ascending("houseId"), new IndexOptions().unique(true));
+        } catch (Exception e) {
+            System.err.println("[TARIFF] Error creando indices: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tarifa de una casa (o la tarifa por defecto si no tiene)
+     */
+    public Tariff getTariff(String houseId) {
+        String key = houseId != null ? houseId : "";
+        return cache.computeIfAbsent(key, k -> {
+            Tariff tariff = Tariff.fromDocument(collection.find(eq("houseId", houseId)).first());
+            return tariff != null ? tariff : Tariff.defaultFor(houseId);
+        });
+    }
+
+    /**
+     * Guardar (reemplazar) la tarifa de una casa
+     * @throws IllegalArgumentException si la tarifa no es valida
+     */
+    public Tariff save(Tariff tariff) {
+        tariff.validate();
+        tariff.setUpdatedAt(System.currentTimeMillis());
+        collection.replaceOne(eq("houseId", tariff.getHouseId()), tariff.toDocument(),
+            new ReplaceOptions().upsert(true));
+        cache.put(tariff.getHouseId() != null ? tariff.getHouseId() : "", tariff);
+        System.out.println("[TARIFF] Tarifa guardada para casa " + tariff.getHouseId() + ": " + tariff.getName());
+        return tariff;
+    }
+
+    /**
+     * Borrar la tarifa de una casa (vuelve a la tarifa por defecto)
+     */
+    public boolean delete(String houseId) {
+        cache.remove(houseId != null ? houseId : "");
+        return collection.deleteOne(eq("houseId", houseId)).getDeletedCount() > 0;
+    }
+}
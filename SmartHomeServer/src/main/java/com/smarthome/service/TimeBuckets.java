@@ -0,0 +1,148 @@
+package com.smarthome.service;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Agrupacion de timestamps en cubetas de hora y dia sin asignar memoria
+ *
+ * Reemplaza Calendar.setTimeInMillis + SimpleDateFormat.format por documento.
+ * Al crearse para un rango [desde, hasta] precalcula las transiciones de
+ * offset de la zona horaria (cambios de horario de verano) que caen en el
+ * rango; despues cada timestamp se convierte a hora/dia local con
+ * aritmetica entera. Pensado para acumular en double[] indexado por cubeta.
+ *
+ * No es thread-safe de construir, pero una instancia ya creada es inmutable.
+ */
+public final class TimeBuckets {
+
+    public static final long HOUR_MS = 60L * 60 * 1000;
+    public static final long DAY_MS = 24 * HOUR_MS;
+
+    private final ZoneId zone;
+    private final long desde;
+    private final long hasta;
+
+    // transitions[i] = instante (epoch ms) a partir del cual rige offsets[i + 1]
+    private final long[] transitions;
+    private final long[] offsets;
+
+    // Dia local (epoch day) del inicio del rango
+    private final long baseDay;
+    private final int dayCount;
+
+    private TimeBuckets(ZoneId zone, long desde, long hasta) {
+        this.zone = zone;
+        this.desde = desde;
+        this.hasta = hasta;
+
+        ZoneRules rules = zone.getRules();
+        List<ZoneOffsetTransition> cambios = new ArrayList<>();
+        if (!rules.isFixedOffset()) {
+            ZoneOffsetTransition t = rules.nextTransition(Instant.ofEpochMilli(desde));
+            while (t != null && t.getInstant().toEpochMilli() <= hasta) {
+                cambios.add(t);
+                t = rules.nextTransition(t.getInstant());
+            }
+        }
+
+        this.transitions = new long[cambios.size()];
+        this.offsets = new long[cambios.size() + 1];
+        this.offsets[0] = rules.getOffset(Instant.ofEpochMilli(desde)).getTotalSeconds() * 1000L;
+        for (int i = 0; i < cambios.size(); i++) {
+            ZoneOffsetTransition t = cambios.get(i);
+            transitions[i] = t.getInstant().toEpochMilli();
+            offsets[i + 1] = t.getOffsetAfter().getTotalSeconds() * 1000L;
+        }
+
+        this.baseDay = Math.floorDiv(localMillis(desde), DAY_MS);
+        this.dayCount = (int) (Math.floorDiv(localMillis(hasta), DAY_MS) - baseDay) + 1;
+    }
+
+    /**
+     * Crear las cubetas para un rango en la zona indicada
+     */
+    public static TimeBuckets of(ZoneId zone, long desde, long hasta) {
+        if (hasta < desde) {
+            throw new IllegalArgumentException("Rango invalido: hasta < desde");
+        }
+        return new TimeBuckets(zone, desde, hasta);
+    }
+
+    /**
+     * Crear las cubetas para un rango en la zona del sistema
+     * (misma zona que usaba Calendar.getInstance())
+     */
+    public static TimeBuckets of(long desde, long hasta) {
+        return of(ZoneId.systemDefault(), desde, hasta);
+    }
+
+    /**
+     * Offset de la zona (ms) vigente en un instante
+     */
+    public long offsetAt(long epochMillis) {
+        int n = transitions.length;
+        if (n == 0 || epochMillis < transitions[0]) {
+            return offsets[0];
+        }
+        if (n == 1) {
+            return offsets[1];
+        }
+        int idx = Arrays.binarySearch(transitions, epochMillis);
+        // Si no esta, binarySearch regresa -(punto de insercion) - 1
+        int rigente = idx >= 0 ? idx + 1 : -idx - 1;
+        return offsets[rigente];
+    }
+
+    /**
+     * Milisegundos "locales" (epoch + offset) para aritmetica de calendario
+     */
+    public long localMillis(long epochMillis) {
+        return epochMillis + offsetAt(epochMillis);
+    }
+
+    /**
+     * Hora local del dia (0-23)
+     */
+    public int hourOfDay(long epochMillis) {
+        return (int) Math.floorMod(Math.floorDiv(localMillis(epochMillis), HOUR_MS), 24L);
+    }
+
+    /**
+     * Indice del dia local relativo al inicio del rango (0 = dia de "desde")
+     */
+    public int dayIndex(long epochMillis) {
+        return (int) (Math.floorDiv(localMillis(epochMillis), DAY_MS) - baseDay);
+    }
+
+    /**
+     * Numero de dias locales que toca el rango
+     */
+    public int dayCount() {
+        return dayCount;
+    }
+
+    /**
+     * Fecha local de un indice de dia
+     */
+    public LocalDate dayAt(int index) {
+        return LocalDate.ofEpochDay(baseDay + index);
+    }
+
+    /**
+     * Inicio (epoch ms) de un dia local, respetando la zona
+     */
+    public long dayStart(int index) {
+        return dayAt(index).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    public ZoneId getZone() { return zone; }
+    public long getDesde() { return desde; }
+    public long getHasta() { return hasta; }
+}
@@ -12,6 +12,11 @@ function getApiBase() {
 let chartByHour = null;
 let chartByType = null;
 let chartByDay = null;
+let chartLive = null;
+
+// Stream SSE de potencia en vivo
+let liveSource = null;
+const LIVE_MAX_POINTS = 120; // 10 minutos a 5 segundos por punto
 
 // Intervalo de actualizacion automatica
 let updateInterval = null;
@@ -76,6 +81,9 @@ async function initEnergyModule() {
     // Cargar datos iniciales
     await loadAllData();
     
+    // Potencia actual en vivo por SSE
+    startLiveStream();
+    
     // Actualizar cada 30 segundos
     updateInterval = setInterval(loadAllData, 30000);
     
@@ -158,6 +166,27 @@ function initCharts() {
         });
     }
     
+    // Grafica de potencia en vivo
+    const ctxLive = document.getElementById('chartLive');
+    if (ctxLive) {
+        chartLive = new Chart(ctxLive, {
+            type: 'line',
+            data: {
+                labels: [],
+                datasets: [{
+                    label: 'W',
+                    data: [],
+                    borderColor: CHART_COLORS.warning,
+                    backgroundColor: CHART_COLORS.warningBg,
+                    fill: true,
+                    tension: 0.2,
+                    pointRadius: 0
+                }]
+            },
+            options: { ...commonOptions, animation: false }
+        });
+    }
+    
     // Grafica de consumo por dia
     const ctxDay = document.getElementById('chartByDay');
     if (ctxDay) {
@@ -177,177 +206,193 @@ function initCharts() {
     }
 }
 
+/**
+ * Abrir el stream SSE de telemetria de energia
+ * Cada tick actualiza la tarjeta de consumo actual, los dispositivos
+ * activos y la grafica en vivo sin consultar la base de datos
+ */
+function startLiveStream() {
+    if (!window.EventSource) return;
+    
+    liveSource = new EventSource(`${getApiBase()}/api/energy/stream`);
+    liveSource.addEventListener('energy', (event) => {
+        const frame = JSON.parse(event.data);
+        
+        const currentWatts = document.getElementById('currentWatts');
+        if (currentWatts) currentWatts.textContent = frame.totalWatts.toFixed(0);
+        
+        const activos = {};
+        for (const d of frame.devices) {
+            activos[d.name] = d.watts;
+        }
+        renderActiveDevices({ dispositivosActivos: activos, totalWatts: frame.totalWatts });
+        
+        if (chartLive) {
+            const hora = new Date(frame.timestamp).toLocaleTimeString('es-MX');
+            chartLive.data.labels.push(hora);
+            chartLive.data.datasets[0].data.push(frame.totalWatts);
+            if (chartLive.data.labels.length > LIVE_MAX_POINTS) {
+                chartLive.data.labels.shift();
+                chartLive.data.datasets[0].data.shift();
+            }
+            chartLive.update();
+        }
+    });
+    liveSource.onerror = () => {
+        console.warn('[ENERGY] Stream en vivo desconectado, reintentando...');
+    };
+}
+
 /**
  * Cargar todos los datos
+ * Una sola peticion al tablero combinado en lugar de una por vista
  */
 async function loadAllData() {
     console.log('[ENERGY] Cargando datos...');
     
     try {
-        await Promise.all([
-            loadSummary(),
-            loadByHour(),
-            loadByType(),
-            loadByDay(),
-            loadActiveDevices(),
-            loadEnergyLogs()
-        ]);
+        const limitSelect = document.getElementById('logsLimit');
+        const limit = limitSelect ? limitSelect.value : 50;
+        
+        const response = await fetch(`${getApiBase()}/api/energy?type=dashboard&dias=7&limit=${limit}`);
+        const data = await response.json();
+        
+        renderSummary(data.summary || {});
+        renderByHour(data);
+        renderByType(data);
+        renderByDay(data);
+        renderActiveDevices(data);
+        renderEnergyLogs(data);
     } catch (error) {
         console.error('[ENERGY] Error cargando datos:', error);
     }
 }
 
 /**
- * Cargar resumen general
+ * Mostrar resumen general
  */
-async function loadSummary() {
-    try {
-        const response = await fetch(`${getApiBase()}/api/energy?type=summary`);
-        const data = await response.json();
-        
-        // Actualizar tarjetas
-        const currentWatts = document.getElementById('currentWatts');
-        const todayKwh = document.getElementById('todayKwh');
-        const estimatedCost = document.getElementById('estimatedCost');
-        
-        if (currentWatts) currentWatts.textContent = data.currentWatts?.toFixed(0) || '0';
-        if (todayKwh) todayKwh.textContent = data.totalKwh?.toFixed(2) || '0.00';
-        if (estimatedCost) estimatedCost.textContent = '$' + (data.costoEstimado?.toFixed(2) || '0.00');
-        
-    } catch (error) {
-        console.error('[ENERGY] Error cargando resumen:', error);
+function renderSummary(data) {
+    // Actualizar tarjetas
+    const currentWatts = document.getElementById('currentWatts');
+    const todayKwh = document.getElementById('todayKwh');
+    const estimatedCost = document.getElementById('estimatedCost');
+    
+    if (currentWatts) currentWatts.textContent = data.currentWatts?.toFixed(0) || '0';
+    if (todayKwh) todayKwh.textContent = data.totalKwh?.toFixed(2) || '0.00';
+    if (estimatedCost) estimatedCost.textContent = '$' + (data.costoEstimado?.toFixed(2) || '0.00');
+    
+    // Proyeccion del periodo de facturacion con la tarifa de la casa
+    const projectedCost = document.getElementById('projectedCost');
+    const projectedLabel = document.getElementById('projectedLabel');
+    const proyectado = data.proyeccion?.proyectado;
+    if (projectedCost) projectedCost.textContent = '$' + (proyectado?.total?.toFixed(2) || '0.00');
+    if (projectedLabel && proyectado) {
+        const avance = Math.round((proyectado.avance || 0) * 100);
+        projectedLabel.textContent = 'Proyeccion del Periodo (' + avance + '%, ' + proyectado.escalon + ')';
+        projectedLabel.title = data.tarifa || '';
     }
 }
 
 /**
- * Cargar consumo por hora
+ * Mostrar consumo por hora
  */
-async function loadByHour() {
-    try {
-        const response = await fetch(`${getApiBase()}/api/energy?type=byHour`);
-        const data = await response.json();
+function renderByHour(data) {
+    if (chartByHour && data.consumoByHour) {
+        const labels = [];
+        const values = [];
         
-        if (chartByHour && data.consumoByHour) {
-            const labels = [];
-            const values = [];
-            
-            for (let i = 0; i < 24; i++) {
-                labels.push(i + ':00');
-                values.push(parseFloat(data.consumoByHour[i]) || 0);
-            }
-            
-            chartByHour.data.labels = labels;
-            chartByHour.data.datasets[0].data = values;
-            chartByHour.update();
+        for (let i = 0; i < 24; i++) {
+            labels.push(i + ':00');
+            values.push(parseFloat(data.consumoByHour[i]) || 0);
         }
-    } catch (error) {
-        console.error('[ENERGY] Error cargando datos por hora:', error);
+        
+        chartByHour.data.labels = labels;
+        chartByHour.data.datasets[0].data = values;
+        chartByHour.update();
     }
 }
 
 /**
- * Cargar consumo por tipo
+ * Mostrar consumo por tipo
  */
-async function loadByType() {
-    try {
-        const response = await fetch(`${getApiBase()}/api/energy?type=byType`);
-        const data = await response.json();
+function renderByType(data) {
+    if (chartByType && data.consumoByType) {
+        const labels = [];
+        const values = [];
+        const colors = [];
         
-        if (chartByType && data.consumoByType) {
-            const labels = [];
-            const values = [];
-            const colors = [];
-            
-            // Mapeo de nombres de tipos para mostrar
-            const typeNames = {
-                'light': 'Luces',
-                'tv': 'TV',
-                'speaker': 'Altavoz',
-                'camera': 'Camaras',
-                'ac': 'Clima',
-                'door': 'Porton',
-                'washer': 'Lavadora'
-            };
-            
-            for (const [type, kwh] of Object.entries(data.consumoByType)) {
-                if (parseFloat(kwh) > 0) {
-                    labels.push(typeNames[type] || type);
-                    values.push(parseFloat(kwh));
-                    colors.push(TYPE_COLORS[type] || '#888');
-                }
+        // Mapeo de nombres de tipos para mostrar
+        const typeNames = {
+            'light': 'Luces',
+            'tv': 'TV',
+            'speaker': 'Altavoz',
+            'camera': 'Camaras',
+            'ac': 'Clima',
+            'door': 'Porton',
+            'washer': 'Lavadora'
+        };
+        
+        for (const [type, kwh] of Object.entries(data.consumoByType)) {
+            if (parseFloat(kwh) > 0) {
+                labels.push(typeNames[type] || type);
+                values.push(parseFloat(kwh));
+                colors.push(TYPE_COLORS[type] || '#888');
             }
-            
-            chartByType.data.labels = labels;
-            chartByType.data.datasets[0].data = values;
-            chartByType.data.datasets[0].backgroundColor = colors;
-            chartByType.update();
         }
-    } catch (error) {
-        console.error('[ENERGY] Error cargando datos por tipo:', error);
+        
+        chartByType.data.labels = labels;
+        chartByType.data.datasets[0].data = values;
+        chartByType.data.datasets[0].backgroundColor = colors;
+        chartByType.update();
     }
 }
 
 /**
- * Cargar consumo por dia
+ * Mostrar consumo por dia
  */
-async function loadByDay() {
-    try {
-        const response = await fetch(`${getApiBase()}/api/energy?type=byDay&dias=7`);
-        const data = await response.json();
+function renderByDay(data) {
+    if (chartByDay && data.consumoByDay) {
+        const labels = Object.keys(data.consumoByDay);
+        const values = Object.values(data.consumoByDay).map(v => parseFloat(v));
         
-        if (chartByDay && data.consumoByDay) {
-            const labels = Object.keys(data.consumoByDay);
-            const values = Object.values(data.consumoByDay).map(v => parseFloat(v));
-            
-            chartByDay.data.labels = labels;
-            chartByDay.data.datasets[0].data = values;
-            chartByDay.update();
-        }
-    } catch (error) {
-        console.error('[ENERGY] Error cargando datos por dia:', error);
+        chartByDay.data.labels = labels;
+        chartByDay.data.datasets[0].data = values;
+        chartByDay.update();
     }
 }
 
 /**
- * Cargar dispositivos activos
+ * Mostrar dispositivos activos
  */
-async function loadActiveDevices() {
-    try {
-        const response = await fetch(`${getApiBase()}/api/energy?type=current`);
-        const data = await response.json();
-        
-        const container = document.getElementById('activeDevicesList');
-        const totalElement = document.getElementById('totalActiveWatts');
-        
-        if (!container) return;
-        
-        if (!data.dispositivosActivos || Object.keys(data.dispositivosActivos).length === 0) {
-            container.innerHTML = '<div class="no-active">No hay dispositivos activos</div>';
-            if (totalElement) totalElement.textContent = '0';
-            return;
-        }
-        
-        let html = '';
-        for (const [deviceId, watts] of Object.entries(data.dispositivosActivos)) {
-            html += `
-                <div class="active-device-item">
-                    <span class="device-dot" style="background: ${getColorForWatts(watts)}"></span>
-                    <span class="device-name">${deviceId}</span>
-                    <span class="device-watts">${watts.toFixed(0)}W</span>
-                </div>
-            `;
-        }
-        
-        container.innerHTML = html;
-        if (totalElement) totalElement.textContent = (data.totalWatts || 0).toFixed(0);
-        
-    } catch (error) {
-        console.error('[ENERGY] Error cargando dispositivos activos:', error);
+function renderActiveDevices(data) {
+    const container = document.getElementById('activeDevicesList');
+    const totalElement = document.getElementById('totalActiveWatts');
+    
+    if (!container) return;
+    
+    if (!data.dispositivosActivos || Object.keys(data.dispositivosActivos).length === 0) {
+        container.innerHTML = '<div class="no-active">No hay dispositivos activos</div>';
+        if (totalElement) totalElement.textContent = '0';
+        return;
+    }
+    
+    let html = '';
+    for (const [deviceId, watts] of Object.entries(data.dispositivosActivos)) {
+        html += `
+            <div class="active-device-item">
+                <span class="device-dot" style="background: ${getColorForWatts(watts)}"></span>
+                <span class="device-name">${deviceId}</span>
+                <span class="device-watts">${watts.toFixed(0)}W</span>
+            </div>
+        `;
     }
+    
+    container.innerHTML = html;
+    if (totalElement) totalElement.textContent = (data.totalWatts || 0).toFixed(0);
 }
 
 /**
- * Cargar historial de eventos de energia
+ * Cargar historial de eventos de energia (boton de refrescar / cambio de limite)
  */
 async function loadEnergyLogs() {
     try {
@@ -357,56 +402,63 @@ async function loadEnergyLogs() {
         const response = await fetch(`${getApiBase()}/api/energy?type=logs&limit=${limit}`);
         const data = await response.json();
         
-        const tbody = document.getElementById('logsBody');
-        if (!tbody) return;
+        renderEnergyLogs(data);
         
-        if (!data.logs || data.logs.length === 0) {
-            tbody.innerHTML = '<tr><td colspan="7" class="no-data">No hay eventos registrados</td></tr>';
-            return;
-        }
+    } catch (error) {
+        console.error('[ENERGY] Error cargando logs:', error);
+    }
+}
+
+/**
+ * Mostrar historial de eventos de energia
+ */
+function renderEnergyLogs(data) {
+    const tbody = document.getElementById('logsBody');
+    if (!tbody) return;
+    
+    if (!data.logs || data.logs.length === 0) {
+        tbody.innerHTML = '<tr><td colspan="7" class="no-data">No hay eventos registrados</td></tr>';
+        return;
+    }
+    
+    let html = '';
+    for (const log of data.logs) {
+        const fecha = new Date(log.timestamp);
+        const fechaStr = fecha.toLocaleDateString('es-MX', { 
+            day: '2-digit', month: '2-digit', year: '2-digit',
+            hour: '2-digit', minute: '2-digit'
+        });
         
-        let html = '';
-        for (const log of data.logs) {
-            const fecha = new Date(log.timestamp);
-            const fechaStr = fecha.toLocaleDateString('es-MX', { 
-                day: '2-digit', month: '2-digit', year: '2-digit',
-                hour: '2-digit', minute: '2-digit'
-            });
-            
-            // Duracion legible
-            let duracionStr = '-';
-            if (log.duration > 0) {
-                const minutos = Math.floor(log.duration / 60000);
-                const segundos = Math.floor((log.duration % 60000) / 1000);
-                if (minutos > 0) {
-                    duracionStr = minutos + 'm ' + segundos + 's';
-                } else {
-                    duracionStr = segundos + 's';
-                }
+        // Duracion legible
+        let duracionStr = '-';
+        if (log.duration > 0) {
+            const minutos = Math.floor(log.duration / 60000);
+            const segundos = Math.floor((log.duration % 60000) / 1000);
+            if (minutos > 0) {
+                duracionStr = minutos + 'm ' + segundos + 's';
+            } else {
+                duracionStr = segundos + 's';
             }
-            
-            // Clase de evento
-            const eventClass = log.eventType === 'ON' ? 'event-on' : 
-                              log.eventType === 'OFF' ? 'event-off' : 'event-action';
-            
-            html += `
-                <tr>
-                    <td>${fechaStr}</td>
-                    <td>${log.deviceName}</td>
-                    <td>${getTypeIcon(log.deviceType)} ${log.deviceType}</td>
-                    <td><span class="event-badge ${eventClass}">${log.eventType}</span></td>
-                    <td>${log.wattsConsumed?.toFixed(1) || 0}W</td>
-                    <td>${duracionStr}</td>
-                    <td>${log.kwhConsumed?.toFixed(4) || '0.0000'}</td>
-                </tr>
-            `;
         }
         
-        tbody.innerHTML = html;
+        // Clase de evento
+        const eventClass = log.eventType === 'ON' ? 'event-on' : 
+                          log.eventType === 'OFF' ? 'event-off' : 'event-action';
         
-    } catch (error) {
-        console.error('[ENERGY] Error cargando logs:', error);
+        html += `
+            <tr>
+                <td>${fechaStr}</td>
+                <td>${log.deviceName}</td>
+                <td>${getTypeIcon(log.deviceType)} ${log.deviceType}</td>
+                <td><span class="event-badge ${eventClass}">${log.eventType}</span></td>
+                <td>${log.wattsConsumed?.toFixed(1) || 0}W</td>
+                <td>${duracionStr}</td>
+                <td>${log.kwhConsumed?.toFixed(4) || '0.0000'}</td>
+            </tr>
+        `;
     }
+    
+    tbody.innerHTML = html;
 }
 
 /**